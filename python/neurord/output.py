@@ -22,6 +22,7 @@ i.e.
 
 from __future__ import print_function, division, unicode_literals
 
+import os
 import operator
 import enum
 import math
@@ -236,6 +237,23 @@ class Model(object):
 
         return ModelOutputGroup(element, self)
 
+def sparse_population(keyframes, changes, interval, count):
+    """Dense populations from keyframes [keyframe × element × species]
+    and changes [change × (snapshot, cell, value)]
+    """
+    nel, nspec = keyframes.shape[1:]
+    ans = np.empty((count, nel, nspec), dtype=keyframes.dtype)
+    flat = ans.reshape(count, nel * nspec)
+    bounds = np.searchsorted(changes[:, 0], np.arange(count + 1))
+    for i in range(count):
+        if i % interval == 0:
+            flat[i] = keyframes[i // interval].ravel()
+        else:
+            flat[i] = flat[i - 1]
+            part = changes[bounds[i]:bounds[i + 1]]
+            flat[i, part[:, 1]] = part[:, 2]
+    return ans
+
 class ModelOutputGroup(object):
     def __init__(self, element, model):
         self._element = element
@@ -264,11 +282,30 @@ class ModelOutputGroup(object):
 
     def volumes(self):
         """Volumes of elements in this output group
+
+        For groups aggregated by region, volumes of the regions (only
+        counting the elements in this output group).
         """
         elements = self.elements()
         grid = self._model.grid()
         volumes = grid[elements].volume
-        return volumes
+        regions = self.regions()
+        if regions is None:
+            return volumes
+        names = self._model.element_regions()[elements]
+        return np.array([volumes[names == region].sum() for region in regions])
+
+    def aggregate(self):
+        "How values are aggregated by region (sum, concentration), or None"
+        return self._element._v_attrs.aggregate.decode('utf-8') \
+            if 'aggregate' in self._element._v_attrs else None
+
+    def regions(self):
+        "Names of regions of rows in aggregated groups, or None"
+        try:
+            return [row.decode('utf-8') for row in self._element.regions[:]]
+        except tables.exceptions.NoSuchNodeError:
+            return None
 
 class OutputGroup(object):
     def __init__(self, element, output_model):
@@ -280,22 +317,43 @@ class OutputGroup(object):
         diff = times[1] - times[0]
         return np.round(times, decimals=max(-math.floor(math.log10(diff)), 0))
 
-    def counts(self):
-        try:
-            data = self._element.population
-        except tables.exceptions.NoSuchNodeError:
-            # fall back to old tree
-            data = self._element.concentrations
-        panel = pd.Panel(data.read(),
+    def _frame(self, data):
+        regions = self._output_model.regions()
+        panel = pd.Panel(data,
                          items=self.times(),
-                         major_axis=self._output_model.elements(),
+                         major_axis=regions if regions is not None else self._output_model.elements(),
                          minor_axis=self.species())
         frame = panel.transpose(2, 1, 0).to_frame()
-        frame.index.names = ['voxel', 'time']
+        frame.index.names = ['region' if regions is not None else 'voxel', 'time']
         return frame
 
+    def counts(self):
+        if self._output_model.aggregate() == 'concentration':
+            raise ValueError('group was written as concentrations by region')
+        return self._frame(self.population())
+
+    def population(self):
+        """Populations as a dense array [snapshot × element × species]
+
+        Sparse output (-Dneurord.population_encoding=sparse) is reconstructed
+        from the keyframes and the changes between snapshots.
+        """
+        attrs = self._element._v_attrs
+        if 'encoding' in attrs and attrs.encoding.decode('utf-8') == 'sparse':
+            return sparse_population(self._element.keyframes.read(),
+                                     self._element.changes.read(),
+                                     int(attrs.keyframe_interval),
+                                     self._element.times.shape[0])
+        try:
+            return self._element.population.read()
+        except tables.exceptions.NoSuchNodeError:
+            # fall back to old tree
+            return self._element.concentrations.read()
+
     def concentrations(self):
-        "Counts converted to concentrations using voxel volumes"
+        "Counts converted to concentrations using voxel (or region) volumes"
+        if self._output_model.aggregate() == 'concentration':
+            return self._frame(self._element.concentration.read())
         counts = self.counts()
         volumes = self._output_model.volumes() * PUVC
         # blow up volumes to match the size of the counts index
@@ -375,6 +433,40 @@ class Simulation(object):
         df.set_index('time', inplace=True)
         return df.reindex_axis('waited original event kind extent'.split(), axis=1)
 
+    def event_statistics(self):
+        """Event statistics [snapshot × event × (count, extent)]
+
+        Both the dense (event_statistics) and the sparse
+        (event_statistics_changes) encodings are returned as a dense array.
+        """
+        try:
+            return self._element.event_statistics[:]
+        except tables.exceptions.NoSuchNodeError:
+            pass
+        changes = self._element.event_statistics_changes[:]
+        count = len(self._element.statistics_times)
+        rows = len(self.model._element.event_statistics)
+        data = np.zeros((count, rows, 2), dtype=changes.dtype)
+        data[changes[:, 0], changes[:, 1]] = changes[:, 2:]
+        return data
+
+    def profile(self, by='channel'):
+        """Cost profile written with -Dneurord.neq.profile=N
+
+        by is one of 'channel', 'voxel', 'region'.
+
+        >>> out.simulation(0).profile().sort_values('estimated_ns').tail(3)
+        """
+        group = self._element.profile
+        columns = decode_species_names(group.columns[:])
+        data = group._v_children['by_' + by][:]
+        if by == 'voxel':
+            index = pd.RangeIndex(len(data), name='voxel')
+        else:
+            names = group.channels[:] if by == 'channel' else group.regions[:]
+            index = pd.Index(decode_species_names(names), name=by)
+        return pd.DataFrame(data, index=index, columns=columns)
+
 class Output(object):
     """The output for a single model, 0 or more experiments
 
@@ -415,6 +507,34 @@ class Output(object):
         sims.sort(key=operator.attrgetter('number'))
         return sims
 
+    def ensemble(self, by='voxel'):
+        """Statistics over trials written with -Dneurord.writers=ensemble
+
+        by is 'voxel' (mean and variance) or 'region' (mean, variance
+        and quantiles).
+
+        >>> out = Output('model-ensemble.h5')
+        >>> out.ensemble('region').head(1)
+        """
+        group = self.file.root.ensemble
+        times = group.times[:]
+        species = decode_species_names(group.species[:])
+        if by == 'voxel':
+            prefix = ''
+            units = pd.RangeIndex(group.mean.shape[1], name='voxel')
+        else:
+            prefix = 'region_'
+            units = pd.Index(decode_species_names(group.regions[:]), name='region')
+        index = pd.MultiIndex.from_product([times, units, species],
+                                           names=['time', units.name, 'specie'])
+        data = dict(mean=group._v_children[prefix + 'mean'][:].ravel(),
+                    variance=group._v_children[prefix + 'variance'][:].ravel())
+        if by != 'voxel' and 'region_quantiles' in group:
+            quantiles = group.region_quantiles[:]
+            for i, q in enumerate(group.quantiles[:]):
+                data['q{:g}'.format(q)] = quantiles[..., i].ravel()
+        return pd.DataFrame(data, index=index)
+
     @functools.lru_cache()
     def counts(self, output_group='__main__'):
         """Aggregated table of particle counts
@@ -481,3 +601,139 @@ class Output(object):
         data = dict((i, sim.events())
                     for (i, sim) in enumerate(sims))
         return pd.concat(data)
+
+def _read_properties(filename):
+    "A dictionary of simple key=value pairs from a Java .properties file"
+    ans = {}
+    with open(filename, encoding='utf-8') as f:
+        for line in f:
+            line = line.strip()
+            if line and line[0] not in '#!':
+                key, _, value = line.partition('=')
+                ans[key.strip()] = value.strip()
+    return ans
+
+def _read_lines(filename):
+    with open(filename, encoding='utf-8') as f:
+        return [line.rstrip('\n') for line in f]
+
+class RawOutput(object):
+    """Output written with -Dneurord.writers=raw
+
+    Columns are memory mapped, so only the parts which are used are read.
+
+    >>> out = RawOutput('model.raw')
+    >>> out.population(0).shape
+    (51, 120, 4)
+    """
+    FORMAT = 'neurord-raw'
+    VERSION = '2'
+
+    def __init__(self, dirname):
+        self.dirname = dirname
+        header = _read_properties(os.path.join(dirname, 'header.properties'))
+        if header.get('format') != self.FORMAT or header.get('version') != self.VERSION:
+            raise ValueError('{} is not raw output version {}'.format(dirname, self.VERSION))
+        self._species = _read_lines(os.path.join(dirname, 'species.txt'))
+
+    def _path(self, *parts):
+        return os.path.join(self.dirname, *parts)
+
+    def _column(self, dtype, *parts):
+        path = self._path(*parts)
+        if os.path.getsize(path) == 0:
+            return np.empty(0, dtype=dtype)
+        return np.memmap(path, dtype=dtype, mode='r')
+
+    def config(self):
+        "lxml etree of the serialized model"
+        return etree.parse(self._path('model.xml')).getroot()
+
+    def elements(self):
+        "Region and volume of each voxel"
+        table = pd.read_csv(self._path('elements.txt'), sep='\t', header=None,
+                            names=['region', 'volume'], index_col=0)
+        table.index.name = 'voxel'
+        return table
+
+    def trials(self):
+        "Numbers of trials, in order"
+        return sorted(int(name[5:]) for name in os.listdir(self.dirname)
+                      if name.startswith('trial') and name[5:].isdigit())
+
+    def output_elements(self, trial, output_group='__main__'):
+        "Indices of voxels in the output group"
+        return np.array(_read_lines(self._path('trial{}'.format(trial), output_group, 'elements.txt')),
+                        dtype=int)
+
+    def species(self, trial, output_group='__main__'):
+        "Names of species in the output group"
+        indices = _read_lines(self._path('trial{}'.format(trial), output_group, 'species.txt'))
+        return [self._species[int(i)] for i in indices]
+
+    def times(self, trial, output_group='__main__'):
+        return self._column('<f8', 'trial{}'.format(trial), output_group, 'times.f64')
+
+    def population(self, trial, output_group='__main__'):
+        "Populations [snapshot × element × species] (for all voxels of aggregated groups)"
+        nel = len(self.output_elements(trial, output_group))
+        nspec = len(self.species(trial, output_group))
+        data = self._column('<i4', 'trial{}'.format(trial), output_group, 'population.i32')
+        return data.reshape(-1, nel, nspec)
+
+    def counts(self, trial, output_group='__main__'):
+        "Populations as a frame indexed by voxel and time, like OutputGroup.counts()"
+        panel = pd.Panel(self.population(trial, output_group),
+                         items=self.times(trial, output_group),
+                         major_axis=self.output_elements(trial, output_group),
+                         minor_axis=self.species(trial, output_group))
+        frame = panel.transpose(2, 1, 0).to_frame()
+        frame.index.names = ['voxel', 'time']
+        return frame
+
+    def events(self, trial):
+        "A full history of events, like Simulation.events()"
+        path = 'trial{}'.format(trial), 'events'
+        df = pd.DataFrame(dict(time=self._column('<f8', *path + ('times.f64',)),
+                               waited=self._column('<f8', *path + ('waited.f64',)),
+                               original=self._column('<f8', *path + ('original_wait.f64',)),
+                               event=self._column('<i4', *path + ('events.i32',)),
+                               extent=self._column('<i4', *path + ('extents.i32',)),
+                               kind=self._column('<i4', *path + ('kinds.i32',))))
+        df.set_index('time', inplace=True)
+        return df.reindex_axis('waited original event kind extent'.split(), axis=1)
+
+    def statistics(self, trial):
+        "Event statistics [snapshot × event × 2] and their times"
+        path = 'trial{}'.format(trial), 'statistics'
+        times = self._column('<f8', *path + ('times.f64',))
+        counts = self._column('<i8', *path + ('counts.i64',))
+        if len(times) == 0:
+            return times, counts.reshape(0, 0, 2)
+        return times, counts.reshape(len(times), -1, 2)
+
+TRACE_DTYPE = np.dtype([('event', '>i4'),
+                        ('kind', 'i1'),
+                        ('time', '>f8'),
+                        ('old_propensity', '>f8'),
+                        ('new_propensity', '>f8'),
+                        ('next_time', '>f8'),
+                        ('extent', '>i4')])
+"""Record layout written by EventTrace (kind 0=exact, 1=leap, 2=update)"""
+
+def read_trace(filename):
+    """Read a queue trace dumped with -Dneurord.neq.trace=N
+
+    >>> trace = read_trace('model.trial0.trace')
+    """
+    with open(filename, 'rb') as f:
+        header = f.read(28)
+        if header[:8] != b'NRDTRACE':
+            raise ValueError('{} is not a trace file'.format(filename))
+        version, size, total, stored = np.frombuffer(
+            header[8:], dtype=np.dtype([('v', '>i4'), ('s', '>i4'),
+                                        ('t', '>i8'), ('n', '>i4')]))[0]
+        if version != 1 or size != TRACE_DTYPE.itemsize:
+            raise ValueError('unsupported trace version {}'.format(version))
+        data = np.fromfile(f, dtype=TRACE_DTYPE, count=stored)
+    return pd.DataFrame(data)
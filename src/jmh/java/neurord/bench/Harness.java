@@ -0,0 +1,225 @@
+package neurord.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import neurord.SDCalcType;
+import neurord.model.SDRun;
+import neurord.numeric.BaseCalc;
+import neurord.numeric.grid.BenchmarkModels;
+import neurord.numeric.grid.GridCalc;
+import neurord.numeric.grid.ResultWriterHDF5;
+import neurord.util.Logging;
+import neurord.util.Settings;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Runs the calculations on synthetic models of increasing size and
+ * writes a table with the speed, memory use and output size of each run.
+ *
+ * When a previous report is given with --baseline, the table includes
+ * the relative change of the event rate, so regressions between releases
+ * are easy to spot.
+ */
+public class Harness {
+    static final Logger log = LogManager.getLogger();
+
+    static final String[] COLUMNS = {
+        "model", "calculation", "voxels", "species", "reactions",
+        "startup_ms", "run_ms", "events", "events_per_s",
+        "peak_heap_mb", "output_bytes", "status", "vs_baseline",
+    };
+
+    public static class Result {
+        String model, calculation, status = "ok";
+        int voxels, species, reactions;
+        long startup_ms, run_ms, events = -1, output_bytes;
+        double peak_heap_mb;
+
+        double eventsPerSecond() {
+            return this.events >= 0 && this.run_ms > 0 ? this.events * 1000.0 / this.run_ms : Double.NaN;
+        }
+
+        String key() {
+            return this.model + "/" + this.calculation;
+        }
+    }
+
+    final File dir;
+    final double runtime;
+
+    public Harness(File dir, double runtime) {
+        this.dir = dir;
+        this.runtime = runtime;
+    }
+
+    static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    static long peakHeap() {
+        long sum = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                sum += pool.getPeakUsage().getUsed();
+        return sum;
+    }
+
+    public Result run(ModelGenerator gen, SDCalcType type) throws IOException {
+        Result result = new Result();
+        result.model = gen.name();
+        result.calculation = type.name();
+        result.species = gen.species;
+        result.reactions = gen.reactions;
+
+        File modelFile = gen.runtime(this.runtime).write(this.dir);
+        File output = new File(this.dir, gen.name() + "-" + type.name().toLowerCase());
+
+        log.log(Logging.NOTICE, "Running {} with {}", result.model, result.calculation);
+        resetPeakHeap();
+
+        long start = System.currentTimeMillis();
+        SDRun sdrun = SDRun.loadFromFile(modelFile, null, 0, Double.NaN);
+        sdrun.calculation = type.name();
+        result.voxels = sdrun.getVolumeGrid().size();
+        result.startup_ms = System.currentTimeMillis() - start;
+
+        ResultWriterHDF5 writer = new ResultWriterHDF5(output, sdrun, sdrun.getOutputSets(),
+                                                       sdrun.getSpecies(), sdrun.getVolumeGrid());
+        BaseCalc calc = type.getCalc(0, sdrun);
+        calc.addResultWriter(writer);
+        Hashtable<Integer, Object> results = new Hashtable<>();
+        calc.storeResultIn(results);
+
+        start = System.currentTimeMillis();
+        calc.run();
+        result.run_ms = System.currentTimeMillis() - start;
+        result.peak_heap_mb = peakHeap() / 1024. / 1024.;
+
+        if (calc instanceof GridCalc)
+            result.events = BenchmarkModels.eventCount((GridCalc) calc);
+
+        Object status = results.get(0);
+        if (status instanceof Throwable) {
+            log.error("{} with {} failed", result.model, result.calculation, (Throwable) status);
+            result.status = "failed";
+            /* The calculation only closes the writers when it finishes */
+            writer.close();
+        }
+        result.output_bytes = writer.outputFile().length();
+
+        return result;
+    }
+
+    static Map<String, Double> readBaseline(File file) throws IOException {
+        Map<String, Double> rates = new HashMap<>();
+        for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.isEmpty())
+                continue;
+            String[] parts = line.split("\t");
+            rates.put(parts[0] + "/" + parts[1], Double.valueOf(parts[8]));
+        }
+        return rates;
+    }
+
+    static void writeReport(PrintStream out, List<Result> results, Map<String, Double> baseline) {
+        StringBuilder header = new StringBuilder("#");
+        for (String column: COLUMNS)
+            header.append(header.length() > 1 ? "\t" : "").append(column);
+        out.println(header);
+
+        for (Result r: results) {
+            Double old = baseline != null ? baseline.get(r.key()) : null;
+            double rate = r.eventsPerSecond();
+            out.println(String.format("%s\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%.1f\t%.1f\t%d\t%s\t%s",
+                                      r.model, r.calculation,
+                                      r.voxels, r.species, r.reactions,
+                                      r.startup_ms, r.run_ms, r.events, rate,
+                                      r.peak_heap_mb, r.output_bytes, r.status,
+                                      old != null && old > 0 ?
+                                      String.format("%+.1f%%", (rate / old - 1) * 100) : "-"));
+        }
+    }
+
+    static int[] intList(String value) {
+        String[] parts = value.split(",");
+        int[] ans = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            ans[i] = Integer.valueOf(parts[i].trim());
+        return ans;
+    }
+
+    static Options buildOptions() {
+        Options options = new Options();
+        options.addOption("o", "output", true, "write the report to this file (default: stdout)");
+        options.addOption(null, "voxels", true, "comma-separated voxel counts (default: 10,100,1000)");
+        options.addOption(null, "species", true, "comma-separated species counts (default: 4)");
+        options.addOption(null, "reactions", true, "comma-separated reaction counts (default: 4)");
+        options.addOption(null, "calculations", true,
+                          "comma-separated calculation types (default: all grid calculations)");
+        options.addOption("t", "runtime", true, "simulation time of each model (default: 100)");
+        options.addOption(null, "baseline", true, "previous report to compare event rates with");
+        options.addOption("h", "help", false, "print this help and exit");
+        return options;
+    }
+
+    public static void main(String... argv) throws Exception {
+        Options options = buildOptions();
+        CommandLine cmd = new DefaultParser().parse(options, argv);
+        if (cmd.hasOption("help") || cmd.getArgs().length != 1) {
+            new HelpFormatter().printHelp(Settings.javaExecutable(Harness.class) + " [option...] <workdir>",
+                                          "\nGenerates models in <workdir> and runs them.\n\n",
+                                          options, "");
+            System.exit(cmd.hasOption("help") ? 0 : 1);
+        }
+
+        Logging.configureConsoleLogging();
+
+        int[] voxels = intList(cmd.getOptionValue("voxels", "10,100,1000"));
+        int[] species = intList(cmd.getOptionValue("species", "4"));
+        int[] reactions = intList(cmd.getOptionValue("reactions", "4"));
+        String[] calculations = cmd.getOptionValue("calculations",
+                                                   "GRID_STEPPED_STOCHASTIC,GRID_STEPPED_CONTINUOUS," +
+                                                   "GRID_EXACT,GRID_ADAPTIVE").split(",");
+        double runtime = Double.valueOf(cmd.getOptionValue("runtime", "100"));
+        Map<String, Double> baseline =
+            cmd.hasOption("baseline") ? readBaseline(new File(cmd.getOptionValue("baseline"))) : null;
+
+        Harness harness = new Harness(new File(cmd.getArgs()[0]), runtime);
+        List<Result> results = new ArrayList<>();
+        for (int v: voxels)
+            for (int s: species)
+                for (int r: reactions)
+                    for (String calculation: calculations)
+                        results.add(harness.run(new ModelGenerator(v, s, r),
+                                                SDCalcType.valueOf(calculation.trim())));
+
+        if (cmd.hasOption("output"))
+            try (PrintStream out = new PrintStream(cmd.getOptionValue("output"), "UTF-8")) {
+                writeReport(out, results, baseline);
+            }
+        else
+            writeReport(System.out, results, baseline);
+    }
+}
@@ -0,0 +1,133 @@
+package neurord.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import neurord.Server;
+import neurord.StochDiff;
+import neurord.util.Logging;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Compares the throughput of running many small jobs as separate
+ * processes, as a batch system would do, and in one {@link Server}.
+ *
+ * Both modes run the same generated model the same number of times,
+ * one job at a time, and the number of jobs per second is printed.
+ * neurord.* properties given to the harness are passed on to the processes.
+ */
+public class JobThroughput {
+    static final Logger log = LogManager.getLogger();
+
+    static void waitFor(File dir, int count)
+        throws InterruptedException
+    {
+        while (true) {
+            int finished = 0;
+            for (String name: dir.list())
+                if (name.endsWith(".job.done") || name.endsWith(".job.failed"))
+                    finished++;
+            if (finished >= count)
+                return;
+            Thread.sleep(10);
+        }
+    }
+
+    static double processes(File dir, File model, int count)
+        throws IOException, InterruptedException
+    {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").toString();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            List<String> cmd = new ArrayList<>();
+            cmd.add(java);
+            /* the same settings as the server */
+            for (String key: System.getProperties().stringPropertyNames())
+                if (key.startsWith("neurord."))
+                    cmd.add("-D" + key + "=" + System.getProperty(key));
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            cmd.add(StochDiff.class.getName());
+            cmd.add(model.toString());
+            cmd.add(new File(dir, "process" + i).toString());
+
+            Process p = new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir, "process" + i + ".stdout"))
+                .start();
+            int ret = p.waitFor();
+            if (ret != 0)
+                log.warn("Job {} exited with status {}", i, ret);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    static double server(File dir, File model, int count)
+        throws IOException, InterruptedException
+    {
+        final Server server = new Server(dir, 1);
+        final int[] failed = { 0 };
+        Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        failed[0] = server.serve();
+                    } catch(InterruptedException e) {
+                        log.error("Server was interrupted");
+                    }
+                }
+            };
+
+        long start = System.nanoTime();
+        thread.start();
+        for (int i = 0; i < count; i++) {
+            File tmp = new File(dir, "server" + i + ".tmp");
+            try (PrintWriter out = new PrintWriter(tmp)) {
+                out.println("model = " + model.getName());
+                out.println("output = server" + i);
+            }
+            tmp.renameTo(new File(dir, String.format("server%04d.job", i)));
+        }
+        waitFor(dir, count);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        new File(dir, "shutdown").createNewFile();
+        thread.join();
+        if (failed[0] > 0)
+            log.warn("{} jobs failed", failed[0]);
+        return elapsed;
+    }
+
+    public static void main(String... argv) throws Exception {
+        if (argv.length > 3) {
+            System.err.println("Usage: " + Settings.javaExecutable(JobThroughput.class) +
+                               " [<jobs> [<voxels> [<runtime>]]]");
+            System.exit(1);
+        }
+
+        Logging.configureConsoleLogging();
+
+        int count = argv.length > 0 ? Integer.valueOf(argv[0]) : 20;
+        int voxels = argv.length > 1 ? Integer.valueOf(argv[1]) : 10;
+        double runtime = argv.length > 2 ? Double.valueOf(argv[2]) : 10;
+
+        File dir = Files.createTempDirectory("throughput").toFile();
+        File model = new ModelGenerator(voxels, 4, 4).runtime(runtime).write(dir);
+        log.info("Running {} jobs of {} in {}", count, model, dir);
+
+        double t_proc = processes(dir, model, count);
+        double t_server = server(dir, model, count);
+
+        System.out.println("mode\tjobs\ttime_s\tjobs_per_s");
+        System.out.println(String.format("processes\t%d\t%.2f\t%.2f", count, t_proc, count / t_proc));
+        System.out.println(String.format("server\t%d\t%.2f\t%.2f", count, t_server, count / t_server));
+        System.out.println(String.format("# server speedup: %.2f×", t_proc / t_server));
+    }
+}
@@ -0,0 +1,199 @@
+package neurord.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Writes a synthetic model set (model, reactions, morphology, initial
+ * conditions, stimulation, output) of the requested size.
+ *
+ * The morphology is a straight dendrite, one micron wide and split into
+ * cubes of one micron, so the number of voxels is equal to its length.
+ * Species are joined in a ring of reversible reactions
+ * S<sub>i</sub> + S<sub>i+1</sub> ↔ S<sub>i+2</sub>, and the first species
+ * is injected periodically at one end. The reactions and the injection
+ * keep the populations around their initial values.
+ */
+public class ModelGenerator {
+    static final Logger log = LogManager.getLogger();
+
+    final int voxels, species, reactions;
+
+    double runtime = 100;
+    double outputInterval = 1;
+    double fixedStepDt = 0.01;
+    double concentration = 1000;
+    String calculation = "GRID_ADAPTIVE";
+    long seed = 1234;
+
+    public ModelGenerator(int voxels, int species, int reactions) {
+        if (voxels < 1 || species < 1 || reactions < 0)
+            throw new IllegalArgumentException("bad model size: " +
+                                               voxels + " voxels, " +
+                                               species + " species, " +
+                                               reactions + " reactions");
+        /* With fewer species the ring would make reactions like
+         * S0 + S1 ↔ S0, which do not change anything */
+        if (reactions > 0 && species < 3)
+            throw new IllegalArgumentException("reactions need at least 3 species, not " + species);
+        this.voxels = voxels;
+        this.species = species;
+        this.reactions = reactions;
+    }
+
+    public ModelGenerator runtime(double runtime) {
+        this.runtime = runtime;
+        return this;
+    }
+
+    public ModelGenerator calculation(String calculation) {
+        this.calculation = calculation;
+        return this;
+    }
+
+    public ModelGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public String name() {
+        return String.format("v%d_s%d_r%d", this.voxels, this.species, this.reactions);
+    }
+
+    static String specie(int i) {
+        return "S" + i;
+    }
+
+    /**
+     * Write all files into dir and return the main model file.
+     */
+    public File write(File dir) throws FileNotFoundException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new RuntimeException("Cannot create directory " + dir);
+
+        final String name = this.name();
+        log.info("Writing model {} to {}", name, dir);
+
+        this.writeReactions(new File(dir, "Rxn_" + name + ".xml"));
+        this.writeMorphology(new File(dir, "Morph_" + name + ".xml"));
+        this.writeInitialConditions(new File(dir, "IC_" + name + ".xml"));
+        this.writeStimulation(new File(dir, "Stim_" + name + ".xml"));
+        this.writeOutput(new File(dir, "Out_" + name + ".xml"));
+
+        File model = new File(dir, "Model_" + name + ".xml");
+        try (PrintWriter out = new PrintWriter(model)) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+            out.println("<SDRun xmlns:xi=\"http://www.w3.org/2001/XInclude\" xmlns=\"http://stochdiff.textensor.org\">");
+            out.printf("    <!-- generated: %d voxels, %d species, %d reactions -->%n",
+                       this.voxels, this.species, this.reactions);
+            for (String part: new String[]{"Rxn", "Morph", "IC", "Stim", "Out"})
+                out.printf("    <xi:include href=\"%s_%s.xml\" />%n", part, name);
+            out.println();
+            out.println("    <geometry>          2D           </geometry>");
+            out.println("    <depth2D>           1.0          </depth2D>");
+            out.println("    <distribution>      BINOMIAL     </distribution>");
+            out.println("    <algorithm>         INDEPENDENT  </algorithm>");
+            out.printf("    <simulationSeed>    %d           </simulationSeed>%n", this.seed);
+            out.printf("    <runtime>           %s           </runtime>%n", this.runtime);
+            out.printf("    <spineSeed>         %d           </spineSeed>%n", this.seed);
+            out.println("    <discretization>");
+            out.println("        <defaultMaxElementSide> 1.0 </defaultMaxElementSide>");
+            out.println("    </discretization>");
+            out.printf("    <fixedStepDt>       %s           </fixedStepDt>%n", this.fixedStepDt);
+            out.printf("    <outputInterval>    %s           </outputInterval>%n", this.outputInterval);
+            out.println("    <tolerance>         0.01         </tolerance>");
+            out.printf("    <calculation>%s</calculation>%n", this.calculation);
+            out.println("</SDRun>");
+        }
+
+        return model;
+    }
+
+    protected void writeReactions(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("<ReactionScheme>");
+            for (int i = 0; i < this.species; i++)
+                /* Make every second species immobile to have both kinds of events */
+                out.printf("    <Specie name=\"%s\" id=\"%s\" kdiff=\"%s\" kdiffunit=\"mu2/s\"/>%n",
+                           specie(i), specie(i), i % 2 == 0 ? "10" : "0");
+
+            for (int r = 0; r < this.reactions; r++) {
+                out.printf("    <Reaction name=\"R%d\" id=\"R%d\">%n", r, r);
+                out.printf("        <Reactant specieID=\"%s\"/>%n", specie(r % this.species));
+                out.printf("        <Reactant specieID=\"%s\"/>%n", specie((r + 1) % this.species));
+                out.printf("        <Product specieID=\"%s\"/>%n", specie((r + 2) % this.species));
+                out.println("        <forwardRate> 1e-6 </forwardRate>");
+                out.println("        <reverseRate> 1e-3 </reverseRate>");
+                out.println("    </Reaction>");
+            }
+            out.println("</ReactionScheme>");
+        }
+    }
+
+    protected void writeMorphology(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("<Morphology>");
+            out.println("    <Segment id=\"dend\" region=\"dend\">");
+            out.println("        <start x=\"0.0\" y=\"0.0\" z=\"0.0\" r=\"0.5\" label=\"inject\"/>");
+            out.printf("        <end   x=\"%d.0\" y=\"0.0\" z=\"0.0\" r=\"0.5\"/>%n", this.voxels);
+            out.println("    </Segment>");
+            out.println("</Morphology>");
+        }
+    }
+
+    protected void writeInitialConditions(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("<InitialConditions>");
+            out.println("    <ConcentrationSet>");
+            for (int i = 0; i < this.species; i++)
+                out.printf("        <NanoMolarity specieID=\"%s\" value=\"%s\"/>%n",
+                           specie(i), this.concentration);
+            out.println("    </ConcentrationSet>");
+            out.println("</InitialConditions>");
+        }
+    }
+
+    protected void writeStimulation(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("<StimulationSet>");
+            out.printf("    <InjectionStim specieID=\"%s\" injectionSite=\"inject\">%n", specie(0));
+            out.println("        <onset>    10  </onset>");
+            out.println("        <duration> 5   </duration>");
+            out.println("        <rate>     100 </rate>");
+            out.println("        <period>   20  </period>");
+            out.printf("        <end>      %s  </end>%n", this.runtime);
+            out.println("    </InjectionStim>");
+            out.println("</StimulationSet>");
+        }
+    }
+
+    protected void writeOutput(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("<OutputScheme>");
+            out.printf("    <OutputSet filename=\"all\" dt=\"%s\">%n", this.outputInterval * 10);
+            for (int i = 0; i < this.species; i++)
+                out.printf("        <OutputSpecie name=\"%s\"/>%n", specie(i));
+            out.println("    </OutputSet>");
+            out.println("</OutputScheme>");
+        }
+    }
+
+    public static void main(String... argv) throws Exception {
+        if (argv.length < 4) {
+            System.err.println("Usage: neurord.bench.ModelGenerator <dir> <voxels> <species> <reactions> [<runtime>]");
+            System.exit(1);
+        }
+
+        ModelGenerator gen = new ModelGenerator(Integer.valueOf(argv[1]),
+                                                Integer.valueOf(argv[2]),
+                                                Integer.valueOf(argv[3]));
+        if (argv.length > 4)
+            gen.runtime(Double.valueOf(argv[4]));
+
+        System.out.println(gen.write(new File(argv[0])));
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Generation of synthetic models of arbitrary size and a harness which
+ * measures how the calculations scale with them. Like the microbenchmarks,
+ * they are built with the jmh profile and are not part of the jar.
+ */
+
+package neurord.bench;
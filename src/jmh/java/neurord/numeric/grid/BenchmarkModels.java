@@ -0,0 +1,43 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+
+import neurord.SDCalcType;
+import neurord.model.SDRun;
+
+/**
+ * Helpers shared by the benchmarks: load one of the example models
+ * and create a calculation of the requested type for it.
+ * Also used by {@link neurord.bench.Harness}.
+ */
+public final class BenchmarkModels {
+    private BenchmarkModels() {}
+
+    public static SDRun load(String model, String calculation) {
+        File file = new File(model);
+        if (!file.exists())
+            throw new RuntimeException("Model file " + file + " not found," +
+                                       " benchmarks must be run from the top directory");
+
+        SDRun sdrun = SDRun.loadFromFile(file, null, 0, Double.NaN);
+        if (calculation != null)
+            sdrun.calculation = calculation;
+        return sdrun;
+    }
+
+    /**
+     * Create and initialize a calculation, without any result writers.
+     */
+    public static GridCalc prepare(SDRun sdrun) {
+        GridCalc calc = (GridCalc) SDCalcType.valueOf(sdrun.calculation).getCalc(0, sdrun);
+        calc.init();
+        return calc;
+    }
+
+    /**
+     * The number of events of a calculation, which is not public.
+     */
+    public static long eventCount(GridCalc calc) {
+        return calc.eventCount();
+    }
+}
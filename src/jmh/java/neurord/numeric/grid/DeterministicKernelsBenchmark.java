@@ -0,0 +1,102 @@
+package neurord.numeric.grid;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The inner loops of one step of GRID_STEPPED_CONTINUOUS on a cubic lattice.
+ *
+ * The vector kernels are only available with -Pjmh,vector, otherwise
+ * those benchmarks fail. GridCalcBenchmark measures whole steps, the
+ * kernels are selected there with -Dneurord.deterministic.kernels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeterministicKernelsBenchmark {
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    /* elements along each side of the cube */
+    @Param({"10", "40"})
+    public int side;
+
+    @Param({"20"})
+    public int nspec;
+
+    DeterministicKernels calc;
+    double[] now, prev, next, increments;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Random random = new Random(1);
+        final int nel = this.side * this.side * this.side;
+
+        double[] volumes = new double[nel];
+        int[][] neighbors = new int[nel][];
+        double[][] couplings = new double[nel][];
+        for (int i = 0; i < nel; i++) {
+            final int x = i % this.side, y = i / this.side % this.side, z = i / this.side / this.side;
+            final int[] nbr = new int[6];
+            int n = 0;
+            if (x > 0)             nbr[n++] = i - 1;
+            if (x < this.side - 1) nbr[n++] = i + 1;
+            if (y > 0)             nbr[n++] = i - this.side;
+            if (y < this.side - 1) nbr[n++] = i + this.side;
+            if (z > 0)             nbr[n++] = i - this.side * this.side;
+            if (z < this.side - 1) nbr[n++] = i + this.side * this.side;
+
+            volumes[i] = 1;
+            neighbors[i] = Arrays.copyOf(nbr, n);
+            couplings[i] = new double[n];
+            Arrays.fill(couplings[i], 0.1);
+        }
+
+        double[] fdiff = new double[this.nspec];
+        for (int k = 0; k < this.nspec; k++)
+            fdiff[k] = k % 4 == 0 ? 0 : 0.1 * k;
+
+        /* a chain of binding reactions: k + k+1 ↔ k+2 */
+        final int nreac = 2 * (this.nspec - 2);
+        double[] rates = new double[nreac];
+        int[][] reactants = new int[nreac][], products = new int[nreac][];
+        for (int k = 0; k < this.nspec - 2; k++) {
+            rates[2 * k] = 0.01;
+            reactants[2 * k] = new int[]{ k, k + 1 };
+            products[2 * k] = new int[]{ k + 2 };
+            rates[2 * k + 1] = 0.1;
+            reactants[2 * k + 1] = new int[]{ k + 2 };
+            products[2 * k + 1] = new int[]{ k, k + 1 };
+        }
+
+        this.calc = DeterministicKernels.create(this.kernels);
+        this.calc.setup(volumes, fdiff, neighbors, couplings, rates, reactants, products);
+
+        this.now = new double[nel * this.nspec];
+        this.prev = new double[nel * this.nspec];
+        this.next = new double[nel * this.nspec];
+        this.increments = new double[nel * this.nspec];
+        for (int i = 0; i < this.now.length; i++) {
+            this.now[i] = 100 * random.nextDouble();
+            this.prev[i] = 100 * random.nextDouble();
+        }
+    }
+
+    @Benchmark
+    public double[] diffusion() {
+        this.calc.diffusion(0.01, this.now, this.prev, this.next);
+        return this.next;
+    }
+
+    @Benchmark
+    public double[] production() {
+        this.calc.production(0.01, this.now, this.increments);
+        return this.increments;
+    }
+}
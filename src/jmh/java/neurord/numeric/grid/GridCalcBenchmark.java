@@ -0,0 +1,37 @@
+package neurord.numeric.grid;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One time step of the fixed-step engines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GridCalcBenchmark {
+    @Param({"examples/Model_simple.xml", "examples/Model_mglur_diff.xml"})
+    public String model;
+
+    @Param({"GRID_STEPPED_STOCHASTIC", "GRID_STEPPED_CONTINUOUS"})
+    public String calculation;
+
+    GridCalc calc;
+    double time;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        this.calc = BenchmarkModels.prepare(BenchmarkModels.load(this.model, this.calculation));
+        this.time = this.calc.getSource().getStartTime();
+    }
+
+    @Benchmark
+    public double advance() {
+        this.time += this.calc.advance(this.time, this.time + this.calc.dt);
+        return this.time;
+    }
+}
@@ -0,0 +1,105 @@
+package neurord.numeric.grid;
+
+import java.util.concurrent.TimeUnit;
+
+import neurord.numeric.math.MersenneTwister;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Single events fired by the adaptive and exact engines, and queue
+ * maintenance in isolation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NextEventQueueBenchmark {
+
+    @State(Scope.Thread)
+    public static class Queue {
+        @Param({"examples/Model_simple.xml", "examples/Model_mglur_diff.xml"})
+        public String model;
+
+        @Param({"GRID_ADAPTIVE", "GRID_EXACT"})
+        public String calculation;
+
+        AdaptiveGridCalc calc;
+        double time;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            this.calc = (AdaptiveGridCalc) BenchmarkModels.prepare(BenchmarkModels.load(this.model,
+                                                                                         this.calculation));
+            this.time = this.calc.getSource().getStartTime();
+        }
+    }
+
+    @Benchmark
+    public double advance(Queue q) {
+        q.time = q.calc.neq.advance(q.time,
+                                    Double.POSITIVE_INFINITY,
+                                    Double.POSITIVE_INFINITY,
+                                    q.calc.eventStatistics,
+                                    null);
+        return q.time;
+    }
+
+    static class TreeNode implements NextEventQueue.Node {
+        int index;
+        double time;
+
+        @Override
+        public int index() {
+            return this.index;
+        }
+
+        @Override
+        public void setIndex(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double time() {
+            return this.time;
+        }
+    }
+
+    /**
+     * The "hold" model: a random node is given a later time and moved
+     * to its place in the tree, like after an event fires.
+     */
+    @State(Scope.Thread)
+    public static class Tree {
+        @Param({"1000", "100000"})
+        public int size;
+
+        NextEventQueue.PriorityTree<TreeNode> tree;
+        TreeNode[] nodes;
+        MersenneTwister random;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            NextEventQueue neq = new NextEventQueue(null, null, null, false, 0, 0);
+
+            this.random = new MersenneTwister(1);
+            this.nodes = new TreeNode[this.size];
+            for (int i = 0; i < this.size; i++) {
+                this.nodes[i] = new TreeNode();
+                this.nodes[i].time = this.random.exponential(1);
+            }
+
+            this.tree = neq.new PriorityTree<TreeNode>();
+            this.tree.build(this.nodes.clone());
+        }
+    }
+
+    @Benchmark
+    public long reposition(Tree t) {
+        TreeNode node = t.nodes[(int) (t.random.random() * t.size)];
+        node.time += t.random.exponential(1);
+        t.tree.reposition("bench", node);
+        return t.tree.swaps;
+    }
+}
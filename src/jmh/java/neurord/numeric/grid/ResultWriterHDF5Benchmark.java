@@ -0,0 +1,69 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import neurord.model.SDRun;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing of population snapshots and event logs to an HDF5 file.
+ * Snapshots are cached, so the average includes the periodic flushes.
+ * With direct=true, flushes go through {@link ExtensibleArray} ids
+ * kept open and H5Dwrite, instead of the hdf-java object layer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultWriterHDF5Benchmark {
+    @Param({"examples/Model_simple.xml", "examples/Model_mglur_diff.xml"})
+    public String model;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    AdaptiveGridCalc calc;
+    ResultWriterHDF5 writer;
+    File output;
+    double time;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        SDRun sdrun = BenchmarkModels.load(this.model, "GRID_ADAPTIVE");
+
+        this.output = File.createTempFile("neurord-bench", "");
+        this.writer = new ResultWriterHDF5(this.output, sdrun, sdrun.getOutputSets(),
+                                           sdrun.getSpecies(), sdrun.getVolumeGrid());
+        this.writer.direct = this.direct;
+
+        this.calc = (AdaptiveGridCalc) BenchmarkModels.prepare(sdrun);
+        this.calc.addResultWriter(this.writer);
+
+        this.time = sdrun.getStartTime();
+        this.writer.writeGrid(sdrun.getVolumeGrid(), this.time, this.calc);
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() {
+        this.writer.closeTrial(this.calc);
+        this.writer.close();
+        this.writer.outputFile().delete();
+        this.output.delete();
+    }
+
+    /**
+     * Run the simulation for a short while between snapshots, so that
+     * the population changes and the event log has new entries.
+     */
+    @Benchmark
+    public double writeOutputInterval() {
+        this.time += this.calc.advance(this.time, this.time + this.calc.dt);
+        this.writer.writeOutputInterval(this.time, this.calc);
+        return this.time;
+    }
+}
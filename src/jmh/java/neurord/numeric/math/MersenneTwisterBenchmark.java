@@ -0,0 +1,35 @@
+package neurord.numeric.math;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The uniform and exponential draws underlying the stochastic engines.
+ * They do not depend on the parameters of the distributions,
+ * see {@link RandomBenchmark} for those which do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MersenneTwisterBenchmark {
+    MersenneTwister random;
+
+    @Setup
+    public void setup() {
+        this.random = new MersenneTwister(1);
+    }
+
+    @Benchmark
+    public float random() {
+        return this.random.random();
+    }
+
+    @Benchmark
+    public double exponential() {
+        return this.random.exponential(1.0);
+    }
+}
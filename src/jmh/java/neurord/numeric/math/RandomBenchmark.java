@@ -0,0 +1,45 @@
+package neurord.numeric.math;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Binomial and Poisson draws used by the stochastic engines,
+ * over the population sizes and probabilities they see.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RandomBenchmark {
+    /* Small populations are handled by inversion, large ones by rejection */
+    @Param({"10", "1000", "100000"})
+    public int n;
+
+    @Param({"0.001", "0.1", "0.5"})
+    public double p;
+
+    MersenneTwister random;
+    Binomial binomial;
+    Poisson poisson;
+
+    @Setup
+    public void setup() {
+        this.random = new MersenneTwister(1);
+        this.binomial = new Binomial(this.random);
+        this.poisson = new Poisson(this.random);
+    }
+
+    @Benchmark
+    public int binomial() {
+        return this.binomial.nextInt(this.n, this.p);
+    }
+
+    @Benchmark
+    public int poisson() {
+        return this.poisson.nextInt(this.n * this.p);
+    }
+}
@@ -0,0 +1,57 @@
+package neurord;
+
+import java.util.Set;
+import java.util.TreeSet;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.JMX;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import neurord.numeric.grid.TrialMetricsMBean;
+
+/**
+ * Polls the per-trial metrics of a running simulation over JMX.
+ *
+ * The simulation must be started with remote JMX enabled, e.g.
+ *   java -Dcom.sun.management.jmxremote.port=9010
+ *        -Dcom.sun.management.jmxremote.authenticate=false
+ *        -Dcom.sun.management.jmxremote.ssl=false -jar neurord.jar ...
+ */
+public class Monitor {
+    public static void main(String... argv) throws Exception {
+        if (argv.length < 1) {
+            System.err.println("Usage: neurord.Monitor <host:port> [<interval in seconds>]");
+            System.exit(1);
+        }
+
+        final JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + argv[0] + "/jmxrmi");
+        final long interval = argv.length > 1 ? (long) (Double.valueOf(argv[1]) * 1000) : 5000;
+
+        try (JMXConnector connector = JMXConnectorFactory.connect(url)) {
+            MBeanServerConnection server = connector.getMBeanServerConnection();
+
+            System.out.println("job\ttrial\tcalculation\ttime\tprogress\tevents/s\tleaps\twaits\tswaps\trandom\twriter_ms\teta_s");
+            while (true) {
+                Set<ObjectName> names = new TreeSet<>(server.queryNames(new ObjectName("neurord:type=Trial,job=*,trial=*"), null));
+                for (ObjectName name: names) {
+                    TrialMetricsMBean m = JMX.newMBeanProxy(server, name, TrialMetricsMBean.class);
+                    try {
+                        System.out.println(String.format("%d\t%d\t%s\t%s\t%.1f%%\t%.0f\t%d\t%d\t%d\t%d\t%d\t%.0f",
+                                                         m.getJob(), m.getTrial(), m.getCalculation(),
+                                                         m.getSimulatedTime(), m.getProgress() * 100,
+                                                         m.getRecentEventsPerSecond(),
+                                                         m.getLeaps(), m.getNormalWaits(), m.getQueueSwaps(),
+                                                         m.getRandomNumbersUsed(),
+                                                         m.getWriterBlockedMillis(),
+                                                         m.getEstimatedSecondsRemaining()));
+                    } catch(java.lang.reflect.UndeclaredThrowableException e) {
+                        /* the trial finished while we were looking at it */
+                    }
+                }
+                Thread.sleep(interval);
+            }
+        }
+    }
+}
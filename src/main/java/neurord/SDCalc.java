@@ -14,6 +14,10 @@
 import neurord.numeric.grid.ResultWriter;
 import neurord.numeric.grid.ResultWriterText;
 import neurord.numeric.grid.ResultWriterHDF5;
+import neurord.numeric.grid.ResultWriterEnsemble;
+import neurord.numeric.grid.ResultWriterRaw;
+import neurord.numeric.grid.LockstepStochasticGridCalc;
+import neurord.numeric.grid.SteadyState;
 
 import neurord.util.Settings;
 import neurord.util.Logging;
@@ -35,12 +39,40 @@ public class SDCalc {
     final static int threads = Settings.getProperty("neurord.threads",
                                                     "How many threads to use (0 == #CPUs)",
                                                     0);
+    final static int lockstep = Settings.getProperty("neurord.lockstep",
+                                                     "Advance that many trials of GRID_STEPPED_STOCHASTIC together in one thread",
+                                                     1);
 
     protected final List<ResultWriter> resultWriters = new ArrayList<>();
     protected final Hashtable<Integer, Object> results;
 
+    /* Trials first_trial, …, last_trial-1 are run */
+    protected final int first_trial, last_trial;
+
+    /* Per-trial log files are named after the output, not the main log,
+     * so that jobs sharing a process do not write to the same files */
+    protected final String logfile;
+
     public SDCalc(SDRun sdr, File output) {
+        this(sdr, output, 0, trials);
+    }
+
+    /**
+     * Run only trials [first, last). Trial numbers (and thus
+     * the simulation seeds) are the same as in a run of all trials,
+     * so outputs from separate runs can be merged with
+     * {@link neurord.numeric.grid.ResultMerger}.
+     */
+    public SDCalc(SDRun sdr, File output, int first, int last) {
+        if (first < 0 || last <= first) {
+            log.error("Bad trial range {}:{}", first, last);
+            throw new RuntimeException("bad trial range: " + first + ":" + last);
+        }
+
         this.sdRun = sdr;
+        this.first_trial = first;
+        this.last_trial = last;
+        this.logfile = output + ".log";
 
         for (String type: writers) {
             final ResultWriter writer;
@@ -61,14 +93,32 @@ public SDCalc(SDRun sdr, File output) {
                                               species,
                                               grid);
                 log.info("Using HDF5 writer for {}", writer.outputFile());
+            } else if (type.equals("ensemble")) {
+                writer = new ResultWriterEnsemble(output,
+                                                  sdr,
+                                                  sdr.getOutputSets(),
+                                                  species,
+                                                  grid);
+                log.info("Using ensemble writer for {}", writer.outputFile());
+            } else if (type.equals("raw")) {
+                writer = new ResultWriterRaw(output,
+                                             sdr,
+                                             sdr.getOutputSets(),
+                                             species,
+                                             grid);
+                log.info("Using raw writer for {}", writer.outputFile());
             } else {
                 log.error("Unknown writer '{}'", type);
                 throw new RuntimeException("uknown writer: " + type);
             }
+            if (writer instanceof ResultWriterHDF5)
+                ((ResultWriterHDF5) writer).setModelTrial(first);
+            if (writer instanceof ResultWriterEnsemble)
+                ((ResultWriterEnsemble) writer).setTrialCount(last - first);
             this.resultWriters.add(writer);
         }
 
-        this.results = new Hashtable<>(trials);
+        this.results = new Hashtable<>(last - first);
     }
 
     protected BaseCalc prepareCalc(int trial) {
@@ -77,23 +127,53 @@ protected BaseCalc prepareCalc(int trial) {
         for (ResultWriter resultWriter: this.resultWriters)
                 calc.addResultWriter(resultWriter);
         calc.storeResultIn(this.results);
+        calc.setLogFile(this.logfile);
         return calc;
     }
 
+    /**
+     * Run trials [first, first+count) together in one calculation.
+     */
+    protected BaseCalc prepareLockstep(int first, int count) {
+        BaseCalc calc = new LockstepStochasticGridCalc(first, count, this.sdRun);
+        for (ResultWriter resultWriter: this.resultWriters)
+                calc.addResultWriter(resultWriter);
+        calc.storeResultIn(this.results);
+        calc.setLogFile(this.logfile);
+        return calc;
+    }
+
+    /**
+     * How many trials are advanced together, 1 if trials are run separately.
+     */
+    protected int lockstepWidth() {
+        if (lockstep <= 1)
+            return 1;
+
+        if (SDCalcType.valueOf(this.sdRun.calculation) != SDCalcType.GRID_STEPPED_STOCHASTIC) {
+            log.warn("Lockstep trials are only supported with GRID_STEPPED_STOCHASTIC, not {}",
+                     this.sdRun.calculation);
+            return 1;
+        }
+        if (SteadyState.enabled()) {
+            log.warn("Lockstep trials do not support steady state detection, running trials separately");
+            return 1;
+        }
+        return lockstep;
+    }
+
     public int run() {
-        log.info("Beginning calculations ({} trials)", this.trials);
+        log.info("Beginning calculations ({} trials)", this.last_trial - this.first_trial);
+        if (this.first_trial > 0 || this.last_trial != trials)
+            log.info("Running trials {} to {}", this.first_trial, this.last_trial - 1);
 
-        if (trials == 1)
-            this.prepareCalc(0).run();
+        if (this.last_trial - this.first_trial == 1)
+            this.prepareCalc(this.first_trial).run();
         else {
-            int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
-            ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+            ExecutorService pool = newPool();
             log.info("Running with pool {}", pool);
 
-            for (int i = 0; i < trials; i++) {
-                log.info("Starting trial {}", i);
-                pool.execute(this.prepareCalc(i));
-            }
+            this.start(pool);
 
             log.info("Executing shutdown of pool {}", pool);
             pool.shutdown();
@@ -104,8 +184,39 @@ public int run() {
             }
         }
 
+        return this.finish();
+    }
+
+    public static ExecutorService newPool() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        return Executors.newFixedThreadPool(poolSize);
+    }
+
+    /**
+     * Queue all trials on pool, which may be shared with other
+     * calculations. When the pool is finished, {@link #finish}
+     * checks the results.
+     */
+    public void start(ExecutorService pool) {
+        final int width = this.lockstepWidth();
+        for (int i = this.first_trial; i < this.last_trial; i += width) {
+            final int count = Math.min(width, this.last_trial - i);
+            if (count > 1) {
+                log.info("Starting trials {} to {} in lockstep", i, i + count - 1);
+                pool.execute(this.prepareLockstep(i, count));
+            } else {
+                log.info("Starting trial {}", i);
+                pool.execute(this.prepareCalc(i));
+            }
+        }
+    }
+
+    /**
+     * Returns 0 if all trials finished successfully, 1 otherwise.
+     */
+    public int finish() {
         boolean good = true;
-        for (int i = 0; i < trials; i++) {
+        for (int i = this.first_trial; i < this.last_trial; i++) {
             Object result = this.results.get(i);
             if (result == null) {
                 good = false;
@@ -0,0 +1,246 @@
+package neurord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import neurord.model.SDRun;
+import neurord.util.CustomFileAppender;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Runs simulation jobs from a spool directory in one long-lived process,
+ * so that the JVM startup, class loading, JIT compilation, and the XML schema
+ * and JAXB context are paid for once instead of once per model.
+ *
+ * Each job is a file <name>.job in the spool directory in the
+ * java properties format:
+ *   model = model.xml          (required, relative to the spool directory)
+ *   output = results/run1      (optional, w/o extension, default: model w/o extension)
+ *   runtime = 1000             (optional, like --runtime)
+ *   trials = 4                 (optional, like -Dneurord.trials)
+ *   trial-range = 0:4          (optional, like --trial-range)
+ *   neurord.sdrun.… = …        (any other key is a -D override for this job only)
+ * The job is renamed to <name>.job.running when it is picked up, and to
+ * <name>.job.done or <name>.job.failed when it is finished. The log of the
+ * job goes to <output>.log. The server exits when a file called "shutdown"
+ * appears in the spool directory and the jobs that were started are finished.
+ *
+ * Settings which are read once into static fields (see
+ * {@link Settings#isRegistered}) apply to the whole server and must be given
+ * when the server is started. Jobs which try to change them fail.
+ */
+public class Server {
+    public static final Logger log = LogManager.getLogger();
+
+    final static int jobs = Settings.getProperty("neurord.server.jobs",
+                                                 "How many jobs to run at the same time in server mode",
+                                                 1);
+    final static int poll = Settings.getProperty("neurord.server.poll",
+                                                 "How often to look for new jobs in server mode (ms)",
+                                                 200);
+
+    static final String JOB = ".job";
+
+    final File spool;
+    final int parallel;
+
+    public Server(File spool, int parallel) {
+        if (!spool.isDirectory()) {
+            log.error("Spool directory {} does not exist", spool);
+            throw new RuntimeException("not a directory: " + spool);
+        }
+        this.spool = spool;
+        this.parallel = parallel;
+    }
+
+    public Server(File spool) {
+        this(spool, jobs);
+    }
+
+    File[] pending() {
+        File[] files = this.spool.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(JOB);
+                }
+            });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Run jobs until the shutdown file appears. Returns the number of
+     * jobs which failed.
+     */
+    public int serve()
+        throws InterruptedException
+    {
+        log.info("Serving jobs from {} ({} at a time)", this.spool, this.parallel);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(this.parallel);
+        final Semaphore slots = new Semaphore(this.parallel);
+        final int[] failed = { 0 };
+        final File shutdown = new File(this.spool, "shutdown");
+
+        while (!shutdown.exists()) {
+            boolean idle = true;
+            for (final File file: this.pending()) {
+                if (!slots.tryAcquire())
+                    break;
+
+                /* Another server might be using the same directory */
+                final File running = new File(file + ".running");
+                if (!file.renameTo(running)) {
+                    slots.release();
+                    continue;
+                }
+
+                idle = false;
+                final String name = file.getName().substring(0, file.getName().length() - JOB.length());
+                pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            boolean ok = false;
+                            try {
+                                ok = runJob(name, running) == 0;
+                            } catch(Throwable e) {
+                                log.error("Job {} failed", name, e);
+                            } finally {
+                                File end = new File(file + (ok ? ".done" : ".failed"));
+                                if (!running.renameTo(end))
+                                    log.warn("Failed to rename {} to {}", running, end);
+                                if (!ok)
+                                    synchronized(failed) {
+                                        failed[0]++;
+                                    }
+                                slots.release();
+                            }
+                        }
+                    });
+            }
+
+            if (idle)
+                Thread.sleep(poll);
+        }
+
+        log.info("Found {}, waiting for running jobs to finish", shutdown);
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES);
+
+        synchronized(failed) {
+            return failed[0];
+        }
+    }
+
+    static int[] trialRange(String name, Properties props) {
+        String range = props.getProperty("trial-range");
+        String trials = props.getProperty("trials");
+        try {
+            if (range != null) {
+                String[] parts = range.split(":", 2);
+                return new int[]{ Integer.valueOf(parts[0].trim()), Integer.valueOf(parts[1].trim()) };
+            }
+            if (trials != null)
+                return new int[]{ 0, Integer.valueOf(trials.trim()) };
+        } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            log.error("Job {}: bad trial range '{}'", name, range != null ? range : trials);
+            throw new RuntimeException("bad trial range in job " + name);
+        }
+        return null;
+    }
+
+    static final String[] JOB_KEYS = { "model", "output", "runtime", "trials", "trial-range" };
+
+    /**
+     * The -D overrides of the job: all keys except the ones
+     * describing the job itself.
+     */
+    static Properties overrides(String name, Properties props) {
+        Properties overrides = new Properties();
+        for (String key: props.stringPropertyNames()) {
+            if (Arrays.asList(JOB_KEYS).contains(key))
+                continue;
+
+            String value = props.getProperty(key);
+            if (Settings.isRegistered(key) && !value.equals(Settings.getProperties().getProperty(key))) {
+                log.error("Job {}: {} is set for the whole server and cannot be changed per job", name, key);
+                throw new RuntimeException("setting " + key + " cannot be changed per job");
+            }
+            overrides.setProperty(key, value);
+        }
+        return overrides;
+    }
+
+    int runJob(String name, File jobfile)
+        throws Exception
+    {
+        final Properties props = new Properties();
+        try (InputStream stream = new FileInputStream(jobfile)) {
+            props.load(stream);
+        }
+
+        final String model_name = props.getProperty("model");
+        if (model_name == null) {
+            log.error("Job {}: model is not specified", name);
+            throw new RuntimeException("no model in job " + name);
+        }
+        final File modelFile = new File(this.spool, model_name);
+
+        final String output_name = props.getProperty("output");
+        File outputFile;
+        if (output_name != null)
+            outputFile = new File(this.spool, output_name.replaceFirst("\\.(h5|txt|log)$", ""));
+        else
+            outputFile = new File(modelFile.toString().replaceFirst("\\.[^./]*$", ""));
+
+        final int[] range = trialRange(name, props);
+        if (range != null && props.getProperty("trial-range") != null)
+            outputFile = new File(outputFile + "-trials" + range[0] + "-" + (range[1] - 1));
+
+        final Properties overrides = overrides(name, props);
+
+        Settings.setJobProperties(overrides);
+        CustomFileAppender.addJobFileAppender(name, outputFile + ".log");
+        final long start = System.currentTimeMillis();
+        try {
+            log.info("Job {}: running {} → {}", name, modelFile, outputFile);
+            log.info("{}", Settings.getProgramVersion());
+
+            SDRun model = SDRun.loadFromFile(modelFile, null, 0, Double.NaN);
+            String runtime = props.getProperty("runtime");
+            if (runtime != null)
+                model.overrideRuntime(Double.valueOf(runtime));
+
+            SDCalc calc = range == null ?
+                new SDCalc(model, outputFile) :
+                new SDCalc(model, outputFile, range[0], range[1]);
+            int ret = calc.run();
+
+            log.info("Job {} finished in {} ms with status {}",
+                     name, System.currentTimeMillis() - start, ret);
+            return ret;
+        } finally {
+            CustomFileAppender.closeJob(name);
+            Settings.setJobProperties(null);
+        }
+    }
+
+    public static int serve(File spool)
+        throws InterruptedException
+    {
+        return new Server(spool).serve();
+    }
+}
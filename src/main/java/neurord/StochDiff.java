@@ -77,6 +77,10 @@ static Options buildOptions() {
         options.addOption("i", "ic", true, "output file to take the initial conditions from");
         options.addOption(null, "ic-trial", true, "trial to take the seed from (default: 0)");
         options.addOption(null, "ic-time", true, "time to take the ICs from (default: none)");
+        options.addOption(null, "trial-range", true, "run only trials a…b-1 (a:b) and write them " +
+                          "to <output>-trials<a>-<b-1>, see ResultMerger");
+        options.addOption(null, "serve", true, "run jobs from this spool directory " +
+                          "until a file called 'shutdown' appears in it, see Server");
 
         options.addOption(null, "log", true, "log file name (\"no\" to disable)");
         options.addOption("v", "verbose", false, "increase log level");
@@ -120,6 +124,16 @@ public static void main(String[] argv) throws Exception {
 
         Logging.configureConsoleLogging();
 
+        if (cmd.hasOption("serve")) {
+            final File spool = new File(cmd.getOptionValue("serve"));
+            Logging.configureFileLogging(cmd.getOptionValue("log", new File(spool, "server.log").toString()));
+            log.info("{}", Settings.getProgramVersion());
+
+            int failed = Server.serve(spool);
+            CustomFileAppender.close();
+            System.exit(failed > 0 ? 1 : 0);
+        }
+
         argv = cmd.getArgs();
         if (argv.length == 0) {
             log.fatal("at least one argument is required");
@@ -150,6 +164,23 @@ public static void main(String[] argv) throws Exception {
         } else
               outputFile = unsuffixed;
 
+        int[] trialRange = null;
+        final String range = cmd.getOptionValue("trial-range");
+        if (range != null) {
+            String[] parts = range.split(":", 2);
+            try {
+                trialRange = new int[]{ Integer.valueOf(parts[0]), Integer.valueOf(parts[1]) };
+            } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                log.fatal("bad trial range '{}', expected a:b", range);
+                System.exit(2);
+            }
+            if (trialRange[0] < 0 || trialRange[1] <= trialRange[0]) {
+                log.fatal("empty trial range '{}'", range);
+                System.exit(2);
+            }
+            outputFile = new File(outputFile + "-trials" + trialRange[0] + "-" + (trialRange[1] - 1));
+        }
+
         final String logfile = cmd.getOptionValue("log", outputFile + ".log");
         Logging.configureFileLogging(logfile);
 
@@ -186,7 +217,9 @@ public static void main(String[] argv) throws Exception {
             model.overrideStatistics(statistics, interval);
         }
 
-        SDCalc calc = new SDCalc(model, outputFile);
+        SDCalc calc = trialRange == null ?
+            new SDCalc(model, outputFile) :
+            new SDCalc(model, outputFile, trialRange[0], trialRange[1]);
         int ret = calc.run();
 
         CustomFileAppender.close();
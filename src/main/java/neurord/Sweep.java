@@ -0,0 +1,153 @@
+package neurord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import neurord.model.SDRun;
+import neurord.util.CustomFileAppender;
+import neurord.util.Logging;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Runs variants of one model which differ only in some rates,
+ * initial concentrations, or stimulation parameters.
+ *
+ * The model is read and discretized once, and each variant is a copy
+ * which shares everything that is not changed (see
+ * {@link SDRun#withOverrides}). The trials of all variants are run on
+ * one pool, and each variant is written to <output>-<variant>.
+ *
+ * The table of variants is a text file with whitespace-separated
+ * columns. The first line lists the parameters, and each of the
+ * following lines is one variant. If the first column is called
+ * "variant", it gives the names of the variants, otherwise they
+ * are numbered. Lines starting with # are ignored. For example:
+ *   variant  Reaction.binding.forwardRate  ConcentrationSet.default.Ca
+ *   low      1e-3                          50
+ *   high     1e-2                          50
+ *
+ * The same trial of different variants uses the same seed.
+ */
+public class Sweep {
+    public static final Logger log = LogManager.getLogger();
+
+    public static class Variant {
+        public final String name;
+        public final Map<String, String> overrides;
+
+        public Variant(String name, Map<String, String> overrides) {
+            this.name = name;
+            this.overrides = overrides;
+        }
+    }
+
+    public static List<Variant> readTable(List<String> lines) {
+        List<Variant> variants = new ArrayList<>();
+        String[] header = null;
+
+        for (String line: lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if (header == null) {
+                header = fields;
+                continue;
+            }
+
+            if (fields.length != header.length) {
+                log.error("Variant {} has {} values, expected {}: {}",
+                          variants.size(), fields.length, header.length, line);
+                throw new RuntimeException("Bad number of values in line: " + line);
+            }
+
+            boolean named = header[0].equals("variant");
+            Map<String, String> overrides = new LinkedHashMap<>();
+            for (int i = named ? 1 : 0; i < header.length; i++)
+                overrides.put(header[i], fields[i]);
+
+            variants.add(new Variant(named ? fields[0] : "" + variants.size(), overrides));
+        }
+
+        return variants;
+    }
+
+    public static List<Variant> readTable(File file)
+        throws IOException
+    {
+        return readTable(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Run all variants and return the number of variants
+     * which did not finish successfully.
+     */
+    public static int run(SDRun model, List<Variant> variants, File output) {
+        long start = System.currentTimeMillis();
+        model.getVolumeGrid();
+        model.getReactionTable();
+        log.info("Prepared the base model in {} ms", System.currentTimeMillis() - start);
+
+        List<SDCalc> calcs = new ArrayList<>();
+        ExecutorService pool = SDCalc.newPool();
+
+        for (Variant variant: variants) {
+            log.info("Variant {}: {}", variant.name, variant.overrides);
+            SDRun copy = model.withOverrides(variant.overrides);
+            SDCalc calc = new SDCalc(copy, new File(output + "-" + variant.name));
+            calc.start(pool);
+            calcs.add(calc);
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            log.info("Interrupted while waiting for tasks to finish: {}", pool);
+        }
+
+        int failed = 0;
+        for (int i = 0; i < calcs.size(); i++)
+            if (calcs.get(i).finish() != 0) {
+                log.error("Variant {} failed", variants.get(i).name);
+                failed++;
+            }
+
+        log.info("Ran {} variants in {} ms", variants.size(), System.currentTimeMillis() - start);
+        return failed;
+    }
+
+    public static void main(String... argv) throws Exception {
+        if (argv.length < 2 || argv.length > 3) {
+            System.err.println("Usage: " + Settings.javaExecutable(Sweep.class) +
+                               " <model> <variants> [<output>]");
+            System.exit(1);
+        }
+
+        Logging.configureConsoleLogging();
+
+        File modelFile = new File(argv[0]);
+        File output = new File(argv.length > 2 ? argv[2] : argv[0].replaceFirst("\\.[^./]*$", ""));
+        Logging.configureFileLogging(output + ".log");
+        log.info("{}", Settings.getProgramVersion());
+
+        List<Variant> variants = readTable(new File(argv[1]));
+        SDRun model = SDRun.loadFromFile(modelFile, null, 0, Double.NaN);
+
+        int failed = run(model, variants, output);
+        CustomFileAppender.close();
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
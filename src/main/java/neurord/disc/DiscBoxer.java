@@ -29,6 +29,9 @@ public class DiscBoxer {
 
     double[] surfaceLayers;
 
+    /* Threads used to build the slices, changed by tests */
+    int threads = SliceTree.threads;
+
     public DiscBoxer(TreePoint[] pts, double[] sl) {
         srcPoints = pts;
         surfaceLayers = sl;
@@ -53,79 +56,32 @@ public VolumeGrid buildGrid(double d, HashMap<String, Double> resHM) {
         }
         TreeUtil.parentizeFrom(firstpt, srcPoints);
 
-        gridAL = new ArrayList<>();
-        VolumeSlice vg0 = null;
         wkpHS.remove(firstpt);
 
-        recAdd(vg0, firstpt);
+        SliceTree<VolumeSlice> tree = new SliceTree<VolumeSlice>() {
+            @Override
+            VolumeSlice build(TreePoint tpa, TreePoint tpb, String lbl) {
+                return baseGrid(tpa, tpb, lbl);
+            }
+
+            @Override
+            void planeConnect(VolumeSlice pGrid, VolumeSlice vg) {
+                // TODO - probably not what we want
+                // too much mumerical diffusion if boxes can have gradually changing
+                // sizes? restrict to a few dicrete multiples?
+                pGrid.planeConnect(vg);
+            }
+
+            @Override
+            void subPlaneConnect(VolumeSlice pGrid, TreePoint tp, TreePoint tpn, VolumeSlice vg, double offset) {
+                pGrid.subPlaneConnect(tp, tpn, vg, offset);
+            }
+        };
+        gridAL = new ArrayList<>(tree.walk(firstpt, wkpHS, this.threads));
 
         VolumeGrid vgr = new VolumeGrid();
         vgr.importSlices(gridAL);
         return vgr;
-
-    }
-
-
-
-
-
-    private void recAdd(VolumeSlice pGrid, TreePoint tp) {
-        String lbl = tp.getLabel();
-
-        tp.partBranchOffset = 0.;
-
-
-        for (TreePoint tpn : tp.getNeighbors()) {
-            if (wkpHS.contains(tpn)) {
-                wkpHS.remove(tpn);
-
-                // if a terminal has a label, and the current point doesn't, then use it
-                if (lbl == null && tpn.nnbr == 1 && tpn.getLabel() != null) {
-                    lbl = tpn.getLabel();
-                }
-
-                VolumeSlice vg = null;
-                if (tpn.subAreaPeer == tp) {
-                    // nothing to do for now - put line in when we
-                    // do the first child of tpn
-                    // E.info("skipping pt with peer " + tpn);
-
-                } else if (tp.subAreaPeer != null && tp.subAreaPeer == tp.parent) {
-                    // E.info("first pt after branch " + tpn);
-                    TreePoint par = tp.parent;
-                    //  E.info("starting a sub-branch at " + tp + " - " + tpn + " " + pGrid);
-
-                    vg = baseGrid(tp, tpn, lbl);
-                    pGrid.subPlaneConnect(tp, tpn, vg, par.partBranchOffset);
-                    par.partBranchOffset += 2 * tpn.getRadius();
-
-                } else {
-                    // normal case: make a new one or add a slice and connect
-                    // it up with the centres aligned
-                    if (pGrid == null) {
-                        vg = baseGrid(tp, tpn, lbl);
-
-                    } else {
-                        // TODO - probably not what we want
-                        // too much mumerical diffusion if boxes can have gradually changing
-                        // sizes? restrict to a few dicrete multiples?
-                        vg = baseGrid(tp, tpn, lbl);
-                        pGrid.planeConnect(vg);
-                    }
-
-                }
-
-                lbl = null; // only use it once
-                if (vg != null) {
-                    gridAL.add(vg);
-                    recAdd(vg, tpn);
-                } else {
-                    // skipped the point that is the start of a new segment
-                    // of different radius
-                    recAdd(pGrid, tpn);
-                }
-            }
-        }
     }
 
     public VolumeSlice baseGrid(TreePoint tpa, TreePoint tpb, String lbl) {
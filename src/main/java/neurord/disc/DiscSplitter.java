@@ -34,6 +34,9 @@ public class DiscSplitter {
 
     double maxAR = 3; // maximum aspect ratio for an element
 
+    /* Threads used to build the slices, changed by tests */
+    int threads = SliceTree.threads;
+
     public DiscSplitter(TreePoint[] pts, double d, HashMap<String, Double> resHM, double[] sl, double mar) {
         srcPoints = pts;
         resolution = new Resolution(d, resHM);
@@ -62,84 +65,34 @@ public VolumeGrid buildGrid() {
         }
         TreeUtil.parentizeFrom(firstpt, srcPoints);
 
-        gridAL = new ArrayList<>();
-        CurvedVolumeSlice vg0 = null;
         wkpHS.remove(firstpt);
 
-        recAdd(vg0, firstpt);
+        SliceTree<CurvedVolumeSlice> tree = new SliceTree<CurvedVolumeSlice>() {
+            @Override
+            CurvedVolumeSlice build(TreePoint tpa, TreePoint tpb, String lbl) {
+                return baseGrid(tpa, tpb, lbl);
+            }
 
-        VolumeGrid vgr = new VolumeGrid();
+            @Override
+            void planeConnect(CurvedVolumeSlice pGrid, CurvedVolumeSlice vg) {
+                // TODO - probably not what we want
+                // too much mumerical diffusion if boxes can have gradually changing
+                // sizes? restrict to a few dicrete multiples?
+                pGrid.planeConnect(vg);
+            }
 
+            @Override
+            void subPlaneConnect(CurvedVolumeSlice pGrid, TreePoint tp, TreePoint tpn, CurvedVolumeSlice vg, double offset) {
+                pGrid.subPlaneConnect(tp, tpn, vg, offset);
+            }
+        };
+        gridAL = new ArrayList<>(tree.walk(firstpt, wkpHS, this.threads));
+
+        VolumeGrid vgr = new VolumeGrid();
         vgr.importSmoothSlices(gridAL);
         return vgr;
-
     }
 
-
-
-
-
-    private void recAdd(CurvedVolumeSlice pGrid, TreePoint tp) {
-        String lbl = tp.getLabel();
-
-        tp.partBranchOffset = 0.;
-
-
-        for (TreePoint tpn : tp.getNeighbors()) {
-            if (wkpHS.contains(tpn)) {
-                wkpHS.remove(tpn);
-
-                // if a terminal has a label, and the current point doesn't, then use it
-                if (lbl == null && tpn.nnbr == 1 && tpn.getLabel() != null) {
-                    lbl = tpn.getLabel();
-                }
-
-                CurvedVolumeSlice vg = null;
-                if (tpn.subAreaPeer == tp) {
-                    // nothing to do for now - put line in when we
-                    // do the first child of tpn
-                    // E.info("skipping pt with peer " + tpn);
-
-                } else if (tp.subAreaPeer != null && tp.subAreaPeer == tp.parent) {
-                    // E.info("first pt after branch " + tpn);
-                    TreePoint par = tp.parent;
-                    log.info("starting a sub-branch at {} - {} {}", tp, tpn, pGrid);
-
-                    vg = baseGrid(tp, tpn, lbl);
-                    pGrid.subPlaneConnect(tp, tpn, vg, par.partBranchOffset);
-                    par.partBranchOffset += 2 * tpn.getRadius();
-
-                } else {
-                    // normal case: make a new one or add a slice and connect
-                    // it up with the centres aligned
-                    if (pGrid == null) {
-                        vg = baseGrid(tp, tpn, lbl);
-
-                    } else {
-                        // TODO - probably not what we want
-                        // too much mumerical diffusion if boxes can have gradually changing
-                        // sizes? restrict to a few dicrete multiples?
-                        vg = baseGrid(tp, tpn, lbl);
-                        pGrid.planeConnect(vg);
-                    }
-                }
-
-                lbl = null; // only use it once
-                if (vg != null) {
-                    gridAL.add(vg);
-                    recAdd(vg, tpn);
-                } else {
-                    // skipped the point that is the start of a new segment
-                    // of different radius
-                    recAdd(pGrid, tpn);
-                }
-            }
-        }
-    }
-
-
-
-
     public CurvedVolumeSlice baseGrid(TreePoint tpa, TreePoint tpb, String lbl) {
 
         String rgn = tpa.regionClassWith(tpb);
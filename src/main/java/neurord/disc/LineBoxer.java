@@ -1,12 +1,10 @@
 package neurord.disc;
 
 import java.util.HashSet;
-import java.util.Queue;
 
 import java.util.HashMap;
 
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import neurord.numeric.morph.TreePoint;
 import neurord.numeric.morph.VolumeGrid;
@@ -32,8 +30,13 @@
 public class LineBoxer {
     static final Logger log = LogManager.getLogger();
 
-    public static VolumeGrid buildGrid(TreePoint[] srcPoints, double[] surfaceLayers, double depth,
+    public static VolumeGrid buildGrid(TreePoint[] srcPoints, final double[] surfaceLayers, final double depth,
                                        double d, HashMap<String, Double> resHM) {
+        return buildGrid(srcPoints, surfaceLayers, depth, d, resHM, SliceTree.threads);
+    }
+
+    static VolumeGrid buildGrid(TreePoint[] srcPoints, final double[] surfaceLayers, final double depth,
+                                double d, HashMap<String, Double> resHM, int threads) {
         final Resolution resolution = new Resolution(d, resHM);
 
         TreePoint firstpt = null;
@@ -52,73 +55,33 @@ public static VolumeGrid buildGrid(TreePoint[] srcPoints, double[] surfaceLayers
 
         TreeUtil.parentizeFrom(firstpt, srcPoints);
 
-        final ArrayList<VolumeLine> volume_lines = new ArrayList<>();
-        recAdd(surfaceLayers, depth, resolution, working_set, volume_lines, null, firstpt);
+        SliceTree<VolumeLine> tree = new SliceTree<VolumeLine>() {
+            @Override
+            VolumeLine build(TreePoint tpa, TreePoint tpb, String lbl) {
+                return baseGrid(surfaceLayers, depth, resolution, tpa, tpb, lbl);
+            }
+
+            @Override
+            void planeConnect(VolumeLine parent, VolumeLine vg) {
+                // TODO - probably not what we want
+                // too much numerical diffusion if boxes can have gradually changing
+                // sizes? restrict to a few discrete multiples?
+                parent.planeConnect(vg);
+            }
+
+            @Override
+            void subPlaneConnect(VolumeLine parent, TreePoint tp, TreePoint tpn, VolumeLine vg, double offset) {
+                parent.subPlaneConnect(tp, tpn, vg, offset);
+            }
+        };
+
+        final ArrayList<VolumeLine> volume_lines = new ArrayList<>(tree.walk(firstpt, working_set, threads));
 
         VolumeGrid vgr = new VolumeGrid();
         vgr.importLines(volume_lines);
         return vgr;
     }
 
-    private static void recAdd(double[] surfaceLayers, double depth, Resolution resolution,
-                               HashSet<TreePoint> working_set, ArrayList<VolumeLine> volume_lines,
-                               VolumeLine pGrid, TreePoint tp) {
-        String lbl = tp.getLabel();
-
-        tp.partBranchOffset = 0.;
-
-        log.debug("Processing {} with {} neighbours", tp, tp.getNeighbors().size());
-
-        for (TreePoint tpn : tp.getNeighbors())
-            if (working_set.contains(tpn)) {
-                working_set.remove(tpn);
-
-                log.debug("Looking at neighbour {}", tpn);
-
-                // if the current point doesn't have a label, try to use one from the terminal
-                if (lbl == null && tpn.nnbr == 1)
-                    lbl = tpn.getLabel();
-
-                VolumeLine vg = null;
-                if (tpn.subAreaPeer == tp) {
-                    // nothing to do for now - put line in when we
-                    // do the first child of tpn
-                    log.debug("{}: skipping pt with peer", tpn);
-
-                } else if (tp.subAreaPeer != null && tp.subAreaPeer == tp.parent) {
-                    log.debug("{}: first pt after branch", tpn);
-                    TreePoint par = tp.parent;
-                    log.info("Starting a sub-branch at {} - {} {}", tp, tpn, pGrid);
-
-                    vg = baseGrid(surfaceLayers, depth, resolution, tp, tpn, lbl);
-                    pGrid.subPlaneConnect(tp, tpn, vg, par.partBranchOffset);
-                    par.partBranchOffset += 2 * tpn.getRadius();
-
-                } else {
-                    log.debug("Creating new grid between neighbouring points");
-                    vg = baseGrid(surfaceLayers, depth, resolution, tp, tpn, lbl);
-                    if (pGrid != null) {
-                        // TODO - probably not what we want
-                        // too much numerical diffusion if boxes can have gradually changing
-                        // sizes? restrict to a few discrete multiples?
-                        log.debug("Attaching with planeConnect()");
-                        pGrid.planeConnect(vg);
-                    }
-                }
-
-                lbl = null; // only use it once
-                if (vg != null) {
-                    volume_lines.add(vg);
-                    recAdd(surfaceLayers, depth, resolution, working_set, volume_lines, vg, tpn);
-                } else {
-                    // skipped the point that is the start of a new segment
-                    // of different radius
-                    recAdd(surfaceLayers, depth, resolution, working_set, volume_lines, pGrid, tpn);
-                }
-            } else
-                log.debug("Neighbour {} already removed from the working set", tpn);
-    }
-
     private static VolumeLine baseGrid(double[] surfaceLayers, double depth, Resolution resolution,
                                        TreePoint tpa, TreePoint tpb, String lbl) {
         double delta = resolution.getLocalDelta(tpa, tpb);
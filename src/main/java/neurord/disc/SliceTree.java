@@ -0,0 +1,173 @@
+package neurord.disc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import neurord.numeric.morph.TreePoint;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/*
+ * The walk over the sliced tree shared by the boxers and the splitter.
+ *
+ * Building the slices is the expensive part, and each slice depends only
+ * on its two end points, so it is done in three passes:
+ * 1. the tree is walked and the slices to build are listed in the order
+ *    of the sequential walk,
+ * 2. the slices are built in parallel with fork/join,
+ * 3. the slices are connected in the order of the walk.
+ * The elements, their numbering and their connections are the same
+ * as when everything is done in one sequential walk.
+ */
+public abstract class SliceTree<T> {
+    public static final Logger log = LogManager.getLogger();
+
+    static final int threads = Settings.getProperty("neurord.disc.threads",
+                                              "How many threads to use for discretization (0 == #CPUs)",
+                                              0);
+
+    /* Ranges of up to this many slices are built in one task */
+    static final int SEQUENTIAL_THRESHOLD = 4;
+
+    class Step {
+        final TreePoint tpa, tpb;
+        final String label;
+        final int parent;            /* index of the step with the previous slice, or -1 */
+        final boolean sub_branch;
+        final double branch_offset;
+
+        T slice;
+
+        Step(TreePoint tpa, TreePoint tpb, String label, int parent, boolean sub_branch, double branch_offset) {
+            this.tpa = tpa;
+            this.tpb = tpb;
+            this.label = label;
+            this.parent = parent;
+            this.sub_branch = sub_branch;
+            this.branch_offset = branch_offset;
+        }
+    }
+
+    final List<Step> steps = new ArrayList<>();
+
+    abstract T build(TreePoint tpa, TreePoint tpb, String label);
+
+    abstract void planeConnect(T parent, T slice);
+
+    abstract void subPlaneConnect(T parent, TreePoint tpa, TreePoint tpb, T slice, double offset);
+
+    /**
+     * Walk the tree from firstpt over points in working_set,
+     * and return the slices in order. The slices are built with
+     * the given number of threads (0 == #CPUs).
+     */
+    List<T> walk(TreePoint firstpt, Set<TreePoint> working_set, int threads) {
+        this.plan(working_set, -1, firstpt);
+        this.buildAll(threads);
+
+        List<T> ans = new ArrayList<>(this.steps.size());
+        for (Step step: this.steps) {
+            if (step.parent >= 0) {
+                T parent = this.steps.get(step.parent).slice;
+                if (step.sub_branch)
+                    this.subPlaneConnect(parent, step.tpa, step.tpb, step.slice, step.branch_offset);
+                else
+                    this.planeConnect(parent, step.slice);
+            }
+            ans.add(step.slice);
+        }
+        return ans;
+    }
+
+    private void plan(Set<TreePoint> working_set, int pstep, TreePoint tp) {
+        String lbl = tp.getLabel();
+
+        tp.partBranchOffset = 0.;
+
+        for (TreePoint tpn : tp.getNeighbors())
+            if (working_set.contains(tpn)) {
+                working_set.remove(tpn);
+
+                // if a terminal has a label, and the current point doesn't, then use it
+                if (lbl == null && tpn.nnbr == 1 && tpn.getLabel() != null)
+                    lbl = tpn.getLabel();
+
+                Step step = null;
+                if (tpn.subAreaPeer == tp) {
+                    // nothing to do for now - put line in when we
+                    // do the first child of tpn
+                    log.debug("{}: skipping pt with peer", tpn);
+
+                } else if (tp.subAreaPeer != null && tp.subAreaPeer == tp.parent) {
+                    TreePoint par = tp.parent;
+                    log.info("Starting a sub-branch at {} - {}", tp, tpn);
+
+                    step = new Step(tp, tpn, lbl, pstep, true, par.partBranchOffset);
+                    par.partBranchOffset += 2 * tpn.getRadius();
+
+                } else
+                    // normal case: make a new one and connect
+                    // it up with the centres aligned
+                    step = new Step(tp, tpn, lbl, pstep, false, 0);
+
+                lbl = null; // only use it once
+                if (step != null) {
+                    this.steps.add(step);
+                    this.plan(working_set, this.steps.size() - 1, tpn);
+                } else
+                    // skipped the point that is the start of a new segment
+                    // of different radius
+                    this.plan(working_set, pstep, tpn);
+            } else
+                log.debug("Neighbour {} already removed from the working set", tpn);
+    }
+
+    private class BuildTask extends RecursiveAction {
+        final int start, end;
+
+        BuildTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= SEQUENTIAL_THRESHOLD)
+                buildRange(this.start, this.end);
+            else {
+                int mid = (this.start + this.end) >>> 1;
+                invokeAll(new BuildTask(this.start, mid), new BuildTask(mid, this.end));
+            }
+        }
+    }
+
+    private void buildRange(int start, int end) {
+        for (int i = start; i < end; i++) {
+            Step step = this.steps.get(i);
+            step.slice = this.build(step.tpa, step.tpb, step.label);
+        }
+    }
+
+    private void buildAll(int threads) {
+        final int n = this.steps.size();
+        final int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+        if (parallelism == 1 || n <= SEQUENTIAL_THRESHOLD) {
+            this.buildRange(0, n);
+            return;
+        }
+
+        log.debug("Building {} slices with {} threads", n, parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new BuildTask(0, n));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -3,6 +3,8 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.bind.annotation.*;
 
@@ -41,6 +43,34 @@ public Double getNanoMolarConcentration(String id) {
             return conc.getNanoMolarConcentration();
     }
 
+    /**
+     * A copy of this set with the concentrations of some species
+     * replaced or added (in nM).
+     */
+    ConcentrationSet withConcentrations(Map<String, Double> values) {
+        ConcentrationSet copy = new ConcentrationSet();
+        copy.region = this.region;
+        copy.concentrations = new ArrayList<>();
+
+        Map<String, Double> left = new TreeMap<>(values);
+        if (this.concentrations != null)
+            for (Concentration c: this.concentrations) {
+                Double value = left.remove(c.specieID);
+                copy.concentrations.add(value == null ? c : nanoMolarity(c.specieID, value));
+            }
+        for (Map.Entry<String, Double> entry: left.entrySet())
+            copy.concentrations.add(nanoMolarity(entry.getKey(), entry.getValue()));
+
+        return copy;
+    }
+
+    static NanoMolarity nanoMolarity(String specie, double value) {
+        NanoMolarity c = new NanoMolarity();
+        c.specieID = specie;
+        c.setValue(value);
+        return c;
+    }
+
     public boolean hasRegion() {
         return region != null;
     }
@@ -8,4 +8,15 @@ public interface IOutputSet {
     int[] getIndicesOfOutputSpecies(String[] species);
     String getRegion();
     double getOutputInterval(double fallback);
+
+    /**
+     * "sum" or "concentration" to write per-region values
+     * instead of values for each voxel, or null.
+     */
+    String getAggregation();
+
+    /**
+     * Only include submembrane voxels.
+     */
+    boolean submembraneOnly();
 }
@@ -4,7 +4,8 @@
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.bind.annotation.*;
 
@@ -50,6 +51,37 @@ private synchronized ConcentrationSet getDefaultConcentrations() {
         return this.defaultConcs;
     }
 
+    /* The region name used for the set without a region */
+    public static final String DEFAULT_REGION = "default";
+
+    /**
+     * A copy with the concentrations of some species replaced or added.
+     * The keys are regions (or DEFAULT_REGION), and the values map species
+     * to concentrations in nM.
+     */
+    InitialConditions withConcentrations(Map<String, Map<String, Double>> changes) {
+        InitialConditions copy = new InitialConditions();
+        copy.sdSets = this.sdSets;
+        copy.fitConstraints = this.fitConstraints;
+        copy.concentrationSets = new ArrayList<>();
+
+        Map<String, Map<String, Double>> left = new TreeMap<>(changes);
+        if (this.concentrationSets != null)
+            for (ConcentrationSet set: this.concentrationSets) {
+                Map<String, Double> values = left.remove(set.hasRegion() ? set.getRegion() : DEFAULT_REGION);
+                copy.concentrationSets.add(values == null ? set : set.withConcentrations(values));
+            }
+
+        for (Map.Entry<String, Map<String, Double>> entry: left.entrySet()) {
+            ConcentrationSet set = new ConcentrationSet();
+            if (!entry.getKey().equals(DEFAULT_REGION))
+                set.region = entry.getKey();
+            copy.concentrationSets.add(set.withConcentrations(entry.getValue()));
+        }
+
+        return copy;
+    }
+
     public void verify(String[] regions, String[] species) {
         this.getConcentrationSets();
         this.getSurfaceDensitySets();
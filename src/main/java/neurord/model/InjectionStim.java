@@ -4,6 +4,7 @@
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import neurord.xml.DoubleListAdapter;
 import neurord.xml.DoubleMatrixAdapter;
@@ -18,7 +19,7 @@
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-public class InjectionStim {
+public class InjectionStim implements Cloneable {
     static public final Logger log = LogManager.getLogger();
 
     @XmlAttribute public String specieID;
@@ -61,6 +62,51 @@ public InjectionStim(String species,
         this.end = end;
     }
 
+    /**
+     * A copy of this stimulation with some of rate, onset, duration,
+     * period, end, and interTrainInterval replaced.
+     */
+    InjectionStim withParameters(Map<String, Double> values) {
+        final InjectionStim copy;
+        try {
+            copy = (InjectionStim) this.clone();
+        } catch(CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (this.rates != null) {
+            log.error("Cannot override parameters of a stimulation specified with rates");
+            throw new RuntimeException("Stimulation with rates cannot be overridden");
+        }
+
+        for (Map.Entry<String, Double> entry: values.entrySet())
+            switch(entry.getKey()) {
+            case "rate":
+                copy.rate = entry.getValue();
+                break;
+            case "onset":
+                copy.onset = entry.getValue();
+                break;
+            case "duration":
+                copy.duration = entry.getValue();
+                break;
+            case "period":
+                copy.period = entry.getValue();
+                break;
+            case "end":
+                copy.end = entry.getValue();
+                break;
+            case "interTrainInterval":
+                copy.interTrainInterval = entry.getValue();
+                break;
+            default:
+                log.error("Unknown stimulation parameter {}", entry.getKey());
+                throw new RuntimeException("Unknown stimulation parameter " + entry.getKey());
+            }
+
+        return copy;
+    }
+
     public String getInjectionSite() {
         assert this.injectionSite != null; /* required in the schema */
         return this.injectionSite;
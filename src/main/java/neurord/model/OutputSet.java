@@ -17,6 +17,8 @@ public class OutputSet implements IOutputSet {
     @XmlAttribute public String filename;
     @XmlAttribute public String region;
     @XmlAttribute public Double outputInterval;
+    @XmlAttribute public String aggregate;
+    @XmlAttribute public Boolean submembrane;
 
     @XmlElement(name="OutputSpecie")
     public ArrayList<OutputSpecie> outputSpecies;
@@ -75,6 +77,16 @@ public String getIdentifier() {
         return this.filename;
     }
 
+    @Override
+    public String getAggregation() {
+        return this.aggregate;
+    }
+
+    @Override
+    public boolean submembraneOnly() {
+        return this.submembrane != null && this.submembrane;
+    }
+
     @Override
     public double getOutputInterval(double fallback) {
         if (this.outputInterval != null)
@@ -14,7 +14,7 @@
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-public class Reaction {
+public class Reaction implements Cloneable {
     static public final Logger log = LogManager.getLogger();
 
     @XmlAttribute
@@ -82,6 +82,24 @@ public double getReverseRate() {
         return this.reverseRate != null ? this.reverseRate : 0;
     }
 
+    /**
+     * A copy of this reaction with the rates replaced (null keeps
+     * the old value). The copy shares the resolved species.
+     */
+    Reaction withRates(Double forward, Double reverse) {
+        final Reaction copy;
+        try {
+            copy = (Reaction) this.clone();
+        } catch(CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        if (forward != null)
+            copy.forwardRate = forward;
+        if (reverse != null)
+            copy.reverseRate = reverse;
+        return copy;
+    }
+
     public void add(Object obj) {
         if (obj instanceof Reactant)
             this.p_reactants.add((Reactant)obj);
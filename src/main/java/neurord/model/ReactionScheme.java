@@ -3,6 +3,8 @@
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.bind.annotation.*;
 
@@ -55,6 +57,32 @@ public synchronized String[] getSpecies() {
         return this.species_array;
     }
 
+    /**
+     * A copy of this scheme with the rates of some reactions replaced.
+     * Reactions are identified by ID or name, and the values are
+     * {forward, reverse} rates (null keeps the old value).
+     */
+    synchronized ReactionScheme withRates(Map<String, Double[]> rates) {
+        ReactionScheme copy = new ReactionScheme();
+        copy.species.addAll(this.species);
+        copy.species_array = this.getSpecies();
+
+        Map<String, Double[]> left = new TreeMap<>(rates);
+        for (Reaction r: this.reactions) {
+            Double[] rate = left.remove(r.getID());
+            if (rate == null)
+                rate = left.remove(r.getName());
+            copy.reactions.add(rate == null ? r : r.withRates(rate[0], rate[1]));
+        }
+
+        if (!left.isEmpty()) {
+            log.error("Unknown reactions: {}", left.keySet());
+            throw new RuntimeException("Unknown reactions: " + left.keySet());
+        }
+
+        return copy;
+    }
+
     private double[] getDiffusionConstants() {
         double[] ret = new double[this.species.size()];
         for (Specie sp: this.species)
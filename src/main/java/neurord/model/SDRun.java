@@ -3,6 +3,8 @@
 import java.io.File;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import neurord.disc.SpineLocator;
 import neurord.disc.TreeBoxDiscretizer;
@@ -10,6 +12,7 @@
 import neurord.numeric.BaseCalc;
 import neurord.numeric.BaseCalc.distribution_t;
 import neurord.numeric.BaseCalc.algorithm_t;
+import neurord.numeric.morph.GridCache;
 import neurord.numeric.morph.TreePoint;
 import neurord.numeric.morph.VolumeGrid;
 import neurord.numeric.morph.VolumeGrid.geometry_t;
@@ -18,6 +21,7 @@
 import neurord.numeric.grid.ResultWriterHDF5;
 import neurord.numeric.grid.ResultWriterHDF5.LoadModelResult;
 import neurord.util.ArrayUtil;
+import neurord.util.Settings;
 import neurord.xml.StringListAdapter;
 import neurord.xml.ModelReader;
 
@@ -28,7 +32,7 @@
 import javax.xml.bind.annotation.adapters.*;
 
 @XmlRootElement(name="SDRun")
-public class SDRun implements IOutputSet {
+public class SDRun implements IOutputSet, Cloneable {
     static final Logger log = LogManager.getLogger();
 
     @XmlElement(name="ReactionScheme")
@@ -123,6 +127,16 @@ public double getOutputInterval(double fallback) {
         return this.outputInterval;
     }
 
+    @Override
+    public String getAggregation() {
+        return null;
+    }
+
+    @Override
+    public boolean submembraneOnly() {
+        return false;
+    }
+
     public double getOutputInterval() {
         return this.outputInterval;
     }
@@ -169,6 +183,107 @@ public void overrideStatistics(String statistics, Double interval) {
         }
     }
 
+    /**
+     * A copy of this model with some parameters changed, for sweeps over
+     * parameter values. Supported keys are:
+     *   runtime
+     *   Reaction.<id or name>.forwardRate, Reaction.<id or name>.reverseRate
+     *   ConcentrationSet.<region or "default">.<species> (in nM)
+     *   InjectionStim.<index>.{rate,onset,duration,period,end,interTrainInterval}
+     *
+     * The copy shares the grid, the resolved species, the stimulation targets,
+     * and all parts of the model which are not changed, so the
+     * (expensive) discretization is only done once for all copies.
+     */
+    public SDRun withOverrides(Map<String, String> overrides) {
+        /* Make sure that the shared parts are computed before they are copied */
+        this.getVolumeGrid();
+        this.getStimulationTargets();
+
+        final SDRun copy;
+        try {
+            copy = (SDRun) this.clone();
+        } catch(CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+
+        Map<String, Double[]> rates = new TreeMap<>();
+        Map<String, Map<String, Double>> concentrations = new TreeMap<>();
+        Map<Integer, Map<String, Double>> stimulations = new TreeMap<>();
+
+        for (Map.Entry<String, String> entry: overrides.entrySet()) {
+            final String key = entry.getKey();
+            final double value;
+            try {
+                value = Double.valueOf(entry.getValue());
+            } catch(NumberFormatException e) {
+                log.error("Bad value for {}: {}", key, entry.getValue());
+                throw new RuntimeException("Bad value for " + key + ": " + entry.getValue());
+            }
+
+            final int first = key.indexOf('.'), last = key.lastIndexOf('.');
+            final String kind = first > 0 ? key.substring(0, first) : key;
+            final String item = first < last ? key.substring(first + 1, last) : null;
+            final String param = key.substring(last + 1);
+
+            if (key.equals("runtime"))
+                copy.overrideRuntime(value);
+
+            else if (kind.equals("Reaction") && item != null &&
+                     (param.equals("forwardRate") || param.equals("reverseRate"))) {
+                Double[] rate = rates.get(item);
+                if (rate == null)
+                    rates.put(item, rate = new Double[2]);
+                rate[param.equals("forwardRate") ? 0 : 1] = value;
+
+            } else if (kind.equals("ConcentrationSet") && item != null) {
+                Map<String, Double> values = concentrations.get(item);
+                if (values == null)
+                    concentrations.put(item, values = new TreeMap<>());
+                values.put(param, value);
+
+            } else if (kind.equals("InjectionStim") && item != null) {
+                final int index;
+                try {
+                    index = Integer.valueOf(item);
+                } catch(NumberFormatException e) {
+                    log.error("Stimulations are identified by index, not {}", item);
+                    throw new RuntimeException("Bad stimulation index: " + item);
+                }
+                Map<String, Double> values = stimulations.get(index);
+                if (values == null)
+                    stimulations.put(index, values = new TreeMap<>());
+                values.put(param, value);
+
+            } else {
+                log.error("Unsupported override {}", key);
+                throw new RuntimeException("Unsupported override " + key);
+            }
+        }
+
+        if (!rates.isEmpty()) {
+            copy.reactionScheme = this.getReactionScheme().withRates(rates);
+            copy.reactionTable = null;
+            copy.stimulationTable = null;
+        }
+
+        if (!stimulations.isEmpty()) {
+            if (this.stimulationSet == null) {
+                log.error("Model has no stimulations to override");
+                throw new RuntimeException("Model has no stimulations to override");
+            }
+            copy.stimulationSet = this.stimulationSet.withParameters(stimulations);
+            copy.stimulationTable = null;
+        }
+
+        if (!concentrations.isEmpty()) {
+            copy.initialConditions = this.getInitialConditions().withConcentrations(concentrations);
+            copy._initialConditions_checked = false;
+        }
+
+        return copy;
+    }
+
     public String getStatistics() {
         if (this.statistics != null && this.statistics.value != null)
             return this.statistics.value;
@@ -301,6 +416,22 @@ else if (this.runtime != null)
 
     public synchronized VolumeGrid getVolumeGrid() {
         if (this.volumeGrid == null) {
+            final GridCache cache = GridCache.create();
+            final String key;
+            if (cache != null) {
+                key = GridCache.key(Settings.getProgramVersion(),
+                                    this.getMorphology(),
+                                    this.getDiscretization(),
+                                    this.getGeometry(),
+                                    this.depth2D,
+                                    this.spineSeed,
+                                    VolumeGrid.getOrdering());
+                this.volumeGrid = cache.load(key);
+                if (this.volumeGrid != null)
+                    return this.volumeGrid;
+            } else
+                key = null;
+
             final Morphology morph = this.getMorphology();
             final TreePoint[] tpa = morph.getTreePoints();
             final Discretization disc = this.getDiscretization();
@@ -345,15 +476,22 @@ public synchronized VolumeGrid getVolumeGrid() {
                                 volumeGrid);
             volumeGrid.fix();
             log.info("{} subvolumes", volumeGrid.size());
+
+            if (cache != null)
+                cache.save(key, volumeGrid);
         }
 
         return this.volumeGrid;
     }
 
+    transient private int[][] stimulationTargets;
     public synchronized int[][] getStimulationTargets() {
-        VolumeGrid grid = this.getVolumeGrid();
-        String[] targets = this.getStimulationTable().getTargetIDs();
-        return grid.getAreaIndexes(targets);
+        if (this.stimulationTargets == null) {
+            VolumeGrid grid = this.getVolumeGrid();
+            String[] targets = this.getStimulationTable().getTargetIDs();
+            this.stimulationTargets = grid.getAreaIndexes(targets);
+        }
+        return this.stimulationTargets;
     }
 
     public double[] getRegionConcentration(String region) {
@@ -478,7 +616,8 @@ public static SDRun loadFromFile(File model_file,
             if (!speciesMatch(sdrun.getSpecies(), species))
                 throw new RuntimeException("Species list mismatch");
 
-            sdrun.population = ic == null ? model.population : ic.population;
+            sdrun.population = VolumeGrid.inGridOrder(ic == null ? model.population : ic.population,
+                                                      sdrun.getVolumeGrid().getOriginalNumbers());
         }
 
         return sdrun;
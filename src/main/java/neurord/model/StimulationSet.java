@@ -2,6 +2,7 @@
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 import javax.xml.bind.annotation.*;
 
@@ -9,4 +10,25 @@ public class StimulationSet {
 
     @XmlElement(name="InjectionStim")
     public List<InjectionStim> stimulations = new ArrayList<>();
+
+    /**
+     * A copy of this set with the parameters of some stimulations
+     * replaced. Stimulations are identified by their position.
+     */
+    StimulationSet withParameters(Map<Integer, Map<String, Double>> parameters) {
+        StimulationSet copy = new StimulationSet();
+        for (int i = 0; i < this.stimulations.size(); i++) {
+            Map<String, Double> values = parameters.get(i);
+            InjectionStim stim = this.stimulations.get(i);
+            copy.stimulations.add(values == null ? stim : stim.withParameters(values));
+        }
+
+        for (int i: parameters.keySet())
+            if (i < 0 || i >= this.stimulations.size()) {
+                InjectionStim.log.error("No stimulation {}, there are {}", i, this.stimulations.size());
+                throw new RuntimeException("No stimulation " + i);
+            }
+
+        return copy;
+    }
 }
@@ -16,6 +16,7 @@
 import neurord.numeric.chem.StimulationTable;
 import neurord.numeric.morph.VolumeGrid;
 import neurord.numeric.grid.ResultWriter;
+import neurord.util.CustomFileAppender;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -93,13 +94,22 @@ public SDRun getSource() {
 
     private long seed = -1;
     public long getSimulationSeed() {
-        if (this.seed == -1) {
-            if (this.sdRun.simulationSeed > 0)
-                seed = this.sdRun.simulationSeed + this.trial;
-            else
-                seed = Math.abs(new Random().nextInt());
-            log.info("Trial {}: running with simulationSeed {}", this.trial(), seed);
-        }
+        if (this.seed == -1)
+            this.seed = simulationSeed(this.sdRun, this.trial);
+        return seed;
+    }
+
+    /**
+     * The seed of trial: the seed from the model offset by the trial number,
+     * or a random one if the model does not specify it.
+     */
+    public static long simulationSeed(SDRun sdRun, int trial) {
+        final long seed;
+        if (sdRun.simulationSeed > 0)
+            seed = sdRun.simulationSeed + trial;
+        else
+            seed = Math.abs(new Random().nextInt());
+        log.info("Trial {}: running with simulationSeed {}", trial, seed);
         return seed;
     }
 
@@ -112,11 +122,19 @@ public void storeResultIn(Hashtable<Integer, Object> results) {
         this.results = results;
     }
 
+    /* The log file of the job, per-trial log files are named after it */
+    private String logfile = null;
+
+    public void setLogFile(String logfile) {
+        this.logfile = logfile;
+    }
+
     protected abstract void _run();
 
     @Override
     public void run() {
         Object result;
+        CustomFileAppender.beginTrial(this.trial, this.logfile);
         try {
             this._run();
             result = 0;
@@ -130,8 +148,14 @@ public void run() {
             if (this.results == null)
                 throw e;
             result = e;
+        } finally {
+            CustomFileAppender.endTrial();
         }
 
+        this.storeResult(result);
+    }
+
+    protected void storeResult(Object result) {
         this.results.put(this.trial, result);
     }
 
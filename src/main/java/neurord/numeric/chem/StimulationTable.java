@@ -1,6 +1,9 @@
 package neurord.numeric.chem;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.apache.logging.log4j.Logger;
@@ -160,6 +163,194 @@ public double[][] getStimsForInterval(double time, double dt) {
         return ret;
     }
 
+    /**
+     * Create a precompiled schedule of stimulation pulses between @start and @end.
+     * The returned object keeps a cursor, so each calculation must use its own.
+     *
+     * @param targets voxel indices for each stimulation, as returned by
+     *        SDRun.getStimulationTargets()
+     */
+    public Timeline timeline(int[][] targets, double start, double end) {
+        return new Timeline(this.stims, targets, start, end);
+    }
+
+    /**
+     * A sorted list of pulses [onset, offset) of all stimulations.
+     * Pulses are visited in order by a cursor, so that only the pulses
+     * which overlap with the current step are examined. This assumes
+     * that time is monotonically increasing, which is true for the
+     * fixed step calculations.
+     */
+    public static class Timeline {
+        final int[][] targets;
+        final int[] species;
+        final double[] rates;
+
+        /* The pulses, sorted by onset */
+        final double[] onsets, offsets;
+        final int[] owners;
+
+        /* Index of the first pulse which has not been opened yet */
+        int next = 0;
+        /* Pulses which overlap with the current or a future step */
+        int[] open;
+        int nopen = 0;
+        double last = Double.NEGATIVE_INFINITY;
+
+        /* Output of the last step: stimulations and amounts injected */
+        final int[] active;
+        final double[] amounts;
+        int count = 0;
+        /* Whether a stimulation is already in active. The amount cannot be used
+         * for this, because it can be (or add up to) zero. */
+        final boolean[] listed;
+
+        Timeline(List<Stimulation> stims, int[][] targets, double start, double end) {
+            assert targets.length == stims.size();
+
+            this.targets = targets;
+            this.species = new int[stims.size()];
+            this.rates = new double[stims.size()];
+
+            final ArrayList<double[]> pulses = new ArrayList<>();
+            for (int i = 0; i < stims.size(); i++) {
+                Stimulation stim = stims.get(i);
+                this.species[i] = stim.species;
+                this.rates[i] = stim.rate;
+
+                if (Double.isNaN(stim.period)) {
+                    if (stim.duration > 0 && stim.onset + stim.duration > start)
+                        pulses.add(new double[]{ stim.onset, stim.onset + stim.duration, i });
+                } else {
+                    if (!(stim.period > 0))
+                        throw new RuntimeException("Stimulation period must be positive: " + stim);
+
+                    for (int k = 0; ; k++) {
+                        double pons = stim.onset + k * stim.period;
+                        if (pons > end || pons >= stim.end)
+                            break;
+
+                        double duration = stim.duration;
+                        if (!Double.isNaN(stim.end))
+                            duration = Math.max(Math.min(duration, stim.end - pons), 0);
+                        if (duration > 0 && pons + duration > start)
+                            pulses.add(new double[]{ pons, pons + duration, i });
+                    }
+                }
+            }
+
+            Collections.sort(pulses, new Comparator<double[]>() {
+                    @Override
+                    public int compare(double[] a, double[] b) {
+                        return Double.compare(a[0], b[0]);
+                    }
+                });
+
+            this.onsets = new double[pulses.size()];
+            this.offsets = new double[pulses.size()];
+            this.owners = new int[pulses.size()];
+            for (int i = 0; i < pulses.size(); i++) {
+                this.onsets[i] = pulses.get(i)[0];
+                this.offsets[i] = pulses.get(i)[1];
+                this.owners[i] = (int) pulses.get(i)[2];
+            }
+
+            this.open = new int[Math.max(stims.size(), 1)];
+            this.active = new int[stims.size()];
+            this.amounts = new double[stims.size()];
+            this.listed = new boolean[stims.size()];
+
+            log.debug("Stimulation timeline with {} pulses for {} stimulations",
+                      pulses.size(), stims.size());
+        }
+
+        /**
+         * Find stimulations active in [time, time+dt].
+         *
+         * @return the number of active stimulations. Their indices and amounts
+         * of injected particles are available through active() and amount().
+         */
+        public int step(double time, double dt) {
+            for (int i = 0; i < this.count; i++) {
+                this.amounts[this.active[i]] = 0;
+                this.listed[this.active[i]] = false;
+            }
+            this.count = 0;
+
+            if (time < this.last) {
+                /* We went back in time. Should not happen, but start anew if it does. */
+                this.next = 0;
+                this.nopen = 0;
+            }
+            this.last = time;
+
+            final double end = time + dt;
+
+            /* Quick exit during quiet periods */
+            if (this.nopen == 0 &&
+                (this.next == this.onsets.length || this.onsets[this.next] >= end))
+                return 0;
+
+            while (this.next < this.onsets.length && this.onsets[this.next] < end) {
+                if (this.nopen == this.open.length)
+                    this.open = Arrays.copyOf(this.open, this.open.length * 2);
+                this.open[this.nopen++] = this.next++;
+            }
+
+            int count = 0;
+            for (int i = 0; i < this.nopen; ) {
+                final int p = this.open[i];
+                final double overlap =
+                    Math.min(this.offsets[p], end) - Math.max(this.onsets[p], time);
+
+                if (overlap > 0) {
+                    final int s = this.owners[p];
+                    if (!this.listed[s]) {
+                        this.listed[s] = true;
+                        this.active[count++] = s;
+                    }
+                    this.amounts[s] += this.rates[s] * overlap;
+                }
+
+                if (this.offsets[p] <= end)
+                    /* this pulse is done, remove it */
+                    this.open[i] = this.open[--this.nopen];
+                else
+                    i++;
+            }
+
+            this.count = count;
+            return count;
+        }
+
+        /**
+         * The index of @i-th stimulation active in the last step.
+         */
+        public int active(int i) {
+            return this.active[i];
+        }
+
+        /**
+         * The amount of particles injected by the @i-th stimulation active in
+         * the last step.
+         */
+        public double amount(int i) {
+            return this.amounts[this.active[i]];
+        }
+
+        public int species(int stim) {
+            return this.species[stim];
+        }
+
+        public int[] targets(int stim) {
+            return this.targets[stim];
+        }
+
+        public int size() {
+            return this.targets.length;
+        }
+    }
+
     public ArrayList<Stimulation> getStimulations() {
         return this.stims;
     }
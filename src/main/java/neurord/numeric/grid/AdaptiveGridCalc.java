@@ -1,5 +1,7 @@
 package neurord.numeric.grid;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Collection;
 import java.util.ArrayList;
@@ -7,7 +9,6 @@
 import neurord.SDCalcType;
 import neurord.model.SDRun;
 import neurord.util.Settings;
-import neurord.util.ArrayUtil;
 import neurord.util.TimeUtil;
 import neurord.util.Logging;
 
@@ -28,7 +29,7 @@ public class AdaptiveGridCalc extends StochasticGridCalc {
     ArrayList<IGridCalc.Happening> events
         = log_events ? new ArrayList<IGridCalc.Happening>() : null;
 
-    int eventStatistics[][];
+    EventStatistics eventStatistics;
 
     public AdaptiveGridCalc(int trial, SDRun sdm) {
         super(trial, sdm);
@@ -56,15 +57,46 @@ public final void init() {
         final int stat_count = this.neq.stat_count(this.sdRun.getStatistics(),
                                                    this.sdRun.getSpecies());
         if (stat_count > 0)
-            this.eventStatistics = new int[stat_count][2];
+            this.eventStatistics = new EventStatistics(stat_count);
 
         this.real_start_time = System.currentTimeMillis();
     }
 
+    @Override
+    protected void _run() {
+        try {
+            super._run();
+        } finally {
+            if (this.neq != null && this.neq.trace != null)
+                this.writeTrace(this.neq.trace);
+        }
+    }
+
+    /**
+     * Dump the queue trace next to the first output file.
+     */
+    protected void writeTrace(EventTrace trace) {
+        String base = "model";
+        if (!this.resultWriters.isEmpty()) {
+            base = this.resultWriters.get(0).outputFile().getPath();
+            int dot = base.lastIndexOf('.');
+            if (dot > base.lastIndexOf(File.separatorChar))
+                base = base.substring(0, dot);
+        }
+        File file = new File(base + ".trial" + this.trial() + ".trace");
+
+        try {
+            trace.write(file);
+        } catch(IOException e) {
+            log.log(Logging.NOTICE, "Failed to write queue trace to {}: {}", file, e);
+        }
+    }
+
     @Override
     public void footer() {
         super.footer();
         log.info("Queue suffered {} swaps", this.neq.queue.swaps);
+        this.neq.reportLogLimits();
         log.log(Logging.NOTICE,
                 "Accuracy control parameter ε={}", this.neq.tolerance);
         log.log(Logging.NOTICE,
@@ -72,12 +104,14 @@ public void footer() {
                  this.neq.leap_extent, this.neq.leaps,
                  (double)this.neq.leap_extent / this.neq.leaps,
                  this.neq.normal_waits);
+        if (this.neq.profile != null)
+            this.neq.profile.logTop();
         if (this.sdRun.getStatisticsInterval() == 0 &&
             (this.sdRun.getStatistics().equals("injections") ||
              this.sdRun.getStatistics().equals("by-channel")) &&
             this.eventStatistics != null)
 
-            for (int i = 0; i < this.eventStatistics.length; i++) {
+            for (int i = 0; i < this.eventStatistics.size(); i++) {
                 /* We only want to report injections, and only when we have
                  * the aggregate numbers of the simulation and species. */
 
@@ -85,7 +119,7 @@ public void footer() {
                 if (desc.description.startsWith("Stim"))
                     log.info("{}: {} events, {} molecules",
                              desc.description,
-                             this.eventStatistics[i][0], this.eventStatistics[i][1]);
+                             this.eventStatistics.events(i), this.eventStatistics.extent(i));
             }
 
         long time = System.currentTimeMillis() - this.real_start_time;
@@ -144,14 +178,19 @@ public static double calculatePropensity(int[] ri, int[] pi,
     }
 
     @Override
-    public int[][] getEventStatistics() {
+    public CostProfile getCostProfile() {
+        return this.neq != null ? this.neq.profile : null;
+    }
+
+    @Override
+    public EventStatistics getEventStatistics() {
         return this.eventStatistics;
     }
 
     @Override
     protected void resetEventStatistics() {
         if (this.eventStatistics != null)
-            ArrayUtil.fill(this.eventStatistics, 0);
+            this.eventStatistics.reset();
     }
 
     @Override
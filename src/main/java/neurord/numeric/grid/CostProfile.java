@@ -0,0 +1,211 @@
+package neurord.numeric.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Attribution of the cost of the simulation to event channels and voxels.
+ *
+ * All firings are counted together with the dependency updates and queue
+ * swaps they cause, but only every n-th firing is timed, so the overhead
+ * is small. The wall time of a channel is estimated from the mean of its
+ * timed firings.
+ *
+ * Channels are like in statistics="by-channel": diffusion of one species,
+ * one reaction, or one stimulation. Costs of diffusion are attributed to
+ * the source voxel.
+ */
+public class CostProfile {
+    public static final Logger log = LogManager.getLogger();
+
+    final static int sampling = Settings.getProperty("neurord.neq.profile",
+                                                     "Profile the cost of events, timing every n-th firing (0 == disabled)",
+                                                     0);
+    final static int top = Settings.getProperty("neurord.neq.profile_top",
+                                                "Report this many most expensive channels",
+                                                20);
+
+    public static final String[] COLUMNS = {
+        "firings", "dependent_updates", "swaps", "samples", "sampled_ns", "estimated_ns",
+    };
+    static final int FIRINGS = 0, UPDATES = 1, SWAPS = 2, SAMPLES = 3, SAMPLED = 4, ESTIMATED = 5;
+
+    final String[] channels;
+    final int[] channel_of_event;
+    final int[] element_of_event;
+
+    final long[][] by_channel;
+    final long[][] by_voxel;
+
+    private int countdown;
+
+    CostProfile(List<? extends NextEventQueue.NextEvent> events, String[] species, int nel, int period) {
+        assert period > 0: period;
+
+        LinkedHashMap<String, Integer> names = new LinkedHashMap<>();
+
+        this.channel_of_event = new int[events.size()];
+        this.element_of_event = new int[events.size()];
+        for (NextEventQueue.NextEvent ev: events) {
+            String name = channelName(ev, species);
+            Integer channel = names.get(name);
+            if (channel == null) {
+                channel = names.size();
+                names.put(name, channel);
+            }
+            this.channel_of_event[ev.event_number()] = channel;
+            this.element_of_event[ev.event_number()] = ev.element();
+        }
+
+        this.channels = names.keySet().toArray(new String[0]);
+        this.by_channel = new long[this.channels.length][COLUMNS.length];
+        this.by_voxel = new long[nel][COLUMNS.length];
+        this.countdown = period;
+
+        log.info("Profiling {} channels, timing every {} firing", this.channels.length, period);
+    }
+
+    /**
+     * Create a profile if it was requested with neurord.neq.profile,
+     * and return null otherwise.
+     */
+    static CostProfile create(List<? extends NextEventQueue.NextEvent> events, String[] species, int nel) {
+        return sampling > 0 ? new CostProfile(events, species, nel, sampling) : null;
+    }
+
+    static String channelName(NextEventQueue.NextEvent ev, String[] species) {
+        if (ev instanceof NextEventQueue.NextDiffusion)
+            return "Diffusion of " + species[((NextEventQueue.NextDiffusion) ev).sp];
+        if (ev instanceof NextEventQueue.NextStimulation) {
+            NextEventQueue.NextStimulation stim = (NextEventQueue.NextStimulation) ev;
+            return String.format("Stimulation %s→%s", species[stim.sp], stim.stim.site);
+        }
+        return "Reaction " + ev.signature;
+    }
+
+    /**
+     * Returns true if the next firing should be timed.
+     */
+    boolean sample() {
+        if (--this.countdown > 0)
+            return false;
+        this.countdown = sampling;
+        return true;
+    }
+
+    /**
+     * @param nanos wall time of the firing, or -1 if it was not timed
+     */
+    void record(int event, long updates, long swaps, long nanos) {
+        long[] c = this.by_channel[this.channel_of_event[event]];
+        long[] v = this.by_voxel[this.element_of_event[event]];
+
+        c[FIRINGS]++;
+        v[FIRINGS]++;
+        c[UPDATES] += updates;
+        v[UPDATES] += updates;
+        c[SWAPS] += swaps;
+        v[SWAPS] += swaps;
+        if (nanos >= 0) {
+            c[SAMPLES]++;
+            v[SAMPLES]++;
+            c[SAMPLED] += nanos;
+            v[SAMPLED] += nanos;
+        }
+    }
+
+    private static long[][] estimate(long[][] rows) {
+        long[][] ans = new long[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            ans[i] = rows[i].clone();
+            /* in double, the product overflows a long in long runs */
+            ans[i][ESTIMATED] = rows[i][SAMPLES] > 0 ?
+                (long) ((double) rows[i][SAMPLED] / rows[i][SAMPLES] * rows[i][FIRINGS]) : 0;
+        }
+        return ans;
+    }
+
+    public String[] channels() {
+        return this.channels;
+    }
+
+    /**
+     * Costs of channels, [channels × COLUMNS].
+     */
+    public long[][] byChannel() {
+        return estimate(this.by_channel);
+    }
+
+    /**
+     * Costs of voxels, [voxels × COLUMNS].
+     */
+    public long[][] byVoxel() {
+        return estimate(this.by_voxel);
+    }
+
+    /**
+     * Costs of voxels summed over regions, in the order of regions.
+     */
+    public long[][] byRegion(String[] regions, String[] element_regions) {
+        List<String> names = Arrays.asList(regions);
+        long[][] voxels = this.byVoxel();
+        long[][] ans = new long[regions.length][COLUMNS.length];
+
+        for (int el = 0; el < voxels.length; el++) {
+            int r = names.indexOf(element_regions[el]);
+            if (r >= 0)
+                for (int k = 0; k < COLUMNS.length; k++)
+                    ans[r][k] += voxels[el][k];
+        }
+        return ans;
+    }
+
+    /**
+     * Indices of the channels with the highest estimated wall time,
+     * most expensive first.
+     */
+    public int[] topChannels() {
+        final long[][] costs = this.byChannel();
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < costs.length; i++)
+            order.add(i);
+
+        Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int ans = Long.compare(costs[b][ESTIMATED], costs[a][ESTIMATED]);
+                    return ans != 0 ? ans : Long.compare(costs[b][FIRINGS], costs[a][FIRINGS]);
+                }
+            });
+
+        int n = Math.min(top, order.size());
+        int[] ans = new int[n];
+        for (int i = 0; i < n; i++)
+            ans[i] = order.get(i);
+        return ans;
+    }
+
+    void logTop() {
+        long[][] costs = this.byChannel();
+        long total = 0;
+        for (long[] row: costs)
+            total += row[ESTIMATED];
+
+        log.info("Most expensive channels:");
+        for (int i: this.topChannels())
+            log.info("  {}: {} firings, {} updates, {} swaps, ~{} ms ({}%)",
+                     this.channels[i],
+                     costs[i][FIRINGS], costs[i][UPDATES], costs[i][SWAPS],
+                     costs[i][ESTIMATED] / 1000000,
+                     total > 0 ? costs[i][ESTIMATED] * 100 / total : 0);
+    }
+}
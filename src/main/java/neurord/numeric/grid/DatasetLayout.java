@@ -0,0 +1,152 @@
+package neurord.numeric.grid;
+
+import java.util.zip.Deflater;
+
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Chunk shapes and compression levels of extensible HDF5 arrays.
+ *
+ * Chunks always span whole rows along the last dimensions when they fit,
+ * i.e. whole snapshots of population arrays. Both ways the output is read
+ * (one snapshot for --ic, the whole array in python/neurord/output.py) then
+ * touch each chunk once. The number of rows in a chunk follows the number
+ * of rows written at once, between a lower bound which keeps tiny chunks
+ * from dominating the file, and an upper bound which keeps a chunk within
+ * the HDF5 chunk cache.
+ */
+public class DatasetLayout {
+    public static final Logger log = LogManager.getLogger();
+
+    final static int chunk_bytes = Settings.getProperty("neurord.chunk_size",
+                                                        "Largest chunk of extensible HDF5 arrays (bytes)",
+                                                        256 * 1024);
+    final static int min_chunk_bytes = 4 * 1024;
+
+    final static boolean calibrate = Settings.getProperty("neurord.compression.calibrate",
+                                                          "Pick the compression level from a sample of the populations",
+                                                          false);
+    final static double bandwidth = Settings.getProperty("neurord.compression.bandwidth",
+                                                         "Assumed storage bandwidth when calibrating compression (MB/s)",
+                                                         100.0);
+
+    /**
+     * Chunk shape for an array with rows of dims[1] × dims[2] × …
+     * elements of type_size bytes, of which dims[0] are written at once.
+     */
+    public static long[] chunks(long[] dims, int type_size, long max_bytes) {
+        final long[] chunks = dims.clone();
+
+        long row = type_size;
+        for (int i = 1; i < dims.length; i++)
+            row *= dims[i];
+
+        if (row >= max_bytes) {
+            /* Split the second dimension so that one row fits */
+            chunks[0] = 1;
+            if (dims.length > 1) {
+                long rest = row / dims[1];
+                chunks[1] = Math.max(max_bytes / rest, 1);
+            }
+            return chunks;
+        }
+
+        long lower = (min_chunk_bytes + row - 1) / row;
+        long upper = max_bytes / row;
+        chunks[0] = Math.max(Math.min(dims[0], upper), Math.min(lower, upper));
+        return chunks;
+    }
+
+    public static long[] chunks(long[] dims, int type_size) {
+        return chunks(dims, type_size, chunk_bytes);
+    }
+
+    /**
+     * The byte-shuffle filter: all first bytes of the values,
+     * then all second bytes, and so on (big-endian order).
+     */
+    static byte[] shuffle(int[] data) {
+        final byte[] out = new byte[data.length * 4];
+        for (int i = 0; i < data.length; i++)
+            for (int b = 0; b < 4; b++)
+                out[b * data.length + i] = (byte) (data[i] >>> (24 - 8 * b));
+        return out;
+    }
+
+    static int deflate(byte[] input, int level, byte[] buffer) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished())
+                size += deflater.deflate(buffer);
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Pick the deflate level which minimizes the time to compress
+     * and store a shuffled sample at the given bandwidth (bytes/s).
+     * Level 0 stores the data uncompressed, which wins for data that
+     * does not compress.
+     */
+    public static int calibrate(int[] sample, double bandwidth) {
+        final byte[] input = shuffle(sample);
+        final byte[] buffer = new byte[64 * 1024];
+        final int repeat = Math.max(1, (1 << 20) / Math.max(input.length, 1));
+
+        final int[] sizes = new int[10];
+        final double[] times = new double[10];
+        for (int level = 0; level <= 9; level++) {
+            /* one round to warm up */
+            sizes[level] = deflate(input, level, buffer);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < repeat; i++)
+                deflate(input, level, buffer);
+            times[level] = (System.nanoTime() - start) / 1e9 / repeat;
+
+            log.debug("Compression level {}: {} → {} bytes in {} s",
+                      level, input.length, sizes[level], times[level]);
+        }
+
+        return bestLevel(sizes, times, bandwidth);
+    }
+
+    /**
+     * The level with the lowest cost, the time to compress plus
+     * the time to store the compressed size at bandwidth (bytes/s).
+     * The lower level wins a tie.
+     */
+    static int bestLevel(int[] sizes, double[] times, double bandwidth) {
+        int best = 0;
+        double best_cost = Double.POSITIVE_INFINITY;
+        for (int level = 0; level < sizes.length; level++) {
+            double cost = times[level] + sizes[level] / bandwidth;
+            if (cost < best_cost) {
+                best = level;
+                best_cost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The compression level for arrays created after the sample of
+     * populations was taken, or fallback if calibration is disabled.
+     */
+    public static int compressionLevel(int[] sample, int fallback) {
+        if (!calibrate || sample.length == 0)
+            return fallback;
+
+        int level = calibrate(sample, bandwidth * 1e6);
+        log.info("Calibrated compression level {} on {} values", level, sample.length);
+        return level;
+    }
+}
@@ -10,12 +10,11 @@
 
 import neurord.model.SDRun;
 import neurord.numeric.BaseCalc;
+import neurord.numeric.chem.StimulationTable;
 import neurord.numeric.math.Column;
 import neurord.numeric.math.Matrix;
 import neurord.numeric.morph.VolumeGrid;
 
-import neurord.util.ArrayUtil;
-
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
@@ -31,17 +30,34 @@ public class DeterministicGridCalc extends GridCalc {
     public boolean preferConcs(){ return true; }
 
     /**
-     * 2D arrays to hold info on each stimulation.
+     * Stimulation schedule, and for each stimulation, the share of
+     * the injected quantity for each of the targets.
+     */
+    StimulationTable.Timeline stimulations;
+    double[][] stimshare;
+
+    /**
+     * Concentration increments from stimulations, allocated only
+     * for voxels which are stimulation targets.
      */
-    int[][] eltstims;
-    double[][] eltstimshare;
+    double[][] concinc;
+    boolean[] concinc_used;
 
 //AB 2012 Apr 3: change wkB to wktm1 which stands for wk(time-1)
     //purpose is to write out the present time array: wkA
     //this completely fixed the discrepancy between stoch and determ!!!
-    double[][] wkA;
-    double[][] wktm1;
-    double[][] wkC;
+    /* Concentrations, species-major: [nspec][nel] flattened, see DeterministicKernels */
+    double[] wkA;
+    double[] wktm1;
+    double[] wkC;
+
+    /* Reaction increments in one step, [nspec][nel] */
+    double[] increments;
+
+    /* Workspace for the reaction step of one element */
+    double[] concs, cpdt;
+
+    DeterministicKernels kernels;
 
     long event_count = 0;
 
@@ -59,19 +75,14 @@ public DeterministicGridCalc(int trial, SDRun sdrun) {
     public final void init() {
         super.init();
 
-        // eltstims gives the index in the stim array for
-        // the stim to element i, if any. -1 otherwise
-        /* AB Dec 16 2011 - eltstims needs to be 2D, determine target element and share for each */
-        int numStim = this.sdRun.getStimulationTable().getStimulations().size();
-        eltstims = new int[numStim][nel];
-        eltstimshare = new double[numStim][nel];
-        for (int stimnum = 0; stimnum < numStim; stimnum++) {
-            for (int i = 0; i < eltstims[stimnum].length; i++) {
-                eltstims[stimnum][i] = -1;
-            }
-        }
-
+        /* AB Dec 16 2011 - determine target element and share for each stimulation */
         int[][] stimtargets = this.sdRun.getStimulationTargets();
+        stimulations = this.sdRun.getStimulationTable().timeline(stimtargets,
+                                                                 this.sdRun.getStartTime(),
+                                                                 this.sdRun.getEndTime());
+        stimshare = new double[stimtargets.length][];
+        concinc = new double[nel][];
+        concinc_used = new boolean[nel];
         for (int i = 0; i < stimtargets.length; i++) {
             //asti are the list of voxels to receive particles
             int[] asti = stimtargets[i];
@@ -80,26 +91,31 @@ public final void init() {
                 vtot += volumes[asti[k]];
             }
 //AB 12-19-11: changed volumes[i] to volumes[asti[k]]
+            stimshare[i] = new double[asti.length];
             for (int k = 0; k < asti.length; k++) {
-                eltstims[i][asti[k]] = i;
-                eltstimshare[i][asti[k]] = volumes[asti[k]] / vtot;
+                stimshare[i][k] = volumes[asti[k]] / vtot;
+                if (concinc[asti[k]] == null)
+                    concinc[asti[k]] = new double[nspec];
             }
         }
 
 //AB 2012-apr 3 change wkB to wk[time-1]
-        wkA = new double[nel][nspec];
-        wktm1 = new double[nel][nspec];
-        wkC = new double[nel][nspec];
+        wkA = new double[nspec * nel];
+        wktm1 = new double[nspec * nel];
+        wkC = new double[nspec * nel];
+        increments = new double[nspec * nel];
+        concs = new double[nspec];
+        cpdt = new double[nspec];
 
         VolumeGrid grid = this.sdRun.getVolumeGrid();
 
         for (int i = 0; i < nel; i++) {
             double[] rcs = this.sdRun.getRegionConcentration(grid.getElementRegion(i));
             for (int j = 0; j < nspec; j++) {
-                wkA[i][j] = rcs[j];
+                wkA[j * nel + i] = rcs[j];
                 //AB 2012-apr 3 change wkB to wk[time-1]
-                wktm1[i][j] = rcs[j];
-                wkC[i][j] = rcs[j];
+                wktm1[j * nel + i] = rcs[j];
+                wkC[j * nel + i] = rcs[j];
             }
 
             double a = surfaceAreas[i];
@@ -116,13 +132,17 @@ public final void init() {
 
                 for (int j = 0; j < nspec; j++)
                     if (!Double.isNaN(scs[j])) {
-                        wkA[i][j] = concfac * scs[j];
+                        wkA[j * nel + i] = concfac * scs[j];
                         //AB 2012-apr 3 change wkB to wk[time-1]
-                        wktm1[i][j] = concfac * scs[j];
-                        wkC[i][j] = concfac * scs[j];
+                        wktm1[j * nel + i] = concfac * scs[j];
+                        wkC[j * nel + i] = concfac * scs[j];
                     }
             }
         }
+
+        kernels = DeterministicKernels.create();
+        kernels.setup(volumes, fdiff, neighbors, couplingConstants,
+                      rtab.getRates(), rtab.getReactantIndices(), rtab.getProductIndices());
     }
 
     @Override
@@ -131,91 +151,54 @@ public double advance(double tnow, double tend) {
 
         // diffusion terms;
         // wkA is time t, wktm1 time t-1, wkC the next step, t+1
-
-        // initialize next step values to zero;
-        ArrayUtil.fill(wkC, 0);
-
         // source terms;
         // should increment injection sites by 2 * the injected quantity;
+        kernels.diffusion(dt, wkA, wktm1, wkC);
 
-        double[] zl = new double[nspec];
-        double[] zr = new double[nspec];
-
-        // diffusion step;
-        for (int iel = 0; iel < nel; iel++) {
-            double vol = volumes[iel];
-            double fvol = 2. * dt / vol; // 2 for the two leapfrog steps;
+        this.event_count += nel * nspec;
 
-            // zr part not needed unless we put the source terms in wkC first
-            for (int k = 0; k < nspec; k++) {
-                zr[k] = wkC[iel][k] / vol;
-                zl[k] = 1.;
-            }
+//AB 12-19-11 accumulate injections from multiple stimuli
+        final int nactive = this.stimulations.step(tnow, dt);
+        for (int i = 0; i < nactive; i++) {
+            final int stim = this.stimulations.active(i);
+            final int sp = this.stimulations.species(stim);
+            final int[] asti = this.stimulations.targets(stim);
+            final double pinj = this.stimulations.amount(i);
 
-            int inbr[] = neighbors[iel];
-            double gnbr[] = couplingConstants[iel];
-            int nnbr = inbr.length;
-            /*
-            			for (int j = 0; j < nnbr; j++) {
-            				for (int k = 0; k < nspec; k++) {
-            					double ff = fvol * fdiff[k] * gnbr[j];
-            					//AB 2012-apr 3 change wkB to wk[time-1], and wkA to wk[time]
-            					zr[k] += ff * (wkA[inbr[j]][k] - 0.5 * wktm1[iel][k]);
-            					zl[k] += 0.5 * ff;
-            				}
-            			}
-            			for (int k = 0; k < nspec; k++) {
-            				wkC[iel][k] = (wkA[iel][k] + zr[k]) / zl[k];
-            			}
-            */
-            //AB 2012 Apr 4 - skip the diffusion if fdiff=0 to make this part faster
-            for (int k = 0; k < nspec; k++) {
-                if (fdiff[k]>0) {
-                    for (int j = 0; j < nnbr; j++) {
-                        double ff = fvol * fdiff[k] * gnbr[j];
-                        zr[k] += ff * (wkA[inbr[j]][k] - 0.5 * wktm1[iel][k]);
-                        zl[k] += 0.5 * ff;
-                    }
-                }
-                wkC[iel][k] = (wkA[iel][k] + zr[k]) / zl[k];
+            for (int k = 0; k < asti.length; k++) {
+                final int iel = asti[k];
+                double fconc = NM_PER_PARTICLE_PUV / volumes[iel];
+                concinc[iel][sp] += pinj * fconc * stimshare[stim][k];
+                if (concinc[iel][sp] < 0)
+                    log.error("negative concentration: {}", concinc[iel]);
+                concinc_used[iel] = true;
+                this.event_count ++;
             }
         }
 
-        this.event_count += nel * nspec;
-
-        double[][] stims = this.sdRun.getStimulationTable().getStimsForInterval(tnow, dt);
-
         // reaction step;
+        kernels.production(dt, wkC, increments);
         for (int iel = 0; iel < nel; iel++) {
-//AB 12-19-11	create the coninc outside of the pinj loop, to accumulate injections from multiple stimuli
-            double[] concinc = null;
-            boolean concnull = true;
-            double fconc = NM_PER_PARTICLE_PUV / volumes[iel];
-//AB 12-19-11 need to create loop over all the stimulations, and
-//			create pinj for each stimulation (not just the first one)
-            for (int stimnum=0; stimnum<stims.length; stimnum++) {
-                if (eltstims[stimnum][iel] >= 0) {
-                    if (concinc == null)
-                        concinc = new double[nspec];
-
-                    double[] pinj = stims[stimnum];
-
-                    for (int i = 0; i < pinj.length; i++) {
-                        concinc[i] += pinj[i] * fconc * eltstimshare[stimnum][iel];
-                        if (concinc[i] < 0)
-                            log.error("negative concentration: {}", concinc);
-                        this.event_count ++;
-                    }
-                }
+            for (int k = 0; k < nspec; k++) {
+                concs[k] = wkC[k * nel + iel];
+                cpdt[k] = increments[k * nel + iel];
             }
 
-            reacStep(wkC[iel], dt, concnull ? null : concinc);
-            this.event_count += wkC[iel].length;
+            if (concinc_used[iel]) {
+                reacStep(concs, cpdt, concinc[iel]);
+                Arrays.fill(concinc[iel], 0);
+                concinc_used[iel] = false;
+            } else
+                reacStep(concs, cpdt, null);
+
+            for (int k = 0; k < nspec; k++)
+                wkC[k * nel + iel] = concs[k];
+            this.event_count += nspec;
         }
 
         // cycle the solution arrays
         //AB 2012-apr 3 change wkB to wk[time-1]
-        double[][] wkT = wktm1;
+        double[] wkT = wktm1;
         wktm1 = wkA;
         wkA = wkC;
         wkC = wkT;
@@ -228,12 +211,14 @@ protected long eventCount() {
         return this.event_count;
     }
 
-    private void reacStep(double[] concs, double deltat, double[] concinc) {
+    /**
+     * @param increments the production column times dt, from {@link DeterministicKernels#production}
+     */
+    private void reacStep(double[] concs, double[] increments, double[] concinc) {
         // Semi-implicit euler - see pool/SemiImplicitEulerPoolCalc
         Column col = new Column(concs);
         Matrix m = rtab.getIncrementRateMatrix(col);
-        Column cp = rtab.getProductionColumn(col);
-        Column cpdt = cp.times(deltat);
+        Column cpdt = new Column(increments);
 
         /*
          * if (nlog < 5) { E.info("concs " + concs[0] + " " + concs[1] + " " +
@@ -259,7 +244,7 @@ private void reacStep(double[] concs, double deltat, double[] concinc) {
 
     @Override
     public double getGridPartConc(int i, int j) {
-        return wkA[i][j];
+        return wkA[j * nel + i];
     }
 
     @Override
@@ -269,7 +254,7 @@ public int getGridPartNumb(int i, int j) {
     }
 
     @Override
-    public int[][] getEventStatistics() {
+    public EventStatistics getEventStatistics() {
         return null;
     }
 
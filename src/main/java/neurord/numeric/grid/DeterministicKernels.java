@@ -0,0 +1,208 @@
+package neurord.numeric.grid;
+
+import java.util.Arrays;
+
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The inner loops of {@link DeterministicGridCalc}: the Dufort-Frankel
+ * diffusion update and the production terms of reactions.
+ *
+ * Concentrations are stored species-major, in arrays of [nspec][nel]
+ * flattened, so the concentration of species k in element iel is at
+ * k * nel + iel, and the loops over elements are contiguous. Neighbors are
+ * padded to the same number for all elements and stored as [maxnn][nel],
+ * with coupling constant 0 and the element itself as the padding.
+ *
+ * {@link Scalar} is always available. With the "vector" build profile,
+ * VectorDeterministicKernels implements the same loops with the Vector API
+ * and gives the same results.
+ */
+public abstract class DeterministicKernels {
+    public static final Logger log = LogManager.getLogger();
+
+    final static String kernels = Settings.getProperty("neurord.deterministic.kernels",
+                                                       "Inner loops of GRID_STEPPED_CONTINUOUS (auto, scalar, vector)",
+                                                       "auto");
+
+    static final String VECTOR_KERNELS = "neurord.numeric.grid.VectorDeterministicKernels";
+
+    protected int nel, nspec;
+    protected double[] volumes;
+    protected double[] fdiff;
+
+    /* Neighbors of element iel: neighbors[j * nel + iel], j < nneighbors[iel] */
+    protected int maxnn;
+    protected int[] nneighbors;
+    protected int[] neighbors;
+    protected double[] couplings;
+
+    protected double[] rates;
+    protected int[][] reactantIndices, productIndices;
+
+    public void setup(double[] volumes,
+                      double[] fdiff,
+                      int[][] neighbors,
+                      double[][] couplings,
+                      double[] rates,
+                      int[][] reactantIndices,
+                      int[][] productIndices) {
+        this.nel = volumes.length;
+        this.nspec = fdiff.length;
+        this.volumes = volumes;
+        this.fdiff = fdiff;
+
+        this.maxnn = 0;
+        this.nneighbors = new int[this.nel];
+        for (int iel = 0; iel < this.nel; iel++) {
+            this.nneighbors[iel] = neighbors[iel].length;
+            this.maxnn = Math.max(this.maxnn, neighbors[iel].length);
+        }
+
+        this.neighbors = new int[this.maxnn * this.nel];
+        this.couplings = new double[this.maxnn * this.nel];
+        for (int iel = 0; iel < this.nel; iel++)
+            for (int j = 0; j < this.maxnn; j++)
+                if (j < neighbors[iel].length) {
+                    this.neighbors[j * this.nel + iel] = neighbors[iel][j];
+                    this.couplings[j * this.nel + iel] = couplings[iel][j];
+                } else
+                    this.neighbors[j * this.nel + iel] = iel;
+
+        this.rates = rates;
+        this.reactantIndices = reactantIndices;
+        this.productIndices = productIndices;
+    }
+
+    /**
+     * One Dufort-Frankel step: calculate next (t+dt) from now (t)
+     * and prev (t-dt).
+     */
+    public abstract void diffusion(double dt, double[] now, double[] prev, double[] next);
+
+    /**
+     * The change of concentrations in dt from reactions at constant rates,
+     * as in {@link neurord.numeric.chem.ReactionTable#getProductionColumn}.
+     */
+    public abstract void production(double dt, double[] concs, double[] out);
+
+    public abstract String name();
+
+    /**
+     * The diffusion step of species k in elements [from, to).
+     */
+    protected final void diffuse(int k, int from, int to,
+                                 double dt, double[] now, double[] prev, double[] next) {
+        final int nel = this.nel, off = k * nel;
+
+        for (int iel = from; iel < to; iel++) {
+            final double fvol = 2. * dt / this.volumes[iel]; // 2 for the two leapfrog steps;
+            final double fk = fvol * this.fdiff[k];
+            double zr = 0, zl = 1;
+
+            for (int j = 0; j < this.nneighbors[iel]; j++) {
+                double ff = fk * this.couplings[j * nel + iel];
+                zr += ff * (now[off + this.neighbors[j * nel + iel]] - 0.5 * prev[off + iel]);
+                zl += 0.5 * ff;
+            }
+
+            next[off + iel] = (now[off + iel] + zr) / zl;
+        }
+    }
+
+    /**
+     * Add the rate of reaction ireac in elements [from, to) to out.
+     */
+    protected final void produce(int ireac, int from, int to, double[] concs, double[] out) {
+        final int nel = this.nel;
+        final int[] ri = this.reactantIndices[ireac];
+        final int[] pi = this.productIndices[ireac];
+
+        for (int iel = from; iel < to; iel++) {
+            double r = this.rates[ireac];
+            for (int index: ri)
+                r *= concs[index * nel + iel];
+
+            for (int index: ri)
+                out[index * nel + iel] -= r;
+            for (int index: pi)
+                out[index * nel + iel] += r;
+        }
+    }
+
+    public static class Scalar extends DeterministicKernels {
+        @Override
+        public void diffusion(double dt, double[] now, double[] prev, double[] next) {
+            for (int k = 0; k < this.nspec; k++)
+                //AB 2012 Apr 4 - skip the diffusion if fdiff=0 to make this part faster
+                if (this.fdiff[k] > 0)
+                    this.diffuse(k, 0, this.nel, dt, now, prev, next);
+                else
+                    System.arraycopy(now, k * this.nel, next, k * this.nel, this.nel);
+        }
+
+        @Override
+        public void production(double dt, double[] concs, double[] out) {
+            Arrays.fill(out, 0);
+
+            for (int ireac = 0; ireac < this.rates.length; ireac++)
+                this.produce(ireac, 0, this.nel, concs, out);
+
+            for (int i = 0; i < out.length; i++)
+                out[i] *= dt;
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+
+    static DeterministicKernels vector() {
+        try {
+            return (DeterministicKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+        } catch(ClassNotFoundException e) {
+            log.debug("{} not available (not built with -Pvector)", VECTOR_KERNELS);
+        } catch(LinkageError e) {
+            log.debug("{} cannot be loaded (use --add-modules jdk.incubator.vector)",
+                      VECTOR_KERNELS, e);
+        } catch(Exception e) {
+            log.debug("{} cannot be loaded", VECTOR_KERNELS, e);
+        }
+        return null;
+    }
+
+    /**
+     * Create kernels of the given type (auto, scalar, vector).
+     * With auto, the vector kernels are used if available.
+     */
+    public static DeterministicKernels create(String type) {
+        final DeterministicKernels ans;
+        if (type.equals("scalar"))
+            ans = new Scalar();
+        else if (type.equals("vector") || type.equals("auto")) {
+            DeterministicKernels vector = vector();
+            if (vector != null)
+                ans = vector;
+            else if (type.equals("auto"))
+                ans = new Scalar();
+            else {
+                log.error("Vector kernels are not available: build with -Pvector and run with --add-modules jdk.incubator.vector");
+                throw new RuntimeException("vector kernels are not available");
+            }
+        } else {
+            log.error("Unknown kernels {}, should be auto, scalar, or vector", type);
+            throw new RuntimeException("unknown kernels: " + type);
+        }
+
+        log.info("Using {} kernels for the deterministic calculation", ans.name());
+        return ans;
+    }
+
+    public static DeterministicKernels create() {
+        return create(kernels);
+    }
+}
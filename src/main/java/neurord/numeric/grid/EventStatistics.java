@@ -0,0 +1,97 @@
+package neurord.numeric.grid;
+
+import java.util.Arrays;
+
+/**
+ * Counters of events and of their total extent, one row per statistics
+ * index (event channel, reaction, species, … depending on the
+ * &lt;statistics&gt; mode).
+ *
+ * Counters are longs in one flat array [rows × 2], so they do not overflow
+ * on long runs and there is one allocation even for millions of rows.
+ * Rows which were incremented since the last {@link #reset} are remembered,
+ * so that a reset touches only those rows, and output can include only those
+ * rows (all other rows are zero).
+ */
+public class EventStatistics {
+    final long[] counts;
+
+    /* Rows changed since the last reset, in the order of first change */
+    final int[] dirty;
+    final boolean[] is_dirty;
+    int dirty_count = 0;
+
+    public EventStatistics(int rows) {
+        this.counts = new long[2 * rows];
+        this.dirty = new int[rows];
+        this.is_dirty = new boolean[rows];
+    }
+
+    public int size() {
+        return this.is_dirty.length;
+    }
+
+    private void touch(int row) {
+        if (!this.is_dirty[row]) {
+            this.is_dirty[row] = true;
+            this.dirty[this.dirty_count++] = row;
+        }
+    }
+
+    /**
+     * Count one event of row, which happened firings times.
+     */
+    public void record(int row, int firings) {
+        this.touch(row);
+        this.counts[2 * row] += 1;
+        this.counts[2 * row + 1] += firings;
+    }
+
+    public void set(int row, long events, long extent) {
+        this.touch(row);
+        this.counts[2 * row] = events;
+        this.counts[2 * row + 1] = extent;
+    }
+
+    public long events(int row) {
+        return this.counts[2 * row];
+    }
+
+    public long extent(int row) {
+        return this.counts[2 * row + 1];
+    }
+
+    /**
+     * All counters as a flat [rows × 2] array of {events, extent}.
+     * This is the live array, not a copy.
+     */
+    public long[] dense() {
+        return this.counts;
+    }
+
+    public int dirtyCount() {
+        return this.dirty_count;
+    }
+
+    /**
+     * Rows changed since the last reset, in increasing order.
+     */
+    public int[] dirtyRows() {
+        int[] rows = Arrays.copyOf(this.dirty, this.dirty_count);
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Zero all counters.
+     */
+    public void reset() {
+        for (int i = 0; i < this.dirty_count; i++) {
+            final int row = this.dirty[i];
+            this.counts[2 * row] = 0;
+            this.counts[2 * row + 1] = 0;
+            this.is_dirty[row] = false;
+        }
+        this.dirty_count = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Ring buffer of fixed-size records describing operations on the event queue.
+ *
+ * Only the last capacity() records are kept, so the tracing can be left on
+ * during long simulations to capture what happened just before a failure.
+ * Records are stored in primitive arrays, so recording does not allocate.
+ *
+ * The dump format is big-endian:
+ *   header: "NRDTRACE", int version, int record size, long total recorded, int stored
+ *   records, oldest first: int event, byte kind, double time, double old propensity,
+ *                          double new propensity, double next time, int extent
+ */
+public class EventTrace {
+    public static final Logger log = LogManager.getLogger();
+
+    final static int trace_size = Settings.getProperty("neurord.neq.trace",
+                                                       "Keep this many last queue operations in a ring buffer (0 == disabled)",
+                                                       0);
+
+    /* Kinds of records. The first two match IGridCalc.HappeningKind. */
+    public static final byte EXACT = 0;
+    public static final byte LEAP = 1;
+    public static final byte UPDATE = 2;
+
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 4 + 1 + 8 + 8 + 8 + 8 + 4;
+
+    final int[] event;
+    final byte[] kind;
+    final double[] time, old_propensity, new_propensity, next_time;
+    final int[] extent;
+
+    /* Position of the next record */
+    int position = 0;
+    long recorded = 0;
+
+    public EventTrace(int capacity) {
+        assert capacity > 0: capacity;
+
+        this.event = new int[capacity];
+        this.kind = new byte[capacity];
+        this.time = new double[capacity];
+        this.old_propensity = new double[capacity];
+        this.new_propensity = new double[capacity];
+        this.next_time = new double[capacity];
+        this.extent = new int[capacity];
+
+        log.info("Tracing last {} queue operations ({} MB)",
+                 capacity, (long) capacity * RECORD_SIZE / 1024 / 1024);
+    }
+
+    /**
+     * Create a trace object if tracing is enabled through neurord.neq.trace,
+     * and return null otherwise.
+     */
+    public static EventTrace create() {
+        return trace_size > 0 ? new EventTrace(trace_size) : null;
+    }
+
+    public int capacity() {
+        return this.event.length;
+    }
+
+    public long recorded() {
+        return this.recorded;
+    }
+
+    /**
+     * The number of records which are currently held in the buffer.
+     */
+    public int size() {
+        return (int) Math.min(this.recorded, this.capacity());
+    }
+
+    public void record(int event, byte kind, double time,
+                       double old_propensity, double new_propensity,
+                       double next_time, int extent) {
+        final int i = this.position;
+
+        this.event[i] = event;
+        this.kind[i] = kind;
+        this.time[i] = time;
+        this.old_propensity[i] = old_propensity;
+        this.new_propensity[i] = new_propensity;
+        this.next_time[i] = next_time;
+        this.extent[i] = extent;
+
+        this.position = i + 1 == this.event.length ? 0 : i + 1;
+        this.recorded++;
+    }
+
+    /**
+     * Convert the i-th oldest record into an index in the arrays.
+     */
+    protected int index(int i) {
+        assert i < this.size();
+        if (this.recorded <= this.capacity())
+            return i;
+        return (this.position + i) % this.capacity();
+    }
+
+    public void write(DataOutputStream out)
+        throws IOException
+    {
+        final int n = this.size();
+
+        out.writeBytes("NRDTRACE");
+        out.writeInt(VERSION);
+        out.writeInt(RECORD_SIZE);
+        out.writeLong(this.recorded);
+        out.writeInt(n);
+
+        for (int i = 0; i < n; i++) {
+            final int j = this.index(i);
+            out.writeInt(this.event[j]);
+            out.writeByte(this.kind[j]);
+            out.writeDouble(this.time[j]);
+            out.writeDouble(this.old_propensity[j]);
+            out.writeDouble(this.new_propensity[j]);
+            out.writeDouble(this.next_time[j]);
+            out.writeInt(this.extent[j]);
+        }
+    }
+
+    public void write(File file)
+        throws IOException
+    {
+        log.info("Writing {} of {} queue operations to {}", this.size(), this.recorded, file);
+
+        try (DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            this.write(out);
+        }
+    }
+}
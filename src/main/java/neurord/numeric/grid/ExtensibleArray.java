@@ -0,0 +1,212 @@
+package neurord.numeric.grid;
+
+import java.util.Arrays;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.object.h5.H5ScalarDS;
+
+import neurord.util.ArrayUtil;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * An HDF5 dataset with an unlimited first dimension, which grows
+ * by appending rows from a buffer owned by the caller.
+ *
+ * With direct=false, rows are written through the hdf-java object layer:
+ * the dataset is extended, the selection is updated, and the buffer
+ * is copied into the one returned by getData() before it is written.
+ *
+ * With direct=true, the dataset and its file dataspace stay open, and
+ * the memory dataspace for the last number of rows written is reused.
+ * Appending is then H5Dset_extent, one hyperslab selection, and H5Dwrite
+ * straight from the caller's buffer.
+ *
+ * In both cases, the first rows × (product of other dimensions)
+ * elements of the buffer are written.
+ */
+public class ExtensibleArray {
+    public static final Logger log = LogManager.getLogger();
+
+    final H5ScalarDS ds;
+    final boolean direct;
+
+    final long[] dims, maxdims;
+    final long row_size;
+
+    private int dataset_id, filespace_id = -1, memspace_id = -1;
+    private long memspace_rows = -1;
+    private final long[] start, count;
+
+    /**
+     * @param dataset_id the id of the open dataset, which is
+     *                   closed immediately if direct is false.
+     */
+    ExtensibleArray(H5ScalarDS ds, int dataset_id, boolean direct)
+        throws Exception
+    {
+        this.ds = ds;
+        this.direct = direct;
+
+        this.dims = ds.getDims().clone();
+        this.maxdims = ds.getMaxDims().clone();
+        this.row_size = this.dims.length > 1 ?
+            ArrayUtil.product(Arrays.copyOfRange(this.dims, 1, this.dims.length)) : 1;
+
+        this.start = new long[this.dims.length];
+        this.count = this.dims.clone();
+
+        if (direct) {
+            this.dataset_id = dataset_id;
+            this.filespace_id = H5.H5Dget_space(dataset_id);
+        } else {
+            H5.H5Dclose(dataset_id);
+            this.dataset_id = -1;
+        }
+    }
+
+    public H5ScalarDS getDataset() {
+        return this.ds;
+    }
+
+    public long[] getChunkSize() {
+        return this.ds.getChunkSize();
+    }
+
+    /**
+     * The number of rows written so far.
+     */
+    public long rows() {
+        return this.dims[0];
+    }
+
+    private void extend(long rows)
+        throws Exception
+    {
+        this.start[0] = this.dims[0];
+        this.dims[0] += rows;
+        this.count[0] = rows;
+
+        H5.H5Dset_extent(this.dataset_id, this.dims);
+        H5.H5Sset_extent_simple(this.filespace_id, this.dims.length, this.dims, this.maxdims);
+        H5.H5Sselect_hyperslab(this.filespace_id, HDF5Constants.H5S_SELECT_SET,
+                               this.start, null, this.count, null);
+
+        if (rows != this.memspace_rows) {
+            if (this.memspace_id >= 0)
+                H5.H5Sclose(this.memspace_id);
+            this.memspace_id = H5.H5Screate_simple(this.count.length, this.count, null);
+            this.memspace_rows = rows;
+        }
+    }
+
+    public void append(int[] buffer, int rows)
+        throws Exception
+    {
+        if (rows == 0)
+            return;
+
+        if (this.direct) {
+            this.extend(rows);
+            H5.H5Dwrite_int(this.dataset_id, HDF5Constants.H5T_NATIVE_INT,
+                            this.memspace_id, this.filespace_id,
+                            HDF5Constants.H5P_DEFAULT, buffer);
+        } else {
+            ResultWriterHDF5.extendExtensibleArray(this.ds, rows);
+            int[] data = (int[]) this.ds.getData();
+            System.arraycopy(buffer, 0, data, 0, (int) (rows * this.row_size));
+            this.ds.write(data);
+            this.dims[0] += rows;
+        }
+    }
+
+    public void append(double[] buffer, int rows)
+        throws Exception
+    {
+        if (rows == 0)
+            return;
+
+        if (this.direct) {
+            this.extend(rows);
+            H5.H5Dwrite_double(this.dataset_id, HDF5Constants.H5T_NATIVE_DOUBLE,
+                               this.memspace_id, this.filespace_id,
+                               HDF5Constants.H5P_DEFAULT, buffer);
+        } else {
+            ResultWriterHDF5.extendExtensibleArray(this.ds, rows);
+            double[] data = (double[]) this.ds.getData();
+            System.arraycopy(buffer, 0, data, 0, (int) (rows * this.row_size));
+            this.ds.write(data);
+            this.dims[0] += rows;
+        }
+    }
+
+    public void append(long[] buffer, int rows)
+        throws Exception
+    {
+        if (rows == 0)
+            return;
+
+        if (this.direct) {
+            this.extend(rows);
+            H5.H5Dwrite_long(this.dataset_id, HDF5Constants.H5T_NATIVE_INT64,
+                             this.memspace_id, this.filespace_id,
+                             HDF5Constants.H5P_DEFAULT, buffer);
+        } else {
+            ResultWriterHDF5.extendExtensibleArray(this.ds, rows);
+            long[] data = (long[]) this.ds.getData();
+            System.arraycopy(buffer, 0, data, 0, (int) (rows * this.row_size));
+            this.ds.write(data);
+            this.dims[0] += rows;
+        }
+    }
+
+    /**
+     * Release the ids kept open for direct writing.
+     * Must be called before the file is closed.
+     */
+    public void close()
+        throws Exception
+    {
+        final int memspace_id = this.memspace_id,
+            filespace_id = this.filespace_id,
+            dataset_id = this.dataset_id;
+        this.memspace_id = this.filespace_id = this.dataset_id = -1;
+
+        try {
+            if (memspace_id >= 0)
+                H5.H5Sclose(memspace_id);
+        } finally {
+            try {
+                if (filespace_id >= 0)
+                    H5.H5Sclose(filespace_id);
+            } finally {
+                if (dataset_id >= 0)
+                    H5.H5Dclose(dataset_id);
+            }
+        }
+    }
+
+    /**
+     * Close all the arrays which are not null, even if closing some
+     * of them fails. The first failure is thrown.
+     */
+    public static void closeAll(ExtensibleArray... arrays)
+        throws Exception
+    {
+        Exception error = null;
+        for (ExtensibleArray array: arrays)
+            if (array != null)
+                try {
+                    array.close();
+                } catch(Exception e) {
+                    if (error == null)
+                        error = e;
+                    else
+                        error.addSuppressed(e);
+                }
+        if (error != null)
+            throw error;
+    }
+}
@@ -36,6 +36,8 @@ public abstract class GridCalc extends BaseCalc implements IGridCalc {
 
     final double[] dtsOut;
 
+    SteadyState steadyState;
+
     private static double[] makeDtsOut(List<? extends IOutputSet> outputs, double fallback) {
         int nos = outputs != null ? outputs.size() : 0;
         double[] dtsOut = new double[nos];
@@ -84,6 +86,23 @@ protected double endtime() {
     protected void _run() {
         init();
 
+        final TrialMetrics metrics = TrialMetrics.create(this);
+        try {
+            this.runTrial(metrics);
+        } finally {
+            /* unregister the MBean also when the trial fails */
+            if (metrics != null)
+                metrics.close();
+        }
+    }
+
+    private void runTrial(TrialMetrics metrics) {
+        long writer_calls = 0, writer_nanos = 0;
+
+        final SteadyState steady = this.steadyState = SteadyState.create(this);
+        /* Grows when output is coarsened at steady state */
+        double outputScale = 1;
+
         double begintime = this.sdRun.getStartTime(), time = begintime;
         double endtime = this.endtime();
 
@@ -126,24 +145,36 @@ protected void _run() {
                 } else
                     log.info("Trial {}: time {} dt={}", this.trial(), time, dt);
 
+                long writer_start = System.nanoTime();
                 for (ResultWriter resultWriter: this.resultWriters)
                     resultWriter.writeOutputInterval(time, this);
+                writer_nanos += System.nanoTime() - writer_start;
+                writer_calls++;
 
-                writeTime += this.sdRun.getOutputInterval();
+                writeTime += this.sdRun.getOutputInterval() * outputScale;
 
                 if (this.sdRun.getStatisticsInterval() > 0)
                     this.resetEventStatistics();
+
+                if (metrics != null)
+                    metrics.sample();
             }
             for (int i = 0; i < this.dtsOut.length; i++)
                 if (time >= writeTimeArray[i]) {
+                    long writer_start = System.nanoTime();
                     for (ResultWriter resultWriter: this.resultWriters)
                         resultWriter.writeOutputScheme(i, time, this);
-                    writeTimeArray[i] += Double.valueOf(this.dtsOut[i]);
+                    writer_nanos += System.nanoTime() - writer_start;
+                    writer_calls++;
+                    writeTimeArray[i] += this.dtsOut[i] * outputScale;
                 }
 
             if (statInterval > 0 && time > statTime) {
+                long writer_start = System.nanoTime();
                 for (ResultWriter resultWriter: this.resultWriters)
                     resultWriter.writeEventStatistics(time, this);
+                writer_nanos += System.nanoTime() - writer_start;
+                writer_calls++;
                 statTime += statInterval;
             }
 
@@ -151,6 +182,23 @@ protected void _run() {
                 time += advance(time, time + dt);
             else
                 break;
+
+            if (metrics != null)
+                metrics.update(time, writer_calls, writer_nanos);
+
+            if (steady != null && steady.sample(time)) {
+                if (steady.stop()) {
+                    log.log(Logging.NOTICE, "Trial {}: steady state at {} ms, stopping", this.trial(), time);
+                    endtime = time;
+                } else {
+                    log.log(Logging.NOTICE, "Trial {}: steady state at {} ms, output intervals ×{}",
+                             this.trial(), time, steady.coarsening());
+                    outputScale = steady.coarsening();
+                    writeTime = time + this.sdRun.getOutputInterval() * outputScale;
+                    for (int i = 0; i < this.dtsOut.length; i++)
+                        writeTimeArray[i] = time + this.dtsOut[i] * outputScale;
+                }
+            }
         }
 
         if (writeTime < time + this.sdRun.getOutputInterval() / 10) {
@@ -177,6 +225,11 @@ protected void _run() {
         log.log(Logging.NOTICE,
                 "Trial {}: total run time {} ms", this.trial(), endTime - startTime);
 
+        if (metrics != null) {
+            metrics.update(time, writer_calls, writer_nanos);
+            metrics.sample();
+        }
+
         this.footer();
         this.close();
     }
@@ -187,6 +240,16 @@ protected void footer() {}
 
     abstract protected long eventCount();
 
+    @Override
+    public CostProfile getCostProfile() {
+        return null;
+    }
+
+    @Override
+    public SteadyState getSteadyState() {
+        return this.steadyState;
+    }
+
     protected abstract void resetEventStatistics();
 
     @Override
@@ -23,7 +23,20 @@ public interface IGridCalc {
 
     int getNumberElements();
 
-    int[][] getEventStatistics();
+    /**
+     * Event counters, or null if statistics are not collected.
+     */
+    EventStatistics getEventStatistics();
+
+    /**
+     * Costs attributed to channels and voxels, or null if not profiled.
+     */
+    CostProfile getCostProfile();
+
+    /**
+     * The steady state detector, or null if not enabled.
+     */
+    SteadyState getSteadyState();
 
     public enum EventType {
         REACTION,
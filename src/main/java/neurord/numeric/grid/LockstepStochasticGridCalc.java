@@ -0,0 +1,392 @@
+package neurord.numeric.grid;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import neurord.model.SDRun;
+import neurord.numeric.BaseCalc;
+import neurord.numeric.chem.StimulationTable;
+import neurord.numeric.math.MersenneTwister;
+import neurord.numeric.math.RandomGenerator;
+import neurord.numeric.morph.VolumeGrid;
+import neurord.numeric.stochastic.StepGenerator;
+import neurord.util.Logging;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Runs a number of trials of {@link SteppedStochasticGridCalc} together,
+ * advancing all of them by one step in each call to {@link #advance}.
+ *
+ * All trials share the time steps, the output schedule, and the tables
+ * derived from the model (neighbors, diffusion probabilities, reaction
+ * indices, stimulation timeline), which are calculated once. Populations
+ * are stored in one array laid out as [nel][nspec][lanes], so the innermost
+ * loops go over the trials of the group, and the per-element and per-reaction
+ * lookups are done once for all of them.
+ *
+ * Each trial (lane) has its own random number generator, seeded like a trial
+ * run separately, and draws numbers in the same order, so the results are the
+ * same as those of separate runs. Each trial is written to the output
+ * separately. Steady state detection and trial metrics are not supported.
+ */
+public class LockstepStochasticGridCalc extends BaseCalc {
+    public static final Logger log = LogManager.getLogger();
+
+    /* The model tables, and the generator and population of the first lane */
+    final SteppedStochasticGridCalc calc;
+
+    final Lane[] lanes;
+    final int width;
+
+    int nel, nspec;
+
+    /* [nel][nspec][lanes] */
+    int[] popA, popB;
+
+    long event_count = 0;
+
+    public LockstepStochasticGridCalc(int first, int count, SDRun sdm) {
+        super(first, sdm);
+
+        assert count > 0: count;
+
+        this.calc = new SteppedStochasticGridCalc(first, sdm);
+        this.width = count;
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++)
+            this.lanes[i] = new Lane(first + i, i);
+    }
+
+    protected void init() {
+        this.calc.init();
+
+        this.nel = this.calc.nel;
+        this.nspec = this.calc.nspec;
+        this.popA = new int[this.nel * this.nspec * this.width];
+        this.popB = new int[this.popA.length];
+
+        final int[][] preexisting = this.sdRun.getPopulation();
+
+        for (Lane lane: this.lanes) {
+            final int[][] counts;
+            if (lane.index == 0) {
+                lane.seed = this.calc.getSimulationSeed();
+                lane.random = this.calc.random;
+                lane.stepper = this.calc.stepper;
+                counts = this.calc.wkA;
+            } else {
+                lane.seed = BaseCalc.simulationSeed(this.sdRun, lane.trial);
+                lane.random = new MersenneTwister(lane.seed);
+                lane.stepper = new StepGenerator(lane.random);
+                if (preexisting != null)
+                    counts = preexisting;
+                else {
+                    counts = new int[this.nel][this.nspec];
+                    this.calc.initPopulation(counts, this.sdRun, lane.random);
+                }
+            }
+
+            for (int iel = 0; iel < this.nel; iel++)
+                for (int k = 0; k < this.nspec; k++)
+                    this.popA[(iel * this.nspec + k) * this.width + lane.index] = counts[iel][k];
+        }
+
+        log.info("Trials {}–{}: advancing {} trials in lockstep",
+                 this.lanes[0].trial, this.lanes[this.width - 1].trial, this.width);
+    }
+
+    @Override
+    protected void _run() {
+        this.init();
+
+        final double[] dtsOut = this.calc.dtsOut;
+        final double dt = this.calc.dt;
+        final int first = this.lanes[0].trial, last = this.lanes[this.width - 1].trial;
+
+        double time = this.sdRun.getStartTime();
+        final double endtime = this.calc.endtime();
+
+        final VolumeGrid grid = this.sdRun.getVolumeGrid();
+        for (Lane lane: this.lanes)
+            for (ResultWriter resultWriter: this.resultWriters)
+                resultWriter.writeGrid(grid, time, lane);
+
+        log.log(Logging.NOTICE,
+                "Trials {}–{}: running from {} to {} ms", first, last, time, endtime);
+
+        long startTime = System.currentTimeMillis();
+        double writeTime = time - 1.e-9;
+        final double statInterval = this.sdRun.getStatisticsInterval();
+        double statTime = time + statInterval;
+
+        double[] writeTimeArray = new double[dtsOut.length];
+        Arrays.fill(writeTimeArray, -1.e-9);
+
+        while (time <= endtime) {
+            if (time >= writeTime) {
+                log.info("Trials {}–{}: time {} dt={}", first, last, time, dt);
+                for (Lane lane: this.lanes)
+                    for (ResultWriter resultWriter: this.resultWriters)
+                        resultWriter.writeOutputInterval(time, lane);
+                writeTime += this.sdRun.getOutputInterval();
+            }
+            for (int i = 0; i < dtsOut.length; i++)
+                if (time >= writeTimeArray[i]) {
+                    for (Lane lane: this.lanes)
+                        for (ResultWriter resultWriter: this.resultWriters)
+                            resultWriter.writeOutputScheme(i, time, lane);
+                    writeTimeArray[i] += dtsOut[i];
+                }
+
+            if (statInterval > 0 && time > statTime) {
+                for (Lane lane: this.lanes)
+                    for (ResultWriter resultWriter: this.resultWriters)
+                        resultWriter.writeEventStatistics(time, lane);
+                statTime += statInterval;
+            }
+
+            if (time < endtime)
+                time += this.advance(time, time + dt);
+            else
+                break;
+        }
+
+        for (Lane lane: this.lanes) {
+            if (writeTime < time + this.sdRun.getOutputInterval() / 10)
+                for (ResultWriter resultWriter: this.resultWriters)
+                    resultWriter.writeOutputInterval(time, lane);
+            for (int i = 0; i < dtsOut.length; i++)
+                if (time >= writeTimeArray[i] + Double.valueOf(dtsOut[i] / 10))
+                    for (ResultWriter resultWriter: this.resultWriters)
+                        resultWriter.writeOutputScheme(i, time, lane);
+            if (statInterval > 0 && time > statTime - statInterval / 2 ||
+                statInterval == 0)
+                for (ResultWriter resultWriter: this.resultWriters)
+                    resultWriter.writeEventStatistics(time, lane);
+
+            log.info("Trial {}: total number of particles at the end: {}",
+                     lane.trial, lane.getParticleCount());
+
+            for (ResultWriter resultWriter: this.resultWriters)
+                resultWriter.closeTrial(lane);
+        }
+
+        long endTime = System.currentTimeMillis();
+        log.log(Logging.NOTICE,
+                "Trials {}–{}: total run time {} ms", first, last, endTime - startTime);
+
+        this.footer();
+        this.close();
+    }
+
+    protected void footer() {
+        for (Lane lane: this.lanes)
+            log.log(Logging.NOTICE,
+                    "Trial {}: used up {} random numbers", lane.trial, lane.random.used());
+        log.log(Logging.NOTICE,
+                "Leapt {} times in each of {} trials", this.event_count, this.width);
+        this.calc.too_large_warnings.report();
+        this.calc.out_of_particles_warnings.report();
+        this.calc.multinomial_warnings.report();
+    }
+
+    @Override
+    protected void storeResult(Object result) {
+        for (Lane lane: this.lanes)
+            this.results.put(lane.trial, result);
+    }
+
+    public long eventCount() {
+        return this.event_count * this.width;
+    }
+
+    @Override
+    public long getParticleCount() {
+        long ret = 0;
+        for (int n: this.popA)
+            ret += n;
+        return ret;
+    }
+
+    /**
+     * Advance all lanes by one step. This follows
+     * {@link SteppedStochasticGridCalc#advance}, with the loop over lanes
+     * innermost, and uses its diffusion and reaction steps.
+     */
+    protected double advance(double tnow, double tend) {
+        final int width = this.width, nspec = this.nspec;
+        final StimulationTable.Timeline stimulations = this.calc.stimulations;
+        final int[] popA = this.popA, popB = this.popB;
+
+        // add in any injections
+        final int nactive = stimulations.step(tnow, this.calc.dt);
+        for (int i = 0; i < nactive; i++) {
+            final int stim = stimulations.active(i);
+            final int sp = stimulations.species(stim);
+            final int[] stimtargets = stimulations.targets(stim);
+
+            int nk = stimtargets.length;
+            if (nk > 0) {
+                double as = stimulations.amount(i) / nk;
+
+                for (int k = 0; k < nk; k++) {
+                    final int base = (stimtargets[k] * nspec + sp) * width;
+                    for (int lane = 0; lane < width; lane++)
+                        popA[base + lane] += this.lanes[lane].random.round(as);
+                }
+            }
+
+            this.event_count ++;
+        }
+
+        // popB will hold the midstep values, after diffusion but before reactions
+        System.arraycopy(popA, 0, popB, 0, popA.length);
+
+        // diffusion step
+        final int[] moved = this.calc.moved;
+        for (int iel = 0; iel < this.nel; iel++) {
+            final int[] inbr = this.calc.neighbors[iel];
+
+            for (int k = 0; k < nspec; k++)
+                if (this.calc.lnfdiff[k] > -90) {
+                    final int base = (iel * nspec + k) * width;
+                    for (int lane = 0; lane < width; lane++) {
+                        final int np0 = popA[base + lane];
+                        if (np0 <= 0)
+                            continue;
+
+                        final Lane l = this.lanes[lane];
+                        final int ngo;
+                        switch(this.algoID) {
+                        case INDEPENDENT:
+                        case SHARED:
+                            ngo = this.calc.parallelAndSharedDiffusionStep(l.stepper, l.random,
+                                                                           iel, k, np0, moved);
+                            break;
+                        case PARTICLE:
+                            ngo = this.calc.particleDiffusionStep(l.random, iel, k, np0, moved);
+                            break;
+                        default:
+                            throw new AssertionError(this.algoID);
+                        }
+
+                        popB[base + lane] -= ngo;
+                        for (int j = 0; j < inbr.length; j++)
+                            popB[(inbr[j] * nspec + k) * width + lane] += moved[j];
+                        if (popB[base + lane] < 0)
+                            log.warn("Trial {}: diffusion: population {} of species {} in element {} is negative",
+                                     l.trial, popB[base + lane], k, iel);
+                    }
+
+                    this.event_count ++;
+                }
+        }
+
+        // for the reaction step, the source array is popB and the destination is popA
+        System.arraycopy(popB, 0, popA, 0, popB.length);
+
+        final int nreac = this.calc.rtab.getNReaction();
+        for (int iel = 0; iel < this.nel; iel++) {
+            /* populations of species sp of this element are at base + sp * width */
+            final int base = iel * nspec * width;
+
+            for (int ireac = 0; ireac < nreac; ireac++) {
+                for (int lane = 0; lane < width; lane++)
+                    this.calc.reactionStep(popB, popA, base + lane, width,
+                                           iel, ireac, this.lanes[lane].stepper);
+                this.event_count ++;
+            }
+        }
+
+        if ((tend - tnow) - this.calc.dt > 0.01 * this.calc.dt)
+            log.warn("Step {} is different than dt={}", tend - tnow, this.calc.dt);
+
+        return this.calc.dt;
+    }
+
+    /**
+     * One trial of the group, as seen by the writers.
+     */
+    class Lane implements IGridCalc {
+        final int trial;
+        final int index;
+
+        long seed;
+        RandomGenerator random;
+        StepGenerator stepper;
+
+        Lane(int trial, int index) {
+            this.trial = trial;
+            this.index = index;
+        }
+
+        long getParticleCount() {
+            long ret = 0;
+            for (int i = this.index; i < popA.length; i += width)
+                ret += popA[i];
+            return ret;
+        }
+
+        @Override
+        public int trial() {
+            return this.trial;
+        }
+
+        @Override
+        public int getGridPartNumb(int i, int outj) {
+            return popA[(i * nspec + outj) * width + this.index];
+        }
+
+        @Override
+        public double getGridPartConc(int i, int outj) {
+            return this.getGridPartNumb(i, outj) * NM_PER_PARTICLE_PUV / calc.volumes[i];
+        }
+
+        @Override
+        public boolean preferConcs() {
+            return false;
+        }
+
+        @Override
+        public SDRun getSource() {
+            return sdRun;
+        }
+
+        @Override
+        public long getSimulationSeed() {
+            return this.seed;
+        }
+
+        @Override
+        public int getNumberElements() {
+            return nel;
+        }
+
+        @Override
+        public EventStatistics getEventStatistics() {
+            return null;
+        }
+
+        @Override
+        public CostProfile getCostProfile() {
+            return null;
+        }
+
+        @Override
+        public SteadyState getSteadyState() {
+            return null;
+        }
+
+        @Override
+        public Collection<IGridCalc.Event> getEvents() {
+            return null;
+        }
+
+        @Override
+        public Collection<IGridCalc.Happening> getHappenings() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A file of little-endian ints, longs, or doubles, appended to through
+ * a memory mapping which grows in fixed-size windows.
+ *
+ * Appending copies the values into the mapped window, so it costs the same as
+ * writing to an array. When a window is full, the next one is mapped after it,
+ * which extends the file. Pages are written back by the operating system,
+ * and on close() the file is truncated to the values actually written.
+ * Until then the file ends with the unused part of the last window, so
+ * writers record how many values are valid separately (see {@link #mappings}).
+ */
+public class MappedColumn implements AutoCloseable {
+    public static final Logger log = LogManager.getLogger();
+
+    public static final int WINDOW_SIZE = 16 << 20;
+
+    final File file;
+    final FileChannel channel;
+    final int window_size;
+
+    private MappedByteBuffer window;
+    private long window_start = 0;
+    private long length = 0;
+    private int mappings = 0;
+
+    public MappedColumn(File file, int window_size)
+        throws IOException
+    {
+        assert window_size % 8 == 0: window_size;
+
+        this.file = file;
+        this.window_size = window_size;
+        this.channel = FileChannel.open(file.toPath(),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+        this.map(0);
+    }
+
+    public MappedColumn(File file)
+        throws IOException
+    {
+        this(file, WINDOW_SIZE);
+    }
+
+    private void map(long start)
+        throws IOException
+    {
+        if (this.window != null)
+            this.window.force();
+        this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, start, this.window_size);
+        this.window.order(ByteOrder.LITTLE_ENDIAN);
+        this.window_start = start;
+        this.mappings++;
+    }
+
+    private void reserve(int bytes)
+        throws IOException
+    {
+        if (this.window.remaining() < bytes)
+            this.map(this.window_start + this.window.position());
+    }
+
+    /**
+     * The number of bytes written so far.
+     */
+    public long length() {
+        return this.length;
+    }
+
+    public File file() {
+        return this.file;
+    }
+
+    /**
+     * The number of windows mapped so far. When it changes, the previous
+     * window has been written to the file.
+     */
+    public int mappings() {
+        return this.mappings;
+    }
+
+    public void append(int value)
+        throws IOException
+    {
+        this.reserve(4);
+        this.window.putInt(value);
+        this.length += 4;
+    }
+
+    public void append(double value)
+        throws IOException
+    {
+        this.reserve(8);
+        this.window.putDouble(value);
+        this.length += 8;
+    }
+
+    public void append(int[] values, int offset, int count)
+        throws IOException
+    {
+        while (count > 0) {
+            this.reserve(4);
+            final int n = Math.min(count, this.window.remaining() / 4);
+            final IntBuffer view = this.window.asIntBuffer();
+            view.put(values, offset, n);
+            this.window.position(this.window.position() + 4 * n);
+            this.length += 4L * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    public void append(double[] values, int offset, int count)
+        throws IOException
+    {
+        while (count > 0) {
+            this.reserve(8);
+            final int n = Math.min(count, this.window.remaining() / 8);
+            final DoubleBuffer view = this.window.asDoubleBuffer();
+            view.put(values, offset, n);
+            this.window.position(this.window.position() + 8 * n);
+            this.length += 8L * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    public void append(long[] values, int offset, int count)
+        throws IOException
+    {
+        while (count > 0) {
+            this.reserve(8);
+            final int n = Math.min(count, this.window.remaining() / 8);
+            final LongBuffer view = this.window.asLongBuffer();
+            view.put(values, offset, n);
+            this.window.position(this.window.position() + 8 * n);
+            this.length += 8L * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        this.window.force();
+        this.window = null;
+        this.channel.truncate(this.length);
+        this.channel.close();
+    }
+
+    /***********************************************************************
+     ***************               Reading                ******************
+     ***********************************************************************/
+
+    /**
+     * Reads a column through read-only mappings of at most window_size bytes,
+     * so that files larger than 2 GB (the limit of one mapping) can be read.
+     * The window is moved when a value outside of it is requested.
+     */
+    public static class Reader implements AutoCloseable {
+        final File file;
+        final FileChannel channel;
+        final long length;
+        final int window_size;
+
+        private MappedByteBuffer window;
+        private long window_start = 0;
+
+        public Reader(File file, int window_size)
+            throws IOException
+        {
+            assert window_size % 8 == 0: window_size;
+
+            this.file = file;
+            this.window_size = window_size;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.length = this.channel.size();
+        }
+
+        public Reader(File file)
+            throws IOException
+        {
+            this(file, WINDOW_SIZE);
+        }
+
+        /**
+         * The size of the file in bytes.
+         */
+        public long length() {
+            return this.length;
+        }
+
+        /**
+         * Map the window which contains bytes [pos, pos+bytes), and
+         * return the position of pos in it.
+         */
+        private int seek(long pos, int bytes)
+            throws IOException
+        {
+            if (pos < 0 || pos + bytes > this.length) {
+                log.error("{}: reading bytes {}–{} past the end ({})", this.file, pos, pos + bytes, this.length);
+                throw new RuntimeException("read past the end of " + this.file);
+            }
+
+            if (this.window == null ||
+                pos < this.window_start ||
+                pos + bytes > this.window_start + this.window.capacity()) {
+
+                /* values are 4 or 8 bytes, so windows starting at multiples
+                 * of 8 do not cut them */
+                final long start = pos - pos % 8;
+                this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                               Math.min(this.window_size, this.length - start));
+                this.window.order(ByteOrder.LITTLE_ENDIAN);
+                this.window_start = start;
+            }
+
+            return (int) (pos - this.window_start);
+        }
+
+        public int getInt(long index)
+            throws IOException
+        {
+            final int pos = this.seek(4 * index, 4);
+            return this.window.getInt(pos);
+        }
+
+        public long getLong(long index)
+            throws IOException
+        {
+            final int pos = this.seek(8 * index, 8);
+            return this.window.getLong(pos);
+        }
+
+        public double getDouble(long index)
+            throws IOException
+        {
+            final int pos = this.seek(8 * index, 8);
+            return this.window.getDouble(pos);
+        }
+
+        /**
+         * Copy count ints starting at index into values[offset…].
+         */
+        public void get(long index, int[] values, int offset, int count)
+            throws IOException
+        {
+            while (count > 0) {
+                final int pos = this.seek(4 * index, 4);
+                final int n = Math.min(count, (this.window.capacity() - pos) / 4);
+                this.window.position(pos);
+                this.window.asIntBuffer().get(values, offset, n);
+                index += n;
+                offset += n;
+                count -= n;
+            }
+        }
+
+        public void get(long index, double[] values, int offset, int count)
+            throws IOException
+        {
+            while (count > 0) {
+                final int pos = this.seek(8 * index, 8);
+                final int n = Math.min(count, (this.window.capacity() - pos) / 8);
+                this.window.position(pos);
+                this.window.asDoubleBuffer().get(values, offset, n);
+                index += n;
+                offset += n;
+                count -= n;
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            this.window = null;
+            this.channel.close();
+        }
+    }
+
+    static int toCount(File file, long count) {
+        if (count > Integer.MAX_VALUE) {
+            log.error("{} is too large to be read into an array ({} values)", file, count);
+            throw new RuntimeException("file too large: " + file);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Read all of a small file, use {@link Reader} otherwise.
+     */
+    public static int[] readInts(File file)
+        throws IOException
+    {
+        try (Reader reader = new Reader(file)) {
+            int[] ans = new int[toCount(file, reader.length() / 4)];
+            reader.get(0, ans, 0, ans.length);
+            return ans;
+        }
+    }
+
+    public static double[] readDoubles(File file)
+        throws IOException
+    {
+        try (Reader reader = new Reader(file)) {
+            double[] ans = new double[toCount(file, reader.length() / 8)];
+            reader.get(0, ans, 0, ans.length);
+            return ans;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 import neurord.util.Settings;
 import neurord.util.ArrayUtil;
 import neurord.util.Logging;
+import neurord.util.LogLimit;
 import static neurord.util.Logging.setLogLevel;
 import neurord.numeric.morph.VolumeGrid;
 import neurord.numeric.morph.VolumeElement;
@@ -427,7 +428,7 @@ public void addReverse(NextEvent other) {
          * forward reactions. May be negative for combined forward and
          * backward reactions.)
          */
-        abstract int execute(int[][] eventStatistics, int count);
+        abstract int execute(EventStatistics eventStatistics, int count);
 
         /**
          * Calculate propensity of this event.
@@ -511,7 +512,7 @@ public void addReverse(NextEvent other) {
          */
         double _new_time(double current) {
             double exp = random.exponential(this.propensity);
-            if (this.propensity > 0)
+            if (this.propensity > 0 && log.isDebugEnabled())
                 log.debug("exponential time for prop={} → time={}", this.propensity, exp);
             return current + exp;
         }
@@ -568,12 +569,14 @@ void pick_time(double current, double timelimit) {
             if (adaptive) {
                 double leap = this.leap_time(current);
 
-                log.debug("options: eff.prop={}, wait {}, leap {}",
-                          this.propensity - (this.reverse != null ? this.reverse.propensity : 0),
-                          exact, leap);
+                if (log.isDebugEnabled())
+                    log.debug("options: eff.prop={}, wait {}, leap {}",
+                              this.propensity - (this.reverse != null ? this.reverse.propensity : 0),
+                              exact, leap);
 
                 if (current + leap > timelimit) {
-                    log.debug("Curtailing leap {}→{} to {}", current, current + leap, timelimit);
+                    if (log.isDebugEnabled())
+                        log.debug("Curtailing leap {}→{} to {}", current, current + leap, timelimit);
                     leap = timelimit - current;
                 }
 
@@ -605,10 +608,11 @@ void pick_time(double current, double timelimit) {
                             count -= 1;
                     }
 
-                    log.debug("{}: leaping {} {} ({}→{}), extent {}",
-                              this,
-                              bidirectional ? "bi" : "uni",
-                              leap, current, current + leap, count);
+                    if (log.isDebugEnabled())
+                        log.debug("{}: leaping {} {} ({}→{}), extent {}",
+                                  this,
+                                  bidirectional ? "bi" : "uni",
+                                  leap, current, current + leap, count);
                     this.setEvent(count, true, current, current + leap);
                     return;
                 }
@@ -619,7 +623,8 @@ void pick_time(double current, double timelimit) {
             assert !Double.isNaN(current);
             assert !Double.isNaN(normal);
 
-            log.debug("waiting {} {}→{}", normal - current, current, normal);
+            if (log.isDebugEnabled())
+                log.debug("waiting {} {}→{}", normal - current, current, normal);
             this.setEvent(1, false, current, normal);
         }
 
@@ -644,27 +649,29 @@ void update_dependent(boolean reverse, double current, int leap_extent) {
                 double ratio = max_fraction / Math.abs(leap_extent / linear);
                 Level level = ratio < 2 ? Level.INFO : Logging.NOTICE;
 
-                log.log(level,
-                        "max change fraction {} @ {}:\n" +
-                        "        {}, extent {} (µ={}, pop={})\n" +
-                        "        for {} (pop={})\n" +
-                        "        reverse {} (pop={})",
-                         max_fraction, current,
-                        this, leap_extent, linear, this.reactantPopulation(),
-                        worst, worst.reactantPopulation(),
-                        worst.reverse != null ? worst.reverse : "(none)",
-                        worst.reverse != null ? worst.reverse.reactantPopulation() : "");
+                if (log.isEnabled(level) && max_change_notices.allow())
+                    log.log(level,
+                            "max change fraction {} @ {}:\n" +
+                            "        {}, extent {} (µ={}, pop={})\n" +
+                            "        for {} (pop={})\n" +
+                            "        reverse {} (pop={})",
+                            max_fraction, current,
+                            this, leap_extent, linear, this.reactantPopulation(),
+                            worst, worst.reactantPopulation(),
+                            worst.reverse != null ? worst.reverse : "(none)",
+                            worst.reverse != null ? worst.reverse.reactantPopulation() : "");
             }
         }
 
         private boolean _log_level_enabled = false;
-        void update(int[][] eventStatistics,
+        void update(EventStatistics eventStatistics,
                     double current, double tstop, double timelimit,
                     List<IGridCalc.Happening> events) {
 
             assert this.reverse != null || this.extent >= 0: this.extent;
 
             boolean was_leap = this.leap;
+            final double old_propensity = this.propensity;
             int done;
 
             if (!_log_level_enabled && current >= log_debug_start) {
@@ -701,11 +708,17 @@ void update(int[][] eventStatistics,
             } else
                 normal_waits += 1;
 
-            log.debug("Advanced to {} with {} {}extent={}{}",
-                      time, this,
-                      was_leap ? "leap " : "",
-                      done,
-                      done == this.extent ? "" : " (planned " + this.extent + ")");
+            if (log.isDebugEnabled())
+                log.debug("Advanced to {} with {} {}extent={}{}",
+                          time, this,
+                          was_leap ? "leap " : "",
+                          done,
+                          done == this.extent ? "" : " (planned " + this.extent + ")");
+
+            if (trace != null)
+                trace.record(this.event_number,
+                             was_leap ? EventTrace.LEAP : EventTrace.EXACT,
+                             current, old_propensity, this.propensity, this.time, done);
 
             this.pick_time(current, timelimit);
             queue.reposition("update", this);
@@ -766,6 +779,7 @@ void update(int[][] eventStatistics,
             } else {
                 if (log_reposition)
                     log.debug("update_and_reposition: {}", this);
+                dependent_updates++;
                 boolean expect_changed = changed && (this.reverse == null || !this.leap);
                 double old = this._update_propensity(expect_changed);
                 boolean inf = Double.isInfinite(this.time) || this.propensity == 0;
@@ -781,6 +795,10 @@ void update(int[][] eventStatistics,
                 }
                 assert this.time >= 0: this;
 
+                if (trace != null)
+                    trace.record(this.event_number, EventTrace.UPDATE,
+                                 current, old, this.propensity, this.time, 0);
+
                 queue.reposition("upd.dep", this);
                 return ans;
             }
@@ -881,15 +899,14 @@ void addStimulation(NextStimulation ev) {
          */
         public abstract void addRelations(HashMap<Integer, ArrayList<NextEvent>> map, String[] species, boolean verbose);
 
-        protected void updateStatistics(int[][] eventStatistics, int firings) {
+        protected void updateStatistics(EventStatistics eventStatistics, int firings) {
             if (eventStatistics == null)
                 return;
 
             if (this.stat_index == null)
                 return;
 
-            eventStatistics[this.stat_index.position][0] += 1;
-            eventStatistics[this.stat_index.position][1] += firings;
+            eventStatistics.record(this.stat_index.position, firings);
         }
     }
 
@@ -940,7 +957,7 @@ public IGridCalc.EventType event_type() {
         }
 
         @Override
-        int execute(int[][] eventStatistics, int count) {
+        int execute(EventStatistics eventStatistics, int count) {
             int done = updatePopulation(this.element(), this.sp, -count, this);
             updatePopulation(this.element2, this.sp, -done, this);
             this.updateStatistics(eventStatistics, done);
@@ -1030,22 +1047,25 @@ public double leap_time(double current) {
             final double r2 = ((NextDiffusion) this.reverse).fdiff;
             final double t1 = limit / Math.abs(r1 * X1 - r2 * X2);
 
-            log.debug("diff propensity: {}, {}, r1={}, r2={} → propensity={}-{}={}",
-                      X1, X2, r1, r2,
-                      this.propensity, this.reverse.propensity,
-                      this.propensity - this.reverse.propensity);
+            if (log.isDebugEnabled())
+                log.debug("diff propensity: {}, {}, r1={}, r2={} → propensity={}-{}={}",
+                          X1, X2, r1, r2,
+                          this.propensity, this.reverse.propensity,
+                          this.propensity - this.reverse.propensity);
 
             final double arg = 1 - limit * limit * (r1+r2)/(r1*X1 + r2*X2);
             double ans;
             if (arg > 0) {
                 final double t2 = Math.log(arg) / -(r1+r2);
                 ans = Math.min(t1, t2);
-                log.debug("leap time: min({}, {}, limit {}, {}: E→{}, V→{}) → {}",
-                          X1, X2, limit1, Xm, t1, t2, ans);
+                if (log.isDebugEnabled())
+                    log.debug("leap time: min({}, {}, limit {}, {}: E→{}, V→{}) → {}",
+                              X1, X2, limit1, Xm, t1, t2, ans);
             } else {
                 ans = t1;
-                log.debug("leap time: min({}, {}, limit {}, {}: E→{}, V→inf) → {}",
-                          X1, X2, limit1, Xm, t1, ans);
+                if (log.isDebugEnabled())
+                    log.debug("leap time: min({}, {}, limit {}, {}: E→{}, V→inf) → {}",
+                              X1, X2, limit1, Xm, t1, ans);
             }
 
             if (this.stimulations != null) {
@@ -1289,12 +1309,13 @@ public double leap_time(double current) {
             */
             time = tolerance * Math.min(limit1 / effective_propensity, time);
 
-            log.debug("{}: leap time: subs {}×{}, ɛ={}, pop.{}→{} → limit {},{},{} → leap={}",
-                      this,
-                      this.substrates, this.substrate_stoichiometry,
-                      tolerance, this.reactantPopulation(), this.productPopulation(),
-                      limit1, limit2, limit3 == -1 ? "-" : limit3,
-                      time);
+            if (log.isDebugEnabled())
+                log.debug("{}: leap time: subs {}×{}, ɛ={}, pop.{}→{} → limit {},{},{} → leap={}",
+                          this,
+                          this.substrates, this.substrate_stoichiometry,
+                          tolerance, this.reactantPopulation(), this.productPopulation(),
+                          limit1, limit2, limit3 == -1 ? "-" : limit3,
+                          time);
 
             if (this.stimulations != null) {
                 NextStimulation first = null;
@@ -1363,16 +1384,17 @@ public void addRelations(HashMap<Integer, ArrayList<NextEvent>> map, String[] sp
         }
 
         @Override
-        int execute(int[][] eventStatistics, int count) {
+        int execute(EventStatistics eventStatistics, int count) {
             for (int i = 0; i < this.reactants().length; i++)
                 if (particles[this.element()][this.reactants()[i]] < this.reactant_stoichiometry()[i] * count) {
 
                     int oldcount = count;
                     count = particles[this.element()][this.reactants()[i]] / this.reactant_stoichiometry()[i];
-                    log.warn("{}: population would go below zero with prop={} reactants {}×{} extent={} (using {})",
-                             this, this.propensity,
-                             this.reactantPopulation(), this.reactant_powers,
-                             oldcount, count);
+                    if (below_zero_warnings.allow())
+                        log.warn("{}: population would go below zero with prop={} reactants {}×{} extent={} (using {})",
+                                 this, this.propensity,
+                                 this.reactantPopulation(), this.reactant_powers,
+                                 oldcount, count);
                 }
 
             for (int i = 0; i < this.reactants().length; i++)
@@ -1464,7 +1486,7 @@ public IGridCalc.EventType event_type() {
             return IGridCalc.EventType.STIMULATION;
         }
 
-        int execute(int[][] eventStatistics, int count) {
+        int execute(EventStatistics eventStatistics, int count) {
             updatePopulation(this.element(), this.sp, count, this);
 
             this.updateStatistics(eventStatistics, count);
@@ -1606,10 +1628,11 @@ public double leap_time(double current) {
             assert !(cont_leap_time < 0);
 
             double until = _continous_delta_to_real_time(current, cont_leap_time, true);
-            log.debug("{}: leap time: {}×min({}, {})/{} → {} cont, {} real until {}",
-                      this,
-                      tolerance, limit1, limit2, this.propensity,
-                      cont_leap_time, until - current, until);
+            if (log.isDebugEnabled())
+                log.debug("{}: leap time: {}×min({}, {})/{} → {} cont, {} real until {}",
+                          this,
+                          tolerance, limit1, limit2, this.propensity,
+                          cont_leap_time, until - current, until);
 
             /* When we are after the end of the stimulation duration,
              * there might be no "next" time. */
@@ -1671,6 +1694,30 @@ public String toString() {
 
     final PriorityTree<NextEvent> queue = new PriorityTree<NextEvent>();
 
+    /**
+     * Ring buffer of recent queue operations, or null if tracing is disabled
+     * (see neurord.neq.trace).
+     */
+    final EventTrace trace = EventTrace.create();
+
+    /* Repeated messages, limited in each trial (see neurord.log.repeat) */
+    final LogLimit below_zero_warnings = new LogLimit(log, "population would go below zero");
+    final LogLimit max_change_notices = new LogLimit(log, "max change fraction");
+
+    void reportLogLimits() {
+        this.below_zero_warnings.report();
+        this.max_change_notices.report();
+    }
+
+    /**
+     * Attribution of costs to channels and voxels, or null if profiling is
+     * disabled (see neurord.neq.profile).
+     */
+    CostProfile profile;
+
+    /* Calls to update_and_reposition, used for profiling */
+    long dependent_updates = 0;
+
     public int updatePopulation(int element, int specie, int count, NextEvent event) {
         final int done;
         if (count < 0 && this.particles[element][specie] < -count) {
@@ -1993,6 +2040,7 @@ public static NextEventQueue create(int[][] particles,
         e.addAll(obj.createReactions(numbering, grid, rtab, statistics, stat_numbering));
         e.addAll(obj.createStimulations(numbering, grid, rtab, stimtab, statistics, stat_numbering));
         obj.queue.build(e.toArray(new NextEvent[0]));
+        obj.profile = CostProfile.create(e, rtab.getSpecies(), grid.size());
 
         log.debug("Creating dependency graph");
         final HashMap<Integer, ArrayList<NextEvent>> map = new HashMap<>();
@@ -2044,14 +2092,14 @@ public static NextEventQueue create(int[][] particles,
      * Execute an event if the next event is before tstop.
      * @param timelimit is the maximum time that leap events are allowed to extend to.
      * Normally this would either be either tstop or the simulation time.
-     * @param eventStatistics is an array to store event counts in as {firings, extent}.
+     * @param eventStatistics stores event counts as {firings, extent}, unless null.
      * @param events will be used to store all Hapennings, unless null.
      *
      * @return Time of soonest event.
      */
     private static boolean _warned_empty = false;
     public double advance(double time, double tstop, double timelimit,
-                          int[][] eventStatistics,
+                          EventStatistics eventStatistics,
                           List<IGridCalc.Happening> events) {
         final NextEvent ev = this.queue.first();
         final double now;
@@ -2070,9 +2118,25 @@ public double advance(double time, double tstop, double timelimit,
             return tstop;
         }
 
-        ev.update(eventStatistics,
-                  now, tstop, timelimit,
-                  events);
+        if (this.profile == null)
+            ev.update(eventStatistics,
+                      now, tstop, timelimit,
+                      events);
+        else {
+            final long swaps = this.queue.swaps,
+                updates = this.dependent_updates;
+            final boolean timed = this.profile.sample();
+            final long start = timed ? System.nanoTime() : 0;
+
+            ev.update(eventStatistics,
+                      now, tstop, timelimit,
+                      events);
+
+            this.profile.record(ev.event_number(),
+                                this.dependent_updates - updates,
+                                this.queue.swaps - swaps,
+                                timed ? System.nanoTime() - start : -1);
+        }
 
         return now;
     }
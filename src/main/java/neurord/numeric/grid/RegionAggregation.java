@@ -0,0 +1,103 @@
+package neurord.numeric.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import neurord.numeric.BaseCalc;
+import neurord.numeric.morph.VolumeGrid;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Per-region totals or concentrations over a set of elements, for output
+ * sets with aggregate="sum" or aggregate="concentration".
+ *
+ * The element → row mapping and the volume of each row are computed once,
+ * so a snapshot is a single pass over the elements of the output set.
+ */
+public class RegionAggregation {
+    static final Logger log = LogManager.getLogger();
+
+    public static final String SUM = "sum";
+    public static final String CONCENTRATION = "concentration";
+
+    final int[] elements;
+    final int[] rows;
+    final String[] regions;
+    final double[] volumes;
+    final boolean concentration;
+
+    /**
+     * Rows follow the order of region labels of the grid, and only regions
+     * which contain some of the elements are included.
+     */
+    public RegionAggregation(String[] regionLabels, String[] elementRegions, double[] elementVolumes,
+                             int[] elements, String mode) {
+        if (!mode.equals(SUM) && !mode.equals(CONCENTRATION)) {
+            log.error("Unknown aggregation {}, should be {} or {}", mode, SUM, CONCENTRATION);
+            throw new RuntimeException("unknown aggregation: " + mode);
+        }
+
+        this.elements = elements;
+        this.concentration = mode.equals(CONCENTRATION);
+
+        final List<String> labels = Arrays.asList(regionLabels);
+        final int[] row_of_region = new int[regionLabels.length];
+        Arrays.fill(row_of_region, -1);
+        for (int el: elements)
+            row_of_region[labels.indexOf(elementRegions[el])] = 0;
+
+        final List<String> names = new ArrayList<>();
+        for (int r = 0; r < regionLabels.length; r++)
+            if (row_of_region[r] >= 0) {
+                row_of_region[r] = names.size();
+                names.add(regionLabels[r]);
+            }
+        this.regions = names.toArray(new String[0]);
+
+        this.rows = new int[elements.length];
+        this.volumes = new double[this.regions.length];
+        for (int k = 0; k < elements.length; k++) {
+            this.rows[k] = row_of_region[labels.indexOf(elementRegions[elements[k]])];
+            this.volumes[this.rows[k]] += elementVolumes[elements[k]];
+        }
+    }
+
+    public RegionAggregation(VolumeGrid grid, int[] elements, String mode) {
+        this(grid.getRegionLabels(), grid.getElementRegions(), grid.getElementVolumes(),
+             elements, mode);
+    }
+
+    public String[] getRegions() {
+        return this.regions;
+    }
+
+    public boolean isConcentration() {
+        return this.concentration;
+    }
+
+    /**
+     * Fill dst[row][j] with the total count (or the concentration in nM)
+     * of species ispecout[j] in region row.
+     */
+    public void aggregate(double[][] dst, int[] ispecout, IGridCalc source) {
+        for (double[] row: dst)
+            Arrays.fill(row, 0);
+
+        for (int k = 0; k < this.elements.length; k++) {
+            final double[] row = dst[this.rows[k]];
+            final int el = this.elements[k];
+            for (int j = 0; j < ispecout.length; j++)
+                row[j] += source.getGridPartNumb(el, ispecout[j]);
+        }
+
+        if (this.concentration)
+            for (int r = 0; r < dst.length; r++) {
+                final double factor = BaseCalc.NM_PER_PARTICLE_PUV / this.volumes[r];
+                for (int j = 0; j < ispecout.length; j++)
+                    dst[r][j] *= factor;
+            }
+    }
+}
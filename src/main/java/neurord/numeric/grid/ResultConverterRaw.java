@@ -0,0 +1,444 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import neurord.model.IOutputSet;
+import neurord.model.SDRun;
+import neurord.numeric.BaseCalc;
+import neurord.numeric.morph.VolumeGrid;
+import neurord.util.Logging;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Converts the output of {@link ResultWriterRaw} into the usual HDF5 file.
+ *
+ * The model is loaded from model.xml, and the recorded snapshots are replayed
+ * through {@link ResultWriterHDF5}, which thus writes the same layout,
+ * encoding, and aggregation as during a simulation. What the raw writer does
+ * not record is missing: the description of event types (/model/events),
+ * cost profiles, and the steady state decision.
+ *
+ * The columns are read through {@link MappedColumn.Reader}, one window at
+ * a time, and each snapshot is copied out and written to the HDF5 file
+ * before the next one is read, so outputs of any size can be converted.
+ * Only the records counted in trial.properties are read, the columns of
+ * a trial which was not closed are longer.
+ */
+public class ResultConverterRaw {
+    static final Logger log = LogManager.getLogger();
+
+    final File directory;
+    final File outputFile;
+
+    public ResultConverterRaw(File directory, File output) {
+        this.directory = directory;
+        this.outputFile = output;
+    }
+
+    static Properties readProperties(File file)
+        throws IOException
+    {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    /**
+     * Numbers of trials in the raw output, in order.
+     */
+    List<Integer> trials() {
+        List<Integer> trials = new ArrayList<>();
+        String[] names = this.directory.list();
+        if (names != null)
+            for (String name: names) {
+                int trial = ResultMerger.trialNumber(name);
+                if (trial >= 0 && new File(this.directory, name).isDirectory())
+                    trials.add(trial);
+            }
+        Collections.sort(trials);
+        return trials;
+    }
+
+    public void convert()
+        throws Exception
+    {
+        Properties header = readProperties(new File(this.directory, "header.properties"));
+        if (!ResultWriterRaw.FORMAT.equals(header.getProperty("format")) ||
+            !("" + ResultWriterRaw.VERSION).equals(header.getProperty("version"))) {
+            log.error("{} is not raw output version {}: {}", this.directory, ResultWriterRaw.VERSION, header);
+            throw new RuntimeException("unsupported raw output: " + this.directory);
+        }
+
+        SDRun sdrun = SDRun.loadFromFile(new File(this.directory, "model.xml"), null, 0, Double.NaN);
+
+        List<Integer> trials = this.trials();
+        if (trials.isEmpty()) {
+            log.error("No trials in {}", this.directory);
+            throw new RuntimeException("no trials in " + this.directory);
+        }
+
+        ResultWriterHDF5 writer = new ResultWriterHDF5(this.outputFile, "",
+                                                       sdrun,
+                                                       sdrun.getOutputSets(),
+                                                       sdrun.getSpecies(),
+                                                       sdrun.getVolumeGrid());
+        writer.setModelTrial(trials.get(0));
+        writer.init("cctdif2d");
+        try {
+            this.replay(sdrun, trials, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the recorded trials of sdrun to writer.
+     */
+    void replay(SDRun sdrun, List<Integer> trials, ResultWriter writer)
+        throws IOException
+    {
+        final VolumeGrid grid = sdrun.getVolumeGrid();
+        for (int trial: trials) {
+            log.info("Converting trial {}", trial);
+            Replay replay = new Replay(trial, sdrun, new File(this.directory, "trial" + trial));
+            writer.writeGrid(grid, sdrun.getStartTime(), replay);
+            replay.replay(writer);
+            writer.closeTrial(replay);
+        }
+    }
+
+    /**
+     * Serves the recorded populations, statistics, and events
+     * of one trial through the interface of a calculation.
+     */
+    static class Replay implements IGridCalc {
+        final int trial;
+        final SDRun sdrun;
+        final File directory;
+        final long seed;
+        final Properties counts;
+        final double[] volumes;
+
+        /* The snapshot being replayed: element → row, species → column */
+        final int[] rows, columns;
+        int[] snapshot;
+        int width;
+
+        EventStatistics statistics;
+
+        MappedColumn.Reader events_time, events_waited, events_original;
+        MappedColumn.Reader events_event, events_kind, events_extent;
+        Collection<IGridCalc.Happening> happenings;
+
+        Replay(int trial, SDRun sdrun, File directory)
+            throws IOException
+        {
+            this.trial = trial;
+            this.sdrun = sdrun;
+            this.directory = directory;
+            this.volumes = sdrun.getVolumeGrid().getElementVolumes();
+            this.rows = new int[this.volumes.length];
+            this.columns = new int[sdrun.getSpecies().length];
+
+            File props = new File(directory, "trial.properties");
+            if (!props.exists()) {
+                log.error("{} is missing, the numbers of records are unknown", props);
+                throw new RuntimeException("missing " + props);
+            }
+            this.counts = readProperties(props);
+            this.seed = Long.parseLong(this.counts.getProperty("simulation_seed", "-1"));
+        }
+
+        /**
+         * The number of records of key, 0 if none were counted.
+         */
+        long count(String key) {
+            return Long.parseLong(this.counts.getProperty(key, "0"));
+        }
+
+        static int[] readLines(File file)
+            throws IOException
+        {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            int[] ans = new int[lines.size()];
+            for (int i = 0; i < ans.length; i++)
+                ans[i] = Integer.parseInt(lines.get(i).trim());
+            return ans;
+        }
+
+        void replay(ResultWriter writer)
+            throws IOException
+        {
+            final List<String> idents = new ArrayList<>();
+            idents.add("__main__");
+            if (this.sdrun.getOutputSets() != null)
+                for (IOutputSet set: this.sdrun.getOutputSets())
+                    idents.add(set.getIdentifier());
+
+            File events_dir = new File(this.directory, "events");
+            final int[] batches;
+            if (events_dir.isDirectory()) {
+                batches = new int[MappedColumn.toCount(events_dir, 2 * this.count("events.batches"))];
+                try (MappedColumn.Reader reader = new MappedColumn.Reader(new File(events_dir, "snapshots.i32"))) {
+                    reader.get(0, batches, 0, batches.length);
+                }
+                this.openEvents(events_dir);
+            } else
+                batches = new int[0];
+
+            try {
+                this.replaySnapshots(writer, idents, batches);
+            } finally {
+                this.closeEvents();
+            }
+
+            File stats_dir = new File(this.directory, "statistics");
+            if (stats_dir.isDirectory())
+                try (MappedColumn.Reader times = new MappedColumn.Reader(new File(stats_dir, "times.f64"));
+                     MappedColumn.Reader counts = new MappedColumn.Reader(new File(stats_dir, "counts.i64"))) {
+                    final long ntimes = this.count("statistics.snapshots");
+                    final int nstats = (int) this.count("statistics.events");
+
+                    this.statistics = new EventStatistics(nstats);
+                    for (long n = 0; n < ntimes; n++) {
+                        this.statistics.reset();
+                        for (int k = 0; k < nstats; k++) {
+                            final long events = counts.getLong((n * nstats + k) * 2),
+                                extent = counts.getLong((n * nstats + k) * 2 + 1);
+                            if (events != 0 || extent != 0)
+                                this.statistics.set(k, events, extent);
+                        }
+                        writer.writeEventStatistics(times.getDouble(n), this);
+                    }
+                }
+        }
+
+        /* batches are pairs (snapshot, number of events up to it) */
+        private void replaySnapshots(ResultWriter writer, List<String> idents, int[] batches)
+            throws IOException
+        {
+            int batch = 0, events_written = 0;
+
+            for (int i = 0; i < idents.size(); i++) {
+                File dir = new File(this.directory, idents.get(i));
+                if (!dir.isDirectory())
+                    continue;
+
+                final int[] elements = readLines(new File(dir, "elements.txt"));
+                final int[] species = readLines(new File(dir, "species.txt"));
+                Arrays.fill(this.rows, -1);
+                Arrays.fill(this.columns, -1);
+                for (int k = 0; k < elements.length; k++)
+                    this.rows[elements[k]] = k;
+                for (int j = 0; j < species.length; j++)
+                    this.columns[species[j]] = j;
+                this.width = species.length;
+                this.snapshot = new int[elements.length * species.length];
+
+                try (MappedColumn.Reader times = new MappedColumn.Reader(new File(dir, "times.f64"));
+                     MappedColumn.Reader population = new MappedColumn.Reader(new File(dir, "population.i32"))) {
+                    final long ntimes = this.count(idents.get(i) + ".snapshots");
+
+                    for (long n = 0; n < ntimes; n++) {
+                        population.get(n * this.snapshot.length, this.snapshot, 0, this.snapshot.length);
+
+                        this.happenings = null;
+                        if (i == 0 && batch < batches.length / 2 && batches[2 * batch] == n) {
+                            int upto = batches[2 * batch + 1];
+                            this.happenings = this.readEvents(events_written, upto);
+                            events_written = upto;
+                            batch++;
+                        }
+
+                        writer.writeOutputScheme(i - 1, times.getDouble(n), this);
+                    }
+                }
+            }
+        }
+
+        void openEvents(File dir)
+            throws IOException
+        {
+            this.events_time = new MappedColumn.Reader(new File(dir, "times.f64"));
+            this.events_waited = new MappedColumn.Reader(new File(dir, "waited.f64"));
+            this.events_original = new MappedColumn.Reader(new File(dir, "original_wait.f64"));
+            this.events_event = new MappedColumn.Reader(new File(dir, "events.i32"));
+            this.events_kind = new MappedColumn.Reader(new File(dir, "kinds.i32"));
+            this.events_extent = new MappedColumn.Reader(new File(dir, "extents.i32"));
+        }
+
+        void closeEvents()
+            throws IOException
+        {
+            for (MappedColumn.Reader reader: new MappedColumn.Reader[]{
+                    this.events_time, this.events_waited, this.events_original,
+                    this.events_event, this.events_kind, this.events_extent })
+                if (reader != null)
+                    reader.close();
+        }
+
+        Collection<IGridCalc.Happening> readEvents(int from, int to)
+            throws IOException
+        {
+            final IGridCalc.HappeningKind[] kinds = IGridCalc.HappeningKind.values();
+            List<IGridCalc.Happening> ans = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++)
+                ans.add(new RecordedHappening(this.events_event.getInt(i),
+                                              kinds[this.events_kind.getInt(i)],
+                                              this.events_extent.getInt(i),
+                                              this.events_time.getDouble(i),
+                                              this.events_waited.getDouble(i),
+                                              this.events_original.getDouble(i)));
+            return ans;
+        }
+
+        @Override
+        public int trial() {
+            return this.trial;
+        }
+
+        @Override
+        public int getGridPartNumb(int i, int outj) {
+            final int row = this.rows[i], column = this.columns[outj];
+            assert row >= 0 && column >= 0: "" + i + " " + outj;
+            return this.snapshot[row * this.width + column];
+        }
+
+        @Override
+        public double getGridPartConc(int i, int outj) {
+            return this.getGridPartNumb(i, outj) * BaseCalc.NM_PER_PARTICLE_PUV / this.volumes[i];
+        }
+
+        @Override
+        public boolean preferConcs() {
+            return false;
+        }
+
+        @Override
+        public SDRun getSource() {
+            return this.sdrun;
+        }
+
+        @Override
+        public long getSimulationSeed() {
+            return this.seed;
+        }
+
+        @Override
+        public int getNumberElements() {
+            return this.volumes.length;
+        }
+
+        @Override
+        public EventStatistics getEventStatistics() {
+            return this.statistics;
+        }
+
+        @Override
+        public CostProfile getCostProfile() {
+            return null;
+        }
+
+        @Override
+        public SteadyState getSteadyState() {
+            return null;
+        }
+
+        @Override
+        public Collection<IGridCalc.Event> getEvents() {
+            return null;
+        }
+
+        @Override
+        public Collection<IGridCalc.Happening> getHappenings() {
+            final Collection<IGridCalc.Happening> ans = this.happenings;
+            this.happenings = null;
+            return ans;
+        }
+    }
+
+    static class RecordedHappening implements IGridCalc.Happening {
+        final int event_number;
+        final IGridCalc.HappeningKind kind;
+        final int extent;
+        final double time, waited, original_wait;
+
+        RecordedHappening(int event_number,
+                          IGridCalc.HappeningKind kind,
+                          int extent,
+                          double time,
+                          double waited,
+                          double original_wait) {
+            this.event_number = event_number;
+            this.kind = kind;
+            this.extent = extent;
+            this.time = time;
+            this.waited = waited;
+            this.original_wait = original_wait;
+        }
+
+        @Override
+        public int event_number() {
+            return this.event_number;
+        }
+
+        @Override
+        public IGridCalc.HappeningKind kind() {
+            return this.kind;
+        }
+
+        @Override
+        public int extent() {
+            return this.extent;
+        }
+
+        @Override
+        public double time() {
+            return this.time;
+        }
+
+        @Override
+        public double waited() {
+            return this.waited;
+        }
+
+        @Override
+        public double original_wait() {
+            return this.original_wait;
+        }
+    }
+
+    public static void main(String... argv)
+        throws Exception
+    {
+        Logging.configureConsoleLogging();
+
+        if (argv.length != 2) {
+            System.err.println("Usage: " + ResultConverterRaw.class.getName() + " <output.raw> <output.h5>");
+            System.exit(1);
+        }
+
+        File output = new File(argv[1]);
+        if (output.exists()) {
+            log.fatal("{} exists, refusing to overwrite", output);
+            System.exit(2);
+        }
+
+        new ResultConverterRaw(new File(argv[0]), output).convert();
+    }
+}
@@ -0,0 +1,147 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import neurord.util.Logging;
+
+import hdf.object.FileFormat;
+import hdf.object.Group;
+import hdf.object.HObject;
+import hdf.object.h5.H5File;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Combines the HDF5 outputs of runs of different trials of the same
+ * model (see --trial-range) into one file with the same layout
+ * as the output of a run of all trials.
+ *
+ * The root attributes and /model are taken from the first shard which
+ * has them, and the /trialN groups from all shards. Objects are copied
+ * with H5Ocopy, so the chunks of compressed datasets are copied
+ * as they are, without being decompressed and compressed again.
+ */
+public class ResultMerger {
+    static final Logger log = LogManager.getLogger();
+
+    final File outputFile;
+    final List<File> shards;
+
+    public ResultMerger(File output, List<File> shards) {
+        this.outputFile = output;
+        this.shards = shards;
+    }
+
+    static Group rootGroup(H5File h5) {
+        return (Group)((DefaultMutableTreeNode) h5.getRootNode()).getUserObject();
+    }
+
+    static int trialNumber(String name) {
+        if (!name.startsWith("trial"))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(5));
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the numbers of the trials in the merged file.
+     */
+    public List<Integer> merge()
+        throws Exception
+    {
+        FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+        H5File output = (H5File) fileFormat.create(this.outputFile.toString());
+        if (output == null) {
+            log.error("Failed to create {}", this.outputFile);
+            throw new RuntimeException("failed to create " + this.outputFile);
+        }
+        output.open();
+
+        /* trial number → shard it was taken from */
+        TreeMap<Integer, File> trials = new TreeMap<>();
+        File model = null;
+
+        try {
+            Group root = rootGroup(output);
+
+            for (File shard: this.shards) {
+                H5File h5 = (H5File) fileFormat.createInstance(shard.toString(), FileFormat.READ);
+                h5.open();
+                try {
+                    Group shard_root = rootGroup(h5);
+
+                    for (HObject obj: shard_root.getMemberList()) {
+                        String name = obj.getName();
+                        int trial = trialNumber(name);
+
+                        if (trial >= 0) {
+                            File other = trials.put(trial, shard);
+                            if (other != null) {
+                                log.error("Trial {} is present in both {} and {}", trial, other, shard);
+                                throw new RuntimeException("duplicate trial " + trial + " in " + shard);
+                            }
+                        } else if (name.equals("model")) {
+                            if (model != null)
+                                continue;
+                            model = shard;
+
+                            for (Object attr: shard_root.getMetadata())
+                                root.writeMetadata(attr);
+                        } else {
+                            log.warn("{}: skipping /{}, it cannot be merged", shard, name);
+                            continue;
+                        }
+
+                        log.debug("Copying {}:/{}", shard, name);
+                        output.copy(obj, root, name);
+                    }
+                } finally {
+                    h5.close();
+                }
+
+                log.info("Merged {}", shard);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (model == null)
+            log.warn("None of the shards contains /model");
+        if (!trials.isEmpty() && trials.lastKey() - trials.firstKey() + 1 != trials.size())
+            log.warn("Trials are not contiguous: {}", trials.keySet());
+
+        log.info("Wrote {} trials from {} shards to {}", trials.size(), this.shards.size(), this.outputFile);
+        return new ArrayList<>(trials.keySet());
+    }
+
+    public static void main(String... argv)
+        throws Exception
+    {
+        Logging.configureConsoleLogging();
+
+        if (argv.length < 2) {
+            System.err.println("Usage: " + ResultMerger.class.getName() + " <output.h5> <shard.h5>...");
+            System.exit(1);
+        }
+
+        File output = new File(argv[0]);
+        if (output.exists()) {
+            log.fatal("{} exists, refusing to overwrite", output);
+            System.exit(2);
+        }
+
+        List<File> shards = new ArrayList<>();
+        for (int i = 1; i < argv.length; i++)
+            shards.add(new File(argv[i]));
+
+        new ResultMerger(output, shards).merge();
+    }
+}
@@ -0,0 +1,361 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import neurord.model.IOutputSet;
+import neurord.numeric.math.P2Quantile;
+import neurord.numeric.morph.VolumeGrid;
+import neurord.util.Settings;
+
+import hdf.object.Dataset;
+import hdf.object.Group;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Writes summaries of the population over all trials instead of
+ * the population of each trial.
+ *
+ * Snapshots from all trials are merged as they arrive. The n-th snapshot
+ * of every trial is accumulated into the same slot. Each voxel and species
+ * gets a mean and variance (Welford's algorithm). Sums over regions also
+ * get streaming estimates of the quantiles listed in neurord.ensemble.quantiles.
+ * Only the species of the primary output set are included.
+ *
+ * A snapshot is written out and its accumulators are dropped when all trials
+ * (see {@link #setTrialCount}) have added to it, so only the snapshots which
+ * some trials have not reached yet are kept in memory. Snapshots which not
+ * all trials reach (e.g. when a trial fails) are written when the file is
+ * closed. Use neurord.ensemble.full_trials to also store the full population
+ * of the first few trials. Only those trials get a /trialN group, and
+ * the events of the other trials are dropped.
+ */
+public class ResultWriterEnsemble extends ResultWriterHDF5 {
+    public static final Logger log = LogManager.getLogger();
+
+    final static String[] quantiles = Settings.getPropertyList("neurord.ensemble.quantiles",
+                                                               "Quantiles of region populations to estimate in ensemble output",
+                                                               "0.05", "0.5", "0.95");
+    final static int full_trials = Settings.getProperty("neurord.ensemble.full_trials",
+                                                        "Also write the full population of this many first trials in ensemble output",
+                                                        0);
+
+    final double[] probabilities;
+    final String[] regions;
+    final int[] element_region;
+    final int[] elements;
+
+    /* Accumulators for the n-th snapshot */
+    protected class Snapshot {
+        final double time;
+        int count = 0;
+
+        final double[] mean, m2;
+        final double[] region_mean, region_m2;
+        final P2Quantile[] region_quantiles;
+
+        Snapshot(double time) {
+            this.time = time;
+
+            int cells = nel * ispecout1.length;
+            this.mean = new double[cells];
+            this.m2 = new double[cells];
+
+            int region_cells = regions.length * ispecout1.length;
+            this.region_mean = new double[region_cells];
+            this.region_m2 = new double[region_cells];
+            this.region_quantiles = new P2Quantile[region_cells * probabilities.length];
+            for (int i = 0; i < this.region_quantiles.length; i++)
+                this.region_quantiles[i] = new P2Quantile(probabilities[i % probabilities.length]);
+        }
+
+        void add(int[][] counts, double[] region_sums) {
+            this.count++;
+            final int nspec = ispecout1.length;
+
+            for (int i = 0; i < counts.length; i++)
+                for (int j = 0; j < nspec; j++)
+                    welford(this.mean, this.m2, i * nspec + j, this.count, counts[i][j]);
+
+            for (int c = 0; c < region_sums.length; c++) {
+                welford(this.region_mean, this.region_m2, c, this.count, region_sums[c]);
+                for (int q = 0; q < probabilities.length; q++)
+                    this.region_quantiles[c * probabilities.length + q].add(region_sums[c]);
+            }
+        }
+    }
+
+    static void welford(double[] mean, double[] m2, int i, int count, double x) {
+        double delta = x - mean[i];
+        mean[i] += delta / count;
+        m2[i] += delta * (x - mean[i]);
+    }
+
+    /* Snapshots which were written are null */
+    protected final List<Snapshot> snapshots = new ArrayList<>();
+    protected final Map<Integer, Integer> next_snapshot = new HashMap<>();
+    private boolean warned_time_mismatch = false;
+
+    /* How many trials add to each snapshot, 0 if not known */
+    protected int trial_count = 0;
+
+    /* The times and trial counts of the snapshots which were written */
+    protected final List<Double> written_times = new ArrayList<>();
+    protected final List<Integer> written_counts = new ArrayList<>();
+
+    protected Group group;
+    protected ExtensibleArray mean, variance, region_mean, region_variance, region_quantiles;
+
+    public ResultWriterEnsemble(File output,
+                                IOutputSet primary,
+                                List<? extends IOutputSet> outputSets,
+                                String[] species,
+                                VolumeGrid grid) {
+        super(output, "-ensemble.h5", primary, outputSets, species, grid);
+
+        /* The n-th snapshots of different trials would be at different times */
+        if (SteadyState.coarsens()) {
+            log.error("Ensemble output cannot be used with neurord.steady_state.action=coarsen");
+            throw new RuntimeException("ensemble output does not support coarsening at steady state");
+        }
+
+        this.probabilities = new double[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++)
+            this.probabilities[i] = Double.valueOf(quantiles[i]);
+
+        this.regions = grid.getRegionLabels();
+        this.element_region = new int[this.nel];
+        List<String> names = Arrays.asList(this.regions);
+        for (int i = 0; i < this.nel; i++)
+            this.element_region[i] = names.indexOf(grid.getElementRegion(i));
+
+        this.elements = new int[this.nel];
+        for (int i = 0; i < this.nel; i++)
+            this.elements[i] = i;
+
+        log.info("Writing ensemble statistics to {}, quantiles {}, full population of {} trials",
+                 this.outputFile, this.probabilities, full_trials);
+    }
+
+    /**
+     * The number of trials which will be run, so that each snapshot can
+     * be written as soon as all of them have added to it.
+     */
+    public void setTrialCount(int count) {
+        this.trial_count = count;
+    }
+
+    @Override
+    protected void _writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source)
+        throws Exception
+    {
+        if (source.trial() < full_trials)
+            super._writeGrid(vgrid, startTime, source);
+        else if (source.trial() == this.model_trial)
+            /* The model is needed, but not a /trialN group */
+            this.writeModel(new Trial(null), vgrid, startTime, source);
+    }
+
+    @Override
+    synchronized public void writeOutputInterval(double time, IGridCalc source) {
+        if (source.trial() < full_trials)
+            super.writeOutputInterval(time, source);
+        else
+            /* With neurord.log_events, the events of the trial are
+             * collected until they are taken, and they are not written */
+            source.getHappenings();
+
+        final int nspec = this.ispecout1.length;
+        int[][] counts = new int[this.nel][nspec];
+        getGridNumbers(counts, this.elements, this.ispecout1, source);
+
+        double[] region_sums = new double[this.regions.length * nspec];
+        for (int i = 0; i < this.nel; i++)
+            if (this.element_region[i] >= 0)
+                for (int j = 0; j < nspec; j++)
+                    region_sums[this.element_region[i] * nspec + j] += counts[i][j];
+
+        Integer n = this.next_snapshot.get(source.trial());
+        if (n == null)
+            n = 0;
+        this.next_snapshot.put(source.trial(), n + 1);
+
+        if (n == this.snapshots.size())
+            this.snapshots.add(new Snapshot(time));
+
+        Snapshot snapshot = this.snapshots.get(n);
+        if (snapshot == null) {
+            log.error("Trial {} snapshot {} arrived after {} trials were written",
+                      source.trial(), n, this.trial_count);
+            throw new RuntimeException("more trials than declared in ensemble output");
+        }
+        if (snapshot.time != time && !this.warned_time_mismatch) {
+            log.warn("Trial {} snapshot {} at time {}, but other trials at {}",
+                     source.trial(), n, time, snapshot.time);
+            this.warned_time_mismatch = true;
+        }
+
+        snapshot.add(counts, region_sums);
+
+        /* Trials add snapshots in order, so they are completed in order */
+        try {
+            while (this.written_times.size() < this.snapshots.size() &&
+                   this.snapshots.get(this.written_times.size()).count == this.trial_count)
+                this.writeSnapshot();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    synchronized public void writeOutputScheme(int i, double time, IGridCalc source) {
+        if (source.trial() < full_trials)
+            super.writeOutputScheme(i, time, source);
+    }
+
+    @Override
+    synchronized public void writeEventStatistics(double time, IGridCalc source) {
+        if (source.trial() < full_trials)
+            super.writeEventStatistics(time, source);
+    }
+
+    protected void initEnsemble()
+        throws Exception
+    {
+        this.group = this.output.createGroup("ensemble", this.root);
+        setAttribute(this.group, "TITLE", "statistics over all trials");
+
+        writeSpeciesVector("species", "names of output species", this.group, this.species, this.ispecout1);
+
+        Dataset ds = writeVector("regions", this.group, this.regions);
+        setAttribute(ds, "TITLE", "names of regions");
+
+        ds = writeVector("quantiles", this.group, this.probabilities);
+        setAttribute(ds, "TITLE", "probabilities of the estimated quantiles");
+    }
+
+    protected void initArrays()
+        throws Exception
+    {
+        final int nspec = this.ispecout1.length;
+
+        this.mean = createExtensibleArray("mean", this.group, double_t,
+                                          "mean population over trials",
+                                          "[snapshot × nel × nspecout]",
+                                          "count",
+                                          1, this.nel, nspec);
+        this.variance = createExtensibleArray("variance", this.group, double_t,
+                                              "sample variance of population over trials",
+                                              "[snapshot × nel × nspecout]",
+                                              "count²",
+                                              1, this.nel, nspec);
+        if (this.regions.length > 0) {
+            this.region_mean = createExtensibleArray("region_mean", this.group, double_t,
+                                                     "mean population in regions over trials",
+                                                     "[snapshot × regions × nspecout]",
+                                                     "count",
+                                                     1, this.regions.length, nspec);
+            this.region_variance = createExtensibleArray("region_variance", this.group, double_t,
+                                                         "sample variance of population in regions over trials",
+                                                         "[snapshot × regions × nspecout]",
+                                                         "count²",
+                                                         1, this.regions.length, nspec);
+            if (this.probabilities.length > 0)
+                this.region_quantiles = createExtensibleArray("region_quantiles", this.group, double_t,
+                                                              "estimated quantiles of population in regions over trials",
+                                                              "[snapshot × regions × nspecout × quantiles]",
+                                                              "count",
+                                                              1, this.regions.length, nspec,
+                                                              this.probabilities.length);
+        }
+    }
+
+    /**
+     * Write the first snapshot which was not written yet and let it be collected.
+     */
+    protected void writeSnapshot()
+        throws Exception
+    {
+        if (this.group == null)
+            this.initEnsemble();
+        if (this.mean == null && this.ispecout1.length > 0)
+            this.initArrays();
+
+        final int k = this.written_times.size();
+        Snapshot snapshot = this.snapshots.get(k);
+        this.snapshots.set(k, null);
+        this.written_times.add(snapshot.time);
+        this.written_counts.add(snapshot.count);
+
+        if (this.mean == null)
+            return;
+
+        writeRow(this.mean, snapshot.mean);
+        writeRow(this.variance, variance(snapshot.m2, snapshot.count));
+
+        if (this.region_mean != null) {
+            writeRow(this.region_mean, snapshot.region_mean);
+            writeRow(this.region_variance, variance(snapshot.region_m2, snapshot.count));
+        }
+
+        if (this.region_quantiles != null) {
+            double[] values = new double[snapshot.region_quantiles.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = snapshot.region_quantiles[i].value();
+            writeRow(this.region_quantiles, values);
+        }
+    }
+
+    @Override
+    protected void finish()
+        throws Exception
+    {
+        log.info("Writing ensemble statistics for {} snapshots, {} written before",
+                 this.snapshots.size(), this.written_times.size());
+
+        try {
+            if (this.group == null)
+                this.initEnsemble();
+            while (this.written_times.size() < this.snapshots.size())
+                this.writeSnapshot();
+            this.snapshots.clear();
+
+            double[] times = new double[this.written_times.size()];
+            int[] counts = new int[times.length];
+            for (int k = 0; k < times.length; k++) {
+                times[k] = this.written_times.get(k);
+                counts[k] = this.written_counts.get(k);
+            }
+
+            Dataset ds = writeVector("times", this.group, times);
+            setAttribute(ds, "TITLE", "times of snapshots");
+            setAttribute(ds, "UNITS", "ms");
+
+            ds = writeVector("trials", this.group, counts);
+            setAttribute(ds, "TITLE", "number of trials in each snapshot");
+        } finally {
+            ExtensibleArray.closeAll(this.mean, this.variance,
+                                     this.region_mean, this.region_variance,
+                                     this.region_quantiles);
+        }
+    }
+
+    static double[] variance(double[] m2, int count) {
+        double[] ans = new double[m2.length];
+        for (int i = 0; i < ans.length; i++)
+            ans[i] = count > 1 ? m2[i] / (count - 1) : Double.NaN;
+        return ans;
+    }
+
+    protected static void writeRow(ExtensibleArray ds, double[] row)
+        throws Exception
+    {
+        ds.append(row, 1);
+    }
+}
@@ -52,9 +52,30 @@ public class ResultWriterHDF5 implements ResultWriter {
     final static int compression_level = Settings.getProperty("neurord.compression",
                                                               "Compression level in HDF5 output",
                                                               1);
+    final static boolean direct_writes =
+        Settings.getProperty("neurord.direct_writes",
+                             "Write extensible arrays with H5Dwrite instead of the hdf-java objects",
+                             false);
+    final static String population_encoding =
+        Settings.getProperty("neurord.population_encoding",
+                             "How to write population snapshots (dense, sparse)",
+                             "dense");
+    final static int keyframe_interval =
+        Settings.getProperty("neurord.keyframe_interval",
+                             "Write a full snapshot every that many snapshots (sparse encoding)",
+                             100);
+    final static String statistics_encoding =
+        Settings.getProperty("neurord.statistics_encoding",
+                             "How to write event statistics (dense, sparse)",
+                             "dense");
 
     final protected File outputFile;
     protected H5File output;
+    /* package-private and not final for ResultWriterHDF5Benchmark */
+    boolean direct = direct_writes;
+    /* Deflate level of extensible arrays, possibly calibrated */
+    protected int compression = compression_level;
+    private boolean compression_calibrated = false;
     protected Group root;
     final protected Map<Integer, Trial> trials = new HashMap<>();
 
@@ -75,18 +96,32 @@ public class ResultWriterHDF5 implements ResultWriter {
     final int nel;
     final int[][] ispecout2;
     final int[][] elementsout2;
+    /* Per output set, null when values for each voxel are written */
+    final RegionAggregation[] aggregations2;
     final IOutputSet outputSet;
     final List<? extends IOutputSet> outputSets;
 
     protected Group model;
 
+    /* The trial which writes /model */
+    protected int model_trial = 0;
+
     public ResultWriterHDF5(File output,
                             IOutputSet primary,
                             List<? extends IOutputSet> outputSets,
                             String[] species,
                             VolumeGrid grid) {
+        this(output, ".h5", primary, outputSets, species, grid);
+    }
 
-        this.outputFile = new File(output + ".h5");
+    protected ResultWriterHDF5(File output,
+                               String suffix,
+                               IOutputSet primary,
+                               List<? extends IOutputSet> outputSets,
+                               String[] species,
+                               VolumeGrid grid) {
+
+        this.outputFile = new File(output + suffix);
         log.debug("Writing HDF5 to {}", this.outputFile);
 
         this.species = species;
@@ -97,28 +132,42 @@ public ResultWriterHDF5(File output,
         if (this.outputSets != null) {
             this.ispecout2 = new int[outputSets.size()][];
             this.elementsout2 = new int[outputSets.size()][];
+            this.aggregations2 = new RegionAggregation[outputSets.size()];
 
             for (int i = 0; i < this.ispecout2.length; i++) {
-                this.ispecout2[i] = outputSets.get(i).getIndicesOfOutputSpecies(species);
-
-                String region = outputSets.get(i).getRegion();
-                if (region != null) {
-                    /* Find elements which match specified regions */
-                    ArrayList<Integer> list = new ArrayList<>();
-                    for (int j = 0; j < this.nel; j++)
-                        if (region.equals(grid.getElementRegion(j)))
-                            list.add(j);
-
-                    this.elementsout2[i] = ArrayUtil.toIntArray(list);
-                } else
-                    this.elementsout2[i] = ArrayUtil.iota(this.nel);
+                final IOutputSet set = outputSets.get(i);
+                this.ispecout2[i] = set.getIndicesOfOutputSpecies(species);
+                this.elementsout2[i] = outputElements(set, grid);
+
+                if (set.getAggregation() != null)
+                    this.aggregations2[i] = new RegionAggregation(grid, this.elementsout2[i],
+                                                                  set.getAggregation());
             }
         } else {
             this.ispecout2 = null;
             this.elementsout2 = null;
+            this.aggregations2 = null;
         }
     }
 
+    /**
+     * Elements which match the region and submembrane attributes of set.
+     */
+    static int[] outputElements(IOutputSet set, VolumeGrid grid) {
+        final String region = set.getRegion();
+        if (region == null && !set.submembraneOnly())
+            return ArrayUtil.iota(grid.size());
+
+        final boolean[] submembranes = grid.getSubmembranes();
+        ArrayList<Integer> list = new ArrayList<>();
+        for (int j = 0; j < grid.size(); j++)
+            if ((region == null || region.equals(grid.getElementRegion(j))) &&
+                (!set.submembraneOnly() || submembranes[j]))
+                list.add(j);
+
+        return ArrayUtil.toIntArray(list);
+    }
+
     private int users = 0;
 
     @Override
@@ -167,15 +216,38 @@ synchronized public void close() {
         log.info("Closing output file {}", this.outputFile);
 
         try {
-            for (Map.Entry<Integer, Trial> k_v: this.trials.entrySet())
-                this.closeTrial(k_v.getKey(), null);
+            for (Integer trial: new ArrayList<>(this.trials.keySet()))
+                try {
+                    this.closeTrial(trial, null);
+                } catch(Exception e) {
+                    log.error("Failed to close trial {} in {}", trial, outputFile, e);
+                }
 
-            this.output.close();
+            try {
+                this.finish();
+            } finally {
+                this.output.close();
+            }
         } catch(Exception e) {
             log.error("Failed to close results file {}", outputFile, e);
         }
     }
 
+    /**
+     * Called once before the file is closed, after all trials are done.
+     */
+    protected void finish()
+        throws Exception
+    {}
+
+    /**
+     * Set the trial which writes the model description. When only
+     * a range of trials is run, this should be the first one.
+     */
+    public void setModelTrial(int trial) {
+        this.model_trial = trial;
+    }
+
     @Override
     public File outputFile() {
         return this.outputFile;
@@ -225,8 +297,11 @@ protected void closeTrial(int trial, IGridCalc source)
         if (t == null)
             return;
 
-        t.close(source);
-        this.trials.remove(trial);
+        try {
+            t.close(source);
+        } finally {
+            this.trials.remove(trial);
+        }
     }
 
     @Override
@@ -254,9 +329,19 @@ protected void _writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source)
         t.writeSimulationData(source);
 
         /* Only write stuff for the first trial to save time and space */
-        if (source.trial() > 0)
+        if (source.trial() != this.model_trial)
             return;
 
+        this.writeModel(t, vgrid, startTime, source);
+    }
+
+    /**
+     * Write the description of the model in /model. Only the
+     * model parts of t are used, so t does not need a group.
+     */
+    protected void writeModel(Trial t, VolumeGrid vgrid, double startTime, IGridCalc source)
+        throws Exception
+    {
         Group model = this.model();
 
         t._writeGrid(vgrid, startTime, source);
@@ -307,10 +392,33 @@ synchronized public void writeEventStatistics(double time, IGridCalc source) {
         }
     }
 
-    protected class PopulationOutput {
-        final H5ScalarDS concs;
+    /**
+     * Pick the compression level from the first populations written,
+     * if enabled with neurord.compression.calibrate.
+     */
+    synchronized protected void calibrateCompression(IGridCalc source) {
+        if (this.compression_calibrated || !DatasetLayout.calibrate)
+            return;
+        this.compression_calibrated = true;
+
+        int[][] sample = new int[this.nel][this.species.length];
+        getGridNumbers(sample, ArrayUtil.iota(this.nel), ArrayUtil.iota(this.species.length), source);
+        this.compression = DatasetLayout.compressionLevel(ArrayUtil.flatten(sample, this.species.length, 0),
+                                                          this.compression);
+    }
+
+    /* Snapshots of one output set */
+    protected interface SnapshotOutput {
+        void writePopulation(double time, IGridCalc source) throws Exception;
+        void flushPopulation(double time) throws Exception;
+        void close() throws Exception;
+    }
+
+    protected class PopulationOutput implements SnapshotOutput {
+        final ExtensibleArray concs;
         final int[][][] concs_cache;
-        final H5ScalarDS times;
+        final int[] concs_flat;
+        final ExtensibleArray times;
         final double[] times_cache;
         protected int concs_times_count;
 
@@ -343,10 +451,12 @@ protected PopulationOutput(Group parent, String name, int[] elements, int[] ispe
                                                cache_size);
 
             this.concs_cache = new int[cache_size][elements.length][ispecout.length];
+            this.concs_flat = new int[cache_size * elements.length * ispecout.length];
             this.times_cache = new double[cache_size];
         }
 
-        protected void writePopulation(double time, IGridCalc source)
+        @Override
+        public void writePopulation(double time, IGridCalc source)
             throws Exception
         {
             getGridNumbers(this.concs_cache[this.concs_times_count],
@@ -358,7 +468,8 @@ protected void writePopulation(double time, IGridCalc source)
                 this.flushPopulation(time);
         }
 
-        protected void flushPopulation(double time)
+        @Override
+        public void flushPopulation(double time)
             throws Exception
         {
             if (this.concs_times_count == 0)
@@ -366,58 +477,466 @@ protected void flushPopulation(double time)
             log.debug("Writing {} pop entries at time {}", this.concs_times_count, time);
 
             {
-                extendExtensibleArray(this.concs, this.concs_times_count);
-                int[] data = (int[]) this.concs.getData();
-
                 int[][][] cache;
                 if (this.concs_times_count == this.times_cache.length)
                     cache = this.concs_cache;
                 else
                     cache = Arrays.copyOfRange(this.concs_cache, 0, this.concs_times_count);
 
-                ArrayUtil._flatten(data, cache, cache[0][0].length, 0);
-                this.concs.write(data);
+                ArrayUtil._flatten(this.concs_flat, cache, cache[0][0].length, 0);
+                this.concs.append(this.concs_flat, this.concs_times_count);
             }
 
-            {
-                extendExtensibleArray(this.times, this.concs_times_count);
-                double[] data = (double[]) this.times.getData();
-                System.arraycopy(this.times_cache, 0, data, 0, this.concs_times_count);
-                this.times.write(data);
-            }
+            this.times.append(this.times_cache, this.concs_times_count);
 
             this.concs_times_count = 0;
         }
+
+        @Override
+        public void close()
+            throws Exception
+        {
+            ExtensibleArray.closeAll(this.concs, this.times);
+        }
+    }
+
+    /**
+     * Populations written as the changes since the previous snapshot.
+     *
+     * Every keyframe_interval-th snapshot is written in full to "keyframes",
+     * [keyframe × nel × nspecout]. For other snapshots, only the cells which
+     * changed are written to "changes", as rows of (snapshot, cell, value),
+     * where cell is element × nspecout + species (indices in the output set).
+     */
+    protected class SparsePopulationOutput implements SnapshotOutput {
+        final int[] ispecout;
+        final int[] elements;
+        final int interval;
+
+        final ExtensibleArray keyframes;
+        final int[][][] keyframes_cache;
+        final int[] keyframes_flat;
+        protected int keyframes_count;
+
+        final ExtensibleArray changes;
+        final int[] changes_cache;
+        protected int changes_count;
+
+        final ExtensibleArray times;
+        final double[] times_cache;
+        protected int times_count;
+
+        final int[][] current, previous;
+        protected int snapshot;
+
+        protected SparsePopulationOutput(Group parent, int[] elements, int[] ispecout, int interval)
+            throws Exception
+        {
+            this.ispecout = ispecout;
+            this.elements = elements;
+            this.interval = interval;
+
+            int cache_size = CACHE_SIZE1;
+            while (cache_size * elements.length * ispecout.length * 4 > 512*1024
+                   && cache_size > 1)
+                cache_size /= 2;
+
+            setAttribute(parent, "encoding", "sparse");
+            setAttribute(parent, "keyframe_interval", interval);
+
+            this.keyframes = createExtensibleArray("keyframes", parent, int_t,
+                                                   "population of species in voxels in every keyframe_interval-th snapshot",
+                                                   "[keyframe × nel × nspecout]",
+                                                   "count",
+                                                   Math.max(cache_size / interval, 1),
+                                                   elements.length, ispecout.length);
+
+            this.changes = createExtensibleArray("changes", parent, int_t,
+                                                 "changed populations since the previous snapshot",
+                                                 "[change × (snapshot, cell, value)]",
+                                                 "indices, count",
+                                                 CACHE_SIZE2, 3);
+
+            this.times = createExtensibleArray("times", parent, double_t,
+                                               "times when snapshots were written",
+                                               "[times]",
+                                               "ms",
+                                               cache_size);
+
+            this.keyframes_cache = new int[Math.max(cache_size / interval, 1)][elements.length][ispecout.length];
+            this.keyframes_flat = new int[this.keyframes_cache.length * elements.length * ispecout.length];
+            this.times_cache = new double[cache_size];
+            this.current = new int[elements.length][ispecout.length];
+            this.previous = new int[elements.length][ispecout.length];
+            /* room for at least one snapshot with all cells changed */
+            this.changes_cache = new int[3 * Math.max(CACHE_SIZE2, elements.length * ispecout.length)];
+        }
+
+        @Override
+        public void writePopulation(double time, IGridCalc source)
+            throws Exception
+        {
+            getGridNumbers(this.current, this.elements, this.ispecout, source);
+
+            if (this.snapshot % this.interval == 0) {
+                if (this.keyframes_count == this.keyframes_cache.length)
+                    this.flushKeyframes();
+                for (int i = 0; i < this.elements.length; i++)
+                    System.arraycopy(this.current[i], 0,
+                                     this.keyframes_cache[this.keyframes_count][i], 0, this.ispecout.length);
+                this.keyframes_count++;
+            } else {
+                if (this.changes_count + 3 * this.elements.length * this.ispecout.length
+                    > this.changes_cache.length)
+                    this.flushChanges();
+                this.changes_count = sparseChanges(this.current, this.previous, this.snapshot,
+                                                   this.changes_cache, this.changes_count);
+            }
+
+            for (int i = 0; i < this.elements.length; i++)
+                System.arraycopy(this.current[i], 0, this.previous[i], 0, this.ispecout.length);
+            this.snapshot++;
+
+            this.times_cache[this.times_count++] = time;
+            if (this.times_count == this.times_cache.length)
+                this.flushPopulation(time);
+        }
+
+        protected void flushKeyframes()
+            throws Exception
+        {
+            if (this.keyframes_count == 0)
+                return;
+
+            int[][][] cache;
+            if (this.keyframes_count == this.keyframes_cache.length)
+                cache = this.keyframes_cache;
+            else
+                cache = Arrays.copyOfRange(this.keyframes_cache, 0, this.keyframes_count);
+
+            ArrayUtil._flatten(this.keyframes_flat, cache, this.ispecout.length, 0);
+            this.keyframes.append(this.keyframes_flat, this.keyframes_count);
+            this.keyframes_count = 0;
+        }
+
+        protected void flushChanges()
+            throws Exception
+        {
+            if (this.changes_count == 0)
+                return;
+
+            this.changes.append(this.changes_cache, this.changes_count / 3);
+            this.changes_count = 0;
+        }
+
+        @Override
+        public void flushPopulation(double time)
+            throws Exception
+        {
+            if (this.times_count == 0)
+                return;
+            log.debug("Writing {} sparse pop entries at time {}", this.times_count, time);
+
+            this.flushKeyframes();
+            this.flushChanges();
+
+            this.times.append(this.times_cache, this.times_count);
+
+            this.times_count = 0;
+        }
+
+        @Override
+        public void close()
+            throws Exception
+        {
+            ExtensibleArray.closeAll(this.keyframes, this.changes, this.times);
+        }
+    }
+
+    /**
+     * Append the cells of current which differ from previous to out[count…]
+     * as rows of (snapshot, cell, value), see {@link SparsePopulationOutput}.
+     * out must have room for all cells.
+     *
+     * @return the new number of ints in out
+     */
+    static int sparseChanges(int[][] current, int[][] previous, int snapshot, int[] out, int count) {
+        for (int i = 0; i < current.length; i++) {
+            final int nspec = current[i].length;
+            for (int j = 0; j < nspec; j++)
+                if (current[i][j] != previous[i][j]) {
+                    out[count++] = snapshot;
+                    out[count++] = i * nspec + j;
+                    out[count++] = current[i][j];
+                }
+        }
+        return count;
+    }
+
+    /**
+     * Rows of changes of a sparse population, see {@link #findChanges}.
+     */
+    interface ChangeRows {
+        /** The snapshot of row */
+        int snapshot(long row) throws Exception;
+    }
+
+    /**
+     * The first row in [lo, hi) of changes with a snapshot after
+     * snapshot, or hi. Rows are ordered by snapshot.
+     */
+    static long findChanges(ChangeRows changes, long lo, long hi, int snapshot)
+        throws Exception
+    {
+        while (lo < hi) {
+            final long mid = (lo + hi) >>> 1;
+            if (changes.snapshot(mid) > snapshot)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Apply rows of (snapshot, cell, value) to the flattened population data.
+     */
+    static void applyChanges(int[] data, int[] rows) {
+        for (int k = 0; k < rows.length; k += 3)
+            data[rows[k + 1]] = rows[k + 2];
+    }
+
+    /**
+     * Per-region totals (as "population") or concentrations
+     * (as "concentration") of an aggregated output set.
+     */
+    protected class RegionOutput implements SnapshotOutput {
+        final RegionAggregation aggregation;
+        final int[] ispecout;
+
+        final ExtensibleArray values;
+        final double[][][] values_cache;
+        final double[] values_flat;
+        final int[] values_ints;
+        final ExtensibleArray times;
+        final double[] times_cache;
+        protected int count;
+
+        protected RegionOutput(Group parent, RegionAggregation aggregation, int[] ispecout)
+            throws Exception
+        {
+            this.aggregation = aggregation;
+            this.ispecout = ispecout;
+
+            final int nregions = aggregation.getRegions().length;
+            int cache_size = CACHE_SIZE1;
+            while (cache_size * nregions * ispecout.length * 8 > 512*1024
+                   && cache_size > 1)
+                cache_size /= 2;
+
+            if (aggregation.isConcentration())
+                this.values = createExtensibleArray("concentration", parent, double_t,
+                                                    "mean concentration of species in regions over time",
+                                                    "[snapshot × nregion × nspecout]",
+                                                    "nM",
+                                                    cache_size, nregions, ispecout.length);
+            else
+                this.values = createExtensibleArray("population", parent, int_t,
+                                                    "population of species in regions over time",
+                                                    "[snapshot × nregion × nspecout]",
+                                                    "count",
+                                                    cache_size, nregions, ispecout.length);
+
+            this.times = createExtensibleArray("times", parent, double_t,
+                                               "times when snapshots were written",
+                                               "[times]",
+                                               "ms",
+                                               cache_size);
+
+            this.values_cache = new double[cache_size][nregions][ispecout.length];
+            this.values_flat = new double[cache_size * nregions * ispecout.length];
+            /* populations are written as ints */
+            this.values_ints = aggregation.isConcentration() ? null : new int[this.values_flat.length];
+            this.times_cache = new double[cache_size];
+        }
+
+        @Override
+        public void writePopulation(double time, IGridCalc source)
+            throws Exception
+        {
+            this.aggregation.aggregate(this.values_cache[this.count], this.ispecout, source);
+            this.times_cache[this.count] = time;
+            this.count++;
+
+            if (this.count == this.times_cache.length)
+                this.flushPopulation(time);
+        }
+
+        @Override
+        public void flushPopulation(double time)
+            throws Exception
+        {
+            if (this.count == 0)
+                return;
+            log.debug("Writing {} region entries at time {}", this.count, time);
+
+            int k = 0;
+            for (int t = 0; t < this.count; t++)
+                for (double[] row: this.values_cache[t])
+                    for (double v: row)
+                        this.values_flat[k++] = v;
+
+            if (this.aggregation.isConcentration())
+                this.values.append(this.values_flat, this.count);
+            else {
+                for (int i = 0; i < k; i++)
+                    this.values_ints[i] = (int) Math.round(this.values_flat[i]);
+                this.values.append(this.values_ints, this.count);
+            }
+
+            this.times.append(this.times_cache, this.count);
+
+            this.count = 0;
+        }
+
+        @Override
+        public void close()
+            throws Exception
+        {
+            ExtensibleArray.closeAll(this.values, this.times);
+        }
     }
 
     protected class Trial {
         protected final Group group;
         protected final Group sim;
-        protected List<PopulationOutput> populations = new ArrayList<>();
-        protected H5ScalarDS event_statistics;
-        protected H5ScalarDS statistics_times;
+        protected List<SnapshotOutput> populations = new ArrayList<>();
+        protected ExtensibleArray event_statistics;
+        protected ExtensibleArray statistics_times;
+        protected ExtensibleArray statistics_changes;
+        protected long[] statistics_buffer;
+        protected int statistics_count;
         protected Group events;
         protected List<IGridCalc.Happening> events_cache;
-        protected H5ScalarDS
+        protected ExtensibleArray
             events_event, events_kind,
             events_extent, events_time, events_waited, events_original;
+        protected int[] events_ints;
+        protected double[] events_doubles;
 
+        /**
+         * With a null group, only the methods which write the model
+         * can be used.
+         */
         protected Trial(Group group)
             throws Exception
         {
             this.group = group;
 
-            this.sim = output.createGroup("output", group);
-            setAttribute(this.sim, "TITLE", "results of the simulation");
+            if (group != null) {
+                this.sim = output.createGroup("output", group);
+                setAttribute(this.sim, "TITLE", "results of the simulation");
+            } else
+                this.sim = null;
         }
 
         protected void close(IGridCalc source)
             throws Exception
         {
-            if (this.events_cache != null)
-                this.flushEvents(Double.POSITIVE_INFINITY, true);
-            for (PopulationOutput output: this.populations)
-                output.flushPopulation(Double.POSITIVE_INFINITY);
+            try {
+                if (this.events_cache != null)
+                    this.flushEvents(Double.POSITIVE_INFINITY, true);
+                for (SnapshotOutput output: this.populations)
+                    output.flushPopulation(Double.POSITIVE_INFINITY);
+            } catch(Exception e) {
+                log.error("Failed to flush trial {}, closing its datasets", this.group, e);
+                try {
+                    this.closeArrays();
+                } catch(Exception e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            }
+
+            this.closeArrays();
+
+            if (source != null && source.getCostProfile() != null)
+                this.writeCostProfile(source.getCostProfile(), source);
+
+            SteadyState steady = source != null ? source.getSteadyState() : null;
+            if (steady != null && steady.reached()) {
+                setAttribute(this.group, "steady_state_time", steady.time());
+                setAttribute(this.group, "steady_state_action", steady.action());
+            }
+        }
+
+        /**
+         * Close the ids of all datasets of the trial, even if closing
+         * some of them fails.
+         */
+        protected void closeArrays()
+            throws Exception
+        {
+            Exception error = null;
+            for (SnapshotOutput output: this.populations)
+                try {
+                    output.close();
+                } catch(Exception e) {
+                    if (error == null)
+                        error = e;
+                    else
+                        error.addSuppressed(e);
+                }
+
+            try {
+                ExtensibleArray.closeAll(this.event_statistics, this.statistics_times, this.statistics_changes,
+                                         this.events_event, this.events_kind, this.events_extent,
+                                         this.events_time, this.events_waited, this.events_original);
+            } catch(Exception e) {
+                if (error == null)
+                    error = e;
+                else
+                    error.addSuppressed(e);
+            }
+
+            if (error != null)
+                throw error;
+        }
+
+        protected void writeCostProfile(CostProfile profile, IGridCalc source)
+            throws Exception
+        {
+            log.debug("Writing cost profile");
+
+            Group group = output.createGroup("profile", this.group);
+            setAttribute(group, "TITLE", "cost attributed to event channels and voxels");
+
+            Dataset ds = writeVector("columns", group, CostProfile.COLUMNS);
+            setAttribute(ds, "TITLE", "names of the columns of cost tables");
+
+            ds = writeVector("channels", group, profile.channels());
+            setAttribute(ds, "TITLE", "names of event channels");
+
+            ds = writeArray("by_channel", group, profile.byChannel());
+            setAttribute(ds, "TITLE", "cost of each channel");
+            setAttribute(ds, "LAYOUT", "[channels × columns]");
+
+            ds = writeVector("top_channels", group, profile.topChannels());
+            setAttribute(ds, "TITLE", "indices of the most expensive channels");
+            setAttribute(ds, "LAYOUT", "[n]");
+
+            ds = writeArray("by_voxel", group, profile.byVoxel());
+            setAttribute(ds, "TITLE", "cost of events in each voxel");
+            setAttribute(ds, "LAYOUT", "[voxels × columns]");
+
+            VolumeGrid grid = source.getSource().getVolumeGrid();
+            String[] regions = grid.getRegionLabels();
+            ds = writeVector("regions", group, regions);
+            setAttribute(ds, "TITLE", "names of regions");
+
+            ds = writeArray("by_region", group, profile.byRegion(regions, grid.getElementRegions()));
+            setAttribute(ds, "TITLE", "cost of events in each region");
+            setAttribute(ds, "LAYOUT", "[regions × columns]");
         }
 
         protected void _writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source)
@@ -512,6 +1031,14 @@ protected void _writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source)
                 setAttribute(ds, "LAYOUT", "[nel × neighbors*]");
                 setAttribute(ds, "UNITS", "nm^2 / nm ?");
             }
+
+            int[] original = vgrid.getOriginalNumbers();
+            if (original != null) {
+                Dataset ds = writeVector("original_numbers", model(), original);
+                setAttribute(ds, "TITLE", "voxel numbers before renumbering");
+                setAttribute(ds, "LAYOUT", "[nel]");
+                setAttribute(ds, "UNITS", "indices");
+            }
         }
 
         protected void writeSimulationData(IGridCalc source)
@@ -712,7 +1239,7 @@ protected void writeEventData(Group parent, IGridCalc source)
         }
 
         protected void writeOutputInfo(Group parent, String identifier,
-                                        int[] which, int[] elements)
+                                        int[] which, int[] elements, RegionAggregation aggregation)
             throws Exception
         {
             Group group = output.createGroup(identifier, parent);
@@ -723,6 +1250,15 @@ protected void writeOutputInfo(Group parent, String identifier,
             setAttribute(ds, "TITLE", "indices of output elements");
             setAttribute(ds, "LAYOUT", "[nelements]");
             setAttribute(ds, "UNITS", "indices");
+
+            if (aggregation != null) {
+                setAttribute(group, "aggregate",
+                             aggregation.isConcentration() ? RegionAggregation.CONCENTRATION : RegionAggregation.SUM);
+                ds = writeVector("regions", group, aggregation.getRegions());
+                setAttribute(ds, "TITLE", "names of regions of output rows");
+                setAttribute(ds, "LAYOUT", "[nregions]");
+                setAttribute(ds, "UNITS", "text");
+            }
         }
 
         protected void writeOutputInfo(Group parent)
@@ -732,13 +1268,13 @@ protected void writeOutputInfo(Group parent)
              * rules like support for "all". Instead we use precalulcated lists of species
              * indices. */
             if (ispecout1 != null)
-                writeOutputInfo(parent, "__main__", ispecout1, ArrayUtil.iota(nel));
+                writeOutputInfo(parent, "__main__", ispecout1, ArrayUtil.iota(nel), null);
 
             if (outputSets != null)
                 for (int i = 0; i < outputSets.size(); i++) {
                     IOutputSet set = outputSets.get(i);
                     writeOutputInfo(parent,
-                                    set.getIdentifier(), ispecout2[i], elementsout2[i]);
+                                    set.getIdentifier(), ispecout2[i], elementsout2[i], aggregations2[i]);
                 }
         }
 
@@ -778,8 +1314,21 @@ protected boolean initPopulation(int i, IGridCalc source)
                     ident = set.getIdentifier();
                 }
 
+                calibrateCompression(source);
+
                 Group group = output.createGroup(ident, this.sim);
-                PopulationOutput conc = new PopulationOutput(group, ident, elements, ispecout);
+                final SnapshotOutput conc;
+                if (i > 0 && aggregations2[i - 1] != null)
+                    conc = new RegionOutput(group, aggregations2[i - 1], ispecout);
+                else if (population_encoding.equals("sparse"))
+                    conc = new SparsePopulationOutput(group, elements, ispecout, keyframe_interval);
+                else if (population_encoding.equals("dense"))
+                    conc = new PopulationOutput(group, ident, elements, ispecout);
+                else {
+                    log.error("Unknown population encoding {}, should be dense or sparse",
+                              population_encoding);
+                    throw new RuntimeException("unknown population encoding: " + population_encoding);
+                }
                 this.populations.add(i, conc);
             }
 
@@ -798,16 +1347,31 @@ protected void writePopulation(int i, double time, IGridCalc source)
         protected void initEventStatistics(boolean periodic, IGridCalc source, int expected)
             throws Exception
         {
-            assert this.event_statistics == null;
+            assert this.event_statistics == null && this.statistics_changes == null;
 
             /* times × events × 2 or times × channels × 2 */
             String type = "events";
-            this.event_statistics =
-                createExtensibleArray("event_statistics", this.sim, int_t,
-                                      "actual event counts since last snapshot",
-                                      "[times × " + type + " × species]",
-                                      "count",
-                                      CACHE_SIZE1, expected, 2);
+            if (statistics_encoding.equals("sparse")) {
+                this.statistics_changes =
+                    createExtensibleArray("event_statistics_changes", this.sim, long_t,
+                                          "non-zero rows of event counts since last snapshot",
+                                          "[changes × (snapshot, " + type + ", count, extent)]",
+                                          "count",
+                                          CACHE_SIZE2, 4);
+                /* snapshot numbers refer to statistics_times */
+                periodic = true;
+            } else if (statistics_encoding.equals("dense"))
+                this.event_statistics =
+                    createExtensibleArray("event_statistics", this.sim, long_t,
+                                          "actual event counts since last snapshot",
+                                          "[times × " + type + " × species]",
+                                          "count",
+                                          CACHE_SIZE1, expected, 2);
+            else {
+                log.error("Unknown statistics encoding {}, should be dense or sparse",
+                          statistics_encoding);
+                throw new RuntimeException("unknown statistics encoding: " + statistics_encoding);
+            }
 
             if (periodic)
                 this.statistics_times =
@@ -818,7 +1382,7 @@ protected void initEventStatistics(boolean periodic, IGridCalc source, int expec
                                           CACHE_SIZE1);
 
             /* Only write stuff for the first trial to save money and time */
-            if (source.trial() > 0)
+            if (source.trial() != model_trial)
                 return;
 
             String[] descriptions = new String[expected];
@@ -840,35 +1404,36 @@ protected void initEventStatistics(boolean periodic, IGridCalc source, int expec
         protected void writeEventStatistics(double time, IGridCalc source)
             throws Exception
         {
-            final int[][] stats = source.getEventStatistics();
+            final EventStatistics stats = source.getEventStatistics();
             if (stats == null) {
                 log.debug("Not writing event statistics (no data)");
                 return;
             }
 
-            if (this.event_statistics == null) {
+            if (this.event_statistics == null && this.statistics_changes == null)
                 this.initEventStatistics(source.getSource().getStatisticsInterval() > 0,
                                          source,
-                                         stats.length);
-                if (this.event_statistics == null)
-                    return;
-            }
+                                         stats.size());
 
             log.debug("Writing event statistics at time {}", time);
-            {
-                extendExtensibleArray(this.event_statistics, 1);
-                long[] dims = this.event_statistics.getDims();
-                int[] data = (int[]) this.event_statistics.getData();
-                ArrayUtil._flatten(data, stats, 2, 0);
-                this.event_statistics.write(data);
-            }
+            if (this.statistics_changes != null) {
+                /* Rows which did not change since the last reset are zero */
+                final int[] rows = stats.dirtyRows();
+                if (this.statistics_buffer == null || this.statistics_buffer.length < 4 * rows.length)
+                    this.statistics_buffer = new long[4 * rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    this.statistics_buffer[4 * i] = this.statistics_count;
+                    this.statistics_buffer[4 * i + 1] = rows[i];
+                    this.statistics_buffer[4 * i + 2] = stats.events(rows[i]);
+                    this.statistics_buffer[4 * i + 3] = stats.extent(rows[i]);
+                }
+                this.statistics_changes.append(this.statistics_buffer, rows.length);
+                this.statistics_count++;
+            } else
+                this.event_statistics.append(stats.dense(), 1);
 
-            if (this.statistics_times != null) {
-                extendExtensibleArray(this.statistics_times, 1);
-                double[] data = (double[]) this.statistics_times.getData();
-                data[0] = time;
-                this.statistics_times.write(data);
-            }
+            if (this.statistics_times != null)
+                this.statistics_times.append(new double[]{ time }, 1);
         }
 
         protected void initEvents()
@@ -911,6 +1476,8 @@ protected void initEvents()
 
             long chunk_size = this.events_event.getChunkSize()[0];
             this.events_cache = new ArrayList<>((int)chunk_size);
+            this.events_ints = new int[CACHE_SIZE2];
+            this.events_doubles = new double[CACHE_SIZE2];
         }
 
         private boolean initEvents_warning = false;
@@ -927,53 +1494,29 @@ protected void flushEvents(double time, boolean all)
                 howmuch = Math.min(n - m, CACHE_SIZE2);
                 log.debug("Writing {} events at time {}", howmuch, time);
 
-                {
-                    extendExtensibleArray(this.events_time, howmuch);
-                    double[] data = (double[]) this.events_time.getData();
-                    for (int i = 0; i < howmuch; i++)
-                        data[i] = this.events_cache.get(m + i).time();
-                    this.events_time.write(data);
-                }
+                for (int i = 0; i < howmuch; i++)
+                    this.events_doubles[i] = this.events_cache.get(m + i).time();
+                this.events_time.append(this.events_doubles, howmuch);
 
-                {
-                    extendExtensibleArray(this.events_waited, howmuch);
-                    double[] data = (double[]) this.events_waited.getData();
-                    for (int i = 0; i < howmuch; i++)
-                        data[i] = this.events_cache.get(m + i).waited();
-                    this.events_waited.write(data);
-                }
+                for (int i = 0; i < howmuch; i++)
+                    this.events_doubles[i] = this.events_cache.get(m + i).waited();
+                this.events_waited.append(this.events_doubles, howmuch);
 
-                {
-                    extendExtensibleArray(this.events_original, howmuch);
-                    double[] data = (double[]) this.events_original.getData();
-                    for (int i = 0; i < howmuch; i++)
-                        data[i] = this.events_cache.get(m + i).original_wait();
-                    this.events_original.write(data);
-                }
+                for (int i = 0; i < howmuch; i++)
+                    this.events_doubles[i] = this.events_cache.get(m + i).original_wait();
+                this.events_original.append(this.events_doubles, howmuch);
 
-                {
-                    extendExtensibleArray(this.events_event, howmuch);
-                    int[] data = (int[]) this.events_event.getData();
-                    for (int i = 0; i < howmuch; i++)
-                        data[i] = this.events_cache.get(m + i).event_number();
-                    this.events_event.write(data);
-                }
+                for (int i = 0; i < howmuch; i++)
+                    this.events_ints[i] = this.events_cache.get(m + i).event_number();
+                this.events_event.append(this.events_ints, howmuch);
 
-                {
-                    extendExtensibleArray(this.events_kind, howmuch);
-                    int[] data = (int[]) this.events_kind.getData();
-                    for (int i = 0; i < howmuch; i++)
-                        data[i] = this.events_cache.get(m + i).kind().ordinal();
-                    this.events_kind.write(data);
-                }
+                for (int i = 0; i < howmuch; i++)
+                    this.events_ints[i] = this.events_cache.get(m + i).kind().ordinal();
+                this.events_kind.append(this.events_ints, howmuch);
 
-                {
-                    extendExtensibleArray(this.events_extent, howmuch);
-                    int[] data = (int[]) this.events_extent.getData();
-                    for (int i = 0; i < howmuch; i++)
-                        data[i] = this.events_cache.get(m + i).extent();
-                    this.events_extent.write(data);
-                }
+                for (int i = 0; i < howmuch; i++)
+                    this.events_ints[i] = this.events_cache.get(m + i).extent();
+                this.events_extent.append(this.events_ints, howmuch);
             }
 
             if (m == this.events_cache.size())
@@ -1043,6 +1586,9 @@ else if (pop_from_time < 0)
             }
         }
 
+        if (h5.get(path + "/keyframes") != null)
+            return loadSparsePopulation(h5, path, index);
+
         String poppath = path + "/population";
         Dataset obj = (Dataset) h5.get(poppath);
         if (obj == null) {
@@ -1074,6 +1620,68 @@ else if (pop_from_time < 0)
         return pop;
     }
 
+    /**
+     * Reconstruct snapshot index from the preceding keyframe
+     * and the changes written after it.
+     */
+    private static int[][] loadSparsePopulation(H5File h5, String path, int index)
+        throws Exception
+    {
+        Dataset obj = (Dataset) h5.get(path + "/keyframes");
+        obj.init();
+        final long[] dims = obj.getDims();
+        final long[] start = obj.getStartDims();
+        final long[] selected = obj.getSelectedDims();
+
+        final long[] attr = getAttribute(h5, path, "keyframe_interval");
+        final int interval = (int) attr[0];
+        final int keyframe = index / interval;
+
+        log.info("Retrieving population from {}:{} keyframe {} and changes until {}",
+                 h5, path, keyframe, index);
+        start[0] = keyframe;
+        selected[0] = 1;
+        selected[1] = dims[1];
+        selected[2] = dims[2];
+        int[] data = (int[]) obj.getData();
+        final int nspec = (int) dims[2];
+
+        /* Rows are ordered by snapshot, so the changes after the keyframe
+         * up to index are found by bisection, and only they are read. */
+        final Dataset changes = (Dataset) h5.get(path + "/changes");
+        changes.init();
+        final ChangeRows snapshots = new ChangeRows() {
+                @Override
+                public int snapshot(long row) throws Exception {
+                    return readRows(changes, row, 1)[0];
+                }
+            };
+        final long rows = changes.getDims()[0];
+        final long first = findChanges(snapshots, 0, rows, keyframe * interval);
+        final long last = findChanges(snapshots, first, rows, index);
+
+        log.debug("Applying changes {}-{} of {}", first, last, rows);
+        if (last > first)
+            applyChanges(data, readRows(changes, first, last - first));
+
+        return ArrayUtil.reshape(data, (int) dims[1], nspec);
+    }
+
+    /**
+     * Rows [first, first+count) of a two-dimensional int dataset.
+     */
+    private static int[] readRows(Dataset obj, long first, long count)
+        throws Exception
+    {
+        final long[] start = obj.getStartDims();
+        final long[] selected = obj.getSelectedDims();
+        start[0] = first;
+        start[1] = 0;
+        selected[0] = count;
+        selected[1] = obj.getDims()[1];
+        return (int[]) obj.read();
+    }
+
     protected static LoadModelResult _loadModel(File filename, int trial, Double pop_from_time)
         throws Exception
     {
@@ -1109,9 +1717,17 @@ protected static LoadModelResult _loadModel(File filename, int trial, Double pop
         final String[] species = getSomething(h5, "/model/species");
 
         int[][] pop = null;
-        if (!Double.isNaN(pop_from_time))
+        if (!Double.isNaN(pop_from_time)) {
             pop = loadPopulationFromTime(h5, trial, "__main__", pop_from_time);
 
+            /* Put the rows back in the order of discretization, the grid
+             * of the new simulation might be ordered differently */
+            if (h5.get("/model/original_numbers") != null) {
+                int[] original = getSomething(h5, "/model/original_numbers");
+                pop = VolumeGrid.inOriginalOrder(pop, original);
+            }
+        }
+
         /* Make sure file is closed so that we can overwrite it. */
         h5.close();
 
@@ -1131,6 +1747,7 @@ public static class LoadModelResult {
         final public String xml;
         final public long seed;
         final public String[] species;
+        /* Rows in the order of discretization, see VolumeGrid.getOriginalNumbers */
         final public int[][] population;
 
         LoadModelResult(String xml, long seed, String[] species, int[][] population) {
@@ -1163,6 +1780,15 @@ protected static void setAttribute(HObject obj, String name, long value)
         log.debug("Wrote metadata on {} {}={}", obj, name, value);
     }
 
+    protected static void setAttribute(HObject obj, String name, double value)
+        throws Exception
+    {
+        Attribute attr = new Attribute(name, double_t,
+                                       new long[] {}, new double[] {value});
+        obj.writeMetadata(attr);
+        log.debug("Wrote metadata on {} {}={}", obj, name, value);
+    }
+
     protected static <T> T getAttribute(H5File h5, String path, String name)
         throws Exception
     {
@@ -1222,6 +1848,19 @@ protected Dataset writeArray(String name, Group parent, int[][] items, int fill)
         return _writeArray(name, parent, int_t, dims, flat);
     }
 
+    protected Dataset writeArray(String name, Group parent, long[][] items)
+        throws Exception
+    {
+        int maxlength = ArrayUtil.maxLength(items);
+        long[] dims = {items.length, maxlength};
+
+        long[] flat = new long[items.length * maxlength];
+        for (int i = 0; i < items.length; i++)
+            System.arraycopy(items[i], 0, flat, i * maxlength, items[i].length);
+
+        return _writeArray(name, parent, long_t, dims, flat);
+    }
+
     protected Dataset writeVector(String name, Group parent, String... items)
         throws Exception
     {
@@ -1289,23 +1928,19 @@ protected void writeSpeciesVector(String name, String title,
         setAttribute(ds, "UNITS", "text");
     }
 
-    protected H5ScalarDS createExtensibleArray(String name, Group parent, Datatype type,
+    protected ExtensibleArray createExtensibleArray(String name, Group parent, Datatype type,
                                                String TITLE, String LAYOUT, String UNITS,
                                                long... dims)
         throws Exception
     {
         long[] maxdims = dims.clone();
         maxdims[0] = H5F_UNLIMITED;
-        long[] chunks = dims.clone();
 
-        /* avoid too small chunks */
-        chunks[0] = 1;
+        /* dims[0] is the number of rows written at once */
+        long[] chunks = DatasetLayout.chunks(dims, type.getDatatypeSize());
         if (ArrayUtil.product(chunks) == 0)
             throw new RuntimeException("Empty chunks: " + xJoined(chunks));
 
-        while (ArrayUtil.product(chunks) < 1024)
-            chunks[0] *= 2;
-
         /* do not write any data in the beginning */
         dims[0] = 0;
 
@@ -1320,26 +1955,32 @@ protected H5ScalarDS createExtensibleArray(String name, Group parent, Datatype t
          * invoked when writing data. */
         /*HDFView3.0: long dcpl_id = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);*/
         int dcpl_id = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
-        H5.H5Pset_shuffle(dcpl_id);
-        H5.H5Pset_deflate(dcpl_id, compression_level);
+        /* Level 0 (possibly picked by calibration) means no filters */
+        if (this.compression > 0) {
+            H5.H5Pset_shuffle(dcpl_id);
+            H5.H5Pset_deflate(dcpl_id, this.compression);
+        }
         H5.H5Pset_chunk(dcpl_id, dims.length, chunks);
 
         /* Create the dataset */
         final String path = parent.getFullName() + "/" + name;
-        H5.H5Dcreate(this.output.getFID(), path,
-                     type.toNative(), filespace_id,
-                     HDF5Constants.H5P_DEFAULT, dcpl_id, HDF5Constants.H5P_DEFAULT);
+        int dataset_id = H5.H5Dcreate(this.output.getFID(), path,
+                                      type.toNative(), filespace_id,
+                                      HDF5Constants.H5P_DEFAULT, dcpl_id, HDF5Constants.H5P_DEFAULT);
+        H5.H5Sclose(filespace_id);
+        H5.H5Pclose(dcpl_id);
+
         Dataset ds = new H5ScalarDS(this.output, path, "/");
         ds.init();
 
-        log.info("Created {} with dims=[{}] size=[{}] chunks=[{}]",
-                 name, xJoined(dims), xJoined(maxdims), xJoined(chunks));
+        log.info("Created {} with dims=[{}] size=[{}] chunks=[{}] compression={}",
+                 name, xJoined(dims), xJoined(maxdims), xJoined(chunks), this.compression);
 
         setAttribute(ds, "TITLE", TITLE);
         setAttribute(ds, "LAYOUT", LAYOUT);
         setAttribute(ds, "UNITS", UNITS);
 
-        return (H5ScalarDS) ds;
+        return new ExtensibleArray((H5ScalarDS) ds, dataset_id, this.direct);
     }
 
     protected static void extendExtensibleArray(H5ScalarDS ds, long howmuch)
@@ -1361,6 +2002,8 @@ protected static void extendExtensibleArray(H5ScalarDS ds, long howmuch)
             length = ((int[])data).length;
         else if (data instanceof double[])
             length = ((double[])data).length;
+        else if (data instanceof long[])
+            length = ((long[])data).length;
         else
             assert false;
         if (length < ArrayUtil.product(selected))
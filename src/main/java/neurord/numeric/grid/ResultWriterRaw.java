@@ -0,0 +1,461 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import neurord.model.IOutputSet;
+import neurord.numeric.morph.VolumeGrid;
+import neurord.util.ArrayUtil;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Writes populations, event statistics, and events as columns of raw
+ * little-endian numbers in memory-mapped files (see {@link MappedColumn}).
+ * There is no compression and no library in between, so writing a snapshot
+ * is a copy into memory. Use {@link ResultConverterRaw} to turn the output
+ * into the usual HDF5 file.
+ *
+ * Layout of &lt;output&gt;.raw/:
+ * <pre>
+ *   header.properties          format, version, byteorder
+ *   model.xml                  the serialized model
+ *   species.txt                names of all species, one per line
+ *   elements.txt               index, region, volume of each voxel
+ *   trialN/trial.properties    simulation_seed, numbers of records
+ *   trialN/&lt;set&gt;/elements.txt, species.txt   indices in the model
+ *   trialN/&lt;set&gt;/times.f64    [snapshot]
+ *   trialN/&lt;set&gt;/population.i32   [snapshot × element × species]
+ *   trialN/statistics/times.f64, counts.i64   [snapshot × event × 2]
+ *   trialN/events/times.f64, waited.f64, original_wait.f64,
+ *                 events.i32, kinds.i32, extents.i32   [event]
+ *   trialN/events/snapshots.i32   [batch × (__main__ snapshot, events so far)]
+ * </pre>
+ * Sets are the same as in the HDF5 output, with &lt;set&gt; = __main__
+ * for the output interval. Aggregation by region is applied by the converter,
+ * populations of all elements of the set are written here.
+ *
+ * Columns are only truncated to their contents when the trial is closed, so
+ * the numbers of records are kept in trial.properties: &lt;set&gt;.snapshots,
+ * statistics.snapshots, statistics.events, events.count, events.batches.
+ * They are updated whenever a column moves to a new window, and when the
+ * trial is closed, so the output of an interrupted run can be converted
+ * up to the last update.
+ */
+public class ResultWriterRaw implements ResultWriter {
+    public static final Logger log = LogManager.getLogger();
+
+    public static final String FORMAT = "neurord-raw";
+    public static final int VERSION = 3;
+
+    final static int window_size = Settings.getProperty("neurord.raw.window",
+                                                        "Size of memory mapped windows of raw output (MiB)",
+                                                        16);
+
+    final File directory;
+    final int window_bytes;
+
+    final String[] species;
+    final VolumeGrid grid;
+    final List<? extends IOutputSet> outputSets;
+
+    /* Sets are numbered like in writeOutputScheme + 1, 0 == __main__ */
+    final String[] idents;
+    final int[][] elements;
+    final int[][] ispecout;
+
+    final Map<Integer, Trial> trials = new HashMap<>();
+    private boolean header_written = false;
+    private int users = 0;
+
+    public ResultWriterRaw(File output,
+                           IOutputSet primary,
+                           List<? extends IOutputSet> outputSets,
+                           String[] species,
+                           VolumeGrid grid) {
+        this(output, primary, outputSets, species, grid, window_size << 20);
+    }
+
+    ResultWriterRaw(File output,
+                    IOutputSet primary,
+                    List<? extends IOutputSet> outputSets,
+                    String[] species,
+                    VolumeGrid grid,
+                    int window_bytes) {
+        this.directory = new File(output + ".raw");
+        this.window_bytes = window_bytes;
+        this.species = species;
+        this.grid = grid;
+        this.outputSets = outputSets;
+
+        final int n = 1 + (outputSets != null ? outputSets.size() : 0);
+        this.idents = new String[n];
+        this.elements = new int[n][];
+        this.ispecout = new int[n][];
+
+        this.idents[0] = "__main__";
+        this.elements[0] = ArrayUtil.iota(grid.size());
+        this.ispecout[0] = primary.getIndicesOfOutputSpecies(species);
+        for (int i = 1; i < n; i++) {
+            final IOutputSet set = outputSets.get(i - 1);
+            this.idents[i] = set.getIdentifier();
+            this.elements[i] = ResultWriterHDF5.outputElements(set, grid);
+            this.ispecout[i] = set.getIndicesOfOutputSpecies(species);
+        }
+    }
+
+    @Override
+    public File outputFile() {
+        return this.directory;
+    }
+
+    @Override
+    synchronized public void init(String magic) {
+        if (users++ > 0)
+            return;
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            log.error("Failed to create output directory {}", this.directory);
+            throw new RuntimeException("cannot create " + this.directory);
+        }
+    }
+
+    @Override
+    synchronized public void close() {
+        if (--users > 0)
+            return;
+
+        log.info("Closing raw output {}", this.directory);
+
+        try {
+            for (Trial t: new ArrayList<>(this.trials.values()))
+                t.close();
+            this.trials.clear();
+        } catch(IOException e) {
+            log.error("Failed to close raw output {}", this.directory, e);
+        }
+    }
+
+    static PrintWriter textFile(File file)
+        throws IOException
+    {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                                                      StandardCharsets.UTF_8));
+    }
+
+    static void writeLines(File file, String[] lines)
+        throws IOException
+    {
+        try (PrintWriter out = textFile(file)) {
+            for (String line: lines)
+                out.println(line);
+        }
+    }
+
+    static void writeLines(File file, int[] lines)
+        throws IOException
+    {
+        try (PrintWriter out = textFile(file)) {
+            for (int line: lines)
+                out.println(line);
+        }
+    }
+
+    static void writeProperties(File file, Properties props, String comment)
+        throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, comment);
+        }
+    }
+
+    protected void writeHeader(IGridCalc source)
+        throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty("format", FORMAT);
+        props.setProperty("version", "" + VERSION);
+        props.setProperty("byteorder", "little");
+        writeProperties(new File(this.directory, "header.properties"), props, "NeuroRD raw output");
+
+        try (PrintWriter out = textFile(new File(this.directory, "model.xml"))) {
+            out.print(source.getSource().serialize());
+        }
+
+        writeLines(new File(this.directory, "species.txt"), this.species);
+
+        final String[] regions = this.grid.getElementRegions();
+        final double[] volumes = this.grid.getElementVolumes();
+        try (PrintWriter out = textFile(new File(this.directory, "elements.txt"))) {
+            for (int i = 0; i < this.grid.size(); i++)
+                out.println(i + "\t" + regions[i] + "\t" + volumes[i]);
+        }
+    }
+
+    protected Trial getTrial(int trial)
+        throws IOException
+    {
+        Trial t = this.trials.get(trial);
+        if (t == null) {
+            t = new Trial(trial);
+            this.trials.put(trial, t);
+        }
+        return t;
+    }
+
+    @Override
+    synchronized public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {
+        try {
+            if (!this.header_written) {
+                this.writeHeader(source);
+                this.header_written = true;
+            }
+
+            Trial t = this.getTrial(source.trial());
+            t.seed = source.getSimulationSeed();
+            t.writeCounts();
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    synchronized public void writeOutputInterval(double time, IGridCalc source) {
+        writeOutputScheme(-1, time, source);
+    }
+
+    @Override
+    synchronized public void writeOutputScheme(int i, double time, IGridCalc source) {
+        try {
+            Trial t = this.getTrial(source.trial());
+            if (i == -1)
+                t.writeEvents(source);
+            t.writePopulation(i + 1, time, source);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    synchronized public void writeEventStatistics(double time, IGridCalc source) {
+        try {
+            this.getTrial(source.trial()).writeEventStatistics(time, source);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    synchronized public void closeTrial(IGridCalc source) {
+        Trial t = this.trials.remove(source.trial());
+        if (t != null)
+            try {
+                t.close();
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+    }
+
+    protected class Trial {
+        final int trial;
+        final File directory;
+        final MappedColumn[] times, populations;
+        final int[][] buffers;
+        final int[] snapshots;
+        long seed = -1;
+
+        MappedColumn stats_times, stats_counts;
+        int stats_snapshots = 0, stats_events = 0;
+
+        MappedColumn events_time, events_waited, events_original,
+            events_event, events_kind, events_extent, events_snapshots;
+        int events_count = 0, events_batches = 0;
+
+        /* The sum of mappings() of all columns when the counts were written */
+        private long mappings = 0;
+
+        protected Trial(int trial)
+            throws IOException
+        {
+            this.trial = trial;
+            this.directory = new File(ResultWriterRaw.this.directory, "trial" + trial);
+            if (!this.directory.isDirectory() && !this.directory.mkdir()) {
+                log.error("Failed to create directory {}", this.directory);
+                throw new RuntimeException("cannot create " + this.directory);
+            }
+
+            this.times = new MappedColumn[idents.length];
+            this.populations = new MappedColumn[idents.length];
+            this.buffers = new int[idents.length][];
+            this.snapshots = new int[idents.length];
+        }
+
+        MappedColumn column(File dir, String name)
+            throws IOException
+        {
+            return new MappedColumn(new File(dir, name), window_bytes);
+        }
+
+        List<MappedColumn> columns() {
+            final List<MappedColumn> columns = new ArrayList<>();
+            for (int i = 0; i < idents.length; i++) {
+                columns.add(this.times[i]);
+                columns.add(this.populations[i]);
+            }
+            columns.add(this.stats_times);
+            columns.add(this.stats_counts);
+            columns.add(this.events_time);
+            columns.add(this.events_waited);
+            columns.add(this.events_original);
+            columns.add(this.events_event);
+            columns.add(this.events_kind);
+            columns.add(this.events_extent);
+            columns.add(this.events_snapshots);
+            return columns;
+        }
+
+        void writeCounts()
+            throws IOException
+        {
+            Properties props = new Properties();
+            props.setProperty("simulation_seed", "" + this.seed);
+            for (int i = 0; i < idents.length; i++)
+                if (this.times[i] != null)
+                    props.setProperty(idents[i] + ".snapshots", "" + this.snapshots[i]);
+            props.setProperty("statistics.snapshots", "" + this.stats_snapshots);
+            props.setProperty("statistics.events", "" + this.stats_events);
+            props.setProperty("events.count", "" + this.events_count);
+            props.setProperty("events.batches", "" + this.events_batches);
+            writeProperties(new File(this.directory, "trial.properties"), props, "trial " + this.trial);
+        }
+
+        /**
+         * Update the counts if any column moved to a new window, i.e. the
+         * file has grown. Called after each complete record.
+         */
+        void checkpoint()
+            throws IOException
+        {
+            long mappings = 0;
+            for (MappedColumn column: this.columns())
+                if (column != null)
+                    mappings += column.mappings();
+
+            if (mappings != this.mappings) {
+                this.mappings = mappings;
+                this.writeCounts();
+            }
+        }
+
+        File subdirectory(String name) {
+            File dir = new File(this.directory, name);
+            if (!dir.isDirectory() && !dir.mkdir()) {
+                log.error("Failed to create directory {}", dir);
+                throw new RuntimeException("cannot create " + dir);
+            }
+            return dir;
+        }
+
+        protected void writePopulation(int i, double time, IGridCalc source)
+            throws IOException
+        {
+            final int[] elements = ResultWriterRaw.this.elements[i];
+            final int[] ispecout = ResultWriterRaw.this.ispecout[i];
+
+            if (this.times[i] == null) {
+                File dir = this.subdirectory(idents[i]);
+                writeLines(new File(dir, "elements.txt"), elements);
+                writeLines(new File(dir, "species.txt"), ispecout);
+                this.times[i] = this.column(dir, "times.f64");
+                this.populations[i] = this.column(dir, "population.i32");
+                this.buffers[i] = new int[elements.length * ispecout.length];
+            }
+
+            final int[] buffer = this.buffers[i];
+            for (int k = 0, n = 0; k < elements.length; k++)
+                for (int j = 0; j < ispecout.length; j++)
+                    buffer[n++] = source.getGridPartNumb(elements[k], ispecout[j]);
+
+            this.populations[i].append(buffer, 0, buffer.length);
+            this.times[i].append(time);
+            this.snapshots[i]++;
+            this.checkpoint();
+        }
+
+        protected void writeEventStatistics(double time, IGridCalc source)
+            throws IOException
+        {
+            final EventStatistics stats = source.getEventStatistics();
+            if (stats == null)
+                return;
+
+            if (this.stats_times == null) {
+                File dir = this.subdirectory("statistics");
+                this.stats_times = this.column(dir, "times.f64");
+                this.stats_counts = this.column(dir, "counts.i64");
+            }
+
+            this.stats_counts.append(stats.dense(), 0, 2 * stats.size());
+            this.stats_times.append(time);
+            this.stats_events = stats.size();
+            this.stats_snapshots++;
+            this.checkpoint();
+        }
+
+        protected void writeEvents(IGridCalc source)
+            throws IOException
+        {
+            final Collection<IGridCalc.Happening> events = source.getHappenings();
+            if (events == null)
+                return;
+
+            if (this.events_time == null) {
+                File dir = this.subdirectory("events");
+                this.events_time = this.column(dir, "times.f64");
+                this.events_waited = this.column(dir, "waited.f64");
+                this.events_original = this.column(dir, "original_wait.f64");
+                this.events_event = this.column(dir, "events.i32");
+                this.events_kind = this.column(dir, "kinds.i32");
+                this.events_extent = this.column(dir, "extents.i32");
+                this.events_snapshots = this.column(dir, "snapshots.i32");
+            }
+
+            for (IGridCalc.Happening h: events) {
+                this.events_time.append(h.time());
+                this.events_waited.append(h.waited());
+                this.events_original.append(h.original_wait());
+                this.events_event.append(h.event_number());
+                this.events_kind.append(h.kind().ordinal());
+                this.events_extent.append(h.extent());
+            }
+            this.events_count += events.size();
+
+            this.events_snapshots.append(this.snapshots[0]);
+            this.events_snapshots.append(this.events_count);
+            this.events_batches++;
+            this.checkpoint();
+        }
+
+        protected void close()
+            throws IOException
+        {
+            for (MappedColumn column: this.columns())
+                if (column != null)
+                    column.close();
+            this.writeCounts();
+        }
+    }
+}
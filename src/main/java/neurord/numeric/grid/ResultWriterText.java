@@ -17,12 +17,18 @@
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+
+/**
+ * Writes the text output. One writer is shared by all trials, which may
+ * run concurrently, and all methods which write to the shared {@link TextOutput}
+ * buffers (also those of siblings) are synchronized on this object.
+ */
 public class ResultWriterText implements ResultWriter {
     static final Logger log = LogManager.getLogger();
 
     final File outputFile;
 
-    OutputStreamWriter writer;
+    TextOutput writer;
 
     boolean closed = false;
     boolean continuation = false;
@@ -38,6 +44,10 @@ public class ResultWriterText implements ResultWriter {
     final List<? extends IOutputSet> outputSets;
     final VolumeGrid grid;
 
+    /* Elements and aggregations of outputSets */
+    final int[][] elementsout;
+    final RegionAggregation[] aggregations;
+
     public ResultWriterText(File output,
                             IOutputSet primary,
                             List<? extends IOutputSet> outputSets,
@@ -59,6 +69,23 @@ public ResultWriterText(File output,
         }
         this.outputSets = outputSets;
         this.nel = grid.size();
+
+        if (outputSets != null) {
+            this.elementsout = new int[outputSets.size()][];
+            this.aggregations = new RegionAggregation[outputSets.size()];
+
+            for (int i = 0; i < outputSets.size(); i++) {
+                final IOutputSet set = outputSets.get(i);
+                this.elementsout[i] = ResultWriterHDF5.outputElements(set, grid);
+
+                if (set.getAggregation() != null)
+                    this.aggregations[i] = new RegionAggregation(grid, this.elementsout[i],
+                                                                 set.getAggregation());
+            }
+        } else {
+            this.elementsout = null;
+            this.aggregations = null;
+        }
     }
 
     public boolean isContinuation() {
@@ -71,14 +98,14 @@ public File outputFile() {
     }
 
     @Override
-    public void init(String magic) {
+    synchronized public void init(String magic) {
         try {
             if (isContinuation()) {
-                writer = new OutputStreamWriter(new FileOutputStream(outputFile, true));
+                writer = new TextOutput(outputFile, true);
             } else {
-                writer = new OutputStreamWriter(new FileOutputStream(outputFile));
+                writer = new TextOutput(outputFile, false);
                 if (magic != null)
-                    writer.write(magic + "\n");
+                    writer.append(magic).append('\n');
             }
         } catch (Exception ex) {
             log.error("cannot create file writer", ex);
@@ -86,10 +113,10 @@ public void init(String magic) {
         }
     }
 
-    public void writeString(String sdat) {
+    synchronized public void writeString(String sdat) {
         if (writer != null)
             try {
-                writer.write(sdat, 0, sdat.length());
+                writer.append(sdat);
             } catch (Exception ex) {
                 log.error("cannot write:", ex);
                 throw new RuntimeException(ex);
@@ -97,7 +124,7 @@ public void writeString(String sdat) {
     }
 
     @Override
-    public void close() {
+    synchronized public void close() {
         if (!closed) {
             log.info("Closing output file {}", this.outputFile);
 
@@ -124,7 +151,7 @@ public ResultWriterText getSibling(String extn, String magic) {
         return ret;
     }
 
-    public ResultWriterText getRawSibling(String extn) {
+    synchronized public ResultWriterText getRawSibling(String extn) {
         ResultWriterText ret = siblings.get(extn);
         log.debug("getRawSibling {} → {}", extn, ret);
 
@@ -235,7 +262,7 @@ public void pruneFrom(String match, int idx, double value) {
     }
 
     @Override
-    public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {
+    synchronized public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {
         assert vgrid.isCurved() || vgrid.isCuboid();
 
         if (!this.isContinuation())
@@ -249,9 +276,9 @@ public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {
         log.info("Written elements mesh file");
 
         if (this.outputSets != null)
-            for (IOutputSet out: this.outputSets) {
-                String sibsuf = "-" + out.getIdentifier() + "-conc.txt";
-                String shead = getGridConcsHeadings_dumb(out, vgrid, source);
+            for (int i = 0; i < this.outputSets.size(); i++) {
+                String sibsuf = "-" + this.outputSets.get(i).getIdentifier() + "-conc.txt";
+                String shead = getGridConcsHeadings_dumb(i, vgrid, source);
                 StringTokenizer st = new StringTokenizer(shead);
                 int nt = st.countTokens();
 
@@ -265,103 +292,127 @@ public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {
             }
     }
 
-    private String formatNumber(int i, int outj, IGridCalc source) {
-        if (writeConcentration) {
-            double conc =  source.getGridPartConc(i, outj);
-            return stringd(conc);
-        } else {
-            int numb = source.getGridPartNumb(i, outj);
-            return stringi(numb);
-        }
+    private void formatNumber(TextOutput out, int i, int outj, IGridCalc source)
+        throws IOException
+    {
+        if (writeConcentration)
+            out.stringd(source.getGridPartConc(i, outj));
+        else
+            out.stringi(source.getGridPartNumb(i, outj));
     }
 
-    private String getGridConcsText(double time, int[] ispecout, IGridCalc source) {
+    private void writeGridConcs(double time, int[] ispecout, IGridCalc source)
+        throws IOException
+    {
         final String[] species = source.getSource().getSpecies();
-        StringBuffer sb = new StringBuffer();
         // TODO tag specific to integer quantities;
         int nspecout = ispecout.length;
-        if (nspecout == 0)
-            return "";
+        if (nspecout == 0 || this.writer == null)
+            return;
 
-        sb.append("gridConcentrations " + this.nel + " " + nspecout + " " + time + " ");
+        this.writer.append("gridConcentrations ").append(this.nel)
+            .append(' ').append(nspecout)
+            .append(' ').append(Double.toString(time)).append(' ');
         for (int i = 0; i < nspecout; i++)
-            sb.append(species[ispecout[i]] + " ");
-        sb.append("\n");
+            this.writer.append(species[ispecout[i]]).append(' ');
+        this.writer.append('\n');
 
         for (int i = 0; i < this.nel; i++) {
             for (int j = 0; j < nspecout; j++)
-                sb.append(this.formatNumber(i, ispecout[j], source));
-            sb.append("\n");
+                this.formatNumber(this.writer, i, ispecout[j], source);
+            this.writer.append('\n');
         }
-        return sb.toString();
     }
 
     @Override
-    public void writeOutputInterval(double time, IGridCalc source) {
-        String concs = this.getGridConcsText(time, this.ispecout, source);
-        this.writeString(concs);
+    synchronized public void writeOutputInterval(double time, IGridCalc source) {
+        try {
+            this.writeGridConcs(time, this.ispecout, source);
+        } catch (IOException ex) {
+            log.error("cannot write:", ex);
+            throw new RuntimeException(ex);
+        }
     }
 
-    private String getGridConcsPlainText_dumb(IOutputSet output, double time, IGridCalc source) {
+    private void writeGridConcsPlainText_dumb(TextOutput out, int n, double time, IGridCalc source)
+        throws IOException
+    {
         final String[] species = source.getSource().getSpecies();
-        final VolumeGrid grid = source.getSource().getVolumeGrid();
-
-        final String region = output.getRegion();
+        final IOutputSet output = this.outputSets.get(n);
         final int[] indices = output.getIndicesOfOutputSpecies(species);
 
-        StringBuffer sb = new StringBuffer();
-        sb.append(stringd(time));
+        out.stringd(time);
+
+        final RegionAggregation agg = this.aggregations[n];
+        if (agg != null) {
+            double[][] values = new double[agg.getRegions().length][indices.length];
+            agg.aggregate(values, indices, source);
+            for (int j = 0; j < indices.length; j++)
+                for (double[] row: values)
+                    if (agg.isConcentration())
+                        out.stringd(row[j]);
+                    else
+                        out.stringi((int) row[j]);
+            out.append('\n');
+            return;
+        }
 
         for (int specie: indices)
-            for (int i = 0; i < this.nel; i++)
-                if (region == null || region.equals(grid.getElementRegion(i)))
-                    sb.append(this.formatNumber(i, specie, source));
+            for (int i: this.elementsout[n])
+                this.formatNumber(out, i, specie, source);
 
-        sb.append("\n");
-        return sb.toString();
+        out.append('\n');
     }
 
-    private String getGridConcsHeadings_dumb(IOutputSet output, VolumeGrid vgrid, IGridCalc source) {
+    private String getGridConcsHeadings_dumb(int n, VolumeGrid vgrid, IGridCalc source) {
         final String[] species = source.getSource().getSpecies();
         final boolean[] submembranes = vgrid.getSubmembranes();
         final String[] regionLabels = vgrid.getRegionLabels();
         final VolumeGrid grid = source.getSource().getVolumeGrid();
+        final IOutputSet output = this.outputSets.get(n);
 
         StringBuffer sb = new StringBuffer();
         sb.append("time");
 
         final int[] indices = output.getIndicesOfOutputSpecies(species);
-        final String region = output.getRegion();
+
+        if (this.aggregations[n] != null) {
+            String[] regions = this.aggregations[n].getRegions();
+            for (int specie: indices)
+                for (String region: regions)
+                    sb.append(" Region_" + region + "_Spc_" + species[specie]);
+            sb.append("\n");
+            return sb.toString();
+        }
 
         for (int specie: indices)
-            for (int i = 0; i < this.nel; i++)
-                if (region == null || region.equals(grid.getElementRegion(i))) {
-                    sb.append(" Vol_" + i);
-                    sb.append("_" + grid.getElementRegion(i));
-
-                    String tempLabel = vgrid.getLabel(i);
-
-                    if (vgrid.getGroupID(i) != null) {
-                        sb.append("." + vgrid.getGroupID(i));
-                    } else if (tempLabel != null) {
-                        if (tempLabel.indexOf(".") > 0)
-                            sb.append("." + tempLabel.substring(0, tempLabel.indexOf(".")));
-                    }
-                    if (submembranes[i])
-                        sb.append("_submembrane");
-                    else
-                        sb.append("_cytosol");
-
-                    if (tempLabel != null) {
-                        if (tempLabel.indexOf(".") > 0)
-                            sb.append("_" + tempLabel.substring(tempLabel.indexOf(".") + 1,
-                                                                tempLabel.length()));
-                        else
-                            sb.append("_" + vgrid.getLabel(i));
-                    }
+            for (int i: this.elementsout[n]) {
+                sb.append(" Vol_" + i);
+                sb.append("_" + grid.getElementRegion(i));
+
+                String tempLabel = vgrid.getLabel(i);
 
-                    sb.append("_Spc_" + species[specie]);
+                if (vgrid.getGroupID(i) != null) {
+                    sb.append("." + vgrid.getGroupID(i));
+                } else if (tempLabel != null) {
+                    if (tempLabel.indexOf(".") > 0)
+                        sb.append("." + tempLabel.substring(0, tempLabel.indexOf(".")));
                 }
+                if (submembranes[i])
+                    sb.append("_submembrane");
+                else
+                    sb.append("_cytosol");
+
+                if (tempLabel != null) {
+                    if (tempLabel.indexOf(".") > 0)
+                        sb.append("_" + tempLabel.substring(tempLabel.indexOf(".") + 1,
+                                                            tempLabel.length()));
+                    else
+                        sb.append("_" + vgrid.getLabel(i));
+                }
+
+                sb.append("_Spc_" + species[specie]);
+            }
 
         sb.append("\n");
         return sb.toString();
@@ -369,18 +420,25 @@ private String getGridConcsHeadings_dumb(IOutputSet output, VolumeGrid vgrid, IG
 
 
     @Override
-    public void writeOutputScheme(int i, double time, IGridCalc source) {
+    synchronized public void writeOutputScheme(int i, double time, IGridCalc source) {
         IOutputSet output = this.outputSets.get(i);
         String fnamepart = output.getIdentifier();
         log.debug("writeOutputScheme: i={} time={} nel={} fnamepart={}", i, time, this.nel, fnamepart);
-        String text = getGridConcsPlainText_dumb(output, time, source);
-        this.writeToSiblingFile(text, "-" + fnamepart + "-conc.txt");
+        ResultWriterText rw = this.getRawSibling("-" + fnamepart + "-conc.txt");
+        if (rw.writer != null)
+            try {
+                this.writeGridConcsPlainText_dumb(rw.writer, i, time, source);
+            } catch (IOException ex) {
+                log.error("cannot write:", ex);
+                throw new RuntimeException(ex);
+            }
     }
 
     @Override
     public void writeEventStatistics(double time, IGridCalc source) {}
 
     // let's park those two here for now
+    // (TextOutput.stringd and stringi write the same without creating strings)
     public static String stringd(double d) {
         if (d == 0.0)
             return "0.0 ";
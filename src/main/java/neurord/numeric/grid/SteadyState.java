@@ -0,0 +1,313 @@
+package neurord.numeric.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import neurord.numeric.morph.VolumeGrid;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Detects when the populations of selected species stop changing.
+ *
+ * The total numbers of particles of each watched species (in each watched
+ * region, or in the whole grid) are sampled after every step of the
+ * calculation, and means and variances are collected over windows of fixed
+ * length. Each sample is weighted by the time until the next one, i.e. for
+ * how long the population stayed like that, so the means do not depend on
+ * the pattern of step lengths. The trial is considered to be at steady state
+ * when the means in consecutive windows differ by less than the relative
+ * tolerance or by less than two standard errors (using the effective number
+ * of samples), for all watched quantities, a given number of times in a row.
+ *
+ * At that point the calculation either stops, or makes all output
+ * intervals longer. The time of the decision is recorded in the output.
+ */
+public class SteadyState {
+    public static final Logger log = LogManager.getLogger();
+
+    final static String[] watched_species =
+        Settings.getPropertyList("neurord.steady_state.species",
+                                 "Detect steady state of those species (* for all, empty to disable)");
+    final static String[] watched_regions =
+        Settings.getPropertyList("neurord.steady_state.regions",
+                                 "Watch the totals in those regions (empty for the whole grid)");
+    final static double window_length =
+        Settings.getProperty("neurord.steady_state.window",
+                             "Length of windows compared to detect steady state (ms)",
+                             100.0);
+    final static double tolerance =
+        Settings.getProperty("neurord.steady_state.tolerance",
+                             "Largest relative change of window means at steady state",
+                             0.02);
+    final static int required =
+        Settings.getProperty("neurord.steady_state.windows",
+                             "How many consecutive windows must agree",
+                             2);
+    final static String action =
+        Settings.getProperty("neurord.steady_state.action",
+                             "What to do at steady state (stop, coarsen)",
+                             "stop");
+    final static double coarsen =
+        Settings.getProperty("neurord.steady_state.coarsen",
+                             "Factor by which output intervals grow at steady state (action=coarsen)",
+                             10.0);
+
+    private final IGridCalc calc;
+    private final int[] species;
+    private final int[][] elements;     /* per watched region, null for the whole grid */
+    private final String[] names;
+    private final double window, tol;
+    private final int windows;
+
+    /* Sums weighted by duration in the current window */
+    private final double[] sum, sumsq;
+    private double weight = 0, weight2 = 0;
+    private int count = 0;
+    private double window_end;
+
+    /* The last sample, which has not been weighted yet */
+    private final double[] last;
+    private double last_time = Double.NaN;
+
+    double[] prev_mean, prev_var;
+    private double prev_count;
+    private int agreeing = 0;
+
+    private double decision = Double.NaN;
+
+    /**
+     * Watch the totals of species in each of elements (null for the whole
+     * grid) in windows of the given length. names has one entry for each
+     * region and species, in that order.
+     */
+    SteadyState(IGridCalc calc, int[] species, int[][] elements, String[] names,
+                double start, double window, double tol, int windows) {
+        this.calc = calc;
+        this.species = species;
+        this.elements = elements;
+        this.names = names;
+        this.window = window;
+        this.tol = tol;
+        this.windows = windows;
+
+        int n = this.elements.length * this.species.length;
+        assert names.length == n;
+
+        this.sum = new double[n];
+        this.sumsq = new double[n];
+        this.last = new double[n];
+        this.window_end = start + window;
+
+        log.info("Trial {}: watching {} for steady state", calc.trial(), this.names);
+    }
+
+    static int[] watchedSpecies(String[] species_names) {
+        if (watched_species.length == 1 && watched_species[0].equals("*")) {
+            int[] species = new int[species_names.length];
+            for (int i = 0; i < species.length; i++)
+                species[i] = i;
+            return species;
+        }
+
+        int[] species = new int[watched_species.length];
+        List<String> all = Arrays.asList(species_names);
+        for (int i = 0; i < species.length; i++) {
+            species[i] = all.indexOf(watched_species[i]);
+            if (species[i] < 0) {
+                log.error("Steady state species {} is not in {}", watched_species[i], all);
+                throw new RuntimeException("unknown species " + watched_species[i]);
+            }
+        }
+        return species;
+    }
+
+    static String[] watchedNames(String[] species_names, int[] species) {
+        int regions = Math.max(watched_regions.length, 1);
+        String[] names = new String[regions * species.length];
+        for (int r = 0; r < regions; r++)
+            for (int s = 0; s < species.length; s++)
+                names[r * species.length + s] =
+                    species_names[species[s]] +
+                    (watched_regions.length > 0 ? "@" + watched_regions[r] : "");
+        return names;
+    }
+
+    static int[][] watchedElements(VolumeGrid grid) {
+        if (watched_regions.length == 0)
+            return new int[][]{ null };
+
+        int[][] elements = new int[watched_regions.length][];
+        String[] regions = grid.getElementRegions();
+        for (int r = 0; r < watched_regions.length; r++) {
+            List<Integer> list = new ArrayList<>();
+            for (int el = 0; el < regions.length; el++)
+                if (watched_regions[r].equals(regions[el]))
+                    list.add(el);
+            if (list.isEmpty()) {
+                log.error("Steady state region {} has no voxels", watched_regions[r]);
+                throw new RuntimeException("unknown region " + watched_regions[r]);
+            }
+            elements[r] = new int[list.size()];
+            for (int i = 0; i < list.size(); i++)
+                elements[r][i] = list.get(i);
+        }
+        return elements;
+    }
+
+    public static boolean enabled() {
+        return watched_species.length > 0;
+    }
+
+    /**
+     * Whether output intervals of trials which reach steady state
+     * are made longer, so different trials have different output times.
+     */
+    public static boolean coarsens() {
+        return enabled() && action.equals("coarsen");
+    }
+
+    /**
+     * Create a detector for calc, or return null if it is disabled.
+     */
+    public static SteadyState create(GridCalc calc) {
+        if (watched_species.length == 0)
+            return null;
+
+        if (!action.equals("stop") && !action.equals("coarsen")) {
+            log.error("Unknown steady state action {}, should be stop or coarsen", action);
+            throw new RuntimeException("unknown steady state action: " + action);
+        }
+
+        int[] species = watchedSpecies(calc.species);
+        return new SteadyState(calc, species,
+                               watchedElements(calc.getSource().getVolumeGrid()),
+                               watchedNames(calc.species, species),
+                               calc.getSource().getStartTime(),
+                               window_length, tolerance, required);
+    }
+
+    /**
+     * Record the state at time. Returns true once, when steady
+     * state is reached.
+     */
+    public boolean sample(double time) {
+        if (this.reached())
+            return false;
+
+        /* The last sample lasted until now */
+        final double dt = time - this.last_time;
+        if (dt > 0) {
+            for (int i = 0; i < this.last.length; i++) {
+                this.sum[i] += dt * this.last[i];
+                this.sumsq[i] += dt * this.last[i] * this.last[i];
+            }
+            this.weight += dt;
+            this.weight2 += dt * dt;
+            this.count++;
+        }
+
+        if (time >= this.window_end && this.count > 1) {
+            if (this.closeWindow()) {
+                this.decision = time;
+                return true;
+            }
+            while (this.window_end <= time)
+                this.window_end += this.window;
+        }
+
+        final int nspec = this.species.length;
+        for (int r = 0; r < this.elements.length; r++)
+            for (int s = 0; s < nspec; s++) {
+                double total = 0;
+                if (this.elements[r] == null)
+                    for (int el = 0; el < this.calc.getNumberElements(); el++)
+                        total += this.calc.getGridPartNumb(el, this.species[s]);
+                else
+                    for (int el: this.elements[r])
+                        total += this.calc.getGridPartNumb(el, this.species[s]);
+
+                this.last[r * nspec + s] = total;
+            }
+        this.last_time = time;
+
+        return false;
+    }
+
+    private boolean closeWindow() {
+        final int n = this.sum.length;
+        /* The number of equally weighted samples with the same variance of the mean */
+        final double effective = this.weight * this.weight / this.weight2;
+        double[] mean = new double[n], var = new double[n];
+        for (int i = 0; i < n; i++) {
+            mean[i] = this.sum[i] / this.weight;
+            var[i] = Math.max(this.sumsq[i] / this.weight - mean[i] * mean[i], 0)
+                * effective / (effective - 1);
+        }
+
+        if (this.prev_mean != null &&
+            steady(this.prev_mean, this.prev_var, this.prev_count, mean, var, effective, this.tol))
+            this.agreeing++;
+        else
+            this.agreeing = 0;
+
+        log.debug("Trial {}: window ending at {}: means {}, {} in a row",
+                  this.calc.trial(), this.window_end, mean, this.agreeing);
+
+        this.prev_mean = mean;
+        this.prev_var = var;
+        this.prev_count = effective;
+        Arrays.fill(this.sum, 0);
+        Arrays.fill(this.sumsq, 0);
+        this.weight = this.weight2 = 0;
+        this.count = 0;
+
+        return this.agreeing >= this.windows;
+    }
+
+    /**
+     * Returns true if the means of all quantities in two windows
+     * differ by less than the relative tolerance or two standard errors.
+     */
+    static boolean steady(double[] mean1, double[] var1, double n1,
+                          double[] mean2, double[] var2, double n2,
+                          double tolerance) {
+        for (int i = 0; i < mean1.length; i++) {
+            double diff = Math.abs(mean2[i] - mean1[i]);
+            double relative = tolerance * Math.max(Math.abs(mean1[i]), Math.abs(mean2[i]));
+            double noise = 2 * Math.sqrt(var1[i] / n1 + var2[i] / n2);
+            if (diff > Math.max(relative, noise))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean reached() {
+        return !Double.isNaN(this.decision);
+    }
+
+    /**
+     * The time when steady state was detected, or NaN.
+     */
+    public double time() {
+        return this.decision;
+    }
+
+    public String action() {
+        return action;
+    }
+
+    public boolean stop() {
+        return action.equals("stop");
+    }
+
+    /**
+     * The factor by which output intervals grow after steady state.
+     */
+    public double coarsening() {
+        return coarsen;
+    }
+}
@@ -28,10 +28,13 @@
 
 import neurord.model.SDRun;
 import neurord.numeric.BaseCalc;
+import neurord.numeric.chem.StimulationTable;
+import neurord.numeric.math.RandomGenerator;
 import neurord.numeric.morph.VolumeGrid;
 import neurord.numeric.stochastic.StepGenerator;
 import neurord.util.ArrayUtil;
 import neurord.util.Logging;
+import neurord.util.LogLimit;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -82,11 +85,15 @@ public class SteppedStochasticGridCalc extends StochasticGridCalc {
     double lndt;
 
     StepGenerator stepper;
-    int nngowarn = 0;         //added in v2.1.1 by BHK to keep track of a different type of warning
 
     double[][] pSharedOut;
     double[][][] fSharedExit;
 
+    /* Particles moved to each neighbor in one diffusion step */
+    int[] moved;
+
+    StimulationTable.Timeline stimulations;
+
     long event_count = 0;
 
     public SteppedStochasticGridCalc(int trial, SDRun sdm) {
@@ -125,6 +132,10 @@ public final void init() {
         // for steps of given n, p
         stepper = new StepGenerator(random);
 
+        stimulations = this.sdRun.getStimulationTable().timeline(this.sdRun.getStimulationTargets(),
+                                                                 this.sdRun.getStartTime(),
+                                                                 this.sdRun.getEndTime());
+
         log.info("Using {} destination allocation", algoID);
         // FIXME: is independent supported
 
@@ -140,6 +151,7 @@ public final void init() {
                     maxnn = nn;
             }
         log.info("max no of neighbors for a single element is {}", maxnn);
+        moved = new int[maxnn];
 
         for (int iel = 0; iel < nel; iel++) {
             for (int k = 0; k < nspec; k++) {
@@ -185,35 +197,33 @@ public final void init() {
     @Override
     public double advance(double tnow, double tend) {
         // add in any injections
-        double[][] stims = this.sdRun.getStimulationTable().getStimsForInterval(tnow, dt);
-        for (int i = 0; i < stims.length; i++) {
-            double[] astim = stims[i];
-            for (int j = 0; j < astim.length; j++) {
-                if (astim[j] > 0.) {
-                    // the stimulus could be spread over a number of elements
-                    // as yet, assume equal probability of entering any of these
-                    // elements (TODO)
-                    // the random < asr ensures we get the right number of
-                    // particles even the average entry per volume is less than
-                    // one
-                    // TODO - allow stim type (deterministic or poisson etc) in
-                    // config;
-
-                    int[][] stimtargets = this.sdRun.getStimulationTargets();
-                    int nk = stimtargets[i].length;
-                    if (nk > 0) {
-                        double as = astim[j] / nk;
-
-                        for (int k = 0; k < nk; k++) {
-                            int nin = this.random.round(as);
-                            int tgt = stimtargets[i][k];
-                            wkA[tgt][j] += nin;
-                        }
-                    }
-
-                    this.event_count ++;
+        final int nactive = this.stimulations.step(tnow, dt);
+        for (int i = 0; i < nactive; i++) {
+            final int stim = this.stimulations.active(i);
+            final int sp = this.stimulations.species(stim);
+            final int[] stimtargets = this.stimulations.targets(stim);
+
+            // the stimulus could be spread over a number of elements
+            // as yet, assume equal probability of entering any of these
+            // elements (TODO)
+            // the random < asr ensures we get the right number of
+            // particles even the average entry per volume is less than
+            // one
+            // TODO - allow stim type (deterministic or poisson etc) in
+            // config;
+
+            int nk = stimtargets.length;
+            if (nk > 0) {
+                double as = this.stimulations.amount(i) / nk;
+
+                for (int k = 0; k < nk; k++) {
+                    int nin = this.random.round(as);
+                    int tgt = stimtargets[k];
+                    wkA[tgt][sp] += nin;
                 }
             }
+
+            this.event_count ++;
         }
 
         // initialize wkB to the current values.
@@ -230,19 +240,28 @@ public double advance(double tnow, double tend) {
                     int np0 = wkA[iel][k];
 
                     if (np0 > 0) {
+                        final int ngo;
 
                         switch(algoID) {
                         case INDEPENDENT:
                         case SHARED:
-                            parallelAndSharedDiffusionStep(iel, k);
+                            ngo = parallelAndSharedDiffusionStep(stepper, random, iel, k, np0, moved);
                             break;
                         case PARTICLE:
-                            particleDiffusionStep(iel, k);
+                            ngo = particleDiffusionStep(random, iel, k, np0, moved);
                             break;
 
                         default:
-                            assert false;
+                            throw new AssertionError(algoID);
                         }
+
+                        final int[] inbr = neighbors[iel];
+                        wkB[iel][k] -= ngo;
+                        for (int j = 0; j < inbr.length; j++)
+                            wkB[inbr[j]][k] += moved[j];
+                        if (wkB[iel][k] < 0)
+                            log.warn("diffusion: population {} of species {} in element {} is negative",
+                                     wkB[iel][k], k, iel);
                     }
 
                     this.event_count ++;
@@ -261,7 +280,7 @@ public double advance(double tnow, double tend) {
             int[] nstart = wkB[iel], nend = wkA[iel];
 
             for (int ireac = 0; ireac < rtab.getNReaction(); ireac++) {
-                reactionStep(nstart, nend, iel, ireac);
+                reactionStep(nstart, nend, 0, 1, iel, ireac, stepper);
                 this.event_count ++;
             }
         }
@@ -278,6 +297,9 @@ public void footer() {
         super.footer();
         log.log(Logging.NOTICE,
                 "Leapt {} times", this.eventCount());
+        this.too_large_warnings.report();
+        this.out_of_particles_warnings.report();
+        this.multinomial_warnings.report();
     }
 
     @Override
@@ -285,33 +307,46 @@ protected long eventCount() {
         return this.event_count;
     }
 
-    private int reactionStep_nwarn1, reactionStep_nwarn2;
+    final LogLimit too_large_warnings = new LogLimit(log, "p too large");
+    final LogLimit out_of_particles_warnings = new LogLimit(log, "reaction ran out of particles");
+    final LogLimit multinomial_warnings = new LogLimit(log, "multinomial ngo2 > ngo", 10);
+
+    /*
+     * The steps below work on one element of one trial. Populations are
+     * passed in as arrays with the population of species sp at
+     * [off + sp * stride], so that they can be used both for the rows of
+     * wkA and wkB (off=0, stride=1) and for the populations of trials run
+     * together by LockstepStochasticGridCalc, which are interleaved.
+     */
 
-    protected void reactionStep(int[] nstart, int[] nend, int iel, int ireac) {
+    /**
+     * Reaction ireac in element iel. The propensity is calculated from
+     * nstart, and the reactants and products are updated in nend.
+     */
+    protected void reactionStep(int[] nstart, int[] nend, int off, int stride,
+                                int iel, int ireac, StepGenerator stepper) {
         int[] ri = reactantIndices[ireac];
         int[] pi = productIndices[ireac];
 
         int[] rs = reactantStoichiometry[ireac];
         int[] ps = productStoichiometry[ireac];
 
-        Object[] java_sucks = calculatePropensity(ri, pi, rs, ps,
-                                                  reactantPowers[ireac],
-                                                  lnrates[ireac], lnvolumes[iel],
-                                                  nstart);
-        double lnp = (Double)java_sucks[0];
-        int n = (Integer)java_sucks[1];
+        int n = reactionExtent(ri, rs, nstart, off, stride);
+        double lnp = lnPropensity(ri, rs, reactantPowers[ireac],
+                                  lnrates[ireac], lnvolumes[iel],
+                                  nstart, off, stride, n);
 
         lnp += lndt;
 
         if (lnp > 0) {
-            if (++reactionStep_nwarn1 < 500)
+            if (too_large_warnings.allow())
                 log.warn("p too large at element {} reaction {}: capping {} to 100%",
                          iel, ireac, Math.exp(lnp));
             lnp = 0;
         }
 
         if (n > 0) {
-            int ngo = this.stepper.versatile_ngo(n, Math.exp(lnp));
+            int ngo = stepper.versatile_ngo(n, Math.exp(lnp));
 
             if (rtab.getRates()[ireac] == 0 && ngo > 0)
                 log.warn("n={} -> ngo={} (lnp={})", n, ngo, lnp);
@@ -319,9 +354,9 @@ protected void reactionStep(int[] nstart, int[] nend, int iel, int ireac) {
             /* Update the new quantities in npn */
 
             if (ri.length > 0) {
-                int navail = nend[ri[0]] / rs[0];
+                int navail = nend[off + ri[0] * stride] / rs[0];
                 for (int k = 1; k < ri.length; k++) {
-                    int navail2 = nend[ri[k]] / rs[k];
+                    int navail2 = nend[off + ri[k] * stride] / rs[k];
                     if (navail2 < navail)
                         navail = navail2;
                 }
@@ -333,7 +368,7 @@ protected void reactionStep(int[] nstart, int[] nend, int iel, int ireac) {
                      * or use a binomial to share them out
                      * or use a smaller timestep.
                      */
-                    if (++reactionStep_nwarn2 < 500)
+                    if (out_of_particles_warnings.allow())
                         log.warn("reaction {} ran out of particles - need {} but have {}",
                                  ireac, ngo, navail);
                     ngo = navail;
@@ -342,27 +377,37 @@ protected void reactionStep(int[] nstart, int[] nend, int iel, int ireac) {
 
             if (ngo > 0) {
                 for (int k = 0; k < ri.length; k++) {
-                    nend[ri[k]] -= ngo * rs[k];
-                    if (nend[ri[k]] < 0) {
-                        log.error("nend is negative: {}", nend);
+                    final int idx = off + ri[k] * stride;
+                    nend[idx] -= ngo * rs[k];
+                    if (nend[idx] < 0) {
+                        log.error("population of species {} in element {} is negative: {}",
+                                  ri[k], iel, nend[idx]);
                         log.info("reaction {}: ri={} pi={} rs={} ps={}",
                                  ireac, ri, pi, rs, ps);
                     }
                 }
 
                 for (int k = 0; k < pi.length; k++)
-                    nend[pi[k]] += ngo * ps[k];
+                    nend[off + pi[k] * stride] += ngo * ps[k];
             }
         }
     }
 
     // WK 8 28 2007
-    private final void parallelAndSharedDiffusionStep(int iel, int k) {
-        int np0 = wkA[iel][k];
+    /**
+     * Diffusion of np0 particles of species k out of element iel.
+     * The numbers of particles moving to each neighbor are stored in moved.
+     *
+     * @return the number of particles leaving
+     */
+    final int parallelAndSharedDiffusionStep(StepGenerator stepper, RandomGenerator random,
+                                             int iel, int k, int np0, int[] moved) {
         int inbr[] = neighbors[iel];
         double[] fshare = fSharedExit[iel][k];
 
-        int ngo = this.stepper.versatile_ngo(np0, pSharedOut[iel][k]);
+        Arrays.fill(moved, 0, inbr.length, 0);
+
+        int ngo = stepper.versatile_ngo(np0, pSharedOut[iel][k]);
         assert ngo >= 0;
 
         /* if (ngo < (# of neighbors)*SHARED_DIFF_PARTICLES) then do
@@ -373,90 +418,101 @@ private final void parallelAndSharedDiffusionStep(int iel, int k) {
         if (ngo <= inbr.length * SHARED_DIFF_PARTICLES) {
             /* SHARED diffusion */
 
-            wkB[iel][k] -= ngo;
             for (int i = 0; i < ngo; i++) {
                 double r = random.random();
                 int io = 0;
                 while (r > fshare[io])
                     io++;
 
-                wkB[inbr[io]][k] ++;
+                moved[io] ++;
             }
+
+            return ngo;
         } else {
             /* MULTINOMIAL diffusion */
 
+            final int last = inbr.length - 1;
+            int left = ngo;
             double prev = 0;
-            for (int j = 0; j < inbr.length - 1; j++) {
-                double pgoTmp = (fSharedExit[iel][k][j] - prev)
-                              / (fSharedExit[iel][k][inbr.length-1] - prev);
-                prev = fSharedExit[iel][k][j];
+            for (int j = 0; j < last; j++) {
+                double pgoTmp = (fshare[j] - prev) / (fshare[last] - prev);
+                prev = fshare[j];
 
-                int ngo2 = stepper.versatile_ngo(ngo, pgoTmp);
+                int ngo2 = stepper.versatile_ngo(left, pgoTmp);
 
                 assert ngo2 >= 0;
 
-                if (ngo2 > ngo) {
-                    if (++nngowarn < 10)
+                if (ngo2 > left) {
+                    if (multinomial_warnings.allow())
                         log.warn("parallelAndSharedDiffusionStep multinomial: "
                                  + "ngo2 = {} > {} = ngo, setting ngo2=ngo ",
-                                 ngo2, ngo);
-                    ngo2 = ngo;
+                                 ngo2, left);
+                    ngo2 = left;
                 }
 
-                wkB[iel][k] -= ngo2;
-                wkB[inbr[j]][k] += ngo2;
-                ngo -= ngo2;
+                moved[j] = ngo2;
+                left -= ngo2;
             } //end of loop through all but last neighbor
 
-            wkB[iel][k] -= ngo;
-            wkB[inbr[inbr.length - 1]][k] += ngo;
-            if (wkB[iel][k] < 0)
-                log.warn("parallelAndSharedDiffusionStep multinomial: wkB[iel][k] = {} is negative",
-                         wkB[iel][k]);
+            moved[last] = left;
+            return ngo;
         }
     }
 
-    private final void particleDiffusionStep(int iel, int k) {
-        int np0 = wkA[iel][k];
+    /**
+     * Diffusion of each of np0 particles of species k out of element iel
+     * separately, like {@link #parallelAndSharedDiffusionStep}.
+     */
+    final int particleDiffusionStep(RandomGenerator random, int iel, int k, int np0, int[] moved) {
         int inbr[] = neighbors[iel];
         double[] fshare = fSharedExit[iel][k];
         double ptot = pSharedOut[iel][k];
 
+        Arrays.fill(moved, 0, inbr.length, 0);
+
+        int ngo = 0;
         for (int i = 0; i < np0; i++) {
             double r = random.random();
 
             if (r < ptot) {
-                wkB[iel][k] -= 1;
+                ngo += 1;
                 double fr = r / ptot;
                 int io = 0;
                 while (fr > fshare[io])
                     io++;
 
-                wkB[inbr[io]][k] += 1;
+                moved[io] += 1;
             }
         }
+
+        return ngo;
     }
 
-    /* Total number of possible reactions is the smallest number of
+    /**
+     * The maximum extent of a reaction: the smallest number of
      * particles divided by stoichiometry.
-     *
-     * @return propensity and maximum reaction extent
      */
-    public static Object[] calculatePropensity(int[] ri, int[] pi,
-                                               int[] rs, int[] ps,
-                                               int[] rp,
-                                               double lnrate, double lnvol,
-                                               int[] nstart) {
-        double lnp = lnrate + lnvol;
+    static int reactionExtent(int[] ri, int[] rs, int[] nstart, int off, int stride) {
         int ns = Integer.MAX_VALUE;
-
         for (int k = 0; k < ri.length; k++) {
-            int n = nstart[ri[k]];
-            int p = rp[k];
-            int nks = n / rs[k];
-
+            int nks = nstart[off + ri[k] * stride] / rs[k];
             if (nks < ns)
                 ns = nks;
+        }
+        return ns;
+    }
+
+    /**
+     * The log of the propensity of a reaction with extent ns, per particle.
+     */
+    static double lnPropensity(int[] ri, int[] rs, int[] rp,
+                               double lnrate, double lnvol,
+                               int[] nstart, int off, int stride, int ns) {
+        double lnp = lnrate + lnvol;
+
+        for (int k = 0; k < ri.length; k++) {
+            int n = nstart[off + ri[k] * stride];
+            int p = rp[k];
 
             if (p >= 1) {
                 /* FIXME: use falling factorial */
@@ -470,11 +526,26 @@ public static Object[] calculatePropensity(int[] ri, int[] pi,
             /* Apply a kludge so the stepper can generate a proper random number */
             lnp -= intlog(ns);
 
+        return lnp;
+    }
+
+    /* Total number of possible reactions is the smallest number of
+     * particles divided by stoichiometry.
+     *
+     * @return propensity and maximum reaction extent
+     */
+    public static Object[] calculatePropensity(int[] ri, int[] pi,
+                                               int[] rs, int[] ps,
+                                               int[] rp,
+                                               double lnrate, double lnvol,
+                                               int[] nstart) {
+        int ns = reactionExtent(ri, rs, nstart, 0, 1);
+        double lnp = lnPropensity(ri, rs, rp, lnrate, lnvol, nstart, 0, 1, ns);
         return new Object[]{lnp, ns};
     }
 
     @Override
-    public int[][] getEventStatistics() {
+    public EventStatistics getEventStatistics() {
         return null;
     }
 
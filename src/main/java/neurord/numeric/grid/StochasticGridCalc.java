@@ -57,6 +57,10 @@ public void init() {
     }
 
     protected void initPopulation(int[][] counts, SDRun sdrun) {
+        this.initPopulation(counts, sdrun, this.random);
+    }
+
+    protected void initPopulation(int[][] counts, SDRun sdrun, RandomGenerator random) {
         log.debug("Initializing population based on volume and surface concentrations");
         final String[] species = sdrun.getSpecies();
         final VolumeGrid grid = sdrun.getVolumeGrid();
@@ -68,10 +72,10 @@ protected void initPopulation(int[][] counts, SDRun sdrun) {
             double[] rcs = sdrun.getRegionConcentration(region);
 
             for (int j = 0; j < this.nspec; j++) {
-                wkA[i][j] = this.random.round(v * rcs[j] * PARTICLES_PUVC);
+                counts[i][j] = random.round(v * rcs[j] * PARTICLES_PUVC);
                 log.debug("el.{} {}: {} × {} × {} → {}",
                           i, species[j],
-                          v, rcs[j], PARTICLES_PUVC, wkA[i][j]);
+                          v, rcs[j], PARTICLES_PUVC, counts[i][j]);
             }
 
             double[] rcs2 = sdrun.getRegionConcentration(grid.getElementRegion(i));
@@ -83,7 +87,7 @@ protected void initPopulation(int[][] counts, SDRun sdrun) {
             }
         }
 
-        log.debug("volume only:\n{}", wkA);
+        log.debug("volume only:\n{}", counts);
 
         /* surface concentrations */
         for (int i = 0; i < this.nel; i++) {
@@ -94,7 +98,7 @@ protected void initPopulation(int[][] counts, SDRun sdrun) {
                 for (int j = 0; j < this.nspec; j++)
                     if (!Double.isNaN(sds[j]))
                         // nan means not specified by the user
-                        wkA[i][j] = this.random.round(a * sds[j] * PARTICLES_PUASD);
+                        counts[i][j] = random.round(a * sds[j] * PARTICLES_PUASD);
 
                 double[] sds2 = sdrun.getRegionSurfaceDensity(grid.getElementRegion(i));
                 if (!Arrays.equals(sds, sds2)) {
@@ -104,7 +108,7 @@ protected void initPopulation(int[][] counts, SDRun sdrun) {
             }
         }
 
-        log.debug("with surface:\n{}", wkA);
+        log.debug("with surface:\n{}", counts);
     }
 
     @Override
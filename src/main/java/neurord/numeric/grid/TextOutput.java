@@ -0,0 +1,235 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Formatter;
+import java.util.Locale;
+
+/**
+ * A text file written through a large reusable byte buffer and a
+ * FileChannel.
+ *
+ * Numbers are formatted like {@link ResultWriterText#stringi} and
+ * {@link ResultWriterText#stringd}, but without creating strings.
+ * Integers are always written directly, and so are doubles, except
+ * the few which are too close to halfway between two five-digit values.
+ * Those go through one Formatter which is reused.
+ * Formatting does not depend on the default locale.
+ */
+public class TextOutput implements AutoCloseable {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /* exactly representable */
+    static final double[] POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                                     1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    final FileChannel channel;
+    final ByteBuffer buffer;
+
+    private final byte[] digits = new byte[20];
+    private final StringBuilder fallback = new StringBuilder();
+    private final Formatter formatter = new Formatter(this.fallback, Locale.ROOT);
+
+    public TextOutput(File file, boolean append, int size)
+        throws IOException
+    {
+        if (append)
+            this.channel = FileChannel.open(file.toPath(),
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.APPEND);
+        else
+            this.channel = FileChannel.open(file.toPath(),
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocate(size);
+    }
+
+    public TextOutput(File file, boolean append)
+        throws IOException
+    {
+        this(file, append, BUFFER_SIZE);
+    }
+
+    private void reserve(int bytes)
+        throws IOException
+    {
+        if (this.buffer.remaining() < bytes)
+            this.flush();
+    }
+
+    public void flush()
+        throws IOException
+    {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        this.flush();
+        this.channel.close();
+    }
+
+    public TextOutput append(char c)
+        throws IOException
+    {
+        if (c >= 0x80)
+            return this.append(String.valueOf(c));
+
+        this.reserve(1);
+        this.buffer.put((byte) c);
+        return this;
+    }
+
+    public TextOutput append(CharSequence s)
+        throws IOException
+    {
+        final int n = s.length();
+        for (int i = 0; i < n; i++)
+            if (s.charAt(i) >= 0x80) {
+                byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+                for (int start = 0; start < bytes.length; ) {
+                    this.reserve(1);
+                    int len = Math.min(bytes.length - start, this.buffer.remaining());
+                    this.buffer.put(bytes, start, len);
+                    start += len;
+                }
+                return this;
+            }
+
+        for (int start = 0; start < n; ) {
+            this.reserve(1);
+            int end = Math.min(n, start + this.buffer.remaining());
+            for (int i = start; i < end; i++)
+                this.buffer.put((byte) s.charAt(i));
+            start = end;
+        }
+        return this;
+    }
+
+    public TextOutput append(long value)
+        throws IOException
+    {
+        this.reserve(20);
+
+        if (value < 0) {
+            if (value == Long.MIN_VALUE)
+                return this.append(Long.toString(value));
+            this.buffer.put((byte) '-');
+            value = -value;
+        }
+
+        int n = 0;
+        do {
+            this.digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        while (n > 0)
+            this.buffer.put(this.digits[--n]);
+        return this;
+    }
+
+    /**
+     * Same as {@link ResultWriterText#stringi}.
+     */
+    public TextOutput stringi(int value)
+        throws IOException
+    {
+        if (value == 0)
+            return this.append("00 ");
+        return this.append(value).append(' ');
+    }
+
+    /**
+     * Same as {@link ResultWriterText#stringd}, in Locale.ROOT.
+     */
+    public TextOutput stringd(double value)
+        throws IOException
+    {
+        if (value == 0.0)
+            return this.append("0.0 ");
+
+        if (!this.exact(value)) {
+            this.fallback.setLength(0);
+            this.formatter.format("%.5g ", value);
+            this.append(this.fallback);
+        }
+        return this;
+    }
+
+    /**
+     * Write value with %.5g, unless it is too close to halfway between
+     * two five-digit values. The Formatter rounds the shortest decimal
+     * representation half-up, which is within an ulp of the value, so
+     * away from halfway both give the same digits.
+     */
+    private boolean exact(double value)
+        throws IOException
+    {
+        final double abs = Math.abs(value);
+        if (!(abs >= 1e-300 && abs < 1e300))
+            return false;
+
+        /* 10^e ≤ abs < 10^(e+1), possibly off by one near powers of ten */
+        final int e = (int) Math.floor(Math.log10(abs));
+        final int shift = 4 - e;
+        if (Math.abs(shift) >= POWERS.length)
+            return false;
+        final double scaled = shift >= 0 ? abs * POWERS[shift] : abs / POWERS[-shift];
+
+        if (scaled < 9999.5 || scaled >= 99999.5)
+            return false;
+        final double frac = scaled - Math.floor(scaled);
+        if (Math.abs(frac - 0.5) < 1e-6)
+            return false;
+
+        long r = (long) Math.floor(scaled + 0.5);
+        for (int i = 4; i >= 0; i--) {
+            this.digits[i] = (byte) ('0' + r % 10);
+            r /= 10;
+        }
+
+        this.reserve(16);
+
+        if (value < 0)
+            this.buffer.put((byte) '-');
+        if (e >= 4 + 1 || e < -4) {
+            /* d.dddde±xx */
+            this.buffer.put(this.digits[0]);
+            this.buffer.put((byte) '.');
+            this.buffer.put(this.digits, 1, 4);
+            this.buffer.put((byte) 'e');
+            this.buffer.put((byte) (e < 0 ? '-' : '+'));
+            int exp = Math.abs(e);
+            if (exp >= 100)
+                this.buffer.put((byte) ('0' + exp / 100));
+            this.buffer.put((byte) ('0' + exp / 10 % 10));
+            this.buffer.put((byte) ('0' + exp % 10));
+        } else if (e >= 0) {
+            this.buffer.put(this.digits, 0, e + 1);
+            if (shift > 0) {
+                this.buffer.put((byte) '.');
+                this.buffer.put(this.digits, e + 1, shift);
+            }
+        } else {
+            this.buffer.put((byte) '0');
+            this.buffer.put((byte) '.');
+            for (int i = 0; i < -e - 1; i++)
+                this.buffer.put((byte) '0');
+            this.buffer.put(this.digits, 0, 5);
+        }
+        this.buffer.put((byte) ' ');
+        return true;
+    }
+}
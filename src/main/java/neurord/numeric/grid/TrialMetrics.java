@@ -0,0 +1,271 @@
+package neurord.numeric.grid;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.management.ObjectName;
+import javax.management.JMException;
+
+import neurord.model.SDRun;
+import neurord.util.Settings;
+import neurord.util.Logging;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Snapshot of the progress of a trial, published for monitoring.
+ *
+ * The calculation thread calls update() after every step, which copies
+ * the counters into volatile fields, so readers on other threads (JMX,
+ * the metrics file) never touch the state of the calculation itself.
+ */
+public class TrialMetrics implements TrialMetricsMBean {
+    public static final Logger log = LogManager.getLogger();
+
+    final static boolean jmx = Settings.getProperty("neurord.jmx",
+                                                    "Register per-trial MBeans with live metrics",
+                                                    true);
+    final static String metrics_file = Settings.getProperty("neurord.metrics",
+                                                            "Append per-trial metrics to this file at each output interval",
+                                                            "");
+
+    private final GridCalc calc;
+    private final int job;
+    private final ObjectName name;
+    private final long wall_start = System.currentTimeMillis();
+
+    private volatile double time;
+    private volatile long events, leaps = -1, leap_extent = -1, normal_waits = -1, swaps = -1, random_used = -1;
+    private volatile long writer_calls, writer_nanos;
+
+    /* Event rate between the last two samples in sample() */
+    private volatile double recent_speed = Double.NaN;
+    private long old_events = 0, old_wall_time = wall_start;
+
+    protected TrialMetrics(GridCalc calc) {
+        this.calc = calc;
+        this.time = calc.getSource().getStartTime();
+
+        this.job = jobId(calc.getSource());
+
+        ObjectName name = null;
+        if (jmx)
+            try {
+                name = new ObjectName("neurord:type=Trial,job=" + this.job + ",trial=" + calc.trial());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            } catch(JMException e) {
+                /* Only beans registered here are unregistered in close() */
+                log.warn("Failed to register MBean for trial {}: {}", calc.trial(), e);
+                name = null;
+            }
+        this.name = name;
+    }
+
+    /* Server and sweep runs have several jobs in one JVM, with the same trial numbers */
+    private static final Map<SDRun, Integer> jobs = new WeakHashMap<>();
+    private static int next_job = 0;
+
+    /**
+     * A number which identifies the simulation sdrun in this JVM.
+     */
+    static synchronized int jobId(SDRun sdrun) {
+        Integer id = jobs.get(sdrun);
+        if (id == null) {
+            id = next_job++;
+            jobs.put(sdrun, id);
+        }
+        return id;
+    }
+
+    /**
+     * Create metrics for calc, or return null if both JMX and the metrics file
+     * are disabled.
+     */
+    public static TrialMetrics create(GridCalc calc) {
+        if (!jmx && metrics_file.isEmpty())
+            return null;
+        return new TrialMetrics(calc);
+    }
+
+    void update(double time, long writer_calls, long writer_nanos) {
+        this.time = time;
+        this.events = this.calc.eventCount();
+        this.writer_calls = writer_calls;
+        this.writer_nanos = writer_nanos;
+
+        if (this.calc instanceof StochasticGridCalc) {
+            StochasticGridCalc calc = (StochasticGridCalc) this.calc;
+            if (calc.random != null)
+                this.random_used = calc.random.used();
+        }
+
+        if (this.calc instanceof AdaptiveGridCalc) {
+            NextEventQueue neq = ((AdaptiveGridCalc) this.calc).neq;
+            if (neq != null) {
+                this.leaps = neq.leaps;
+                this.leap_extent = neq.leap_extent;
+                this.normal_waits = neq.normal_waits;
+                this.swaps = neq.queue.swaps;
+            }
+        }
+    }
+
+    /**
+     * Called at output intervals: update the recent event rate and write
+     * a line to the metrics file.
+     */
+    void sample() {
+        long wall_time = System.currentTimeMillis();
+        long events = this.events;
+        if (wall_time > this.old_wall_time) {
+            this.recent_speed = (events - this.old_events) * 1000.0 / (wall_time - this.old_wall_time);
+            this.old_events = events;
+            this.old_wall_time = wall_time;
+        }
+
+        if (!metrics_file.isEmpty())
+            writeLine(this, wall_time);
+    }
+
+    void close() {
+        if (this.name != null)
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+            } catch(JMException e) {
+                log.warn("Failed to unregister MBean {}: {}", this.name, e);
+            }
+    }
+
+    /* The metrics file is shared by all trials running in this JVM */
+    private static PrintWriter metrics_out;
+
+    static synchronized void writeLine(TrialMetrics m, long wall_time) {
+        if (metrics_out == null) {
+            try {
+                metrics_out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(metrics_file, true), "UTF-8"));
+            } catch(IOException e) {
+                log.error("Cannot open metrics file {}", metrics_file);
+                throw new RuntimeException(e);
+            }
+            log.log(Logging.NOTICE, "Writing metrics to {}", metrics_file);
+            metrics_out.println("#wall_time\tjob\ttrial\ttime\tprogress\tevents\tevents_per_s\t" +
+                                "leaps\tleap_extent\tnormal_waits\tswaps\trandom_used\t" +
+                                "writer_calls\twriter_blocked_ms\teta_s");
+        }
+
+        metrics_out.println(String.format("%d\t%d\t%d\t%s\t%.4f\t%d\t%.1f\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%.1f",
+                                          wall_time, m.job, m.getTrial(), m.time, m.getProgress(),
+                                          m.events, m.recent_speed,
+                                          m.leaps, m.leap_extent, m.normal_waits, m.swaps,
+                                          m.random_used,
+                                          m.writer_calls, m.getWriterBlockedMillis(),
+                                          m.getEstimatedSecondsRemaining()));
+        metrics_out.flush();
+    }
+
+    @Override
+    public int getJob() {
+        return this.job;
+    }
+
+    @Override
+    public int getTrial() {
+        return this.calc.trial();
+    }
+
+    @Override
+    public String getCalculation() {
+        return this.calc.getSource().calculation;
+    }
+
+    @Override
+    public double getStartTime() {
+        return this.calc.getSource().getStartTime();
+    }
+
+    @Override
+    public double getEndTime() {
+        return this.calc.endtime();
+    }
+
+    @Override
+    public double getSimulatedTime() {
+        return this.time;
+    }
+
+    @Override
+    public double getProgress() {
+        double start = this.getStartTime(),
+            end = this.getEndTime();
+        return end > start ? (this.time - start) / (end - start) : 1;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - this.wall_start;
+    }
+
+    @Override
+    public double getEstimatedSecondsRemaining() {
+        double progress = this.getProgress();
+        if (progress <= 0)
+            return Double.NaN;
+        return this.getElapsedMillis() / 1000.0 * (1 - progress) / progress;
+    }
+
+    @Override
+    public long getEvents() {
+        return this.events;
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        long elapsed = this.getElapsedMillis();
+        return elapsed > 0 ? this.events * 1000.0 / elapsed : Double.NaN;
+    }
+
+    @Override
+    public double getRecentEventsPerSecond() {
+        return this.recent_speed;
+    }
+
+    @Override
+    public long getLeaps() {
+        return this.leaps;
+    }
+
+    @Override
+    public long getLeapExtent() {
+        return this.leap_extent;
+    }
+
+    @Override
+    public long getNormalWaits() {
+        return this.normal_waits;
+    }
+
+    @Override
+    public long getQueueSwaps() {
+        return this.swaps;
+    }
+
+    @Override
+    public long getRandomNumbersUsed() {
+        return this.random_used;
+    }
+
+    @Override
+    public long getWriterCalls() {
+        return this.writer_calls;
+    }
+
+    @Override
+    public long getWriterBlockedMillis() {
+        return this.writer_nanos / 1000000;
+    }
+}
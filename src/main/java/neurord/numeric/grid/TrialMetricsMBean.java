@@ -0,0 +1,37 @@
+package neurord.numeric.grid;
+
+/**
+ * Live metrics of a single trial, registered as
+ * neurord:type=Trial,job=<i>j</i>,trial=<i>n</i> with the platform MBean
+ * server. The job number distinguishes simulations running in the same JVM
+ * (in server mode and in sweeps), which use the same trial numbers.
+ *
+ * Counters which do not apply to the calculation are -1.
+ */
+public interface TrialMetricsMBean {
+    int getJob();
+    int getTrial();
+    String getCalculation();
+
+    double getStartTime();
+    double getEndTime();
+    double getSimulatedTime();
+    double getProgress();
+
+    long getElapsedMillis();
+    double getEstimatedSecondsRemaining();
+
+    long getEvents();
+    double getEventsPerSecond();
+    double getRecentEventsPerSecond();
+
+    long getLeaps();
+    long getLeapExtent();
+    long getNormalWaits();
+    long getQueueSwaps();
+
+    long getRandomNumbersUsed();
+
+    long getWriterCalls();
+    long getWriterBlockedMillis();
+}
@@ -0,0 +1,117 @@
+package neurord.numeric.math;
+
+import java.util.Arrays;
+
+/**
+ * Streaming estimate of a single quantile using the P² algorithm.
+ *
+ * R. Jain and I. Chlamtac, "The P² algorithm for dynamic calculation of
+ * quantiles and histograms without storing observations",
+ * Communications of the ACM 28 (10), 1985, pp 1076--1085.
+ *
+ * Only five markers are kept, so memory use is constant. The result is
+ * exact for up to five observations.
+ */
+public class P2Quantile {
+    final double p;
+    final double[] heights = new double[5];
+    final int[] positions = new int[5];
+    final double[] desired = new double[5];
+    final double[] increments;
+    int count = 0;
+
+    public P2Quantile(double p) {
+        if (!(p >= 0 && p <= 1))
+            throw new IllegalArgumentException("quantile must be in [0, 1]: " + p);
+
+        this.p = p;
+        this.increments = new double[]{ 0, p / 2, p, (1 + p) / 2, 1 };
+    }
+
+    public double quantile() {
+        return this.p;
+    }
+
+    public int count() {
+        return this.count;
+    }
+
+    public void add(double x) {
+        final double[] q = this.heights;
+        final int[] n = this.positions;
+
+        if (this.count < 5) {
+            q[this.count++] = x;
+            if (this.count == 5) {
+                Arrays.sort(q);
+                for (int i = 0; i < 5; i++) {
+                    n[i] = i + 1;
+                    this.desired[i] = 1 + 4 * this.increments[i];
+                }
+            }
+            return;
+        }
+        this.count++;
+
+        int k;
+        if (x < q[0]) {
+            q[0] = x;
+            k = 0;
+        } else if (x >= q[4]) {
+            q[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= q[k + 1])
+                k++;
+        }
+
+        for (int i = k + 1; i < 5; i++)
+            n[i]++;
+        for (int i = 0; i < 5; i++)
+            this.desired[i] += this.increments[i];
+
+        for (int i = 1; i <= 3; i++) {
+            double d = this.desired[i] - n[i];
+            if (d >= 1 && n[i + 1] - n[i] > 1 ||
+                d <= -1 && n[i - 1] - n[i] < -1) {
+                int s = d >= 0 ? 1 : -1;
+                double h = this.parabolic(i, s);
+                if (q[i - 1] < h && h < q[i + 1])
+                    q[i] = h;
+                else
+                    q[i] = q[i] + s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+                n[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        final double[] q = this.heights;
+        final int[] n = this.positions;
+
+        return q[i] + (double) s / (n[i + 1] - n[i - 1]) *
+            ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) / (n[i + 1] - n[i]) +
+             (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+    }
+
+    /**
+     * The current estimate, NaN if nothing was added.
+     */
+    public double value() {
+        if (this.count == 0)
+            return Double.NaN;
+
+        if (this.count <= 5) {
+            /* Linear interpolation between the closest ranks */
+            double[] sorted = Arrays.copyOf(this.heights, this.count);
+            Arrays.sort(sorted);
+            double rank = this.p * (this.count - 1);
+            int lo = (int) Math.floor(rank),
+                hi = (int) Math.ceil(rank);
+            return sorted[lo] + (rank - lo) * (sorted[hi] - sorted[lo]);
+        }
+
+        return this.heights[2];
+    }
+}
@@ -0,0 +1,441 @@
+package neurord.numeric.morph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import neurord.geom.Geom;
+import neurord.geom.Position;
+import neurord.util.Settings;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Cache of discretized grids on disk.
+ *
+ * Files are named after a digest of everything that the grid is built
+ * from (see {@link #key}), so a changed morphology or discretization
+ * simply misses the cache. The file stores the elements and their
+ * connections in a compact binary format, and is read through
+ * a memory mapping. {@link VolumeGrid#fix} is run again after loading,
+ * which is linear in the number of elements and connections.
+ */
+public class GridCache {
+    public static final Logger log = LogManager.getLogger();
+
+    final static String cache_directory = Settings.getProperty("neurord.grid_cache",
+                                                               "Directory to cache discretized grids in (empty == disabled)",
+                                                               "");
+
+    static final byte[] MAGIC = "NRDGRID\0".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 2;
+
+    static final byte CUBOID = 0, CURVED = 1;
+
+    final File directory;
+
+    public GridCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create a cache if it was requested with neurord.grid_cache,
+     * and return null otherwise.
+     */
+    public static GridCache create() {
+        return cache_directory.isEmpty() ? null : new GridCache(new File(cache_directory));
+    }
+
+    public File file(String key) {
+        return new File(this.directory, "grid-" + key + ".bin");
+    }
+
+    /**
+     * Returns the cached grid, or null if there is none for this key.
+     * An unreadable cache file is treated like a missing one.
+     */
+    public VolumeGrid load(String key) {
+        File file = this.file(key);
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            VolumeGrid grid = read(buf, key);
+            log.info("Loaded grid of {} elements from {}", grid.size(), file);
+            return grid;
+        } catch(IOException | RuntimeException e) {
+            log.warn("Cannot use cached grid {}, ignoring", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the grid under this key. The file is written under
+     * a temporary name and renamed, so concurrent runs of the same model
+     * never see a partial file. Failures are logged and otherwise ignored.
+     */
+    public void save(String key, VolumeGrid grid) {
+        File file = this.file(key);
+        File tmp = null;
+        try {
+            this.directory.mkdirs();
+            tmp = File.createTempFile("grid-", ".tmp", this.directory);
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                write(out, key, grid);
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Saved grid of {} elements to {}", grid.size(), file);
+        } catch(IOException e) {
+            log.warn("Failed to save grid to {}", file, e);
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    static void write(DataOutputStream out, String key, VolumeGrid grid)
+        throws IOException
+    {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+        out.writeBoolean(grid.hasCuboids);
+        out.writeBoolean(grid.hasCurveds);
+
+        /* All strings go into a table, elements refer to them by index */
+        LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+        for (VolumeElement ve: grid.elements)
+            for (String s: new String[]{ ve.label, ve.region, ve.groupID })
+                if (s != null && !strings.containsKey(s))
+                    strings.put(s, strings.size());
+        out.writeInt(strings.size());
+        for (String s: strings.keySet())
+            writeString(out, s);
+
+        out.writeInt(grid.elements.size());
+        for (VolumeElement ve: grid.elements) {
+            out.writeByte(ve instanceof CurvedVolumeElement ? CURVED : CUBOID);
+            out.writeInt(ve.label != null ? strings.get(ve.label) : -1);
+            out.writeInt(ve.region != null ? strings.get(ve.region) : -1);
+            out.writeInt(ve.groupID != null ? strings.get(ve.groupID) : -1);
+            writePositions(out, ve.boundary);
+            writePositions(out, ve.surfaceBoundary);
+            writePositions(out, new Position[]{ ve.center });
+            for (double v: new double[]{ ve.exposedArea, ve.alongArea, ve.sideArea, ve.topArea,
+                                         ve.volume, ve.deltaZ })
+                out.writeDouble(v);
+
+            if (ve instanceof CurvedVolumeElement) {
+                CurvedVolumeElement cve = (CurvedVolumeElement) ve;
+                out.writeInt(cve.iradial);
+                out.writeInt(cve.iazimuthal);
+                if (cve.stripLengths == null)
+                    out.writeInt(-1);
+                else {
+                    out.writeInt(cve.stripLengths.length);
+                    for (int n: cve.stripLengths)
+                        out.writeInt(n);
+                }
+                writeFloats(out, cve.verts);
+                writeFloats(out, cve.norms);
+            }
+        }
+
+        /* Connections are stored with their first element, in order */
+        for (VolumeElement ve: grid.elements) {
+            out.writeInt(ve.connections.size());
+            for (ElementConnection conn: ve.connections) {
+                out.writeInt(conn.getElementB().getNumber());
+                out.writeDouble(conn.getContactArea());
+            }
+        }
+
+        /* Elements are stored in their final order, so renumbering is not repeated */
+        int[] original = grid.getOriginalNumbers();
+        out.writeInt(original != null ? original.length : -1);
+        if (original != null)
+            for (int n: original)
+                out.writeInt(n);
+    }
+
+    static VolumeGrid read(ByteBuffer buf, String key) {
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new RuntimeException("not a grid cache file");
+        int version = buf.getInt();
+        if (version != VERSION)
+            throw new RuntimeException("unsupported grid cache version " + version);
+        String stored = readString(buf);
+        if (!stored.equals(key))
+            throw new RuntimeException("grid cache key mismatch: " + stored);
+
+        VolumeGrid grid = new VolumeGrid();
+        boolean cuboids = buf.get() != 0;
+        boolean curveds = buf.get() != 0;
+
+        String[] strings = new String[buf.getInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = readString(buf);
+
+        int nel = buf.getInt();
+        for (int i = 0; i < nel; i++) {
+            byte type = buf.get();
+            int label = buf.getInt(), region = buf.getInt(), groupID = buf.getInt();
+            Position[] boundary = readPositions(buf);
+            Position[] surfaceBoundary = readPositions(buf);
+            Position center = readPositions(buf)[0];
+            double exposedArea = buf.getDouble(),
+                alongArea = buf.getDouble(),
+                sideArea = buf.getDouble(),
+                topArea = buf.getDouble(),
+                volume = buf.getDouble(),
+                deltaZ = buf.getDouble();
+
+            final VolumeElement ve;
+            if (type == CURVED) {
+                CurvedVolumeElement cve = new CurvedVolumeElement(string(strings, label),
+                                                                  string(strings, region),
+                                                                  string(strings, groupID),
+                                                                  boundary, surfaceBoundary,
+                                                                  exposedArea, center,
+                                                                  volume, deltaZ);
+                cve.setPositionIndexes(buf.getInt(), buf.getInt());
+                int n = buf.getInt();
+                int[] stripLengths = null;
+                if (n >= 0) {
+                    stripLengths = new int[n];
+                    for (int j = 0; j < n; j++)
+                        stripLengths[j] = buf.getInt();
+                }
+                float[][] verts = readFloats(buf);
+                float[][] norms = readFloats(buf);
+                cve.setTriangles(stripLengths, verts, norms);
+                ve = cve;
+            } else
+                ve = new CuboidVolumeElement(string(strings, label),
+                                             string(strings, region),
+                                             string(strings, groupID),
+                                             boundary, surfaceBoundary,
+                                             exposedArea, center,
+                                             alongArea, sideArea, topArea,
+                                             volume, deltaZ);
+            grid.addElement(ve);
+        }
+
+        for (int i = 0; i < nel; i++) {
+            VolumeElement ve = grid.getElement(i);
+            int n = buf.getInt();
+            for (int j = 0; j < n; j++) {
+                int other = buf.getInt();
+                ve.connections.add(new ElementConnection(ve, grid.getElement(other), buf.getDouble()));
+            }
+        }
+
+        int n = buf.getInt();
+        if (n >= 0) {
+            grid.originalNumbers = new int[n];
+            for (int i = 0; i < n; i++)
+                grid.originalNumbers[i] = buf.getInt();
+        }
+
+        grid.hasCuboids = cuboids;
+        grid.hasCurveds = curveds;
+        grid.fix();
+        return grid;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index >= 0 ? strings[index] : null;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writePositions(DataOutputStream out, Position[] positions)
+        throws IOException
+    {
+        if (positions == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(positions.length);
+        for (Position p: positions) {
+            out.writeDouble(p.getX());
+            out.writeDouble(p.getY());
+            out.writeDouble(p.getZ());
+        }
+    }
+
+    private static Position[] readPositions(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0)
+            return null;
+        Position[] ans = new Position[n];
+        for (int i = 0; i < n; i++)
+            ans[i] = Geom.position(buf.getDouble(), buf.getDouble(), buf.getDouble());
+        return ans;
+    }
+
+    private static void writeFloats(DataOutputStream out, float[][] rows)
+        throws IOException
+    {
+        if (rows == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(rows.length);
+        for (float[] row: rows) {
+            out.writeInt(row.length);
+            for (float f: row)
+                out.writeFloat(f);
+        }
+    }
+
+    private static float[][] readFloats(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0)
+            return null;
+        float[][] ans = new float[n][];
+        for (int i = 0; i < n; i++) {
+            ans[i] = new float[buf.getInt()];
+            for (int j = 0; j < ans[i].length; j++)
+                ans[i][j] = buf.getFloat();
+        }
+        return ans;
+    }
+
+    /**
+     * Calculate a key from the parts the grid is built from.
+     * Model objects are walked recursively through their
+     * non-static non-transient fields, so anything that is read from
+     * the XML file is included.
+     */
+    public static String key(Object... parts) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<>();
+        for (Object part: parts)
+            describe(sb, part, seen);
+        byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b: hash)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static void describe(StringBuilder sb, Object obj, IdentityHashMap<Object, Boolean> seen) {
+        if (obj == null) {
+            sb.append("null;");
+            return;
+        }
+
+        Class<?> klass = obj.getClass();
+        if (obj instanceof String || obj instanceof Number || obj instanceof Boolean ||
+            obj instanceof Character || obj instanceof Enum) {
+            sb.append(klass.getSimpleName()).append(':').append(obj).append(';');
+            return;
+        }
+
+        if (seen.put(obj, true) != null) {
+            sb.append("cycle;");
+            return;
+        }
+
+        if (klass.isArray()) {
+            int n = java.lang.reflect.Array.getLength(obj);
+            sb.append('[').append(n).append(':');
+            for (int i = 0; i < n; i++)
+                describe(sb, java.lang.reflect.Array.get(obj, i), seen);
+            sb.append(']');
+        } else if (obj instanceof Collection) {
+            sb.append('[').append(((Collection<?>) obj).size()).append(':');
+            for (Object item: (Collection<?>) obj)
+                describe(sb, item, seen);
+            sb.append(']');
+        } else if (obj instanceof Map) {
+            List<Map.Entry<?,?>> entries = new ArrayList<Map.Entry<?,?>>(((Map<?,?>) obj).entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<?,?>>() {
+                    @Override
+                    public int compare(Map.Entry<?,?> a, Map.Entry<?,?> b) {
+                        return String.valueOf(a.getKey()).compareTo(String.valueOf(b.getKey()));
+                    }
+                });
+            sb.append('{');
+            for (Map.Entry<?,?> entry: entries) {
+                describe(sb, entry.getKey(), seen);
+                describe(sb, entry.getValue(), seen);
+            }
+            sb.append('}');
+        } else {
+            sb.append(klass.getName()).append('{');
+            for (Class<?> c = klass; c != null && c != Object.class; c = c.getSuperclass()) {
+                Field[] fields = c.getDeclaredFields();
+                Arrays.sort(fields, new Comparator<Field>() {
+                        @Override
+                        public int compare(Field a, Field b) {
+                            return a.getName().compareTo(b.getName());
+                        }
+                    });
+                for (Field field: fields) {
+                    int mod = field.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || field.isSynthetic())
+                        continue;
+                    field.setAccessible(true);
+                    sb.append(field.getName()).append('=');
+                    try {
+                        describe(sb, field.get(obj), seen);
+                    } catch(IllegalAccessException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+            sb.append('}');
+        }
+
+        seen.remove(obj);
+    }
+}
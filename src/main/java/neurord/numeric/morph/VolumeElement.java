@@ -161,6 +161,12 @@ public void setNumber(int number) {
         this.number = number;
     }
 
+    /* Used when the grid is renumbered */
+    void renumber(int number) {
+        assert number >= 0;
+        this.number = number;
+    }
+
     public int getNumber() {
         assert this.number >= 0;
         return this.number;
@@ -2,19 +2,30 @@
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import neurord.disc.CurvedVolumeSlice;
 import neurord.geom.Geom;
 import neurord.geom.Position;
+import neurord.util.Settings;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 public class VolumeGrid {
-    static final Logger log = LogManager.getLogger();
+    public static final Logger log = LogManager.getLogger();
+
+    final static String reorder = Settings.getProperty("neurord.grid.reorder",
+                                                       "Renumber voxels so that neighbours are close (none, rcm)",
+                                                       "none");
 
     public enum geometry_t {
         GEOM_2D,
@@ -33,6 +44,14 @@ public static geometry_t fromString(String sg) {
 
     HashMap<String, ArrayList<VolumeElement>> regionHM = new HashMap<>();
 
+    /* Indexes for lookups by label, built in fix() or on first use.
+     * Lists are in the order of elements. Labels of the form
+     * "pre[N]post" are also indexed under "pre[]post" and N. */
+    HashMap<String, ArrayList<VolumeElement>> labelIndex;
+    HashMap<String, ArrayList<VolumeElement>> submembraneLabelIndex;
+    HashMap<String, ArrayList<VolumeElement>> submembraneRegionIndex;
+    HashMap<String, TreeMap<Integer, ArrayList<VolumeElement>>> numberedIndex;
+
     int nelement;
     String[] eltLabels;
     String[] eltGroupIDs;
@@ -52,6 +71,9 @@ public static geometry_t fromString(String sg) {
     boolean hasCuboids = false;
     boolean hasCurveds = false;
 
+    /* Discretization numbers of the elements, if they were renumbered */
+    int[] originalNumbers;
+
     public void importSlices(ArrayList<VolumeSlice> slices) {
         this.hasCuboids = true;
         for (VolumeSlice slice : slices)
@@ -78,6 +100,7 @@ public void addElements(List<? extends VolumeElement> elements) {
     public void addElement(VolumeElement ve) {
         ve.setNumber(this.elements.size());
         this.elements.add(ve);
+        this.labelIndex = null;
 
         final String region = ve.getRegion();
         if (region == null) {
@@ -124,6 +147,18 @@ public void fix() {
         assert this.eltNbrs == null;
         assert this.eltNbrG == null;
 
+        if (this.originalNumbers == null)
+            switch (reorder) {
+            case "none":
+                break;
+            case "rcm":
+                this.renumber(this.cuthillMcKeeOrder());
+                break;
+            default:
+                log.error("Unknown voxel ordering {}, should be none or rcm", reorder);
+                throw new RuntimeException("unknown voxel ordering: " + reorder);
+            }
+
         final ArrayList<ElementConnection> connections = new ArrayList<>();
         for (VolumeElement ve : elements)
             connections.addAll(ve.getConnections());
@@ -201,6 +236,230 @@ public void fix() {
             eltNbrG[i1][inbr[i1]] = conG[i];
             inbr[i1] += 1;
         }
+
+        this.buildIndexes();
+    }
+
+    /**
+     * Returns the elements in reverse Cuthill-McKee order: each connected
+     * part is walked breadth-first from an element with fewest neighbours,
+     * visiting neighbours with fewer neighbours first, and the resulting
+     * order is reversed. This keeps the numbers of neighbouring elements
+     * close, so their rows in the population arrays are close in memory.
+     */
+    int[] cuthillMcKeeOrder() {
+        final int n = this.elements.size();
+
+        final ArrayList<ArrayList<Integer>> adjacent = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            adjacent.add(new ArrayList<Integer>());
+        for (VolumeElement ve: this.elements)
+            for (ElementConnection ec: ve.getConnections()) {
+                int a = ec.getElementA().getNumber(), b = ec.getElementB().getNumber();
+                adjacent.get(a).add(b);
+                adjacent.get(b).add(a);
+            }
+
+        final Comparator<Integer> byDegree = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Integer.compare(adjacent.get(a).size(), adjacent.get(b).size());
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        };
+
+        Integer[] starts = new Integer[n];
+        for (int i = 0; i < n; i++)
+            starts[i] = i;
+        Arrays.sort(starts, byDegree);
+
+        final int[] order = new int[n];
+        final boolean[] visited = new boolean[n];
+        int count = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int start: starts) {
+            if (visited[start])
+                continue;
+            visited[start] = true;
+            queue.add(start);
+
+            while (!queue.isEmpty()) {
+                int i = queue.poll();
+                order[count++] = i;
+
+                ArrayList<Integer> next = new ArrayList<>();
+                for (int j: adjacent.get(i))
+                    if (!visited[j]) {
+                        visited[j] = true;
+                        next.add(j);
+                    }
+                Collections.sort(next, byDegree);
+                queue.addAll(next);
+            }
+        }
+        assert count == n;
+
+        for (int i = 0; i < n / 2; i++) {
+            int t = order[i];
+            order[i] = order[n - 1 - i];
+            order[n - 1 - i] = t;
+        }
+        return order;
+    }
+
+    /**
+     * The maximum difference between the numbers of connected elements.
+     */
+    int bandwidth() {
+        int ans = 0;
+        for (VolumeElement ve: this.elements)
+            for (ElementConnection ec: ve.getConnections())
+                ans = Math.max(ans, Math.abs(ec.getElementA().getNumber() - ec.getElementB().getNumber()));
+        return ans;
+    }
+
+    static final Comparator<VolumeElement> BY_NUMBER = new Comparator<VolumeElement>() {
+        @Override
+        public int compare(VolumeElement a, VolumeElement b) {
+            return Integer.compare(a.getNumber(), b.getNumber());
+        }
+    };
+
+    /**
+     * Put elements in the given order: order[i] is the current number of
+     * the element which becomes element i.
+     */
+    void renumber(int[] order) {
+        assert order.length == this.elements.size();
+
+        final int before = this.bandwidth();
+        final ArrayList<VolumeElement> old = this.elements;
+        this.elements = new ArrayList<>(old.size());
+        this.originalNumbers = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            VolumeElement ve = old.get(order[i]);
+            ve.renumber(i);
+            this.elements.add(ve);
+            this.originalNumbers[i] = order[i];
+        }
+
+        for (ArrayList<VolumeElement> list: this.regionHM.values())
+            Collections.sort(list, BY_NUMBER);
+        this.labelIndex = null;
+
+        log.info("Renumbered {} elements, bandwidth {} → {}", order.length, before, this.bandwidth());
+    }
+
+    public static String getOrdering() {
+        return reorder;
+    }
+
+    /**
+     * The numbers the elements had after discretization, or null
+     * if they were not renumbered.
+     */
+    public int[] getOriginalNumbers() {
+        return this.originalNumbers;
+    }
+
+    /**
+     * Rows of pop, one per element of a grid with the given original
+     * numbers, put in the order of discretization. original may be null.
+     */
+    public static int[][] inOriginalOrder(int[][] pop, int[] original) {
+        if (original == null)
+            return pop;
+        checkPermutation(pop, original);
+
+        int[][] ans = new int[pop.length][];
+        for (int i = 0; i < pop.length; i++)
+            ans[original[i]] = pop[i];
+        return ans;
+    }
+
+    /**
+     * The inverse of {@link #inOriginalOrder}: rows in the order
+     * of discretization, put in the order of a grid with the given
+     * original numbers.
+     */
+    public static int[][] inGridOrder(int[][] pop, int[] original) {
+        if (original == null)
+            return pop;
+        checkPermutation(pop, original);
+
+        int[][] ans = new int[pop.length][];
+        for (int i = 0; i < pop.length; i++)
+            ans[i] = pop[original[i]];
+        return ans;
+    }
+
+    private static void checkPermutation(int[][] pop, int[] original) {
+        if (pop.length != original.length) {
+            log.error("Population of {} elements does not match ordering of {} elements",
+                      pop.length, original.length);
+            throw new RuntimeException("Population and voxel ordering mismatch");
+        }
+
+        boolean[] seen = new boolean[original.length];
+        for (int n: original) {
+            if (n < 0 || n >= original.length || seen[n]) {
+                log.error("Voxel ordering is not a permutation of {} elements", original.length);
+                throw new RuntimeException("Bad voxel ordering");
+            }
+            seen[n] = true;
+        }
+    }
+
+    private static <K> void addTo(Map<K, ArrayList<VolumeElement>> map, K key, VolumeElement ve) {
+        ArrayList<VolumeElement> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        list.add(ve);
+    }
+
+    private void buildIndexes() {
+        this.labelIndex = new HashMap<>();
+        this.submembraneLabelIndex = new HashMap<>();
+        this.submembraneRegionIndex = new HashMap<>();
+        this.numberedIndex = new HashMap<>();
+
+        for (VolumeElement ve: this.elements) {
+            String label = ve.getLabel();
+            if (label != null) {
+                addTo(this.labelIndex, label, ve);
+                if (ve.isSubmembrane())
+                    addTo(this.submembraneLabelIndex, label, ve);
+
+                int iob = label.indexOf("[");
+                int icb = label.indexOf("]");
+                if (iob >= 0 && icb > iob) {
+                    final int number;
+                    try {
+                        number = Integer.parseInt(label.substring(iob + 1, icb));
+                    } catch(NumberFormatException e) {
+                        continue;
+                    }
+
+                    String key = label.substring(0, iob + 1) + label.substring(icb);
+                    TreeMap<Integer, ArrayList<VolumeElement>> numbers = this.numberedIndex.get(key);
+                    if (numbers == null) {
+                        numbers = new TreeMap<>();
+                        this.numberedIndex.put(key, numbers);
+                    }
+                    addTo(numbers, number, ve);
+                }
+            }
+
+            if (ve.isSubmembrane())
+                addTo(this.submembraneRegionIndex, ve.getRegion(), ve);
+        }
+    }
+
+    private void ensureIndexes() {
+        if (this.labelIndex == null)
+            this.buildIndexes();
     }
 
     public int size() {
@@ -359,16 +618,22 @@ private ArrayList<VolumeElement> getMatches(String sti) {
 
         log.debug("Looking for {}{}:{} or {}{}", pre, rangemin, rangemax, indices, post);
 
-        for (VolumeElement el: this.elements) {
-            String s = el.getLabel();
-
-            if (s != null && s.startsWith(pre) && s.endsWith(post)) {
-                String sin = s.substring(pre.length(), s.indexOf(post));
-                int ind = Integer.parseInt(sin);
-
-                if (rangemin <= ind && rangemax >= ind || indices.contains(ind))
-                    matched.add(el);
-            }
+        this.ensureIndexes();
+        TreeMap<Integer, ArrayList<VolumeElement>> numbers = this.numberedIndex.get(pre + post);
+        if (numbers != null) {
+            if (indices.isEmpty()) {
+                if (rangemin <= rangemax)
+                    for (ArrayList<VolumeElement> list: numbers.subMap(rangemin, true, rangemax, true).values())
+                        matched.addAll(list);
+            } else
+                for (int ind: new LinkedHashSet<>(indices)) {
+                    ArrayList<VolumeElement> list = numbers.get(ind);
+                    if (list != null)
+                        matched.addAll(list);
+                }
+
+            /* Keep the order of elements, like a linear scan would */
+            Collections.sort(matched, BY_NUMBER);
         }
 
         if (matched.isEmpty())
@@ -388,23 +653,16 @@ public ArrayList<VolumeElement> filterElementsByLabel(String label) {
             return this.getMatches(label);
         }
 
-        ArrayList<VolumeElement> ans = new ArrayList<>();
-
-        for (VolumeElement el: this.elements)
-            if (el.getLabel() != null &&
-                el.getLabel().equals(label) &&
-                (!submembrane || el.isSubmembrane()))
-                ans.add(el);
-        if (!ans.isEmpty())
-            return ans;
-
-        for (VolumeElement el: this.elements)
-            if (el.getRegion() != null &&
-                el.getRegion().equals(label) &&
-                (!submembrane || el.isSubmembrane()))
-                ans.add(el);
-        if (!ans.isEmpty())
-            return ans;
+        this.ensureIndexes();
+
+        ArrayList<VolumeElement> ans =
+            (submembrane ? this.submembraneLabelIndex : this.labelIndex).get(label);
+        if (ans != null)
+            return new ArrayList<>(ans);
+
+        ans = (submembrane ? this.submembraneRegionIndex : this.regionHM).get(label);
+        if (ans != null && !ans.isEmpty())
+            return new ArrayList<>(ans);
 
         throw new RuntimeException("no elements labeled by \"" + label + "\"");
     }
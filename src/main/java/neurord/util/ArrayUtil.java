@@ -33,6 +33,14 @@ public static int maxLength(int[]... array) {
         return i;
     }
 
+    public static int maxLength(long[]... array) {
+        int i = 0;
+        for (long[] a: array)
+            if (a.length > i)
+                i = a.length;
+        return i;
+    }
+
     public static int maxLength(int[][]... array) {
         int i = 0;
         for (int[][] a: array)
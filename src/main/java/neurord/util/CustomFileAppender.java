@@ -14,11 +14,32 @@
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.message.SimpleMessage;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.logging.log4j.Level;
+
+/**
+ * Sends log events to the log file, the log files of server jobs,
+ * and optionally the log file of each trial.
+ *
+ * With neurord.log.async, events are put in a lock-free queue of the
+ * thread (or of the trial running on it), and written by a background thread,
+ * so that threads running trials do not wait for each other on the locks of
+ * the file appenders. A thread writes its own queue when it is full, when
+ * an error is logged, and when its trial ends, so errors are not lost
+ * and the log of a trial is complete when it ends.
+ */
 @Plugin(name="CustomFile", category="core", elementType="appender", printObject=true)
 public final class CustomFileAppender extends AbstractAppender {
     public static final Integer dummy = 0;
@@ -26,9 +47,61 @@ public final class CustomFileAppender extends AbstractAppender {
     final static boolean mmap_appender = Settings.getProperty("neurord.mmap_appender",
                                                               "User MemoryMappedFileAppender",
                                                               true);
+    final static boolean async = Settings.getProperty("neurord.log.async",
+                                                      "Write log files from a background thread",
+                                                      false);
+    final static int async_capacity = Settings.getProperty("neurord.log.async_buffer",
+                                                           "Events queued by a thread before it writes them itself",
+                                                           10000);
+    final static boolean per_trial = Settings.getProperty("neurord.log.per_trial",
+                                                          "Also write the log of each trial to <log>.trialN.log",
+                                                          false);
+    final static int drain_interval = 20; /* ms */
+
+    /* An event and the job of the thread which logged it */
+    static final class Entry {
+        final LogEvent event;
+        final String job;
+
+        Entry(LogEvent event, String job) {
+            this.event = event;
+            this.job = job;
+        }
+    }
+
+    /* Events of one thread, or of one trial, not yet written */
+    static final class Buffer {
+        final Thread owner;
+        final Appender trial;
+        final Buffer previous;
+        final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Buffer(Appender trial, Buffer previous) {
+            this.owner = Thread.currentThread();
+            this.trial = trial;
+            this.previous = previous;
+        }
+    }
+
+    final private List<Buffer> buffers = new CopyOnWriteArrayList<>();
+    static private final ThreadLocal<Buffer> buffer = new ThreadLocal<>();
+
+    /* Held while writing queued events, so each queue has one consumer */
+    final private ReentrantLock drain_lock = new ReentrantLock();
+    private Thread drainer;
+    private volatile boolean stopped = false;
+
+    /* The main log file, for names of per-trial log files */
+    static private String logfile = null;
 
     final private List<AbstractOutputStreamAppender<? extends OutputStreamManager>> appenders
-        = new ArrayList<>();
+        = new CopyOnWriteArrayList<>();
+
+    /* In server mode, events from the threads of a job also go to the log of that job */
+    final private Map<String, AbstractOutputStreamAppender<? extends OutputStreamManager>> job_appenders
+        = new ConcurrentHashMap<>();
+    static private final InheritableThreadLocal<String> job = new InheritableThreadLocal<>();
 
     static private CustomFileAppender instance = null;
 
@@ -38,8 +111,112 @@ private CustomFileAppender(String name, Filter filter, Layout layout,
     }
 
     public void append(LogEvent e) {
+        final String tag = job.get();
+        final Buffer b = buffer.get();
+
+        if (!async || this.stopped) {
+            this.write(e, tag, b != null ? b.trial : null);
+            return;
+        }
+
+        final Buffer own = b != null ? b : this.register(null);
+
+        if (e.getLevel().isMoreSpecificThan(Level.ERROR) || own.size.get() >= async_capacity) {
+            this.drain_lock.lock();
+            try {
+                this.drain(own);
+                this.write(e, tag, own.trial);
+            } finally {
+                this.drain_lock.unlock();
+            }
+            return;
+        }
+
+        own.queue.offer(new Entry(immutable(e), tag));
+        own.size.incrementAndGet();
+    }
+
+    /**
+     * A copy of e which can be written later on another thread. The event
+     * itself may be reused by the logger, and its message may refer to mutable
+     * objects, so the copy holds the message already formatted. This is
+     * LogEvent.toImmutable() of newer log4j versions.
+     */
+    static LogEvent immutable(LogEvent e) {
+        return new Log4jLogEvent.Builder(e)
+            .setMessage(new SimpleMessage(e.getMessage().getFormattedMessage()))
+            .build();
+    }
+
+    private void write(LogEvent e, String tag, Appender trial) {
         for (Appender appender: this.appenders)
             appender.append(e);
+
+        if (tag != null) {
+            Appender appender = this.job_appenders.get(tag);
+            if (appender != null)
+                appender.append(e);
+        }
+
+        if (trial != null)
+            trial.append(e);
+    }
+
+    private Buffer register(Appender trial) {
+        Buffer b = new Buffer(trial, buffer.get());
+        this.buffers.add(b);
+        buffer.set(b);
+        return b;
+    }
+
+    /* Must be called with drain_lock held */
+    private void drain(Buffer b) {
+        Entry entry;
+        while ((entry = b.queue.poll()) != null) {
+            b.size.decrementAndGet();
+            this.write(entry.event, entry.job, b.trial);
+        }
+    }
+
+    private void drainAll() {
+        this.drain_lock.lock();
+        try {
+            for (Buffer b: this.buffers) {
+                this.drain(b);
+                if (b.trial == null && !b.owner.isAlive())
+                    this.buffers.remove(b);
+            }
+        } finally {
+            this.drain_lock.unlock();
+        }
+    }
+
+    private synchronized void startDrainer() {
+        if (this.drainer != null)
+            return;
+
+        this.drainer = new Thread("log-writer") {
+                @Override
+                public void run() {
+                    while (!CustomFileAppender.this.stopped) {
+                        CustomFileAppender.this.drainAll();
+                        try {
+                            Thread.sleep(drain_interval);
+                        } catch(InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            };
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread("log-flush") {
+                @Override
+                public void run() {
+                    CustomFileAppender.this.drainAll();
+                }
+            });
     }
 
     @PluginFactory
@@ -84,6 +261,8 @@ public void append(LogEvent e) {
         }
 
         CustomFileAppender.instance = instance;
+        if (async)
+            instance.startDrainer();
         return instance;
     }
 
@@ -94,6 +273,109 @@ public static void addFileAppender(String filename) {
             return;
         }
 
+        instance.appenders.add(createFileAppender(filename));
+        if (logfile == null)
+            logfile = filename;
+    }
+
+    /**
+     * Send events to appender through the same queues as to the log file.
+     * Returns false if logging is not asynchronous, and appender should
+     * be attached to a logger instead.
+     */
+    public static boolean addAsyncAppender(AbstractOutputStreamAppender<? extends OutputStreamManager> appender) {
+        if (instance == null || !async)
+            return false;
+
+        instance.appenders.add(appender);
+        return true;
+    }
+
+    static String trialLogFile(String logfile, int trial) {
+        String base = logfile.endsWith(".log") ? logfile.substring(0, logfile.length() - 4) : logfile;
+        return base + ".trial" + trial + ".log";
+    }
+
+    /**
+     * Events logged by this thread from now on belong to trial,
+     * and go to a separate queue, and to &lt;log&gt;.trialN.log with
+     * neurord.log.per_trial. Jobs running in the same process use the
+     * same trial numbers, so each passes its own log file (null means
+     * the main log file). Ended with {@link #endTrial}.
+     */
+    public static void beginTrial(int trial, String joblog) {
+        if (instance == null)
+            return;
+
+        final String base = joblog != null ? joblog : logfile;
+
+        Appender appender = null;
+        if (per_trial && base != null)
+            appender = createFileAppender(trialLogFile(base, trial));
+
+        if (async || appender != null)
+            instance.register(appender);
+    }
+
+    /**
+     * Write out the events of the trial running on this thread.
+     */
+    public static void endTrial() {
+        if (instance == null)
+            return;
+
+        Buffer b = buffer.get();
+        if (b == null)
+            return;
+
+        instance.drain_lock.lock();
+        try {
+            instance.drain(b);
+        } finally {
+            instance.drain_lock.unlock();
+        }
+
+        instance.buffers.remove(b);
+        if (b.previous != null)
+            buffer.set(b.previous);
+        else
+            buffer.remove();
+        if (b.trial != null)
+            b.trial.stop();
+    }
+
+    /**
+     * Send events logged by this thread, and threads started from it,
+     * to filename. Stopped with {@link #closeJob}.
+     */
+    public static void addJobFileAppender(String tag, String filename) {
+        if (instance == null) {
+            LOGGER.error("CustomFileAppender hasn't been initalized, ignoring output "
+                         + filename);
+            return;
+        }
+
+        job.set(tag);
+        Appender old = instance.job_appenders.put(tag, createFileAppender(filename));
+        if (old != null)
+            old.stop();
+    }
+
+    public static void closeJob(String tag) {
+        job.remove();
+        if (instance == null)
+            return;
+
+        /* Events still queued by this thread (and by the threads of the job)
+         * must be written before the log of the job is closed */
+        instance.drainAll();
+
+        Appender appender = instance.job_appenders.remove(tag);
+        if (appender != null)
+            appender.stop();
+    }
+
+    private static AbstractOutputStreamAppender<? extends OutputStreamManager> createFileAppender(String filename) {
         final AbstractOutputStreamAppender<? extends OutputStreamManager> appender;
         if (mmap_appender)
             appender = MemoryMappedFileAppender.createAppender(filename,
@@ -115,14 +397,19 @@ public static void addFileAppender(String filename) {
                                                    new DefaultConfiguration());
 
         LOGGER.info("registering custom logfile '{}'", appender);
-        instance.appenders.add(appender);
+        return appender;
     }
 
     public static void close() {
         if (instance == null)
             return;
 
+        instance.stopped = true;
+        instance.drainAll();
+
         for (Appender appender: instance.appenders)
             appender.stop();
+        for (Appender appender: instance.job_appenders.values())
+            appender.stop();
     }
 }
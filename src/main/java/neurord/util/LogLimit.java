@@ -0,0 +1,74 @@
+package neurord.util;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Limits how many times a repeated message is logged.
+ *
+ * Each instance counts the occurrences of one message. The first limit
+ * occurrences are allowed, when the limit is reached a note that further
+ * messages are suppressed is logged, and {@link #report} logs how many were
+ * suppressed in the end. Instances belong to one trial, so they are not
+ * synchronized.
+ *
+ * <pre>
+ *   final LogLimit too_large = new LogLimit(log, "p too large");
+ *   …
+ *   if (too_large.allow())
+ *       log.warn("p too large at element {}", iel);
+ * </pre>
+ */
+public class LogLimit {
+    public static final Logger log = LogManager.getLogger();
+
+    final static int default_limit = Settings.getProperty("neurord.log.repeat",
+                                                          "Log at most this many copies of repeated warnings in each trial",
+                                                          500);
+
+    final Logger logger;
+    final String what;
+    final int limit;
+
+    private long count = 0;
+
+    public LogLimit(Logger logger, String what, int limit) {
+        this.logger = logger;
+        this.what = what;
+        this.limit = limit;
+    }
+
+    public LogLimit(Logger logger, String what) {
+        this(logger, what, default_limit);
+    }
+
+    /**
+     * Count one occurrence and return true if it should be logged.
+     */
+    public boolean allow() {
+        if (++this.count <= this.limit)
+            return true;
+
+        if (this.count == this.limit + 1)
+            this.logger.warn("Suppressing further \"{}\" messages (-Dneurord.log.repeat={})",
+                             this.what, this.limit);
+        return false;
+    }
+
+    public long count() {
+        return this.count;
+    }
+
+    public long suppressed() {
+        return Math.max(this.count - this.limit, 0);
+    }
+
+    /**
+     * Log how many messages were suppressed, if any.
+     */
+    public void report() {
+        if (this.suppressed() > 0)
+            this.logger.warn("\"{}\" happened {} times, {} messages suppressed",
+                             this.what, this.count, this.suppressed());
+    }
+}
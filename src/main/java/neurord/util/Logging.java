@@ -86,7 +86,9 @@ public static void configureConsoleLogging() {
                 = (org.apache.logging.log4j.core.Logger) logger;
             LoggerContext context = (LoggerContext) coreLogger.getContext();
             Configuration configuration = context.getConfiguration();
-            coreLogger.addAppender(configuration.getAppender("Console"));
+            ConsoleAppender console = configuration.getAppender("Console");
+            if (!CustomFileAppender.addAsyncAppender(console))
+                coreLogger.addAppender(console);
         }
     }
 
@@ -4,9 +4,10 @@
 import java.io.IOException;
 import java.io.File;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.jar.Manifest;
 
 import org.apache.logging.log4j.Logger;
@@ -21,7 +22,8 @@ public class Settings {
     final String description;
     final Object fallback;
 
-    public static ArrayList<Settings> all_settings = new ArrayList<>();
+    /* Appended to while classes are loaded, which can happen in concurrent jobs */
+    public static final List<Settings> all_settings = new CopyOnWriteArrayList<>();
 
     private Settings(String name, String description, Object fallback) {
         this.name = name;
@@ -100,15 +102,29 @@ static public String[] getPropertyList(String name, String description, String..
     static void forceLoading() {
         Logger log;
         log = neurord.SDCalc.log;
+        log = neurord.Server.log;
+        log = neurord.disc.SliceTree.log;
         log = neurord.numeric.grid.AdaptiveGridCalc.log;
+        log = neurord.numeric.grid.CostProfile.log;
+        log = neurord.numeric.grid.DatasetLayout.log;
+        log = neurord.numeric.grid.DeterministicKernels.log;
         log = neurord.numeric.grid.GridCalc.log;
+        log = neurord.numeric.grid.LockstepStochasticGridCalc.log;
         log = neurord.numeric.grid.NextEventQueue.log;
+        log = neurord.numeric.grid.EventTrace.log;
         log = neurord.numeric.grid.ResultWriterHDF5.log;
+        log = neurord.numeric.grid.ResultWriterEnsemble.log;
+        log = neurord.numeric.grid.ResultWriterRaw.log;
+        log = neurord.numeric.grid.SteadyState.log;
         log = neurord.numeric.grid.StochasticGridCalc.log;
+        log = neurord.numeric.grid.TrialMetrics.log;
+        log = neurord.numeric.morph.GridCache.log;
+        log = neurord.numeric.morph.VolumeGrid.log;
         log = neurord.xml.ModelReader.log;
         log = neurord.model.Specie.log;
         log = neurord.model.Reaction.log;
         log = neurord.model.InjectionStim.log;
+        log = neurord.util.LogLimit.log;
 
         Integer dummy = neurord.util.CustomFileAppender.dummy;
     }
@@ -263,12 +279,51 @@ public static void augmentProperties(Properties overrides) {
     }
 
     private static Properties properties = null;
+
+    /* Per-job properties in server mode, inherited by the threads of the job */
+    private static final InheritableThreadLocal<Properties> job_properties = new InheritableThreadLocal<>();
+
     public static Properties getProperties() {
+        Properties job = job_properties.get();
+        if (job != null)
+            return job;
         if (properties == null)
             return System.getProperties();
         return properties;
     }
 
+    /**
+     * Use those overrides on top of the global properties in this thread
+     * and threads started from it, or go back to the global properties
+     * if null.
+     *
+     * Settings which are stored in static fields are read only once,
+     * see {@link #isRegistered}.
+     */
+    public static void setJobProperties(Properties overrides) {
+        if (overrides == null) {
+            job_properties.remove();
+            return;
+        }
+
+        Properties props = new Properties();
+        props.putAll(properties != null ? properties : System.getProperties());
+        props.putAll(overrides);
+        job_properties.set(props);
+    }
+
+    /**
+     * Returns true if name is one of the settings read with getProperty(…)
+     * with a description. Those are read once when their class is loaded.
+     */
+    public static boolean isRegistered(String name) {
+        forceLoading();
+        for (Settings s: all_settings)
+            if (s.name.equals(name))
+                return true;
+        return false;
+    }
+
     private static boolean parseBool(String value) {
         switch(value.toLowerCase()) {
         case "1":
@@ -213,14 +213,40 @@ public boolean failed() {
         }
     }
 
-    JAXBContext jc;
+    final JAXBContext jc;
+
+    /* Creating a context is slow, and contexts are thread-safe, so share them */
+    private static final Map<Class<?>, JAXBContext> contexts = new HashMap<>();
+
+    static synchronized JAXBContext context(Class<?> klass) {
+        JAXBContext jc = contexts.get(klass);
+        if (jc == null) {
+            try {
+                jc = JAXBContext.newInstance(klass);
+            } catch(JAXBException e) {
+                throw new RuntimeException(e);
+            }
+            contexts.put(klass, jc);
+        }
+        return jc;
+    }
 
     public ModelReader(Class<T> klass) {
-        try {
-            this.jc = JAXBContext.newInstance(klass);
-        } catch(JAXBException e) {
-            throw new RuntimeException(e);
+        this.jc = context(klass);
+    }
+
+    private static Schema schema;
+
+    static synchronized Schema schema()
+        throws SAXException
+    {
+        if (schema == null) {
+            StreamSource schemaSource = new StreamSource(ModelReader.class.getResourceAsStream("/sdrun.xsd"));
+
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            schema = factory.newSchema(schemaSource);
         }
+        return schema;
     }
 
     static {
@@ -244,10 +270,7 @@ protected T unmarshall(File filename, InputSource xml, HashMap<String,String> ex
         spf.setNamespaceAware(true);
         spf.setFeature("http://apache.org/xml/features/xinclude/fixup-base-uris", false);
 
-        StreamSource schemaSource = new StreamSource(this.getClass().getResourceAsStream("/sdrun.xsd"));
-
-        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        Schema schema = factory.newSchema(schemaSource);
+        Schema schema = schema();
         spf.setSchema(schema);
 
         NamespaceFiller filter = new NamespaceFiller(this.propertyOverrides(), extra_overrides);
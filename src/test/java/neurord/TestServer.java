@@ -0,0 +1,54 @@
+package neurord;
+
+import java.util.Properties;
+
+import neurord.util.Settings;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import org.testng.annotations.*;
+
+public class TestServer {
+    static Properties props(String... pairs) {
+        Properties props = new Properties();
+        for (int i = 0; i < pairs.length; i += 2)
+            props.setProperty(pairs[i], pairs[i + 1]);
+        return props;
+    }
+
+    @Test
+    public void testTrialRange() {
+        assertNull(Server.trialRange("a", props("model", "m.xml")));
+        assertEquals(Server.trialRange("a", props("trials", "3")), new int[]{ 0, 3 });
+        assertEquals(Server.trialRange("a", props("trials", "3", "trial-range", "2:5")), new int[]{ 2, 5 });
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testBadTrialRange() {
+        Server.trialRange("a", props("trial-range", "2"));
+    }
+
+    @Test
+    public void testOverrides() {
+        Properties overrides = Server.overrides("a", props("model", "m.xml",
+                                                           "runtime", "10",
+                                                           "neurord.sdrun.runtime", "20"));
+        assertEquals(overrides, props("neurord.sdrun.runtime", "20"));
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testStaticOverride() {
+        Server.overrides("a", props("neurord.threads", "17"));
+    }
+
+    @Test
+    public void testJobProperties() {
+        Settings.setJobProperties(props("neurord.test.job", "yes"));
+        try {
+            assertEquals(Settings.getProperties().getProperty("neurord.test.job"), "yes");
+        } finally {
+            Settings.setJobProperties(null);
+        }
+        assertNull(Settings.getProperties().getProperty("neurord.test.job"));
+    }
+}
@@ -0,0 +1,134 @@
+package neurord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import neurord.model.SDRun;
+import neurord.numeric.chem.ReactionTable;
+import neurord.numeric.grid.SteppedStochasticGridCalc;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestSweep {
+    @Test
+    public void testNamed() {
+        List<Sweep.Variant> variants =
+            Sweep.readTable(Arrays.asList("# comment",
+                                          "variant  Reaction.r1.forwardRate  ConcentrationSet.default.Ca",
+                                          "",
+                                          "low      1e-3   50",
+                                          "high\t1e-2\t60"));
+        assertEquals(variants.size(), 2);
+        assertEquals(variants.get(0).name, "low");
+        assertEquals(variants.get(1).name, "high");
+        assertEquals(variants.get(1).overrides.keySet().toArray(),
+                     new String[]{"Reaction.r1.forwardRate", "ConcentrationSet.default.Ca"});
+        assertEquals(variants.get(1).overrides.get("ConcentrationSet.default.Ca"), "60");
+    }
+
+    @Test
+    public void testNumbered() {
+        List<Sweep.Variant> variants =
+            Sweep.readTable(Arrays.asList("runtime", "10", "20"));
+        assertEquals(variants.size(), 2);
+        assertEquals(variants.get(1).name, "1");
+        assertEquals(variants.get(1).overrides.get("runtime"), "20");
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testBadLine() {
+        Sweep.readTable(Arrays.asList("runtime InjectionStim.0.rate", "10"));
+    }
+
+    /* One dendrite, A + B → C */
+    static final String MODEL =
+        "<SDRun xmlns=\"http://stochdiff.textensor.org\">\n" +
+        "  <ReactionScheme>\n" +
+        "    <Specie name=\"A\" id=\"A\" kdiff=\"1\" kdiffunit=\"mu2/s\"/>\n" +
+        "    <Specie name=\"B\" id=\"B\" kdiff=\"1\" kdiffunit=\"mu2/s\"/>\n" +
+        "    <Specie name=\"C\" id=\"C\" kdiff=\"0\" kdiffunit=\"mu2/s\"/>\n" +
+        "    <Reaction name=\"binding\" id=\"r1\">\n" +
+        "      <Reactant specieID=\"A\"/>\n" +
+        "      <Reactant specieID=\"B\"/>\n" +
+        "      <Product specieID=\"C\"/>\n" +
+        "      <forwardRate>1e-6</forwardRate>\n" +
+        "      <reverseRate>0</reverseRate>\n" +
+        "    </Reaction>\n" +
+        "  </ReactionScheme>\n" +
+        "  <Morphology>\n" +
+        "    <Segment id=\"seg1\" region=\"dend\">\n" +
+        "      <start x=\"0\" y=\"0\" z=\"0\" r=\"0.5\"/>\n" +
+        "      <end x=\"4\" y=\"0\" z=\"0\" r=\"0.5\"/>\n" +
+        "    </Segment>\n" +
+        "  </Morphology>\n" +
+        "  <InitialConditions>\n" +
+        "    <ConcentrationSet>\n" +
+        "      <NanoMolarity specieID=\"A\" value=\"1000\"/>\n" +
+        "      <NanoMolarity specieID=\"B\" value=\"500\"/>\n" +
+        "    </ConcentrationSet>\n" +
+        "  </InitialConditions>\n" +
+        "  <geometry>2D</geometry>\n" +
+        "  <depth2D>0.6</depth2D>\n" +
+        "  <runtime>10</runtime>\n" +
+        "  <fixedStepDt>0.1</fixedStepDt>\n" +
+        "  <simulationSeed>123</simulationSeed>\n" +
+        "  <discretization><defaultMaxElementSide>1.0</defaultMaxElementSide></discretization>\n" +
+        "  <outputInterval>1</outputInterval>\n" +
+        "  <calculation>GRID_STEPPED_STOCHASTIC</calculation>\n" +
+        "</SDRun>\n";
+
+    static SDRun loadModel() throws IOException {
+        File file = File.createTempFile("model", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.print(MODEL);
+        }
+        return SDRun.loadFromFile(file, null, 0, Double.NaN);
+    }
+
+    static long population(SDRun model, int species) {
+        SteppedStochasticGridCalc calc = new SteppedStochasticGridCalc(0, model);
+        calc.init();
+        long total = 0;
+        for (int i = 0; i < calc.getNumberElements(); i++)
+            total += calc.getGridPartNumb(i, species);
+        return total;
+    }
+
+    @Test
+    public void testOverrides() throws IOException {
+        SDRun model = loadModel();
+
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("Reaction.r1.forwardRate", "2e-6");
+        overrides.put("ConcentrationSet.default.A", "3000");
+        SDRun copy = model.withOverrides(overrides);
+
+        /* the discretization is done once */
+        assertNotSame(copy, model);
+        assertTrue(model.getVolumeGrid().size() > 1);
+        assertSame(copy.getVolumeGrid(), model.getVolumeGrid());
+
+        ReactionTable orig = model.getReactionTable(), changed = copy.getReactionTable();
+        assertEquals(orig.getNReaction(), 1);
+        assertEquals(changed.getNReaction(), 1);
+        assertEquals(orig.getRates()[0], 1e-6);
+        assertEquals(changed.getRates()[0], 2e-6);
+
+        /* A is tripled, B is not changed */
+        long a0 = population(model, 0), a1 = population(copy, 0);
+        long b0 = population(model, 1), b1 = population(copy, 1);
+        assertTrue(a0 > 100);
+        assertTrue(Math.abs(a1 - 3 * a0) < 0.1 * a1, a0 + " → " + a1);
+        assertTrue(Math.abs(b1 - b0) < 0.2 * b0, b0 + " → " + b1);
+    }
+}
@@ -0,0 +1,104 @@
+package neurord.disc;
+
+import java.util.HashMap;
+
+import neurord.numeric.morph.TreePoint;
+import neurord.numeric.morph.VolumeElement;
+import neurord.numeric.morph.VolumeGrid;
+import neurord.numeric.morph.VolumeGrid.geometry_t;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestSliceTree {
+    /* A dendrite which forks into two thinner branches, one of which forks again */
+    static TreePoint[] morphology() {
+        TreePoint[] pts = {
+            new TreePoint(0, 0, 0, 1),
+            new TreePoint(8, 0, 0, 1),
+            new TreePoint(12, 4, 0, 0.6),
+            new TreePoint(12, -4, 0, 0.6),
+            new TreePoint(16, 6, 0, 0.4),
+            new TreePoint(15, 9, 0, 0.4),
+        };
+        pts[0].label = "dend";
+        pts[4].label = "tip";
+        TreePoint.neighborize(pts[0], pts[1]);
+        TreePoint.neighborize(pts[1], pts[2]);
+        TreePoint.neighborize(pts[1], pts[3]);
+        TreePoint.neighborize(pts[2], pts[4]);
+        TreePoint.neighborize(pts[2], pts[5]);
+        return pts;
+    }
+
+    /* The points sliced like the discretizers do it */
+    static TreePoint[] sliced() {
+        TreePoint[] pts = morphology();
+        TreeUtil.parentizeFrom(pts[0], pts);
+        TreeUtil.orientAC(pts[0], pts);
+        return new SegmentSlicer(pts).getFixedWidthSlices(0.2, new HashMap<String, Double>());
+    }
+
+    static VolumeGrid build(geometry_t geom, int threads) {
+        final HashMap<String, Double> resolutions = new HashMap<>();
+        VolumeGrid grid;
+        if (geom == geometry_t.GEOM_2D)
+            grid = LineBoxer.buildGrid(sliced(), new double[]{ 0.1 }, 0.5, 0.2, resolutions, threads);
+        else if (geom == geometry_t.GEOM_3D) {
+            /* the 3d mesh does not do surface layers */
+            DiscBoxer boxer = new DiscBoxer(sliced(), new double[0]);
+            boxer.threads = threads;
+            grid = boxer.buildGrid(0.2, resolutions);
+        } else {
+            DiscSplitter splitter = new DiscSplitter(sliced(), 0.2, resolutions, new double[]{ 0.1 }, 3);
+            splitter.threads = threads;
+            grid = splitter.buildGrid();
+        }
+        grid.fix();
+        return grid;
+    }
+
+    static void assertSameGrids(VolumeGrid a, VolumeGrid b) {
+        assertEquals(a.size(), b.size());
+        for (int i = 0; i < a.size(); i++) {
+            VolumeElement x = a.getElement(i), y = b.getElement(i);
+            assertEquals(x.getNumber(), y.getNumber());
+            assertEquals(x.getLabel(), y.getLabel());
+            assertEquals(x.getRegion(), y.getRegion());
+            assertEquals(x.isSubmembrane(), y.isSubmembrane());
+            assertEquals(x.getX(), y.getX());
+            assertEquals(x.getY(), y.getY());
+            assertEquals(x.getZ(), y.getZ());
+            assertEquals(x.getVolume(), y.getVolume());
+            assertEquals(x.getExposedArea(), y.getExposedArea());
+        }
+        assertEquals(a.getPerElementNeighbors(), b.getPerElementNeighbors());
+        assertEquals(a.getPerElementCouplingConstants(), b.getPerElementCouplingConstants());
+    }
+
+    /* geom == null for the curved elements */
+    void checkSameWithThreads(geometry_t geom) {
+        VolumeGrid sequential = build(geom, 1);
+        /* enough slices to be split between tasks */
+        assertTrue(sequential.size() > 10 * SliceTree.SEQUENTIAL_THRESHOLD);
+
+        for (int threads: new int[]{ 2, 4, 7 })
+            assertSameGrids(build(geom, threads), sequential);
+    }
+
+    @Test
+    public void test2D() {
+        this.checkSameWithThreads(geometry_t.GEOM_2D);
+    }
+
+    @Test
+    public void test3D() {
+        this.checkSameWithThreads(geometry_t.GEOM_3D);
+    }
+
+    @Test
+    public void testCurved() {
+        this.checkSameWithThreads(null);
+    }
+}
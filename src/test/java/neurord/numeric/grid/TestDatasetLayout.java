@@ -0,0 +1,79 @@
+package neurord.numeric.grid;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestDatasetLayout {
+    @Test
+    public void testSmallRows() {
+        /* times: 1024 doubles written at once fit in one chunk */
+        assertEquals(DatasetLayout.chunks(new long[]{ 1024 }, 8, 256 * 1024),
+                     new long[]{ 1024 });
+        /* ensemble rows are written one at a time, but chunks are at least 4 KiB */
+        assertEquals(DatasetLayout.chunks(new long[]{ 1, 10, 4 }, 8, 256 * 1024),
+                     new long[]{ 13, 10, 4 });
+    }
+
+    @Test
+    public void testLargeRows() {
+        /* the cache is larger than the largest chunk */
+        assertEquals(DatasetLayout.chunks(new long[]{ 1024, 100, 10 }, 4, 256 * 1024),
+                     new long[]{ 65, 100, 10 });
+        /* a single snapshot does not fit, split voxels */
+        assertEquals(DatasetLayout.chunks(new long[]{ 16, 100000, 10 }, 4, 256 * 1024),
+                     new long[]{ 1, 6553, 10 });
+    }
+
+    @Test
+    public void testShuffle() {
+        assertEquals(DatasetLayout.shuffle(new int[]{ 0x01020304, 0x05060708 }),
+                     new byte[]{ 1, 5, 2, 6, 3, 7, 4, 8 });
+    }
+
+    static int[] sizes(int[] sample) {
+        byte[] input = DatasetLayout.shuffle(sample);
+        int[] sizes = new int[10];
+        for (int level = 0; level <= 9; level++)
+            sizes[level] = DatasetLayout.deflate(input, level, new byte[64 * 1024]);
+        return sizes;
+    }
+
+    @Test
+    public void testBestLevel() {
+        /* 1 ms to store 10 kB, each level takes 0.1 ms more than the previous one */
+        double[] times = new double[10];
+        for (int level = 0; level <= 9; level++)
+            times[level] = level * 1e-4;
+
+        /* random values do not compress, so compressing only costs time */
+        Random random = new Random(42);
+        int[] noise = new int[10000];
+        for (int i = 0; i < noise.length; i++)
+            noise[i] = random.nextInt();
+        int[] sizes = sizes(noise);
+        for (int level = 1; level <= 9; level++)
+            assertTrue(sizes[level] > 0.99 * sizes[0], "level " + level + ": " + sizes[level]);
+        assertEquals(DatasetLayout.bestLevel(sizes, times, 10e6), 0);
+
+        /* mostly zeros compress very well, so storing them uncompressed costs more */
+        int[] sparse = new int[10000];
+        for (int i = 0; i < sparse.length; i++)
+            sparse[i] = i % 7 == 0 ? i % 100 : 0;
+        sizes = sizes(sparse);
+        assertTrue(sizes[1] < sizes[0] / 10, "level 1: " + sizes[1]);
+        int level = DatasetLayout.bestLevel(sizes, times, 10e6);
+        assertTrue(level >= 1 && level <= 9, "level " + level);
+
+        /* with free storage, nothing is worth compressing */
+        assertEquals(DatasetLayout.bestLevel(sizes, times, Double.POSITIVE_INFINITY), 0);
+        /* with free compression, the smallest output wins */
+        int smallest = 0;
+        for (int l = 1; l <= 9; l++)
+            if (sizes[l] < sizes[smallest])
+                smallest = l;
+        assertEquals(DatasetLayout.bestLevel(sizes, new double[10], 10e6), smallest);
+    }
+}
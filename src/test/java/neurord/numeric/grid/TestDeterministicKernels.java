@@ -0,0 +1,131 @@
+package neurord.numeric.grid;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.SkipException;
+import org.testng.annotations.*;
+
+public class TestDeterministicKernels {
+    /* Not a multiple of the vector size, so that the tails are used too */
+    static final int NEL = 37, NSPEC = 3;
+
+    final double[] volumes = new double[NEL];
+    final double[] fdiff = { 0.5, 0, 2.0 };
+    final int[][] neighbors = new int[NEL][];
+    final double[][] couplings = new double[NEL][];
+
+    /* A + B → C, C → A + B, B → ∅ */
+    final double[] rates = { 0.01, 0.2, 0.03 };
+    final int[][] reactants = { { 0, 1 }, { 2 }, { 1 } };
+    final int[][] products = { { 2 }, { 0, 1 }, {} };
+
+    final double[][] now = new double[NEL][NSPEC], prev = new double[NEL][NSPEC];
+
+    @BeforeClass
+    public void setup() {
+        Random random = new Random(3);
+        for (int i = 0; i < NEL; i++) {
+            volumes[i] = 0.5 + random.nextDouble();
+
+            /* a chain, and every third element also touches the element five further */
+            int n = (i > 0 ? 1 : 0) + (i < NEL - 1 ? 1 : 0) + (i % 3 == 0 && i + 5 < NEL ? 1 : 0);
+            neighbors[i] = new int[n];
+            couplings[i] = new double[n];
+            int j = 0;
+            if (i > 0)
+                neighbors[i][j++] = i - 1;
+            if (i < NEL - 1)
+                neighbors[i][j++] = i + 1;
+            if (i % 3 == 0 && i + 5 < NEL)
+                neighbors[i][j++] = i + 5;
+            for (j = 0; j < n; j++)
+                couplings[i][j] = 0.1 * random.nextDouble();
+
+            for (int k = 0; k < NSPEC; k++) {
+                now[i][k] = 100 * random.nextDouble();
+                prev[i][k] = 100 * random.nextDouble();
+            }
+        }
+    }
+
+    static double[] flatten(double[][] array) {
+        double[] flat = new double[NEL * NSPEC];
+        for (int i = 0; i < NEL; i++)
+            for (int k = 0; k < NSPEC; k++)
+                flat[k * NEL + i] = array[i][k];
+        return flat;
+    }
+
+    DeterministicKernels kernels(String type) {
+        DeterministicKernels kernels = DeterministicKernels.create(type);
+        kernels.setup(volumes, fdiff, neighbors, couplings, rates, reactants, products);
+        return kernels;
+    }
+
+    @Test
+    public void testScalarDiffusion() {
+        final double dt = 0.1;
+
+        /* the loop from DeterministicGridCalc over [nel][nspec] */
+        double[] expected = new double[NEL * NSPEC];
+        for (int iel = 0; iel < NEL; iel++) {
+            double fvol = 2. * dt / volumes[iel];
+            for (int k = 0; k < NSPEC; k++) {
+                double zr = 0, zl = 1;
+                if (fdiff[k] > 0)
+                    for (int j = 0; j < neighbors[iel].length; j++) {
+                        double ff = fvol * fdiff[k] * couplings[iel][j];
+                        zr += ff * (now[neighbors[iel][j]][k] - 0.5 * prev[iel][k]);
+                        zl += 0.5 * ff;
+                    }
+                expected[k * NEL + iel] = (now[iel][k] + zr) / zl;
+            }
+        }
+
+        double[] next = new double[NEL * NSPEC];
+        this.kernels("scalar").diffusion(dt, flatten(now), flatten(prev), next);
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void testScalarProduction() {
+        final double dt = 0.1;
+
+        double[] expected = new double[NEL * NSPEC];
+        for (int iel = 0; iel < NEL; iel++)
+            for (int ireac = 0; ireac < rates.length; ireac++) {
+                double r = rates[ireac];
+                for (int index: reactants[ireac])
+                    r *= now[iel][index];
+                for (int index: reactants[ireac])
+                    expected[index * NEL + iel] -= r;
+                for (int index: products[ireac])
+                    expected[index * NEL + iel] += r;
+            }
+        for (int i = 0; i < expected.length; i++)
+            expected[i] *= dt;
+
+        double[] out = new double[NEL * NSPEC];
+        this.kernels("scalar").production(dt, flatten(now), out);
+        assertEquals(out, expected);
+    }
+
+    @Test
+    public void testVectorSameAsScalar() {
+        if (DeterministicKernels.vector() == null)
+            throw new SkipException("built without -Pvector");
+
+        final double[] a = flatten(now), b = flatten(prev);
+        DeterministicKernels scalar = this.kernels("scalar"), vector = this.kernels("vector");
+
+        double[] x = new double[NEL * NSPEC], y = new double[NEL * NSPEC];
+        scalar.diffusion(0.1, a, b, x);
+        vector.diffusion(0.1, a, b, y);
+        assertEquals(y, x);
+
+        scalar.production(0.1, a, x);
+        vector.production(0.1, a, y);
+        assertEquals(y, x);
+    }
+}
@@ -0,0 +1,38 @@
+package neurord.numeric.grid;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.*;
+
+public class TestEventStatistics {
+    @Test
+    public void testDirtyRows() {
+        EventStatistics stats = new EventStatistics(10);
+        stats.record(7, 3);
+        stats.record(2, 1);
+        stats.record(7, 5);
+
+        assertEquals(stats.dirtyCount(), 2);
+        assertEquals(stats.dirtyRows(), new int[]{ 2, 7 });
+        assertEquals(stats.events(7), 2);
+        assertEquals(stats.extent(7), 8);
+        assertEquals(stats.events(2), 1);
+        assertEquals(stats.dense()[2 * 7 + 1], 8);
+
+        stats.reset();
+        assertEquals(stats.dirtyCount(), 0);
+        assertEquals(stats.dense(), new long[20]);
+
+        stats.record(4, 1);
+        assertEquals(stats.dirtyRows(), new int[]{ 4 });
+    }
+
+    @Test
+    public void testNoOverflow() {
+        EventStatistics stats = new EventStatistics(1);
+        stats.set(0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        stats.record(0, Integer.MAX_VALUE);
+
+        assertEquals(stats.events(0), Integer.MAX_VALUE + 1L);
+        assertEquals(stats.extent(0), 2L * Integer.MAX_VALUE);
+    }
+}
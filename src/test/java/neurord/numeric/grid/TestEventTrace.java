@@ -0,0 +1,44 @@
+package neurord.numeric.grid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.*;
+
+public class TestEventTrace {
+    @Test
+    public void testWrapAround() throws IOException {
+        EventTrace trace = new EventTrace(3);
+        for (int i = 0; i < 5; i++)
+            trace.record(i, EventTrace.EXACT, i, 1, 2, i + 1, 1);
+
+        assertEquals(trace.recorded(), 5);
+        assertEquals(trace.size(), 3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        trace.write(new DataOutputStream(bytes));
+        assertEquals(bytes.size(), 28 + 3 * EventTrace.RECORD_SIZE);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        byte[] magic = new byte[8];
+        in.readFully(magic);
+        assertEquals(new String(magic, "US-ASCII"), "NRDTRACE");
+        assertEquals(in.readInt(), EventTrace.VERSION);
+        assertEquals(in.readInt(), EventTrace.RECORD_SIZE);
+        assertEquals(in.readLong(), 5);
+        assertEquals(in.readInt(), 3);
+
+        /* The oldest two records were overwritten */
+        for (int i = 2; i < 5; i++) {
+            assertEquals(in.readInt(), i);
+            assertEquals(in.readByte(), EventTrace.EXACT);
+            assertEquals(in.readDouble(), (double) i);
+            in.skipBytes(3 * 8 + 4);
+        }
+        assertEquals(in.available(), 0);
+    }
+}
@@ -0,0 +1,185 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import neurord.geom.Geom;
+import neurord.geom.Position;
+import neurord.model.IOutputSet;
+import neurord.model.InjectionStim;
+import neurord.model.SDRun;
+import neurord.numeric.chem.ReactionTable;
+import neurord.numeric.chem.StimulationTable;
+import neurord.numeric.morph.CuboidVolumeElement;
+import neurord.numeric.morph.VolumeGrid;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestLockstepStochasticGridCalc {
+    static final int NEL = 6, TRIALS = 5;
+    static final String[] SPECIES = { "A", "B", "C" };
+
+    /* A chain of six elements, A + B ↔ C, A is injected into the first element */
+    static class Model extends SDRun {
+        final VolumeGrid grid = new VolumeGrid();
+        final ReactionTable rtab = new ReactionTable(2, SPECIES, new double[]{ 0.1, 0.05, 0 });
+        final StimulationTable stimtab;
+
+        final List<IOutputSet> outputs = Arrays.<IOutputSet>asList(new IOutputSet() {
+                public String getIdentifier() { return "set"; }
+                public List<String> getNamesOfOutputSpecies() { return Arrays.asList(SPECIES); }
+                public int[] getIndicesOfOutputSpecies(String[] species) { return new int[]{ 0, 1, 2 }; }
+                public String getRegion() { return null; }
+                public double getOutputInterval(double fallback) { return 0.5; }
+                public String getAggregation() { return null; }
+                public boolean submembraneOnly() { return false; }
+            });
+
+        Model(String algorithm) {
+            for (int i = 0; i < NEL; i++) {
+                Position[] boundary = {
+                    Geom.position(i, 0, 0), Geom.position(i + 1, 0, 0),
+                    Geom.position(i + 1, 1, 0), Geom.position(i, 1, 0),
+                };
+                this.grid.addElement(new CuboidVolumeElement("e" + i, "default", null,
+                                                             boundary, null, 0,
+                                                             Geom.position(i + 0.5, 0.5, 0),
+                                                             1, 1, 1, 1, 1));
+            }
+            for (int i = 0; i < NEL - 1; i++)
+                this.grid.getElement(i).coupleTo(this.grid.getElement(i + 1), 1);
+            this.grid.fix();
+
+            this.rtab.setReactionData(0,
+                                      new int[][]{ { 0, 1 }, { 1, 1 }, { 1, 1 } },
+                                      new int[][]{ { 2 }, { 1 } },
+                                      0.001, false);
+            this.rtab.setReactionData(1,
+                                      new int[][]{ { 2 }, { 1 }, { 1 } },
+                                      new int[][]{ { 0, 1 }, { 1, 1 } },
+                                      0.05, true);
+
+            InjectionStim stim = new InjectionStim("A", "e0", 200., 2., 3., 6., 15.);
+            this.stimtab = new StimulationTable(Arrays.asList(stim), this.rtab);
+
+            this.algorithm = algorithm;
+            this.simulationSeed = 1234;
+        }
+
+        @Override public String[] getSpecies() { return SPECIES; }
+        @Override public VolumeGrid getVolumeGrid() { return this.grid; }
+        @Override public ReactionTable getReactionTable() { return this.rtab; }
+        @Override public StimulationTable getStimulationTable() { return this.stimtab; }
+        @Override public List<? extends IOutputSet> getOutputSets() { return this.outputs; }
+        @Override public double[] getRegionConcentration(String region) { return new double[]{ 200, 150, 0 }; }
+        @Override public double getFixedStepDt() { return 0.1; }
+        @Override public double getOutputInterval() { return 1; }
+        @Override public double getStatisticsInterval() { return 0; }
+        @Override public double getStartTime() { return 0; }
+        @Override public double getEndTime() { return 20; }
+    }
+
+    /* The populations at each output, as "interval" or the index of the output set */
+    static class Recorder implements ResultWriter {
+        final List<String> kinds = new ArrayList<>();
+        final List<Double> times = new ArrayList<>();
+        final List<int[]> populations = new ArrayList<>();
+
+        void record(String kind, double time, IGridCalc source) {
+            int[] pop = new int[NEL * SPECIES.length];
+            for (int i = 0; i < NEL; i++)
+                for (int k = 0; k < SPECIES.length; k++)
+                    pop[i * SPECIES.length + k] = source.getGridPartNumb(i, k);
+            this.kinds.add(kind);
+            this.times.add(time);
+            this.populations.add(pop);
+        }
+
+        public void init(String magic) {}
+        public void close() {}
+        public File outputFile() { return null; }
+        public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {}
+        public void writeOutputInterval(double time, IGridCalc source) {
+            this.record("interval", time, source);
+        }
+        public void writeOutputScheme(int i, double time, IGridCalc source) {
+            this.record("" + i, time, source);
+        }
+        public void writeEventStatistics(double time, IGridCalc source) {}
+        public void closeTrial(IGridCalc source) {}
+    }
+
+    /* Records the outputs of each trial separately */
+    static class Recorders implements ResultWriter {
+        final Recorder[] trials = new Recorder[TRIALS];
+        {
+            for (int i = 0; i < TRIALS; i++)
+                this.trials[i] = new Recorder();
+        }
+
+        public void init(String magic) {}
+        public void close() {}
+        public File outputFile() { return null; }
+        public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {}
+        public void writeOutputInterval(double time, IGridCalc source) {
+            this.trials[source.trial()].writeOutputInterval(time, source);
+        }
+        public void writeOutputScheme(int i, double time, IGridCalc source) {
+            this.trials[source.trial()].writeOutputScheme(i, time, source);
+        }
+        public void writeEventStatistics(double time, IGridCalc source) {}
+        public void closeTrial(IGridCalc source) {}
+    }
+
+    void checkSameAsSeparate(String algorithm) {
+        Model model = new Model(algorithm);
+
+        Recorders separate = new Recorders();
+        for (int trial = 0; trial < TRIALS; trial++) {
+            SteppedStochasticGridCalc calc = new SteppedStochasticGridCalc(trial, model);
+            calc.addResultWriter(separate);
+            calc.storeResultIn(new Hashtable<Integer, Object>());
+            calc.run();
+        }
+
+        Recorders lockstep = new Recorders();
+        LockstepStochasticGridCalc calc = new LockstepStochasticGridCalc(0, TRIALS, model);
+        calc.addResultWriter(lockstep);
+        Hashtable<Integer, Object> results = new Hashtable<>();
+        calc.storeResultIn(results);
+        calc.run();
+
+        for (int trial = 0; trial < TRIALS; trial++) {
+            assertEquals(results.get(trial), 0);
+
+            Recorder a = lockstep.trials[trial], b = separate.trials[trial];
+            assertTrue(b.times.size() > 20);
+            assertEquals(a.kinds, b.kinds);
+            assertEquals(a.times, b.times);
+            for (int i = 0; i < b.populations.size(); i++)
+                assertEquals(a.populations.get(i), b.populations.get(i),
+                             "trial " + trial + " output " + i + " at " + b.times.get(i));
+        }
+
+        /* the injection and the reactions make a difference, and trials differ */
+        int[] first = separate.trials[0].populations.get(0);
+        int[] last = separate.trials[0].populations.get(separate.trials[0].populations.size() - 1);
+        assertTrue(!Arrays.equals(first, last));
+        assertTrue(!Arrays.equals(last, separate.trials[1].populations.get(separate.trials[1].populations.size() - 1)));
+    }
+
+    @Test
+    public void testSameAsSeparateTrials() {
+        this.checkSameAsSeparate(null);
+    }
+
+    @Test
+    public void testSameAsSeparateTrialsParticle() {
+        this.checkSameAsSeparate("PARTICLE");
+    }
+}
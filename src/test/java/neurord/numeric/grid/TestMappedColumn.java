@@ -0,0 +1,109 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.*;
+
+public class TestMappedColumn {
+    @Test
+    public void testGrowAndTruncate() throws IOException {
+        File file = File.createTempFile("column", ".i32");
+        file.deleteOnExit();
+
+        /* 64 bytes per window, so appending crosses many windows */
+        int[] values = new int[100];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i * i - 50;
+
+        try (MappedColumn column = new MappedColumn(file, 64)) {
+            column.append(7);
+            column.append(values, 0, values.length);
+            column.append(values, 10, 3);
+            assertEquals(column.length(), 4 * (1 + 100 + 3));
+        }
+
+        assertEquals(file.length(), 4 * (1 + 100 + 3));
+
+        int[] read = MappedColumn.readInts(file);
+        assertEquals(read[0], 7);
+        for (int i = 0; i < values.length; i++)
+            assertEquals(read[1 + i], values[i]);
+        assertEquals(read[101], values[10]);
+        assertEquals(read[103], values[12]);
+    }
+
+    @Test
+    public void testDoubles() throws IOException {
+        File file = File.createTempFile("column", ".f64");
+        file.deleteOnExit();
+
+        double[] values = { 0.5, -1e300, Double.MIN_VALUE, 3, Math.PI, 1e-3, 42 };
+        try (MappedColumn column = new MappedColumn(file, 16)) {
+            column.append(values, 0, values.length);
+            column.append(2.5);
+        }
+
+        double[] read = MappedColumn.readDoubles(file);
+        assertEquals(read.length, values.length + 1);
+        for (int i = 0; i < values.length; i++)
+            assertEquals(read[i], values[i]);
+        assertEquals(read[values.length], 2.5);
+    }
+
+    @Test
+    public void testReaderWindows() throws IOException {
+        File ints = File.createTempFile("column", ".i32");
+        File longs = File.createTempFile("column", ".i64");
+        ints.deleteOnExit();
+        longs.deleteOnExit();
+
+        int[] values = new int[1001];
+        long[] values2 = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 3 * i - 7;
+            values2[i] = (long) i << 33 | i;
+        }
+        try (MappedColumn column = new MappedColumn(ints, 64);
+             MappedColumn column2 = new MappedColumn(longs, 64)) {
+            column.append(values, 0, values.length);
+            column2.append(values2, 0, values2.length);
+        }
+
+        /* 24-byte windows: an odd number of ints, and many windows */
+        try (MappedColumn.Reader reader = new MappedColumn.Reader(ints, 24);
+             MappedColumn.Reader reader2 = new MappedColumn.Reader(longs, 24)) {
+            assertEquals(reader.length(), 4 * values.length);
+
+            /* out of order, so that windows are mapped back and forth */
+            for (int i = 0; i < values.length; i += 7)
+                assertEquals(reader.getInt(values.length - 1 - i), values[values.length - 1 - i]);
+            for (int i = 0; i < values.length; i += 5)
+                assertEquals(reader2.getLong(i), values2[i]);
+
+            /* bulk reads crossing windows, starting at odd indices */
+            int[] read = new int[101];
+            for (int start = 1; start + read.length <= values.length; start += 97) {
+                reader.get(start, read, 0, read.length);
+                for (int i = 0; i < read.length; i++)
+                    assertEquals(read[i], values[start + i]);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = RuntimeException.class,
+          expectedExceptionsMessageRegExp = "read past the end.*")
+    public void testReaderPastEnd() throws IOException {
+        File file = File.createTempFile("column", ".f64");
+        file.deleteOnExit();
+
+        try (MappedColumn column = new MappedColumn(file, 16)) {
+            column.append(1.0);
+        }
+        try (MappedColumn.Reader reader = new MappedColumn.Reader(file, 16)) {
+            assertEquals(reader.getDouble(0), 1.0);
+            reader.getDouble(1);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package neurord.numeric.grid;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestRegionAggregation {
+    final String[] labels = { "default", "dend", "spine", "soma" };
+    final String[] regions = { "dend", "spine", "dend", "soma", "spine" };
+    final double[] volumes = { 1, 2, 3, 4, 5 };
+
+    @Test
+    public void testRows() {
+        RegionAggregation agg = new RegionAggregation(labels, regions, volumes,
+                                                      new int[]{ 1, 2, 4, 0 },
+                                                      RegionAggregation.SUM);
+        /* regions without output elements are skipped, order follows the labels */
+        assertEquals(agg.getRegions(), new String[]{ "dend", "spine" });
+        assertEquals(agg.rows, new int[]{ 1, 0, 1, 0 });
+        assertEquals(agg.volumes, new double[]{ 4, 7 });
+        assertFalse(agg.isConcentration());
+    }
+
+    @Test
+    public void testConcentration() {
+        RegionAggregation agg = new RegionAggregation(labels, regions, volumes,
+                                                      new int[]{ 3 },
+                                                      RegionAggregation.CONCENTRATION);
+        assertEquals(agg.getRegions(), new String[]{ "soma" });
+        assertTrue(agg.isConcentration());
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testUnknown() {
+        new RegionAggregation(labels, regions, volumes, new int[]{ 0 }, "mean");
+    }
+}
@@ -0,0 +1,121 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import hdf.object.Dataset;
+import hdf.object.Datatype;
+import hdf.object.FileFormat;
+import hdf.object.Group;
+import hdf.object.HObject;
+import hdf.object.h5.H5Datatype;
+import hdf.object.h5.H5File;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.SkipException;
+import org.testng.annotations.*;
+
+public class TestResultMerger {
+    static FileFormat hdf5() {
+        FileFormat format = null;
+        try {
+            format = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+        } catch(UnsatisfiedLinkError | NoClassDefFoundError e) {
+        }
+        if (format == null)
+            throw new SkipException("the HDF5 library is not available");
+        return format;
+    }
+
+    /* Trial t has t + 2 snapshots of 3 values, all equal to t */
+    static int snapshots(int trial) {
+        return trial + 2;
+    }
+
+    /* A shard like one written with --trial-range first:last */
+    static File shard(FileFormat format, File dir, int first, int last)
+        throws Exception
+    {
+        File file = new File(dir, "out-trials" + first + "-" + (last - 1) + ".h5");
+        H5File h5 = (H5File) format.create(file.toString());
+        h5.open();
+        try {
+            Group root = ResultMerger.rootGroup(h5);
+            h5.createGroup("model", root);
+
+            Datatype type = new H5Datatype(Datatype.CLASS_INTEGER, 4, Datatype.NATIVE, Datatype.NATIVE);
+            for (int trial = first; trial < last; trial++) {
+                Group group = h5.createGroup("trial" + trial, root);
+                int[] data = new int[snapshots(trial) * 3];
+                Arrays.fill(data, trial);
+                h5.createScalarDS("population", group, type,
+                                  new long[]{ snapshots(trial), 3 }, null, null, 0, data);
+            }
+        } finally {
+            h5.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        FileFormat format = hdf5();
+        File dir = Files.createTempDirectory("merger").toFile();
+
+        List<File> shards = Arrays.asList(shard(format, dir, 0, 3),
+                                          shard(format, dir, 3, 5));
+        File output = new File(dir, "out.h5");
+        List<Integer> trials = new ResultMerger(output, shards).merge();
+        assertEquals(trials, Arrays.asList(0, 1, 2, 3, 4));
+
+        H5File h5 = (H5File) format.createInstance(output.toString(), FileFormat.READ);
+        h5.open();
+        try {
+            List<String> names = new ArrayList<>();
+            for (HObject obj: ResultMerger.rootGroup(h5).getMemberList())
+                names.add(obj.getName());
+            assertEquals(names.size(), 6);
+            assertEquals(names.contains("model"), true);
+
+            for (int trial = 0; trial < 5; trial++) {
+                Dataset ds = (Dataset) h5.get("/trial" + trial + "/population");
+                ds.init();
+                assertEquals(ds.getDims(), new long[]{ snapshots(trial), 3 });
+
+                int[] data = (int[]) ds.getData();
+                assertEquals(data.length, snapshots(trial) * 3);
+                for (int value: data)
+                    assertEquals(value, trial);
+            }
+        } finally {
+            h5.close();
+        }
+
+        for (File file: dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testDuplicateTrials() throws Exception {
+        FileFormat format = hdf5();
+        File dir = Files.createTempDirectory("merger").toFile();
+
+        List<File> shards = Arrays.asList(shard(format, dir, 0, 3),
+                                          shard(format, dir, 2, 4));
+        boolean failed = false;
+        try {
+            new ResultMerger(new File(dir, "out.h5"), shards).merge();
+        } catch(RuntimeException e) {
+            failed = true;
+        }
+        assertEquals(failed, true);
+
+        for (File file: dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+}
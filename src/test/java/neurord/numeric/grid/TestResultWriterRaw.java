@@ -0,0 +1,143 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+import neurord.numeric.grid.TestLockstepStochasticGridCalc.Model;
+import neurord.numeric.grid.TestLockstepStochasticGridCalc.Recorder;
+import neurord.numeric.grid.TestLockstepStochasticGridCalc.Recorders;
+import neurord.numeric.morph.VolumeGrid;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestResultWriterRaw {
+    /* The model cannot be marshalled, and the replay does not need it */
+    static class RawModel extends Model {
+        RawModel() {
+            super(null);
+        }
+
+        @Override
+        public String serialize() {
+            return "";
+        }
+    }
+
+    static File tempDirectory() throws IOException {
+        File dir = Files.createTempDirectory("raw").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /* The outputs of one kind, replayed outputs of the main set are "-1" */
+    static void assertSameOutputs(Recorder replayed, String kind, Recorder recorded, String recorded_kind, int count) {
+        int n = 0;
+        for (int i = 0, j = 0; i < replayed.kinds.size(); i++) {
+            if (!replayed.kinds.get(i).equals(kind))
+                continue;
+            while (!recorded.kinds.get(j).equals(recorded_kind))
+                j++;
+            assertEquals(replayed.times.get(i), recorded.times.get(j));
+            assertEquals(replayed.populations.get(i), recorded.populations.get(j),
+                         kind + " output " + n + " at " + recorded.times.get(j));
+            n++;
+            j++;
+        }
+        assertEquals(n, count);
+    }
+
+    static int count(Recorder recorder, String kind) {
+        int n = 0;
+        for (String k: recorder.kinds)
+            if (k.equals(kind))
+                n++;
+        return n;
+    }
+
+    /* Run two trials writing raw output, with 64-byte windows so that columns
+     * cross many windows, and replay them. */
+    @Test
+    public void testRoundTrip() throws IOException {
+        RawModel model = new RawModel();
+        File dir = tempDirectory();
+        ResultWriterRaw raw = new ResultWriterRaw(new File(dir, "out"), model.getOutputSets().get(0),
+                                                  model.getOutputSets(), model.getSpecies(),
+                                                  model.getVolumeGrid(), 64);
+        raw.init("test");
+
+        Recorders recorded = new Recorders();
+        for (int trial = 0; trial < 2; trial++) {
+            SteppedStochasticGridCalc calc = new SteppedStochasticGridCalc(trial, model);
+            calc.addResultWriter(raw);
+            calc.addResultWriter(recorded);
+            calc.storeResultIn(new Hashtable<Integer, Object>());
+            calc.run();
+        }
+        raw.close();
+
+        Recorders replayed = new Recorders();
+        new ResultConverterRaw(raw.outputFile(), null).replay(model, Arrays.asList(0, 1), replayed);
+
+        for (int trial = 0; trial < 2; trial++) {
+            Recorder a = replayed.trials[trial], b = recorded.trials[trial];
+            assertTrue(count(b, "interval") > 10);
+            assertTrue(count(b, "0") > 20);
+            assertSameOutputs(a, "-1", b, "interval", count(b, "interval"));
+            assertSameOutputs(a, "0", b, "0", count(b, "0"));
+        }
+    }
+
+    /* A trial which was not closed: its columns end with unused parts of windows,
+     * and the counts written when windows were moved say what can be read. */
+    @Test
+    public void testUnclosedTrial() throws IOException {
+        RawModel model = new RawModel();
+        File dir = tempDirectory();
+        final ResultWriterRaw raw = new ResultWriterRaw(new File(dir, "out"), model.getOutputSets().get(0),
+                                                        model.getOutputSets(), model.getSpecies(),
+                                                        model.getVolumeGrid(), 64);
+        raw.init("test");
+
+        /* closeTrial is not passed on */
+        Recorders recorded = new Recorders();
+        SteppedStochasticGridCalc calc = new SteppedStochasticGridCalc(0, model);
+        calc.addResultWriter(new ResultWriter() {
+                public void init(String magic) {}
+                public void close() {}
+                public File outputFile() { return null; }
+                public void writeGrid(VolumeGrid vgrid, double startTime, IGridCalc source) {
+                    raw.writeGrid(vgrid, startTime, source);
+                }
+                public void writeOutputInterval(double time, IGridCalc source) {
+                    raw.writeOutputInterval(time, source);
+                }
+                public void writeOutputScheme(int i, double time, IGridCalc source) {
+                    raw.writeOutputScheme(i, time, source);
+                }
+                public void writeEventStatistics(double time, IGridCalc source) {}
+                public void closeTrial(IGridCalc source) {}
+            });
+        calc.addResultWriter(recorded);
+        calc.storeResultIn(new Hashtable<Integer, Object>());
+        calc.run();
+
+        File population = new File(raw.outputFile(), "trial0/set/population.i32");
+        /* the file is not truncated */
+        assertTrue(population.length() >= 4 * 18 * count(recorded.trials[0], "0"));
+
+        Recorders replayed = new Recorders();
+        new ResultConverterRaw(raw.outputFile(), null).replay(model, Arrays.asList(0), replayed);
+
+        Recorder a = replayed.trials[0], b = recorded.trials[0];
+        final int main = count(a, "-1"), set = count(a, "0");
+        assertTrue(main > 5 && main <= count(b, "interval"));
+        assertTrue(set > 10 && set <= count(b, "0"));
+        assertSameOutputs(a, "-1", b, "interval", main);
+        assertSameOutputs(a, "0", b, "0", set);
+    }
+}
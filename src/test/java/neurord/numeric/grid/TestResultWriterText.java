@@ -0,0 +1,164 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+
+import neurord.geom.Geom;
+import neurord.geom.Position;
+import neurord.model.IOutputSet;
+import neurord.model.SDRun;
+import neurord.numeric.morph.CuboidVolumeElement;
+import neurord.numeric.morph.VolumeGrid;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestResultWriterText {
+    static final int NEL = 50, TRIALS = 8, SNAPSHOTS = 200;
+    static final String[] SPECIES = { "A", "B" };
+
+    final VolumeGrid grid = new VolumeGrid();
+
+    final SDRun sdrun = new SDRun() {
+            @Override
+            public String[] getSpecies() {
+                return SPECIES;
+            }
+
+            @Override
+            public VolumeGrid getVolumeGrid() {
+                return grid;
+            }
+        };
+
+    static class Output implements IOutputSet {
+        public String getIdentifier() { return "all"; }
+        public List<String> getNamesOfOutputSpecies() { return Arrays.asList(SPECIES); }
+        public int[] getIndicesOfOutputSpecies(String[] species) { return new int[]{ 0, 1 }; }
+        public String getRegion() { return null; }
+        public double getOutputInterval(double fallback) { return fallback; }
+        public String getAggregation() { return null; }
+        public boolean submembraneOnly() { return false; }
+    }
+
+    /* Trial t has t*1000 + 10*i + k particles of species k in element i */
+    class Trial implements IGridCalc {
+        final int trial;
+
+        Trial(int trial) {
+            this.trial = trial;
+        }
+
+        public int trial() { return this.trial; }
+        public int getGridPartNumb(int i, int outj) { return this.trial * 1000 + 10 * i + outj; }
+        public double getGridPartConc(int i, int outj) { return this.getGridPartNumb(i, outj); }
+        public boolean preferConcs() { return false; }
+        public SDRun getSource() { return sdrun; }
+        public long getSimulationSeed() { return this.trial; }
+        public int getNumberElements() { return NEL; }
+        public EventStatistics getEventStatistics() { return null; }
+        public CostProfile getCostProfile() { return null; }
+        public SteadyState getSteadyState() { return null; }
+        public Collection<Event> getEvents() { return null; }
+        public Collection<Happening> getHappenings() { return null; }
+    }
+
+    static String format(int n) {
+        return n == 0 ? "00 " : n + " ";
+    }
+
+    @BeforeClass
+    public void makeGrid() {
+        for (int i = 0; i < NEL; i++) {
+            Position[] boundary = {
+                Geom.position(i, 0, 0), Geom.position(i + 1, 0, 0),
+                Geom.position(i + 1, 1, 0), Geom.position(i, 1, 0),
+            };
+            this.grid.addElement(new CuboidVolumeElement(null, "default", null,
+                                                         boundary, null, 0,
+                                                         Geom.position(i + 0.5, 0.5, 0),
+                                                         1, 1, 1,
+                                                         1, 1));
+        }
+        this.grid.fix();
+    }
+
+    /* Snapshots of concurrent trials must not be interleaved */
+    @Test
+    public void testConcurrentTrials() throws Exception {
+        File dir = Files.createTempDirectory("textoutput").toFile();
+        final ResultWriterText writer = new ResultWriterText(new File(dir, "model"),
+                                                             new Output(),
+                                                             Arrays.asList(new Output()),
+                                                             SPECIES, this.grid, false);
+        writer.init(null);
+        /* as in writeGrid */
+        writer.writeToSiblingFile("time A B\n", "-all-conc.txt");
+        final File sibling = writer.getRawSibling("-all-conc.txt").outputFile();
+
+        ExecutorService pool = Executors.newFixedThreadPool(TRIALS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < TRIALS; t++) {
+            final Trial trial = new Trial(t);
+            futures.add(pool.submit(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < SNAPSHOTS; i++) {
+                            writer.writeOutputInterval(trial.trial + 0.5, trial);
+                            writer.writeOutputScheme(0, trial.trial + 0.5, trial);
+                        }
+                    }
+                }));
+        }
+        for (Future<?> future: futures)
+            future.get();
+        pool.shutdown();
+        writer.close();
+
+        /* the main file: a header line and NEL lines of the same trial per snapshot */
+        String[] lines = new String(Files.readAllBytes(new File(dir, "model.out").toPath()),
+                                    StandardCharsets.UTF_8).split("\n");
+        int[] counts = new int[TRIALS];
+        int snapshots = 0;
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].startsWith("gridConcentrations"))
+                continue;
+            String[] words = lines[i].split(" ");
+            int t = (int) Double.parseDouble(words[3]);
+            counts[t]++;
+            snapshots++;
+            for (int el = 0; el < NEL; el++)
+                assertEquals(lines[i + 1 + el],
+                             format(t * 1000 + 10 * el) + format(t * 1000 + 10 * el + 1));
+        }
+        assertEquals(snapshots, TRIALS * SNAPSHOTS);
+        for (int count: counts)
+            assertEquals(count, SNAPSHOTS);
+
+        /* the output set file: a heading and one line per snapshot */
+        lines = new String(Files.readAllBytes(sibling.toPath()),
+                           StandardCharsets.UTF_8).split("\n");
+        assertTrue(lines[0].startsWith("time "));
+        assertEquals(lines.length, 1 + TRIALS * SNAPSHOTS);
+        for (int i = 1; i < lines.length; i++) {
+            String[] words = lines[i].trim().split(" ");
+            assertEquals(words.length, 1 + NEL * SPECIES.length);
+            int t = (int) Double.parseDouble(words[0]);
+            for (int k = 0; k < SPECIES.length; k++)
+                for (int el = 0; el < NEL; el++)
+                    assertEquals(words[1 + k * NEL + el] + " ", format(t * 1000 + 10 * el + k));
+        }
+
+        for (File file: dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+}
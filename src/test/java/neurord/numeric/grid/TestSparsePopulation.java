@@ -0,0 +1,113 @@
+package neurord.numeric.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import neurord.util.ArrayUtil;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestSparsePopulation {
+    static final int NEL = 5, NSPEC = 3, INTERVAL = 4, SNAPSHOTS = 30;
+
+    /* Populations which change a little between snapshots, and not at all
+     * in some of them */
+    static int[][][] snapshots() {
+        Random random = new Random(7);
+        int[][][] ans = new int[SNAPSHOTS][NEL][NSPEC];
+        for (int i = 0; i < NEL; i++)
+            for (int j = 0; j < NSPEC; j++)
+                ans[0][i][j] = random.nextInt(100);
+
+        for (int s = 1; s < SNAPSHOTS; s++)
+            for (int i = 0; i < NEL; i++)
+                for (int j = 0; j < NSPEC; j++) {
+                    ans[s][i][j] = ans[s - 1][i][j];
+                    if (s % 5 != 3 && random.nextInt(4) == 0)
+                        ans[s][i][j] += random.nextInt(7) - 3;
+                }
+        return ans;
+    }
+
+    /* Encoded like SparsePopulationOutput does it */
+    final List<int[]> keyframes = new ArrayList<>();
+    int[] changes = new int[0];
+
+    void encode(int[][][] snapshots) {
+        int[][] previous = new int[NEL][NSPEC];
+        int[] cache = new int[3 * NEL * NSPEC];
+        this.keyframes.clear();
+        this.changes = new int[0];
+
+        for (int s = 0; s < snapshots.length; s++) {
+            if (s % INTERVAL == 0)
+                this.keyframes.add(ArrayUtil.flatten(snapshots[s], NSPEC, 0));
+            else {
+                int count = ResultWriterHDF5.sparseChanges(snapshots[s], previous, s, cache, 0);
+                int old = this.changes.length;
+                this.changes = Arrays.copyOf(this.changes, old + count);
+                System.arraycopy(cache, 0, this.changes, old, count);
+            }
+
+            for (int i = 0; i < NEL; i++)
+                System.arraycopy(snapshots[s][i], 0, previous[i], 0, NSPEC);
+        }
+    }
+
+    /* Decoded like loadSparsePopulation does it */
+    int[] decode(int index) throws Exception {
+        final int keyframe = index / INTERVAL;
+        int[] data = this.keyframes.get(keyframe).clone();
+
+        ResultWriterHDF5.ChangeRows rows = new ResultWriterHDF5.ChangeRows() {
+                @Override
+                public int snapshot(long row) {
+                    return changes[(int) row * 3];
+                }
+            };
+        final long nrows = this.changes.length / 3;
+        final long first = ResultWriterHDF5.findChanges(rows, 0, nrows, keyframe * INTERVAL);
+        final long last = ResultWriterHDF5.findChanges(rows, first, nrows, index);
+
+        ResultWriterHDF5.applyChanges(data, Arrays.copyOfRange(this.changes, (int) first * 3, (int) last * 3));
+        return data;
+    }
+
+    @Test
+    public void testEncoding() {
+        int[][][] snapshots = snapshots();
+        this.encode(snapshots);
+
+        assertEquals(this.keyframes.size(), (SNAPSHOTS + INTERVAL - 1) / INTERVAL);
+        for (int k = 0; k < this.keyframes.size(); k++)
+            assertEquals(this.keyframes.get(k), ArrayUtil.flatten(snapshots[k * INTERVAL], NSPEC, 0));
+
+        /* rows are ordered by snapshot, and only changed cells are written */
+        assertTrue(this.changes.length > 0);
+        assertTrue(this.changes.length < 3 * NEL * NSPEC * SNAPSHOTS / 2);
+        for (int k = 0; k < this.changes.length; k += 3) {
+            final int s = this.changes[k], cell = this.changes[k + 1], value = this.changes[k + 2];
+            if (k > 0)
+                assertTrue(s >= this.changes[k - 3]);
+            assertTrue(s % INTERVAL != 0);
+            assertTrue(s % 5 != 3);
+            assertEquals(value, snapshots[s][cell / NSPEC][cell % NSPEC]);
+            assertTrue(value != snapshots[s - 1][cell / NSPEC][cell % NSPEC]);
+        }
+    }
+
+    @Test
+    public void testDecoding() throws Exception {
+        int[][][] snapshots = snapshots();
+        this.encode(snapshots);
+
+        /* every snapshot, including keyframes, snapshots right after them,
+         * and snapshots without changes */
+        for (int s = 0; s < SNAPSHOTS; s++)
+            assertEquals(this.decode(s), ArrayUtil.flatten(snapshots[s], NSPEC, 0), "snapshot " + s);
+    }
+}
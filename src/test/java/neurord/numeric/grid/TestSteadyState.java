@@ -0,0 +1,100 @@
+package neurord.numeric.grid;
+
+import java.util.Collection;
+
+import neurord.model.SDRun;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.assertFalse;
+import org.testng.annotations.*;
+
+public class TestSteadyState {
+    static double[] v(double... values) {
+        return values;
+    }
+
+    @Test
+    public void testRelative() {
+        /* no noise, 1% change */
+        assertTrue(SteadyState.steady(v(100, 0), v(0, 0), 10, v(101, 0), v(0, 0), 10, 0.02));
+        assertFalse(SteadyState.steady(v(100, 0), v(0, 0), 10, v(105, 0), v(0, 0), 10, 0.02));
+        /* all quantities must agree */
+        assertFalse(SteadyState.steady(v(100, 10), v(0, 0), 10, v(101, 20), v(0, 0), 10, 0.02));
+    }
+
+    @Test
+    public void testNoise() {
+        /* a 10% change within two standard errors: 2 * sqrt(2 * 100 / 4) ≈ 14 */
+        assertTrue(SteadyState.steady(v(100), v(100), 4, v(110), v(100), 4, 0.02));
+        assertFalse(SteadyState.steady(v(100), v(100), 100, v(110), v(100), 100, 0.02));
+    }
+
+    /* One species in two elements, with value particles in each */
+    static class Calc implements IGridCalc {
+        int value;
+
+        public int trial() { return 0; }
+        public int getGridPartNumb(int i, int outj) { return this.value; }
+        public double getGridPartConc(int i, int outj) { return this.value; }
+        public boolean preferConcs() { return false; }
+        public SDRun getSource() { return null; }
+        public long getSimulationSeed() { return 0; }
+        public int getNumberElements() { return 2; }
+        public EventStatistics getEventStatistics() { return null; }
+        public CostProfile getCostProfile() { return null; }
+        public SteadyState getSteadyState() { return null; }
+        public Collection<Event> getEvents() { return null; }
+        public Collection<Happening> getHappenings() { return null; }
+    }
+
+    static SteadyState detector(Calc calc, double window) {
+        return new SteadyState(calc, new int[]{ 0 }, new int[][]{ null }, new String[]{ "A" },
+                               0, window, 0.02, 2);
+    }
+
+    @Test
+    public void testWeightedByStepLength() {
+        Calc calc = new Calc();
+        SteadyState steady = detector(calc, 100);
+
+        /* 10 in each element for 90 ms in one step, then 100 for 10 ms in ten steps */
+        calc.value = 10;
+        assertFalse(steady.sample(0));
+        calc.value = 100;
+        for (int t = 90; t <= 100; t++)
+            assertFalse(steady.sample(t));
+
+        /* time average of the total, not 2 × (10 + 10 × 100) / 11 */
+        assertEquals(steady.prev_mean[0], 2 * (10 * 90 + 100 * 10) / 100., 1e-9);
+    }
+
+    @Test
+    public void testConstant() {
+        Calc calc = new Calc();
+        calc.value = 50;
+        SteadyState steady = detector(calc, 10);
+
+        /* windows end at 10, 20 and 30, the last two agree with the previous one */
+        for (double t = 0; t < 30; t += 0.5) {
+            assertFalse(steady.sample(t));
+            assertFalse(steady.reached());
+        }
+        assertTrue(steady.sample(30));
+        assertEquals(steady.time(), 30.);
+        assertFalse(steady.sample(30.5));
+    }
+
+    @Test
+    public void testRamp() {
+        Calc calc = new Calc();
+        SteadyState steady = detector(calc, 10);
+
+        for (int t = 0; t < 200; t++) {
+            calc.value = 100 + t;
+            assertFalse(steady.sample(t));
+        }
+        assertFalse(steady.reached());
+        assertTrue(Double.isNaN(steady.time()));
+    }
+}
@@ -101,6 +101,78 @@ public void testStim() {
         assertEquals(ev._new_time(END + 10), Double.POSITIVE_INFINITY);
     }
 
+    @Test
+    public void testTimeline() {
+        StimulationTable.Timeline timeline =
+            stimtab.timeline(new int[][]{ {0} }, 0, END + 100);
+
+        assertEquals(timeline.size(), 1);
+        assertEquals(timeline.species(0), 0);
+        assertArrayEquals(timeline.targets(0), new int[]{ 0 });
+
+        // Before the onset nothing happens
+        assertEquals(timeline.step(0, 1), 0);
+        assertEquals(timeline.step(99, 1), 0);
+
+        // Fully inside the first pulse
+        assertEquals(timeline.step(100, 1), 1);
+        assertEquals(timeline.active(0), 0);
+        assertApproxEquals(timeline.amount(0), RATE * 1, 1e-9, 1e-12);
+
+        // Straddling the end of the first pulse
+        assertEquals(timeline.step(109.5, 1), 1);
+        assertApproxEquals(timeline.amount(0), RATE * 0.5, 1e-9, 1e-12);
+
+        // Between pulses
+        assertEquals(timeline.step(110.5, 1), 0);
+
+        // Straddling the beginning of the second pulse
+        assertEquals(timeline.step(129.5, 1), 1);
+        assertApproxEquals(timeline.amount(0), RATE * 0.5, 1e-9, 1e-12);
+
+        // After the end
+        assertEquals(timeline.step(END, 1), 0);
+        assertEquals(timeline.step(END + 50, 1), 0);
+    }
+
+    @Test
+    public void testTimelineEffectiveRate() {
+        Stimulation stim = stimtab.getStimulations().get(0);
+        StimulationTable.Timeline timeline =
+            stimtab.timeline(new int[][]{ {0} }, 0, END + 100);
+
+        final double dt = 0.7;
+        for (double t = ONSET - PERIOD / 2; t < END + 100; t += dt) {
+            double expected = stim.effectiveRate(t, dt) * RATE * dt;
+            int n = timeline.step(t, dt);
+            assertApproxEquals(n > 0 ? timeline.amount(0) : 0, expected, 1e-9, 1e-12);
+        }
+    }
+
+    @Test
+    public void testTimelineOverlappingPulses() {
+        /* Pulses of 10 every 3: up to four pulses of each stimulation are open at once */
+        InjectionStim zero = new InjectionStim(SPECIES, SITE, 0., ONSET, DURATION, 3., END);
+        InjectionStim negative = new InjectionStim(SPECIES, SITE, -1., ONSET, DURATION, 3., END);
+        StimulationTable stimtab = new StimulationTable(Arrays.asList(zero, negative), rtab);
+        StimulationTable.Timeline timeline =
+            stimtab.timeline(new int[][]{ {0}, {0} }, 0, END + 100);
+
+        for (double t = ONSET; t < ONSET + 20; t += 1) {
+            assertEquals(timeline.step(t, 1), 2);
+            assertEquals(timeline.active(0) + timeline.active(1), 1);
+
+            /* the number of pulses open during [t, t+1] */
+            int open = 0;
+            for (double pons = ONSET; pons <= t; pons += 3)
+                if (pons + DURATION > t)
+                    open++;
+            for (int i = 0; i < 2; i++)
+                assertApproxEquals(timeline.amount(i), timeline.active(i) == 0 ? 0 : -open,
+                                   1e-9, 1e-12);
+        }
+    }
+
     public static void main(String... args) {
         TestStimulation test = new TestStimulation();
         NextEventQueue.NextStimulation ev = test.stims.get(0);
@@ -0,0 +1,77 @@
+package neurord.numeric.grid;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.*;
+
+public class TestTextOutput {
+    static String format(double d) {
+        return d == 0.0 ? "0.0 " : String.format(Locale.ROOT, "%.5g ", d);
+    }
+
+    static String format(int i) {
+        return i == 0 ? "00 " : String.format(Locale.ROOT, "%d ", i);
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        double[] doubles = { 0.0, -0.0, 1, 5, 100, 0.5, 0.25, 1e-4, 1e-5, 12345, 12345.5, 99999,
+                             99999.5, 100000, 123.456, -3, -0.001, 0.1, 0.3, 2.5e-5, 1e10,
+                             Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE, 9.99995e-5,
+                             0.000999995, 1.00005, 0.30000000000000004, 1.23456e-123, -9.87654e150 };
+        int[] ints = { 0, 1, -1, 10, 12345, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+        Random random = new Random(7);
+        double[] randoms = new double[20000];
+        for (int i = 0; i < randoms.length; i++)
+            switch (i % 4) {
+            case 0: randoms[i] = random.nextDouble() * Math.pow(10, random.nextInt(60) - 30); break;
+            case 1: randoms[i] = random.nextInt(200000) / 8.0; break;
+            case 2: randoms[i] = random.nextInt(100000) / Math.pow(10, random.nextInt(10)); break;
+            default: randoms[i] = -random.nextInt(1000) * 0.001;
+            }
+
+        StringBuilder expected = new StringBuilder();
+        File file = File.createTempFile("textoutput", ".txt");
+        /* a small buffer to exercise flushing */
+        try (TextOutput out = new TextOutput(file, false, 64)) {
+            for (double d: doubles) {
+                out.stringd(d);
+                expected.append(format(d));
+            }
+            for (double d: randoms) {
+                out.stringd(d);
+                expected.append(format(d));
+            }
+            for (int i: ints) {
+                out.stringi(i);
+                expected.append(format(i));
+            }
+            out.append("gridConcentrations ").append(42L).append('\n');
+            expected.append("gridConcentrations 42\n");
+        }
+
+        String written = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        file.delete();
+        assertEquals(written, expected.toString());
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        File file = File.createTempFile("textoutput", ".txt");
+        try (TextOutput out = new TextOutput(file, false)) {
+            out.append("Ca²⁺ ");
+        }
+        try (TextOutput out = new TextOutput(file, true)) {
+            out.append("x");
+        }
+        String written = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        file.delete();
+        assertEquals(written, "Ca²⁺ x");
+    }
+}
@@ -0,0 +1,18 @@
+package neurord.numeric.grid;
+
+import neurord.model.SDRun;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.*;
+
+public class TestTrialMetrics {
+    @Test
+    public void testJobIds() {
+        SDRun a = new SDRun(), b = new SDRun();
+
+        int id = TrialMetrics.jobId(a);
+        assertEquals(TrialMetrics.jobId(a), id);
+        assertTrue(TrialMetrics.jobId(b) != id);
+    }
+}
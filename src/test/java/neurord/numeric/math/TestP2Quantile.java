@@ -0,0 +1,50 @@
+package neurord.numeric.math;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static neurord.util.TestUtil.assertApproxEquals;
+import org.testng.annotations.*;
+
+public class TestP2Quantile {
+    @Test
+    public void testExactForFewValues() {
+        P2Quantile q = new P2Quantile(0.5);
+        assertEquals(q.value(), Double.NaN);
+
+        for (double x: new double[]{ 5, 1, 3 })
+            q.add(x);
+        assertEquals(q.value(), 3.0);
+
+        q.add(2);
+        assertEquals(q.value(), 2.5);
+    }
+
+    @DataProvider
+    public Object[][] quantiles() {
+        return new Object[][] {
+            { 0.05 }, { 0.25 }, { 0.5 }, { 0.75 }, { 0.95 },
+        };
+    }
+
+    @Test(dataProvider="quantiles")
+    public void testGaussian(double p) {
+        MersenneTwister random = new MersenneTwister(p2seed(p));
+        P2Quantile q = new P2Quantile(p);
+
+        double[] values = new double[20000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 100 + 10 * random.gaussian();
+            q.add(values[i]);
+        }
+        assertEquals(q.count(), values.length);
+
+        Arrays.sort(values);
+        double exact = values[(int) (p * (values.length - 1))];
+        assertApproxEquals(q.value(), exact, 0.01, 0.5);
+    }
+
+    private static long p2seed(double p) {
+        return (long) (p * 1000) + 7;
+    }
+}
@@ -0,0 +1,110 @@
+package neurord.numeric.morph;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import neurord.geom.Geom;
+import neurord.geom.Position;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import org.testng.annotations.*;
+
+public class TestGridCache {
+    static VolumeGrid makeGrid() {
+        VolumeGrid grid = new VolumeGrid();
+        ArrayList<VolumeElement> elements = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Position[] boundary = {
+                Geom.position(i, 0, 0), Geom.position(i + 1, 0, 0),
+                Geom.position(i + 1, 1, 0), Geom.position(i, 1, 0),
+            };
+            elements.add(new CuboidVolumeElement(i == 0 ? "soma" : null,
+                                                 i < 2 ? "dend" : "spine",
+                                                 "g" + i % 2,
+                                                 boundary,
+                                                 i % 2 == 0 ? boundary : null,
+                                                 i % 2 == 0 ? 1.5 : 0,
+                                                 Geom.position(i + 0.5, 0.5, 0),
+                                                 1, 2, 3,
+                                                 1 + i, 0.5));
+        }
+        for (int i = 0; i < 3; i++)
+            elements.get(i).coupleTo(elements.get(i + 1), 0.25 * (i + 1));
+        elements.get(0).coupleTo(elements.get(3), 0.1);
+
+        grid.hasCuboids = true;
+        grid.addElements(elements);
+        grid.fix();
+        return grid;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File dir = Files.createTempDirectory("gridcache").toFile();
+        GridCache cache = new GridCache(dir);
+        VolumeGrid grid = makeGrid();
+
+        assertNull(cache.load("abc"));
+        cache.save("abc", grid);
+        VolumeGrid loaded = cache.load("abc");
+
+        assertEquals(loaded.size(), grid.size());
+        assertEquals(loaded.getElementVolumes(), grid.getElementVolumes());
+        assertEquals(loaded.getExposedAreas(), grid.getExposedAreas());
+        assertEquals(loaded.getSubmembranes(), grid.getSubmembranes());
+        assertEquals(loaded.getRegionLabels(), grid.getRegionLabels());
+        assertEquals(loaded.getElementRegions(), grid.getElementRegions());
+        assertEquals(loaded.isCuboid(), grid.isCuboid());
+        for (int i = 0; i < grid.size(); i++) {
+            assertEquals(loaded.getLabel(i), grid.getLabel(i));
+            assertEquals(loaded.getGroupID(i), grid.getGroupID(i));
+            assertEquals(loaded.getPerElementNeighbors()[i], grid.getPerElementNeighbors()[i]);
+            assertEquals(loaded.getPerElementCouplingConstants()[i],
+                         grid.getPerElementCouplingConstants()[i]);
+        }
+        assertEquals(loaded.getAsTableText(), grid.getAsTableText());
+
+        /* A different key is a miss */
+        assertNull(cache.load("abd"));
+
+        for (File f: dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    static class Part {
+        double x;
+        String name;
+        transient int ignored;
+        ArrayList<Double> values = new ArrayList<>(Arrays.asList(1.0, 2.0));
+        HashMap<String, Integer> map = new HashMap<>();
+    }
+
+    @Test
+    public void testKey() {
+        Part a = new Part(), b = new Part();
+        assertEquals(GridCache.key(a, 1), GridCache.key(b, 1));
+        assertNotEquals(GridCache.key(a, 1), GridCache.key(b, 2));
+
+        b.ignored = 5;
+        assertEquals(GridCache.key(a), GridCache.key(b));
+
+        b.values.add(3.0);
+        assertNotEquals(GridCache.key(a), GridCache.key(b));
+        b.values.remove(2);
+
+        a.map.put("x", 1);
+        a.map.put("y", 2);
+        b.map.put("y", 2);
+        b.map.put("x", 1);
+        assertEquals(GridCache.key(a), GridCache.key(b));
+
+        b.x = 0.5;
+        assertNotEquals(GridCache.key(a), GridCache.key(b));
+    }
+}
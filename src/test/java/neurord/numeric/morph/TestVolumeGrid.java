@@ -0,0 +1,145 @@
+package neurord.numeric.morph;
+
+import java.util.ArrayList;
+
+import neurord.geom.Geom;
+import neurord.geom.Position;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.*;
+
+public class TestVolumeGrid {
+    VolumeGrid grid;
+
+    /* Elements 0-9 labeled spine[9-i], alternating submembrane,
+     * in regions "neck" and "head", followed by one unlabeled "dend" element. */
+    @BeforeClass
+    public void makeGrid() {
+        this.grid = new VolumeGrid();
+        for (int i = 0; i < 11; i++) {
+            Position[] boundary = {
+                Geom.position(i, 0, 0), Geom.position(i + 1, 0, 0),
+                Geom.position(i + 1, 1, 0), Geom.position(i, 1, 0),
+            };
+            this.grid.addElement(new CuboidVolumeElement(i < 10 ? "spine[" + (9 - i) + "]" : null,
+                                                         i < 10 ? (i < 5 ? "neck" : "head") : "dend",
+                                                         null,
+                                                         boundary,
+                                                         i % 2 == 0 ? boundary : null,
+                                                         i % 2 == 0 ? 1 : 0,
+                                                         Geom.position(i + 0.5, 0.5, 0),
+                                                         1, 1, 1,
+                                                         1, 1));
+        }
+        this.grid.fix();
+    }
+
+    int[] numbers(String label) {
+        ArrayList<VolumeElement> list = this.grid.filterElementsByLabel(label);
+        int[] ans = new int[list.size()];
+        for (int i = 0; i < ans.length; i++)
+            ans[i] = list.get(i).getNumber();
+        return ans;
+    }
+
+    @Test
+    public void testLabels() {
+        assertEquals(numbers("spine[3]"), new int[]{ 6 });
+        assertEquals(numbers("neck"), new int[]{ 0, 1, 2, 3, 4 });
+        assertEquals(numbers("neck:submembrane"), new int[]{ 0, 2, 4 });
+        assertEquals(numbers("head:submembrane"), new int[]{ 6, 8 });
+        assertEquals(numbers("dend"), new int[]{ 10 });
+    }
+
+    @Test
+    public void testRanges() {
+        /* results are in the order of elements, not of indices */
+        assertEquals(numbers("spine[2:4]"), new int[]{ 5, 6, 7 });
+        assertEquals(numbers("spine[:1]"), new int[]{ 8, 9 });
+        assertEquals(numbers("spine[8:]"), new int[]{ 0, 1 });
+        assertEquals(numbers("spine[*]").length, 10);
+        assertEquals(numbers("spine[7,1,7]"), new int[]{ 2, 8 });
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testNoMatches() {
+        this.grid.filterElementsByLabel("spine[20:30]");
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testNoLabel() {
+        this.grid.filterElementsByLabel("soma:submembrane");
+    }
+
+    @Test
+    public void testRenumber() {
+        /* A chain 0-3-1-4-2-5, numbered so that neighbours are far apart */
+        VolumeGrid chain = new VolumeGrid();
+        for (int i = 0; i < 6; i++) {
+            Position[] boundary = {
+                Geom.position(i, 0, 0), Geom.position(i + 1, 0, 0),
+                Geom.position(i + 1, 1, 0), Geom.position(i, 1, 0),
+            };
+            chain.addElement(new CuboidVolumeElement("e" + i, i < 3 ? "a" : "b", null,
+                                                     boundary, null, 0,
+                                                     Geom.position(i + 0.5, 0.5, 0),
+                                                     1, 1, 1, 1, 1));
+        }
+        int[] path = { 0, 3, 1, 4, 2, 5 };
+        for (int i = 0; i < path.length - 1; i++)
+            chain.getElement(path[i]).coupleTo(chain.getElement(path[i + 1]), 1);
+        assertEquals(chain.bandwidth(), 3);
+
+        chain.renumber(chain.cuthillMcKeeOrder());
+        chain.fix();
+        assertEquals(chain.bandwidth(), 1);
+
+        int[] original = chain.getOriginalNumbers();
+        for (int i = 0; i < original.length; i++) {
+            assertEquals(chain.getElement(i).getNumber(), i);
+            assertEquals(chain.getLabel(i), "e" + original[i]);
+        }
+        for (int i = 0; i < original.length; i++)
+            for (int j: chain.getPerElementNeighbors()[i])
+                assertEquals(Math.abs(i - j), 1);
+
+        int last = -1;
+        for (VolumeElement ve: chain.getElementsInRegion("a")) {
+            assertEquals(ve.getNumber() > last, true);
+            last = ve.getNumber();
+        }
+    }
+
+    @Test
+    public void testPopulationOrder() {
+        /* row i of the saved population belongs to element "e" + original[i] */
+        int[] original = { 2, 0, 3, 1 };
+        int[][] saved = new int[4][];
+        for (int i = 0; i < 4; i++)
+            saved[i] = new int[]{ original[i], 10 * original[i] };
+
+        int[][] pop = VolumeGrid.inOriginalOrder(saved, original);
+        for (int i = 0; i < 4; i++)
+            assertEquals(pop[i], new int[]{ i, 10 * i });
+
+        /* continuing with a grid that was not renumbered, or renumbered differently */
+        assertEquals(VolumeGrid.inGridOrder(pop, null), pop);
+        int[] other = { 3, 1, 0, 2 };
+        int[][] cont = VolumeGrid.inGridOrder(pop, other);
+        for (int i = 0; i < 4; i++)
+            assertEquals(cont[i], new int[]{ other[i], 10 * other[i] });
+        assertEquals(VolumeGrid.inGridOrder(pop, original), saved);
+    }
+
+    @Test(expectedExceptions = RuntimeException.class,
+          expectedExceptionsMessageRegExp = "Population and voxel ordering mismatch")
+    public void testPopulationOrderMismatch() {
+        VolumeGrid.inGridOrder(new int[3][2], new int[]{ 0, 1, 2, 3 });
+    }
+
+    @Test(expectedExceptions = RuntimeException.class,
+          expectedExceptionsMessageRegExp = "Bad voxel ordering")
+    public void testPopulationOrderNotPermutation() {
+        VolumeGrid.inOriginalOrder(new int[3][2], new int[]{ 0, 1, 1 });
+    }
+}
@@ -0,0 +1,54 @@
+package neurord.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.assertFalse;
+import org.testng.annotations.*;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ObjectMessage;
+
+public class TestLogLimit {
+    static final Logger log = LogManager.getLogger();
+
+    @Test
+    public void testLimit() {
+        LogLimit limit = new LogLimit(log, "test", 3);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(limit.allow());
+        for (int i = 0; i < 5; i++)
+            assertFalse(limit.allow());
+
+        assertEquals(limit.count(), 8);
+        assertEquals(limit.suppressed(), 5);
+        limit.report();
+    }
+
+    @Test
+    public void testTrialLogFile() {
+        assertEquals(CustomFileAppender.trialLogFile("out/model.log", 3), "out/model.trial3.log");
+        assertEquals(CustomFileAppender.trialLogFile("model.txt", 0), "model.txt.trial0.log");
+    }
+
+    @Test
+    public void testImmutable() {
+        StringBuilder text = new StringBuilder("counts 1 2");
+        LogEvent e = Log4jLogEvent.newBuilder()
+            .setLoggerName("test")
+            .setLevel(Level.INFO)
+            .setMessage(new ObjectMessage(text))
+            .build();
+        LogEvent copy = CustomFileAppender.immutable(e);
+
+        /* the queued event is not affected by later changes to the message */
+        text.append(" 7");
+        assertEquals(copy.getMessage().getFormattedMessage(), "counts 1 2");
+        assertEquals(copy.getLevel(), Level.INFO);
+        assertEquals(copy.getLoggerName(), "test");
+    }
+}
@@ -0,0 +1,117 @@
+package neurord.numeric.grid;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link DeterministicKernels} using the Vector API, processing the
+ * elements of one species in vectors of the preferred size.
+ *
+ * This is compiled only with the "vector" profile (JDK 17 or later),
+ * and loaded only when running with --add-modules jdk.incubator.vector.
+ * Operations are done in the same order as in {@link DeterministicKernels.Scalar},
+ * without fused multiply-add, so the results are the same. Neighbors are
+ * gathered from the padded [maxnn][nel] arrays, padding contributes zero.
+ */
+public class VectorDeterministicKernels extends DeterministicKernels {
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private double[] row;
+
+    @Override
+    public void setup(double[] volumes,
+                      double[] fdiff,
+                      int[][] neighbors,
+                      double[][] couplings,
+                      double[] rates,
+                      int[][] reactantIndices,
+                      int[][] productIndices) {
+        super.setup(volumes, fdiff, neighbors, couplings, rates, reactantIndices, productIndices);
+        this.row = new double[this.nel];
+    }
+
+    @Override
+    public void diffusion(double dt, double[] now, double[] prev, double[] next) {
+        final int nel = this.nel;
+        final int upper = SPECIES.loopBound(nel);
+        final DoubleVector two_dt = DoubleVector.broadcast(SPECIES, 2. * dt);
+        final DoubleVector one = DoubleVector.broadcast(SPECIES, 1.);
+
+        for (int k = 0; k < this.nspec; k++) {
+            final int off = k * nel;
+
+            if (!(this.fdiff[k] > 0)) {
+                System.arraycopy(now, off, next, off, nel);
+                continue;
+            }
+
+            /* Neighbors are gathered from a copy of the row of species k.
+             * Gathering with a non-zero offset into the whole array crashes
+             * the JIT in JDK 17. */
+            final double[] row = this.row;
+            System.arraycopy(now, off, row, 0, nel);
+            for (int iel = 0; iel < upper; iel += SPECIES.length()) {
+                final DoubleVector fk = two_dt.div(DoubleVector.fromArray(SPECIES, this.volumes, iel))
+                    .mul(this.fdiff[k]);
+                final DoubleVector half_prev = DoubleVector.fromArray(SPECIES, prev, off + iel).mul(0.5);
+                DoubleVector zr = DoubleVector.zero(SPECIES), zl = one;
+
+                for (int j = 0; j < this.maxnn; j++) {
+                    final DoubleVector ff = fk.mul(DoubleVector.fromArray(SPECIES, this.couplings, j * nel + iel));
+                    final DoubleVector nbr = DoubleVector.fromArray(SPECIES, row, 0,
+                                                                    this.neighbors, j * nel + iel);
+                    zr = zr.add(ff.mul(nbr.sub(half_prev)));
+                    zl = zl.add(ff.mul(0.5));
+                }
+
+                DoubleVector.fromArray(SPECIES, now, off + iel).add(zr).div(zl)
+                    .intoArray(next, off + iel);
+            }
+
+            this.diffuse(k, upper, nel, dt, now, prev, next);
+        }
+    }
+
+    @Override
+    public void production(double dt, double[] concs, double[] out) {
+        final int nel = this.nel;
+        final int upper = SPECIES.loopBound(nel);
+
+        Arrays.fill(out, 0);
+
+        for (int ireac = 0; ireac < this.rates.length; ireac++) {
+            final int[] ri = this.reactantIndices[ireac];
+            final int[] pi = this.productIndices[ireac];
+            final DoubleVector rate = DoubleVector.broadcast(SPECIES, this.rates[ireac]);
+
+            for (int iel = 0; iel < upper; iel += SPECIES.length()) {
+                DoubleVector r = rate;
+                for (int index: ri)
+                    r = r.mul(DoubleVector.fromArray(SPECIES, concs, index * nel + iel));
+
+                for (int index: ri)
+                    DoubleVector.fromArray(SPECIES, out, index * nel + iel).sub(r)
+                        .intoArray(out, index * nel + iel);
+                for (int index: pi)
+                    DoubleVector.fromArray(SPECIES, out, index * nel + iel).add(r)
+                        .intoArray(out, index * nel + iel);
+            }
+
+            this.produce(ireac, upper, nel, concs, out);
+        }
+
+        final int n = SPECIES.loopBound(out.length);
+        int i = 0;
+        for (; i < n; i += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, out, i).mul(dt).intoArray(out, i);
+        for (; i < out.length; i++)
+            out[i] *= dt;
+    }
+
+    @Override
+    public String name() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+}
@@ -0,0 +1,56 @@
+#!/bin/sh
+
+# Run the trials of one model in several processes on this machine and
+# merge the results into one file. This is what a job on a cluster would
+# do, with one process per node.
+#
+# Usage: util/run-trials.sh <jar> <model.xml> <output> <trials> <processes> [java options...]
+#
+# e.g. util/run-trials.sh target/neurord-3.2.3-all-deps.jar model.xml out 100 4 -Xmx2g
+# writes out-trials0-24.h5, …, out-trials75-99.h5, and merges them into out.h5.
+
+set -e
+
+if [ $# -lt 5 ]; then
+    echo "Usage: $0 <jar> <model.xml> <output> <trials> <processes> [java options...]" >&2
+    exit 1
+fi
+
+jar="$1"
+model="$2"
+output="$3"
+trials="$4"
+processes="$5"
+shift 5
+
+# Like StochDiff, which strips these suffixes from the output name
+case "$output" in
+    *.h5|*.txt|*.log) output="${output%.*}" ;;
+esac
+
+per=$(( (trials + processes - 1) / processes ))
+shards=""
+pids=""
+
+first=0
+while [ $first -lt $trials ]; do
+    last=$(( first + per ))
+    [ $last -gt $trials ] && last=$trials
+
+    java "$@" -jar "$jar" --trial-range $first:$last "$model" "$output" &
+    pids="$pids $!"
+    shards="$shards $output-trials$first-$(( last - 1 )).h5"
+
+    first=$last
+done
+
+failed=0
+for pid in $pids; do
+    wait $pid || failed=1
+done
+if [ $failed -ne 0 ]; then
+    echo "Some trials failed, not merging" >&2
+    exit 1
+fi
+
+java "$@" -cp "$jar" neurord.numeric.grid.ResultMerger "$output.h5" $shards